@@ -0,0 +1,254 @@
+/* Copyright (C) 2006-2014 National and University Library of Iceland (NULI)
+ *
+ * This file is part of the DeDuplicator (Heritrix add-on module).
+ *
+ *  NULI licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package is.landsbokasafn.deduplicator;
+
+/**
+ * Parses lines of CDX files, as described by their <code> CDX</code> header (e.g. the common 11 field
+ * <code> CDX N b a m s k r M S V g</code>), and CDXJ files (<code>urlkey timestamp {json}</code>).
+ * <p>
+ * Header lines and CDXJ metadata lines (starting with <code>!</code>) are recognized by {@link #isHeader(String)}.
+ */
+public class CdxFormat {
+
+	/** The 11 field CDX format produced by most tools **/
+	public static final CdxFormat CDX11 = new CdxFormat("N b a m s k r M S V g");
+	/** The older 9 field CDX format **/
+	public static final CdxFormat CDX9 = new CdxFormat("N b a m s k r V g");
+	/** CDXJ, i.e. SURT key, timestamp and a JSON block **/
+	public static final CdxFormat CDXJ = new CdxFormat();
+
+	private final char[] fields;
+	private final boolean json;
+
+	private CdxFormat(String letters) {
+		String[] parts = letters.trim().split("\\s+");
+		fields = new char[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			fields[i] = parts[i].charAt(0);
+		}
+		json = false;
+	}
+
+	private CdxFormat() {
+		fields = new char[] {'N', 'b'};
+		json = true;
+	}
+
+	/**
+	 * @return true if the line is a CDX header or a CDXJ metadata line, rather than a record
+	 */
+	public static boolean isHeader(String line) {
+		return line.startsWith(" CDX") || line.startsWith("CDX ") || line.startsWith("!");
+	}
+
+	/**
+	 * Determine the format of a CDX file from its first line.
+	 * @param firstLine The first line of the file
+	 * @param fallback Format to assume if the first line is neither a CDX header nor a CDXJ record
+	 * @return The format
+	 */
+	public static CdxFormat detect(String firstLine, CdxFormat fallback) {
+		if (firstLine == null) {
+			return fallback;
+		}
+		if (firstLine.startsWith(" CDX ") || firstLine.startsWith("CDX ")) {
+			return new CdxFormat(firstLine.trim().substring(3));
+		}
+		if (firstLine.startsWith("!") || isJsonRecord(firstLine)) {
+			return CDXJ;
+		}
+		return fallback;
+	}
+
+	private static boolean isJsonRecord(String line) {
+		int first = line.indexOf(' ');
+		int second = first < 0 ? -1 : line.indexOf(' ', first + 1);
+		return second >= 0 && second + 1 < line.length() && line.charAt(second + 1) == '{';
+	}
+
+	public boolean isJson() {
+		return json;
+	}
+
+	/**
+	 * Parse a record line.
+	 * @param line The line
+	 * @return The record, or null if the line is not a valid record in this format
+	 */
+	public CdxRecord parse(String line) {
+		CdxRecord record = new CdxRecord();
+		if (json) {
+			int first = line.indexOf(' ');
+			int second = first < 0 ? -1 : line.indexOf(' ', first + 1);
+			if (second < 0) {
+				return null;
+			}
+			record.urlKey = line.substring(0, first);
+			record.timestamp = line.substring(first + 1, second);
+			if (!parseJson(line, second + 1, record)) {
+				return null;
+			}
+			return record;
+		}
+		int start = 0;
+		for (int f = 0; f < fields.length; f++) {
+			if (start > line.length()) {
+				return null;
+			}
+			int end = line.indexOf(' ', start);
+			if (end < 0) {
+				end = line.length();
+			}
+			String value = line.substring(start, end);
+			set(record, fields[f], value.equals("-") ? null : value);
+			start = end + 1;
+		}
+		return record;
+	}
+
+	private static void set(CdxRecord record, char field, String value) {
+		switch (field) {
+		case 'N': record.urlKey = value; break;
+		case 'b': record.timestamp = value; break;
+		case 'a': record.originalUrl = value; break;
+		case 'm': record.mimeType = value; break;
+		case 's': record.status = value; break;
+		case 'k': record.digest = value; break;
+		case 'S': record.length = value; break;
+		case 'V': record.offset = value; break;
+		case 'g': record.filename = value; break;
+		default: // Not used
+		}
+	}
+
+	/**
+	 * Parse the flat JSON object of a CDXJ line, assigning the fields we know.
+	 * @return false if the JSON is malformed
+	 */
+	private static boolean parseJson(String line, int pos, CdxRecord record) {
+		int[] cursor = {skipWhitespace(line, pos)};
+		if (cursor[0] >= line.length() || line.charAt(cursor[0]) != '{') {
+			return false;
+		}
+		cursor[0]++;
+		while (true) {
+			cursor[0] = skipWhitespace(line, cursor[0]);
+			if (cursor[0] >= line.length()) {
+				return false;
+			}
+			if (line.charAt(cursor[0]) == '}') {
+				return true;
+			}
+			if (line.charAt(cursor[0]) == ',') {
+				cursor[0]++;
+				continue;
+			}
+			String name = readJsonString(line, cursor);
+			if (name == null) {
+				return false;
+			}
+			cursor[0] = skipWhitespace(line, cursor[0]);
+			if (cursor[0] >= line.length() || line.charAt(cursor[0]) != ':') {
+				return false;
+			}
+			cursor[0] = skipWhitespace(line, cursor[0] + 1);
+			String value;
+			if (cursor[0] < line.length() && line.charAt(cursor[0]) == '"') {
+				value = readJsonString(line, cursor);
+				if (value == null) {
+					return false;
+				}
+			} else {
+				// Number, boolean or null
+				int end = cursor[0];
+				while (end < line.length() && ",} \t".indexOf(line.charAt(end)) < 0) {
+					end++;
+				}
+				value = line.substring(cursor[0], end);
+				cursor[0] = end;
+				if (value.equals("null")) {
+					value = null;
+				}
+			}
+			switch (name) {
+			case "url": record.originalUrl = value; break;
+			case "mime": record.mimeType = value; break;
+			case "status": record.status = value; break;
+			case "digest": record.digest = value; break;
+			case "length": record.length = value; break;
+			case "offset": record.offset = value; break;
+			case "filename": record.filename = value; break;
+			default: // Not used
+			}
+		}
+	}
+
+	private static int skipWhitespace(String s, int pos) {
+		while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) {
+			pos++;
+		}
+		return pos;
+	}
+
+	/**
+	 * Read a JSON string starting at cursor[0] (which must point to the opening quote), advancing the cursor past
+	 * the closing quote.
+	 * @return The unescaped string, or null if malformed
+	 */
+	private static String readJsonString(String s, int[] cursor) {
+		int pos = cursor[0];
+		if (pos >= s.length() || s.charAt(pos) != '"') {
+			return null;
+		}
+		StringBuilder sb = new StringBuilder();
+		for (pos++; pos < s.length(); pos++) {
+			char c = s.charAt(pos);
+			if (c == '"') {
+				cursor[0] = pos + 1;
+				return sb.toString();
+			}
+			if (c != '\\') {
+				sb.append(c);
+				continue;
+			}
+			if (++pos >= s.length()) {
+				return null;
+			}
+			char e = s.charAt(pos);
+			switch (e) {
+			case 'n': sb.append('\n'); break;
+			case 't': sb.append('\t'); break;
+			case 'r': sb.append('\r'); break;
+			case 'b': sb.append('\b'); break;
+			case 'f': sb.append('\f'); break;
+			case 'u':
+				if (pos + 4 >= s.length()) {
+					return null;
+				}
+				try {
+					sb.append((char)Integer.parseInt(s.substring(pos + 1, pos + 5), 16));
+				} catch (NumberFormatException ex) {
+					return null;
+				}
+				pos += 4;
+				break;
+			default: sb.append(e); // Covers \" \\ and \/
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,138 @@
+/* Copyright (C) 2006-2014 National and University Library of Iceland (NULI)
+ *
+ * This file is part of the DeDuplicator (Heritrix add-on module).
+ *
+ *  NULI licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package is.landsbokasafn.deduplicator;
+
+/**
+ * A single line of a CDX or CDXJ file, as parsed by {@link CdxFormat}. Fields missing from the line (or given as
+ * <code>-</code>) are null.
+ */
+public class CdxRecord {
+	public static final String REVISIT_MIME_TYPE = "warc/revisit";
+
+	String urlKey;
+	String timestamp;
+	String originalUrl;
+	String mimeType;
+	String status;
+	String digest;
+	String length;
+	String offset;
+	String filename;
+
+	public String getUrlKey() {
+		return urlKey;
+	}
+
+	/**
+	 * @return The 14 digit capture timestamp
+	 */
+	public String getTimestamp() {
+		return timestamp;
+	}
+
+	public String getOriginalUrl() {
+		return originalUrl;
+	}
+
+	public String getMimeType() {
+		return mimeType;
+	}
+
+	/**
+	 * @return The HTTP status code, -1 if missing or not a number
+	 */
+	public int getStatusCode() {
+		if (status == null) {
+			return -1;
+		}
+		try {
+			return Integer.parseInt(status);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return The digest, as given in the CDX file (CDX files usually omit the scheme, CDXJ files may include it)
+	 */
+	public String getDigest() {
+		return digest;
+	}
+
+	/**
+	 * @return The digest without any scheme prefix (e.g. <code>sha1:</code>)
+	 */
+	public String getDigestWithoutScheme() {
+		if (digest == null) {
+			return null;
+		}
+		int colon = digest.lastIndexOf(':');
+		return colon >= 0 ? digest.substring(colon + 1) : digest;
+	}
+
+	public String getLength() {
+		return length;
+	}
+
+	public String getOffset() {
+		return offset;
+	}
+
+	public String getFilename() {
+		return filename;
+	}
+
+	public boolean isRevisit() {
+		return REVISIT_MIME_TYPE.equals(mimeType);
+	}
+
+	/**
+	 * @return The capture date in w3c-iso8601 format (as used in the DeDuplicator index). Null if there is no
+	 *         timestamp.
+	 */
+	public String getIsoDate() {
+		return toIsoDate(timestamp);
+	}
+
+	/**
+	 * Convert a (up to) 14 digit timestamp, as used in CDX files, to w3c-iso8601 format. Short timestamps are
+	 * padded with the earliest possible value.
+	 * @param timestamp The timestamp, e.g. <code>20140102030405</code>
+	 * @return The date, e.g. <code>2014-01-02T03:04:05Z</code>
+	 */
+	public static String toIsoDate(String timestamp) {
+		if (timestamp == null || timestamp.length() < 4) {
+			return null;
+		}
+		char[] ts = "00000101000000".toCharArray();
+		timestamp.getChars(0, Math.min(14, timestamp.length()), ts, 0);
+		char[] iso = new char[20];
+		System.arraycopy(ts, 0, iso, 0, 4);
+		iso[4] = '-';
+		System.arraycopy(ts, 4, iso, 5, 2);
+		iso[7] = '-';
+		System.arraycopy(ts, 6, iso, 8, 2);
+		iso[10] = 'T';
+		System.arraycopy(ts, 8, iso, 11, 2);
+		iso[13] = ':';
+		System.arraycopy(ts, 10, iso, 14, 2);
+		iso[16] = ':';
+		System.arraycopy(ts, 12, iso, 17, 2);
+		iso[19] = 'Z';
+		return new String(iso);
+	}
+}
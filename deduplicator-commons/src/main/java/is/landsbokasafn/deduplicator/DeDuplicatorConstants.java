@@ -18,6 +18,7 @@ package is.landsbokasafn.deduplicator;
 
 public interface DeDuplicatorConstants {
     public static final String REVISIT_ANNOTATION_MARKER="Revisit:IdenticalPayloadDigest";
+    public static final String REVISIT_NOT_MODIFIED_ANNOTATION_MARKER="Revisit:ServerNotModified";
     
     /* Extra info for crawl log, JSON keys */
     public static final String EXTRA_REVISIT_PROFILE="RevisitProfile";
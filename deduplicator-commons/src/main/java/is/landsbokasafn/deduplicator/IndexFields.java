@@ -35,6 +35,10 @@ public enum IndexFields {
     /** A canonicalized version of the URL **/
 	URL_CANONICALIZED,
     /** WARC Record ID of original payload capture. Suitable for WARC-Refers-To field. **/
-    ORIGINAL_RECORD_ID;
+    ORIGINAL_RECORD_ID,
+    /** The unique key of a document. The URL and digest, separated by a space, if the URL is indexed, otherwise
+     *  the digest alone. Indexed but not stored. Used when building the index to replace earlier captures. 
+     */
+    KEY;
 
 }
@@ -0,0 +1,56 @@
+/* Copyright (C) 2006-2014 National and University Library of Iceland (NULI)
+ *
+ * This file is part of the DeDuplicator (Heritrix add-on module).
+ *
+ *  NULI licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package is.landsbokasafn.deduplicator;
+
+/**
+ * How an index is split into time based partitions, each a separate Lucene index in a subdirectory of the index
+ * location named after its period. Captures are assigned to partitions based on their DATE.
+ * <p>
+ * Partition names sort in chronological order, so expired partitions are easily identified and can be removed by
+ * deleting their directory.
+ *
+ * @see IndexPartitions
+ */
+public enum IndexPartitioning {
+	/** A single, unpartitioned, index **/
+	NONE(0),
+	/** One partition per year, e.g. <code>2014</code> **/
+	YEAR(4),
+	/** One partition per month, e.g. <code>2014-01</code> **/
+	MONTH(7);
+
+	private final int length;
+
+	private IndexPartitioning(int length) {
+		this.length = length;
+	}
+
+	/**
+	 * @param date Date of the capture, in w3c-iso8601 format (e.g. <code>2014-01-02T03:04:05Z</code>)
+	 * @return The name of the partition the capture belongs in. Null for {@link #NONE}.
+	 * @throws IllegalArgumentException if the date is too short to determine the partition
+	 */
+	public String partitionFor(String date) {
+		if (this == NONE) {
+			return null;
+		}
+		if (date == null || date.length() < length) {
+			throw new IllegalArgumentException("Unable to determine " + name() + " partition for date " + date);
+		}
+		return date.substring(0, length);
+	}
+}
@@ -0,0 +1,136 @@
+/* Copyright (C) 2006-2014 National and University Library of Iceland (NULI)
+ *
+ * This file is part of the DeDuplicator (Heritrix add-on module).
+ *
+ *  NULI licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package is.landsbokasafn.deduplicator;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexReaderContext;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
+
+/**
+ * Utility methods for opening an index location that may either be a single Lucene index or a directory of
+ * partitions (see {@link IndexPartitioning}), each of which is a Lucene index.
+ */
+public class IndexPartitions {
+
+	private IndexPartitions() {
+		// Static use only
+	}
+
+	/**
+	 * @param location An index location
+	 * @return true if the location is a single Lucene index, rather than a directory of partitions
+	 * @throws IOException If unable to access the location
+	 */
+	public static boolean isSingleIndex(File location) throws IOException {
+		Directory dir = FSDirectory.open(location);
+		try {
+			return DirectoryReader.indexExists(dir);
+		} finally {
+			dir.close();
+		}
+	}
+
+	/**
+	 * List the partitions of a partitioned index, newest (i.e. last in name order) first. Subdirectories that do
+	 * not contain a Lucene index are ignored.
+	 * @param location The index location
+	 * @return The partition directories. Empty if there are none.
+	 * @throws IOException If unable to access the location
+	 */
+	public static List<File> listPartitions(File location) throws IOException {
+		File[] dirs = location.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.isDirectory();
+			}
+		});
+		List<File> partitions = new ArrayList<File>();
+		if (dirs == null) {
+			return partitions;
+		}
+		Arrays.sort(dirs);
+		for (File dir : dirs) {
+			if (isSingleIndex(dir)) {
+				partitions.add(dir);
+			}
+		}
+		Collections.reverse(partitions);
+		return partitions;
+	}
+
+	/**
+	 * Open an index location for reading. If it is partitioned, all partitions are opened as one logical index,
+	 * with the newest partition first (so, where hits score equally, captures in newer partitions are preferred).
+	 * @param location The index location
+	 * @return A reader for the whole index
+	 * @throws IOException If no index is found at the location or it can not be opened
+	 */
+	public static IndexReader open(File location) throws IOException {
+		if (isSingleIndex(location)) {
+			return DirectoryReader.open(new NIOFSDirectory(location));
+		}
+		List<File> partitions = listPartitions(location);
+		if (partitions.isEmpty()) {
+			throw new IOException("No index or index partitions found at " + location.getAbsolutePath());
+		}
+		IndexReader[] readers = new IndexReader[partitions.size()];
+		try {
+			for (int i = 0; i < readers.length; i++) {
+				readers[i] = DirectoryReader.open(new NIOFSDirectory(partitions.get(i)));
+			}
+		} catch (IOException e) {
+			for (IndexReader reader : readers) {
+				if (reader != null) {
+					reader.close();
+				}
+			}
+			throw e;
+		}
+		// Closing the MultiReader closes the partition readers
+		return new MultiReader(readers, true);
+	}
+
+	/**
+	 * @param reader A reader opened with {@link #open(File)}
+	 * @return A version number for the index, that changes if any partition changes or partitions are added or
+	 *         removed
+	 */
+	public static long getVersion(IndexReader reader) {
+		if (reader instanceof DirectoryReader) {
+			return ((DirectoryReader)reader).getVersion();
+		}
+		long version = 17;
+		for (IndexReaderContext partitionContext : reader.getContext().children()) {
+			DirectoryReader partition = (DirectoryReader)partitionContext.reader();
+			version = 31 * version + partition.getVersion();
+			version = 31 * version + ((FSDirectory)partition.directory()).getDirectory().getName().hashCode();
+		}
+		return version;
+	}
+}
@@ -0,0 +1,292 @@
+/* Copyright (C) 2006-2014 National and University Library of Iceland (NULI)
+ *
+ * This file is part of the DeDuplicator (Heritrix add-on module).
+ *
+ *  NULI licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package is.landsbokasafn.deduplicator;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An open-addressed hash table, stored in a memory mapped file, mapping a 64 bit hash of a URL to a 64 bit hash of
+ * the content digest of its latest capture and a pointer to a record with further details of that capture
+ * (see {@link #readRecord(FileChannel, long)}).
+ * <p>
+ * The table lives outside the Java heap and takes {@value #SLOT_SIZE} bytes per slot. Linear probing is used to
+ * resolve collisions. A slot whose URL hash is zero is empty (hashes are never zero, see {@link #hash(CharSequence)}).
+ * <p>
+ * A table directory contains two files, {@value #TABLE_FILE} and {@value #RECORDS_FILE}.
+ */
+public class UrlHashTable implements Closeable {
+
+	public static final String TABLE_FILE = "urlhash.table";
+	public static final String RECORDS_FILE = "urlhash.records";
+
+	/** File format identifier, "DDUPHASH" **/
+	public static final long MAGIC = 0x4444555048415348L;
+	public static final int VERSION = 1;
+	/** Header: magic (8), version (4), padding (4), capacity (8), entries (8) **/
+	public static final int HEADER_SIZE = 32;
+	/** Slot: URL hash (8), digest hash (8), record pointer (8) **/
+	public static final int SLOT_SIZE = 24;
+
+	/** Slots per mapped chunk. Keeps each mapping well below the 2GB limit of a MappedByteBuffer. **/
+	private static final int SLOTS_PER_CHUNK = 1 << 25;
+	private static final long CHUNK_SIZE = (long)SLOTS_PER_CHUNK * SLOT_SIZE;
+
+	/** Target load factor when sizing a new table **/
+	public static final double LOAD_FACTOR = 0.7;
+
+	private final RandomAccessFile file;
+	private final MappedByteBuffer header;
+	private final MappedByteBuffer[] chunks;
+	private final long capacity;
+	private final long mask;
+	private long entries;
+
+	private UrlHashTable(RandomAccessFile file, boolean writable, long capacity) throws IOException {
+		this.file = file;
+		this.capacity = capacity;
+		this.mask = capacity - 1;
+		FileChannel.MapMode mode = writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+		FileChannel channel = file.getChannel();
+		header = channel.map(mode, 0, HEADER_SIZE);
+		int chunkCount = (int)((capacity + SLOTS_PER_CHUNK - 1) / SLOTS_PER_CHUNK);
+		chunks = new MappedByteBuffer[chunkCount];
+		for (int i = 0; i < chunkCount; i++) {
+			long start = HEADER_SIZE + i * CHUNK_SIZE;
+			long size = Math.min(CHUNK_SIZE, capacity * SLOT_SIZE - i * CHUNK_SIZE);
+			chunks[i] = channel.map(mode, start, size);
+		}
+	}
+
+	/**
+	 * Create a new, empty, table in the given directory, overwriting any existing table.
+	 * @param directory The table directory. Created if missing.
+	 * @param expectedEntries The number of URLs the table must be able to hold
+	 * @return The new table, open for writing
+	 * @throws IOException If unable to create the table file
+	 */
+	public static UrlHashTable create(File directory, long expectedEntries) throws IOException {
+		long capacity = Long.highestOneBit(Math.max(16, (long)(expectedEntries / LOAD_FACTOR)) * 2 - 1);
+		if (!directory.exists() && !directory.mkdirs()) {
+			throw new IOException("Unable to create directory " + directory.getAbsolutePath());
+		}
+		RandomAccessFile raf = new RandomAccessFile(new File(directory, TABLE_FILE), "rw");
+		try {
+			raf.setLength(0);
+			raf.setLength(HEADER_SIZE + capacity * SLOT_SIZE); // New space reads as zeros, i.e. empty slots
+			UrlHashTable table = new UrlHashTable(raf, true, capacity);
+			table.header.putLong(0, MAGIC);
+			table.header.putInt(8, VERSION);
+			table.header.putLong(16, capacity);
+			table.header.putLong(24, 0);
+			return table;
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Open an existing table, read only.
+	 * @param directory The table directory
+	 * @return The table
+	 * @throws IOException If the table does not exist or is not valid
+	 */
+	public static UrlHashTable open(File directory) throws IOException {
+		File tableFile = new File(directory, TABLE_FILE);
+		RandomAccessFile raf = new RandomAccessFile(tableFile, "r");
+		try {
+			if (raf.length() < HEADER_SIZE || raf.readLong() != MAGIC) {
+				throw new IOException(tableFile.getAbsolutePath() + " is not a URL hash table");
+			}
+			int version = raf.readInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported URL hash table version " + version + " in " +
+						tableFile.getAbsolutePath());
+			}
+			raf.seek(16);
+			long capacity = raf.readLong();
+			if (Long.bitCount(capacity) != 1 || raf.length() != HEADER_SIZE + capacity * SLOT_SIZE) {
+				throw new IOException("URL hash table " + tableFile.getAbsolutePath() + " is truncated or corrupt");
+			}
+			UrlHashTable table = new UrlHashTable(raf, false, capacity);
+			table.entries = table.header.getLong(24);
+			return table;
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * 64 bit hash of a string (FNV-1a over the UTF-16 code units, followed by a final avalanche mix).
+	 * Never returns zero.
+	 * @param s The string to hash
+	 * @return The hash
+	 */
+	public static long hash(CharSequence s) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			h ^= (c & 0xff);
+			h *= 0x100000001b3L;
+			h ^= (c >>> 8);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h == 0 ? 1 : h;
+	}
+
+	/**
+	 * Find the slot for a URL hash.
+	 * @param urlHash The URL hash
+	 * @return The slot holding that URL hash or, if it is not in the table, the empty slot where it would go.
+	 *         -1 if it is not in the table and the table is full.
+	 */
+	public long findSlot(long urlHash) {
+		long slot = urlHash & mask;
+		for (long probes = 0; probes < capacity; probes++) {
+			long stored = getUrlHash(slot);
+			if (stored == urlHash || stored == 0) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	private ByteBuffer chunk(long slot) {
+		return chunks[(int)(slot / SLOTS_PER_CHUNK)];
+	}
+
+	private int offset(long slot) {
+		return (int)(slot % SLOTS_PER_CHUNK) * SLOT_SIZE;
+	}
+
+	public long getUrlHash(long slot) {
+		return chunk(slot).getLong(offset(slot));
+	}
+
+	public long getDigestHash(long slot) {
+		return chunk(slot).getLong(offset(slot) + 8);
+	}
+
+	public long getRecordPointer(long slot) {
+		return chunk(slot).getLong(offset(slot) + 16);
+	}
+
+	/**
+	 * Write a slot. Only valid for tables opened with {@link #create(File, long)}.
+	 */
+	public void set(long slot, long urlHash, long digestHash, long recordPointer) {
+		ByteBuffer chunk = chunk(slot);
+		int offset = offset(slot);
+		if (chunk.getLong(offset) == 0) {
+			entries++;
+		}
+		chunk.putLong(offset, urlHash);
+		chunk.putLong(offset + 8, digestHash);
+		chunk.putLong(offset + 16, recordPointer);
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	public long getEntries() {
+		return entries;
+	}
+
+	/**
+	 * Encode a record for the records file. Fields are stored as UTF-8, separated by newlines, preceded by the
+	 * total length as an int.
+	 * @param fields The record's fields. May not contain newlines. Nulls are stored as empty strings.
+	 * @return The encoded record
+	 */
+	public static byte[] encodeRecord(String... fields) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < fields.length; i++) {
+			if (i > 0) {
+				sb.append('\n');
+			}
+			if (fields[i] != null) {
+				sb.append(fields[i]);
+			}
+		}
+		byte[] body = sb.toString().getBytes(StandardCharsets.UTF_8);
+		ByteBuffer record = ByteBuffer.allocate(4 + body.length);
+		record.putInt(body.length);
+		record.put(body);
+		return record.array();
+	}
+
+	/**
+	 * Read a record written with {@link #encodeRecord(String...)}. Uses positional reads, so the channel may be
+	 * shared by many threads.
+	 * @param records The records file
+	 * @param pointer The position of the record
+	 * @return The fields of the record. Empty fields are returned as null.
+	 * @throws IOException If unable to read the record
+	 */
+	public static String[] readRecord(FileChannel records, long pointer) throws IOException {
+		ByteBuffer length = ByteBuffer.allocate(4);
+		readFully(records, length, pointer);
+		ByteBuffer body = ByteBuffer.allocate(length.getInt(0));
+		readFully(records, body, pointer + 4);
+		String[] fields = new String(body.array(), StandardCharsets.UTF_8).split("\n", -1);
+		for (int i = 0; i < fields.length; i++) {
+			if (fields[i].isEmpty()) {
+				fields[i] = null;
+			}
+		}
+		return fields;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position + buffer.position());
+			if (read < 0) {
+				throw new IOException("Unexpected end of records file at " + position);
+			}
+		}
+	}
+
+	/**
+	 * Close the table. For writable tables, the entry count is stored and the table flushed to disk first.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (!header.isReadOnly()) {
+			header.putLong(24, entries);
+			header.force();
+			for (MappedByteBuffer chunk : chunks) {
+				chunk.force();
+			}
+		}
+		file.close();
+	}
+}
@@ -0,0 +1,239 @@
+/* Copyright (C) 2006-2014 National and University Library of Iceland (NULI)
+ *
+ * This file is part of the DeDuplicator (Heritrix add-on module).
+ *
+ *  NULI licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package is.landsbokasafn.deduplicator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class UrlHashTableTest extends TestCase {
+
+	private File dir;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = Files.createTempDirectory("urlhashtable").toFile();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	/**
+	 * Insert a URL hash, as the table builder does.
+	 */
+	private static void put(UrlHashTable table, long urlHash, long digestHash, long pointer) {
+		long slot = table.findSlot(urlHash);
+		assertTrue("Table is full", slot >= 0);
+		table.set(slot, urlHash, digestHash, pointer);
+	}
+
+	/**
+	 * @return The slot holding a URL hash, or -1 if it is not in the table
+	 */
+	private static long lookup(UrlHashTable table, long urlHash) {
+		long slot = table.findSlot(urlHash);
+		return slot >= 0 && table.getUrlHash(slot) == urlHash ? slot : -1;
+	}
+
+	public void testInsertAndLookup() throws Exception {
+		UrlHashTable table = UrlHashTable.create(dir, 1000);
+		try {
+			for (int i = 0; i < 1000; i++) {
+				put(table, UrlHashTable.hash("http://example.com/" + i), i, i * 100L);
+			}
+			assertEquals(1000, table.getEntries());
+		} finally {
+			table.close();
+		}
+
+		table = UrlHashTable.open(dir);
+		try {
+			assertEquals(1000, table.getEntries());
+			for (int i = 0; i < 1000; i++) {
+				long slot = lookup(table, UrlHashTable.hash("http://example.com/" + i));
+				assertTrue(slot >= 0);
+				assertEquals(i, table.getDigestHash(slot));
+				assertEquals(i * 100L, table.getRecordPointer(slot));
+			}
+			assertEquals(-1, lookup(table, UrlHashTable.hash("http://example.com/other")));
+		} finally {
+			table.close();
+		}
+	}
+
+	public void testReplace() throws Exception {
+		UrlHashTable table = UrlHashTable.create(dir, 10);
+		try {
+			long urlHash = UrlHashTable.hash("http://example.com/");
+			put(table, urlHash, 1, 10);
+			put(table, urlHash, 2, 20);
+			assertEquals(1, table.getEntries());
+			long slot = lookup(table, urlHash);
+			assertEquals(2, table.getDigestHash(slot));
+			assertEquals(20, table.getRecordPointer(slot));
+		} finally {
+			table.close();
+		}
+	}
+
+	public void testCollisions() throws Exception {
+		UrlHashTable table = UrlHashTable.create(dir, 10);
+		try {
+			long capacity = table.getCapacity();
+			// All start probing in the same slot, the last one of the table
+			long[] hashes = {capacity - 1, 2 * capacity - 1, 3 * capacity - 1};
+			for (int i = 0; i < hashes.length; i++) {
+				put(table, hashes[i], i + 1, i + 1);
+			}
+			assertEquals(capacity - 1, lookup(table, hashes[0]));
+			// Probing wraps around to the start of the table
+			assertEquals(0, lookup(table, hashes[1]));
+			assertEquals(1, lookup(table, hashes[2]));
+			for (int i = 0; i < hashes.length; i++) {
+				assertEquals(i + 1, table.getDigestHash(lookup(table, hashes[i])));
+			}
+			// A hash that collides, but is not in the table, ends at the next empty slot
+			assertEquals(-1, lookup(table, 4 * capacity - 1));
+			assertEquals(2, table.findSlot(4 * capacity - 1));
+		} finally {
+			table.close();
+		}
+	}
+
+	public void testFull() throws Exception {
+		UrlHashTable table = UrlHashTable.create(dir, 1);
+		try {
+			long capacity = table.getCapacity();
+			for (long i = 1; i <= capacity; i++) {
+				put(table, i, i, i);
+			}
+			assertEquals(capacity, table.getEntries());
+			assertEquals(-1, table.findSlot(capacity + 1));
+			for (long i = 1; i <= capacity; i++) {
+				assertEquals(i, table.getDigestHash(lookup(table, i)));
+			}
+		} finally {
+			table.close();
+		}
+	}
+
+	public void testSizing() throws Exception {
+		for (long expected : new long[] {0, 1, 11, 12, 1000, 100000}) {
+			UrlHashTable table = UrlHashTable.create(dir, expected);
+			try {
+				long capacity = table.getCapacity();
+				assertEquals(1, Long.bitCount(capacity));
+				assertTrue(capacity >= 16);
+				assertTrue(expected + " entries in " + capacity + " slots",
+						expected <= capacity * UrlHashTable.LOAD_FACTOR);
+				assertEquals(UrlHashTable.HEADER_SIZE + capacity * UrlHashTable.SLOT_SIZE,
+						new File(dir, UrlHashTable.TABLE_FILE).length());
+			} finally {
+				table.close();
+			}
+		}
+	}
+
+	public void testCreateOverwrites() throws Exception {
+		UrlHashTable table = UrlHashTable.create(dir, 1000);
+		try {
+			put(table, 1, 1, 1);
+		} finally {
+			table.close();
+		}
+		table = UrlHashTable.create(dir, 10);
+		try {
+			assertEquals(0, table.getEntries());
+			assertEquals(-1, lookup(table, 1));
+		} finally {
+			table.close();
+		}
+	}
+
+	public void testOpenInvalid() throws Exception {
+		RandomAccessFile raf = new RandomAccessFile(new File(dir, UrlHashTable.TABLE_FILE), "rw");
+		try {
+			raf.write(new byte[UrlHashTable.HEADER_SIZE]);
+		} finally {
+			raf.close();
+		}
+		try {
+			UrlHashTable.open(dir).close();
+			fail("Opened a table without the magic number");
+		} catch (IOException e) {
+			// Expected
+		}
+
+		UrlHashTable.create(dir, 10).close();
+		raf = new RandomAccessFile(new File(dir, UrlHashTable.TABLE_FILE), "rw");
+		try {
+			raf.setLength(raf.length() - UrlHashTable.SLOT_SIZE);
+		} finally {
+			raf.close();
+		}
+		try {
+			UrlHashTable.open(dir).close();
+			fail("Opened a truncated table");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+	public void testHash() {
+		assertEquals(UrlHashTable.hash("http://example.com/"),
+				UrlHashTable.hash(new StringBuilder("http://example.com/")));
+		assertFalse(UrlHashTable.hash("http://example.com/a") == UrlHashTable.hash("http://example.com/b"));
+		assertFalse(UrlHashTable.hash("") == 0);
+	}
+
+	public void testRecords() throws Exception {
+		byte[] first = UrlHashTable.encodeRecord("http://example.com/", "2014-03-01T12:00:00Z", null, "sha1:AAAA");
+		byte[] second = UrlHashTable.encodeRecord("http://example.com/\u00e1", null);
+		File file = new File(dir, UrlHashTable.RECORDS_FILE);
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.READ);
+		try {
+			channel.write(ByteBuffer.wrap(first));
+			channel.write(ByteBuffer.wrap(second));
+			assertEquals(Arrays.asList("http://example.com/", "2014-03-01T12:00:00Z", null, "sha1:AAAA"),
+					Arrays.asList(UrlHashTable.readRecord(channel, 0)));
+			assertEquals(Arrays.asList("http://example.com/\u00e1", null),
+					Arrays.asList(UrlHashTable.readRecord(channel, first.length)));
+			try {
+				UrlHashTable.readRecord(channel, first.length + second.length - 2);
+				fail("Read past the end of the records");
+			} catch (IOException e) {
+				// Expected
+			}
+		} finally {
+			channel.close();
+		}
+	}
+
+}
@@ -0,0 +1,334 @@
+package is.landsbokasafn.deduplicator.heritrix;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.archive.modules.revisit.IdenticalPayloadDigestRevisit;
+import org.archive.modules.revisit.ServerNotModifiedRevisit;
+import org.archive.url.URLKeyMaker;
+import org.archive.url.WaybackURLKeyMaker;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import is.landsbokasafn.deduplicator.CdxFormat;
+import is.landsbokasafn.deduplicator.CdxRecord;
+
+/**
+ * An {@link Index} that searches sorted CDX (or CDXJ) files directly, such as those generated for wayback, instead
+ * of a separately built Lucene index.
+ * <p>
+ * The files are memory mapped and searched by binary search on the SURT key, so no index building step is needed
+ * and the page cache is shared with any wayback instance using the same files. The files must be sorted in byte
+ * order (<code>LC_ALL=C sort</code>).
+ * <p>
+ * URL based strategies search the CDX files. {@link SearchStrategy#DIGEST_ANY} (and the fallback of
+ * {@link SearchStrategy#DIGEST_URL_PREFERRED}) requires a secondary, digest sorted, file where each line is the
+ * digest (without scheme) followed by a space and a line in the same format as the (first) CDX file. For 11 field
+ * CDX files, this can be generated with
+ * <code>grep -v '^ CDX' index.cdx | awk '{print $6 " " $0}' | LC_ALL=C sort &gt; index.digest</code>.
+ * <p>
+ * Revisit records and records with an HTTP status other than 200 are ignored, mirroring what the indexer does.
+ * CDX files do not carry the WARC record ID or ETag of captures, so these are never available.
+ */
+public class CdxIndex implements Index, InitializingBean, DisposableBean {
+    private static Logger logger = Logger.getLogger(CdxIndex.class.getName());
+
+    private static class CdxSource {
+    	final SortedTextFile file;
+    	final CdxFormat format;
+    	CdxSource(SortedTextFile file, CdxFormat format) {
+    		this.file = file;
+    		this.format = format;
+    	}
+    }
+
+    private List<CdxSource> cdxSources = new ArrayList<CdxSource>();
+    private List<CdxSource> digestSources = new ArrayList<CdxSource>();
+
+    private URLKeyMaker keyMaker = new WaybackURLKeyMaker();
+    /**
+     * Set how the keys that the CDX files are sorted on are made from URLs. Must match the canonicalization used
+     * when the CDX files were generated. Default is the SURT form used by wayback and pywb
+     * (<code>com,example)/path</code>), made by {@link WaybackURLKeyMaker}.
+     * @param keyMaker The URL key maker
+     */
+    public void setKeyMaker(URLKeyMaker keyMaker) {
+    	this.keyMaker = keyMaker;
+    }
+    public URLKeyMaker getKeyMaker() {
+    	return keyMaker;
+    }
+
+    // Statistics
+    private AtomicLong lookups = new AtomicLong();
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong linesExamined = new AtomicLong();
+    private AtomicLong malformedLines = new AtomicLong();
+
+    private List<String> cdxFiles = new ArrayList<String>();
+    /**
+     * Set the sorted CDX or CDXJ files to search. Changing this value after the bean has been initialized will have
+     * no effect.
+     * @param cdxFiles Paths to the CDX files
+     */
+    public void setCdxFiles(List<String> cdxFiles) {
+    	this.cdxFiles = cdxFiles;
+    }
+    public List<String> getCdxFiles() {
+    	return cdxFiles;
+    }
+
+    private List<String> digestFiles = new ArrayList<String>();
+    /**
+     * Set the digest sorted files (digest, space, CDX line) to search for digest based strategies. Optional unless
+     * the search strategy is {@link SearchStrategy#DIGEST_ANY}. Changing this value after the bean has been
+     * initialized will have no effect.
+     * @param digestFiles Paths to the digest sorted files
+     */
+    public void setDigestFiles(List<String> digestFiles) {
+    	this.digestFiles = digestFiles;
+    }
+    public List<String> getDigestFiles() {
+    	return digestFiles;
+    }
+
+	protected SearchStrategy strategy = SearchStrategy.URL_CANONICAL;
+    /**
+     * Set the search strategy to employ. Default is {@link SearchStrategy#URL_CANONICAL}, as CDX files are keyed on
+     * the SURT form of the URL.
+     * @param strategy The search strategy to employ
+     * @see SearchStrategy
+     */
+	public void setSearchStrategy(SearchStrategy strategy) {
+		this.strategy = strategy;
+	}
+	public SearchStrategy getSearchStrategy() {
+		return strategy;
+	}
+
+	@Override
+	public void afterPropertiesSet() throws Exception {
+		if (strategy == SearchStrategy.DIGEST_ANY && digestFiles.isEmpty()) {
+			throw new IllegalStateException("Digest files must be provided for search strategy " + strategy.name());
+		}
+		try {
+			for (String cdxFile : cdxFiles) {
+				cdxSources.add(open(cdxFile));
+			}
+			// Lines in digest files are in the same format as the (first) CDX file, prefixed with the digest
+			CdxFormat digestFormat = cdxSources.isEmpty() ? CdxFormat.CDX11 : cdxSources.get(0).format;
+			for (String digestFile : digestFiles) {
+				digestSources.add(new CdxSource(new SortedTextFile(new File(digestFile)), digestFormat));
+			}
+		} catch (IOException e) {
+			close();
+			throw new IllegalArgumentException("Unable to open CDX files", e);
+		}
+	}
+
+	/**
+	 * Open a CDX file, determining its format from its first lines.
+	 */
+	private CdxSource open(String path) throws IOException {
+		SortedTextFile file = new SortedTextFile(new File(path));
+		CdxFormat format = CdxFormat.CDX11;
+		long pos = 0;
+		// Skip over any leading CDXJ metadata lines. Sorting places them, and any CDX header, first.
+		String line;
+		while ((line = file.readLine(pos)) != null) {
+			if (!line.startsWith("!")) {
+				format = CdxFormat.detect(line, CdxFormat.CDX11);
+				break;
+			}
+			pos = file.nextLine(pos);
+		}
+		logger.info("Opened " + path + " (" + (format.isJson() ? "CDXJ" : "CDX") + ")");
+		return new CdxSource(file, format);
+	}
+
+	/**
+	 * Find the latest capture matching the criteria with the given key in one file.
+	 * @param source The file to search
+	 * @param key The key to search for
+	 * @param prefixed Are lines prefixed with the key (digest files), before the CDX line
+	 * @param url If not null, the original URL must match exactly
+	 * @param digest If not null, the digest (without scheme) must match
+	 */
+	private CdxRecord search(CdxSource source, String key, boolean prefixed, String url, String digest) {
+		CdxRecord latest = null;
+		SortedTextFile file = source.file;
+		for (long pos = file.findFirst(key); file.keyEquals(pos, key); pos = file.nextLine(pos)) {
+			linesExamined.incrementAndGet();
+			String line = file.readLine(pos);
+			if (prefixed) {
+				line = line.substring(line.indexOf(' ') + 1);
+			}
+			CdxRecord record = source.format.parse(line);
+			if (record == null) {
+				malformedLines.incrementAndGet();
+				continue;
+			}
+			if (record.isRevisit() || record.getStatusCode() != 200) {
+				continue;
+			}
+			if (url != null && !url.equals(record.getOriginalUrl())) {
+				continue;
+			}
+			if (digest != null && !digest.equals(record.getDigestWithoutScheme())) {
+				continue;
+			}
+			if (latest == null || compare(record.getTimestamp(), latest.getTimestamp()) > 0) {
+				latest = record;
+			}
+		}
+		return latest;
+	}
+
+	private static int compare(String a, String b) {
+		return a == null ? (b == null ? 0 : -1) : (b == null ? 1 : a.compareTo(b));
+	}
+
+	private CdxRecord searchAll(List<CdxSource> sources, String key, boolean prefixed, String url, String digest) {
+		CdxRecord latest = null;
+		LookupTrace trace = LookupTrace.current();
+		if (trace != null) {
+			// Each file is searched, count them as segments
+			trace.addSegments(sources.size());
+		}
+		for (CdxSource source : sources) {
+			CdxRecord record = search(source, key, prefixed, url, digest);
+			if (record != null && (latest == null || compare(record.getTimestamp(), latest.getTimestamp()) > 0)) {
+				latest = record;
+			}
+		}
+		return latest;
+	}
+
+	private String surt(String url) {
+		String key = keyMaker.makeKey(url);
+		if (key == null || key.isEmpty() || key.equals("-")) {
+			logger.fine("Unable to make SURT key for " + url);
+			return null;
+		}
+		return key;
+	}
+
+	@Override
+	public IdenticalPayloadDigestRevisit lookup(String url, String canonicalizedUrl, String digest,
+			String digestWithScheme) {
+		lookups.incrementAndGet();
+		LookupTrace trace = LookupTrace.current();
+		long start = 0;
+		if (trace != null) {
+			trace.setStrategy(strategy.name());
+			start = System.nanoTime();
+		}
+		CdxRecord record = null;
+		String key;
+		switch (strategy) {
+		case URL_EXACT:
+			key = surt(url);
+			if (key != null) {
+				record = searchAll(cdxSources, key, false, url, digest);
+			}
+			break;
+		case URL_CANONICAL:
+			key = surt(url);
+			if (key != null) {
+				record = searchAll(cdxSources, key, false, null, digest);
+			}
+			break;
+		case DIGEST_URL_PREFERRED:
+			key = surt(url);
+			if (key != null) {
+				record = searchAll(cdxSources, key, false, null, digest);
+			}
+			if (record == null) {
+				record = searchAll(digestSources, digest, true, null, digest);
+			}
+			break;
+		case DIGEST_ANY:
+			record = searchAll(digestSources, digest, true, null, digest);
+			break;
+		}
+		if (trace != null) {
+			trace.phase("search", System.nanoTime() - start);
+		}
+		if (record == null) {
+			return null;
+		}
+		hits.incrementAndGet();
+		IdenticalPayloadDigestRevisit duplicate = new IdenticalPayloadDigestRevisit(digestWithScheme);
+		duplicate.setRefersToTargetURI(record.getOriginalUrl());
+		duplicate.setRefersToDate(record.getIsoDate());
+		return duplicate;
+	}
+
+	@Override
+	public ServerNotModifiedRevisit lookupLatestCapture(String url, String canonicalizedURL) {
+		String key = surt(url);
+		if (key == null) {
+			return null;
+		}
+		CdxRecord record = searchAll(cdxSources, key, false, url, null);
+		if (record == null) {
+			return null;
+		}
+		ServerNotModifiedRevisit capture = new ServerNotModifiedRevisit();
+		capture.setRefersToTargetURI(record.getOriginalUrl());
+		capture.setRefersToDate(record.getIsoDate());
+		return capture;
+	}
+
+	@Override
+	public String getInfo() {
+    	StringBuilder sb = new StringBuilder();
+    	sb.append(CdxIndex.class.getCanonicalName());
+    	sb.append("\n");
+    	for (CdxSource source : cdxSources) {
+    		sb.append(" CDX file: " + source.file.getFile().getPath());
+    		sb.append("\n");
+    	}
+    	for (CdxSource source : digestSources) {
+    		sb.append(" Digest file: " + source.file.getFile().getPath());
+    		sb.append("\n");
+    	}
+    	sb.append(" Search strategy: " + strategy);
+    	sb.append("\n");
+    	sb.append(" Lookups: " + lookups);
+    	sb.append("\n");
+    	sb.append(" Hits: " + hits);
+    	sb.append("\n");
+    	sb.append(" Lines examined: " + linesExamined);
+    	sb.append("\n");
+    	if (malformedLines.get() > 0) {
+    		sb.append(" Malformed lines: " + malformedLines);
+    		sb.append("\n");
+    	}
+		return sb.toString();
+	}
+
+	@Override
+	public void destroy() {
+		close();
+	}
+
+	public void close() {
+		List<CdxSource> all = new ArrayList<CdxSource>(cdxSources);
+		all.addAll(digestSources);
+		for (CdxSource source : all) {
+			try {
+				source.file.close();
+			} catch (IOException e) {
+				logger.log(Level.SEVERE, "Error closing " + source.file.getFile().getPath(), e);
+			}
+		}
+		cdxSources.clear();
+		digestSources.clear();
+	}
+}
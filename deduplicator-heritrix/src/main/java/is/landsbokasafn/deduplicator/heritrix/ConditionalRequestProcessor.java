@@ -0,0 +1,239 @@
+/* Copyright (C) 2006-2014 National and University Library of Iceland (NULI)
+ *
+ * This file is part of the DeDuplicator (Heritrix add-on module).
+ *
+ *  NULI licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package is.landsbokasafn.deduplicator.heritrix;
+
+import static org.archive.modules.recrawl.RecrawlAttributeConstants.A_ETAG_HEADER;
+import static org.archive.modules.recrawl.RecrawlAttributeConstants.A_FETCH_HISTORY;
+import static org.archive.modules.recrawl.RecrawlAttributeConstants.A_LAST_MODIFIED_HEADER;
+import static org.archive.modules.recrawl.RecrawlAttributeConstants.A_STATUS;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.archive.modules.CrawlURI;
+import org.archive.modules.Processor;
+import org.archive.modules.revisit.ServerNotModifiedRevisit;
+import org.archive.wayback.util.url.AggressiveUrlCanonicalizer;
+
+/**
+ * Heritrix compatible processor that prepares conditional requests based on the contents of the DeDuplicator index.
+ * <p>
+ * Must be placed in the fetch chain <i>before</i> the fetch processor. For each URI, the index is searched for the
+ * latest capture of the URL. If found, the ETag and capture date are added to the URI's fetch history, causing
+ * <code>FetchHTTP</code> to issue <code>If-None-Match</code> and <code>If-Modified-Since</code> headers (assuming
+ * its <code>sendIfNoneMatch</code> and <code>sendIfModifiedSince</code> settings are enabled, as they are by default).
+ * <p>
+ * That fetch history entry is not a real fetch, and must not be folded into the history by the
+ * <code>FetchHistoryProcessor</code> or persisted by the <code>PersistStoreProcessor</code>. It is removed again by
+ * the {@link DeDuplicator} (see {@link #removeConditionalHistory(CrawlURI)}), which must follow the fetch processor.
+ * This happens for every URI the DeDuplicator sees, even if it is disabled or its rule rejects the URI.
+ * <p>
+ * If the server responds with a 304 (not modified), the {@link DeDuplicator} will record the URI as a
+ * server-not-modified revisit of the capture found in the index.
+ * <p>
+ * Requires that the URL field be indexed. The ETag is only available if the index was built with ETags included.
+ *
+ * @author Kristinn Sigur&eth;sson
+ */
+public class ConditionalRequestProcessor extends Processor {
+
+    private static Logger logger =
+        Logger.getLogger(ConditionalRequestProcessor.class.getName());
+
+    /** Key in the CrawlURI's data map for the URL of the capture that a conditional request was based on **/
+    public static final String A_CONDITIONAL_REFERS_TO_URI = "deduplicator-conditional-refers-to-uri";
+    /** Key in the CrawlURI's data map for the date of the capture that a conditional request was based on **/
+    public static final String A_CONDITIONAL_REFERS_TO_DATE = "deduplicator-conditional-refers-to-date";
+    /** Key in the CrawlURI's data map for the record ID of the capture that a conditional request was based on **/
+    public static final String A_CONDITIONAL_REFERS_TO_RECORD_ID = "deduplicator-conditional-refers-to-record-id";
+    /** Key in the CrawlURI's data map for the ETag sent in an If-None-Match header **/
+    public static final String A_CONDITIONAL_ETAG = "deduplicator-conditional-etag";
+    /** Key in the CrawlURI's data map for the date sent in an If-Modified-Since header **/
+    public static final String A_CONDITIONAL_LAST_MODIFIED = "deduplicator-conditional-last-modified";
+
+    /** Marks the fetch history entry added to make the fetcher send a conditional request **/
+    private static final String CONDITIONAL_HISTORY_MARKER = "deduplicator-conditional-request";
+
+    /** Format of HTTP dates, as used in If-Modified-Since. See RFC 7231, section 7.1.1.1. **/
+    private static final DateTimeFormatter HTTP_DATE_FORMAT =
+    		DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    // Statistics
+    /** Number of URIs looked up in the index **/
+    AtomicLong handledNumber = new AtomicLong(0);
+    /** Number of URIs for which a previous capture was found **/
+    AtomicLong foundNumber = new AtomicLong(0);
+    /** Number of URIs for which an If-None-Match header will be sent **/
+    AtomicLong etagNumber = new AtomicLong(0);
+    /** Number of URIs for which an If-Modified-Since header will be sent **/
+    AtomicLong modifiedSinceNumber = new AtomicLong(0);
+
+    // Spring configurable parameters
+
+    /* Index to use */
+    Index index;
+    public Index getIndex() {
+        return index;
+    }
+    public void setIndex(Index index) {
+        this.index=index;
+    }
+
+    boolean sendIfNoneMatch = true;
+    public boolean getSendIfNoneMatch() {
+    	return sendIfNoneMatch;
+    }
+    /**
+     * If true (default), the ETag of the latest capture in the index, if any, will be used for an If-None-Match
+     * header.
+     * @param sendIfNoneMatch Whether to prepare If-None-Match headers
+     */
+    public void setSendIfNoneMatch(boolean sendIfNoneMatch) {
+    	this.sendIfNoneMatch = sendIfNoneMatch;
+    }
+
+    boolean sendIfModifiedSince = true;
+    public boolean getSendIfModifiedSince() {
+    	return sendIfModifiedSince;
+    }
+    /**
+     * If true (default), the time of the latest capture in the index will be used for an If-Modified-Since header.
+     * @param sendIfModifiedSince Whether to prepare If-Modified-Since headers
+     */
+    public void setSendIfModifiedSince(boolean sendIfModifiedSince) {
+    	this.sendIfModifiedSince = sendIfModifiedSince;
+    }
+
+    AggressiveUrlCanonicalizer canonicalizer = new AggressiveUrlCanonicalizer();
+
+	@Override
+	protected boolean shouldProcess(CrawlURI curi) {
+		if (!curi.getURI().startsWith("http")) {
+			return false;
+		}
+		if (curi.isPrerequisite()) {
+			// Robots.txt and other prerequisites need to be fetched in full
+			return false;
+		}
+		Map<String, Object>[] history = curi.getFetchHistory();
+		if (history != null && history.length > 0 && history[0] != null) {
+            // Already have a fetch history (e.g. loaded from a persisted crawl). Let it be used as is.
+            logger.finest("Not handling " + curi.toString() + ", already has fetch history.");
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	protected void innerProcess(CrawlURI curi) throws InterruptedException {
+		handledNumber.incrementAndGet();
+		String url = curi.getURI();
+		ServerNotModifiedRevisit capture = index.lookupLatestCapture(url, canonicalizer.canonicalize(url));
+		if (capture == null) {
+			return;
+		}
+		foundNumber.incrementAndGet();
+
+		Map<String, Object> latestFetch = new HashMap<String, Object>();
+		latestFetch.put(A_STATUS, 200);
+		latestFetch.put(CONDITIONAL_HISTORY_MARKER, Boolean.TRUE);
+		if (sendIfNoneMatch && capture.getETag() != null) {
+			latestFetch.put(A_ETAG_HEADER, capture.getETag());
+			etagNumber.incrementAndGet();
+		}
+		if (sendIfModifiedSince && capture.getRefersToDate() != null) {
+			try {
+				latestFetch.put(A_LAST_MODIFIED_HEADER,
+						HTTP_DATE_FORMAT.format(Instant.parse(capture.getRefersToDate())));
+				modifiedSinceNumber.incrementAndGet();
+			} catch (DateTimeParseException e) {
+				logger.log(Level.WARNING, "Unable to parse date " + capture.getRefersToDate() +
+						" in index for " + url, e);
+			}
+		}
+		if (latestFetch.size() == 2) {
+			// Nothing to base a conditional request on
+			return;
+		}
+
+		@SuppressWarnings("unchecked")
+		Map<String, Object>[] history = new Map[] {latestFetch};
+		curi.getData().put(A_FETCH_HISTORY, history);
+
+		// Remember what the request was based on, so a 304 can be recorded as a revisit of it
+		curi.getData().put(A_CONDITIONAL_REFERS_TO_URI, capture.getRefersToTargetURI());
+		curi.getData().put(A_CONDITIONAL_REFERS_TO_DATE, capture.getRefersToDate());
+		if (capture.getRefersToRecordID() != null) {
+			curi.getData().put(A_CONDITIONAL_REFERS_TO_RECORD_ID, capture.getRefersToRecordID());
+		}
+		if (latestFetch.containsKey(A_ETAG_HEADER)) {
+			curi.getData().put(A_CONDITIONAL_ETAG, latestFetch.get(A_ETAG_HEADER));
+		}
+		if (latestFetch.containsKey(A_LAST_MODIFIED_HEADER)) {
+			curi.getData().put(A_CONDITIONAL_LAST_MODIFIED, latestFetch.get(A_LAST_MODIFIED_HEADER));
+		}
+	}
+
+	/**
+	 * Remove the fetch history entry added by this processor, once the URI has been fetched. The entry is found
+	 * whether or not the <code>FetchHistoryProcessor</code> has already added the fetch in front of it. Entries after
+	 * it are moved up. If no other entries remain, the fetch history is removed altogether.
+	 * @param curi The URI
+	 * @return true if there was an entry to remove
+	 */
+	public static boolean removeConditionalHistory(CrawlURI curi) {
+		if (!curi.getData().containsKey(A_FETCH_HISTORY)) {
+			return false;
+		}
+		Map<String, Object>[] history = curi.getFetchHistory();
+		for (int i = 0; i < history.length; i++) {
+			if (history[i] != null && history[i].containsKey(CONDITIONAL_HISTORY_MARKER)) {
+				System.arraycopy(history, i + 1, history, i, history.length - i - 1);
+				history[history.length - 1] = null;
+				if (history[0] == null) {
+					curi.getData().remove(A_FETCH_HISTORY);
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public String report() {
+        StringBuilder ret = new StringBuilder();
+        ret.append("Processor: ");
+        ret.append(ConditionalRequestProcessor.class.getCanonicalName());
+        ret.append("\n");
+        ret.append("  Function:          Prepare conditional requests based on captures in the DeDuplicator index\n");
+        ret.append("  Total handled:     " + handledNumber + "\n");
+        ret.append("  Found in index:    " + foundNumber + " " +
+        		DeDuplicator.getPercentage(foundNumber.get(), handledNumber.get()) + "\n");
+        ret.append("  If-None-Match:     " + etagNumber + "\n");
+        ret.append("  If-Modified-Since: " + modifiedSinceNumber + "\n");
+        ret.append("\n");
+        return ret.toString();
+	}
+}
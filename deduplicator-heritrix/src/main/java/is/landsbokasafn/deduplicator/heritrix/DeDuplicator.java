@@ -20,20 +20,36 @@ import static is.landsbokasafn.deduplicator.DeDuplicatorConstants.EXTRA_REVISIT_
 import static is.landsbokasafn.deduplicator.DeDuplicatorConstants.EXTRA_REVISIT_PROFILE;
 import static is.landsbokasafn.deduplicator.DeDuplicatorConstants.EXTRA_REVISIT_URI;
 import static is.landsbokasafn.deduplicator.DeDuplicatorConstants.REVISIT_ANNOTATION_MARKER;
+import static is.landsbokasafn.deduplicator.DeDuplicatorConstants.REVISIT_NOT_MODIFIED_ANNOTATION_MARKER;
+import static is.landsbokasafn.deduplicator.heritrix.ConditionalRequestProcessor.A_CONDITIONAL_ETAG;
+import static is.landsbokasafn.deduplicator.heritrix.ConditionalRequestProcessor.A_CONDITIONAL_LAST_MODIFIED;
+import static is.landsbokasafn.deduplicator.heritrix.ConditionalRequestProcessor.A_CONDITIONAL_REFERS_TO_DATE;
+import static is.landsbokasafn.deduplicator.heritrix.ConditionalRequestProcessor.A_CONDITIONAL_REFERS_TO_RECORD_ID;
+import static is.landsbokasafn.deduplicator.heritrix.ConditionalRequestProcessor.A_CONDITIONAL_REFERS_TO_URI;
 
+import java.io.File;
+import java.io.IOException;
 import java.text.NumberFormat;
+import java.util.LinkedHashMap;
 import java.util.Locale;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.archive.checkpointing.Checkpoint;
+import org.archive.checkpointing.Checkpointable;
+import org.archive.crawler.reporting.CrawlerLoggerModule;
 import org.archive.modules.CrawlURI;
 import org.archive.modules.ProcessResult;
 import org.archive.modules.Processor;
 import org.archive.modules.net.ServerCache;
 import org.archive.modules.revisit.IdenticalPayloadDigestRevisit;
+import org.archive.modules.revisit.ServerNotModifiedRevisit;
 import org.archive.util.ArchiveUtils;
 import org.archive.wayback.util.url.AggressiveUrlCanonicalizer;
+import org.json.JSONException;
+import org.json.JSONObject;
 import org.springframework.beans.factory.annotation.Autowired;
 
 /**
@@ -43,10 +59,12 @@ import org.springframework.beans.factory.annotation.Autowired;
  * <p>
  * Duplicate detection can only be performed <i>after</i> the fetch processors
  * have run.
+ * <p>
+ * Statistics are included in Heritrix checkpoints and restored when a crawl is resumed from one.
  * 
  * @author Kristinn Sigur&eth;sson
  */
-public class DeDuplicator extends Processor {
+public class DeDuplicator extends Processor implements Checkpointable {
 
     private static Logger logger =
         Logger.getLogger(DeDuplicator.class.getName());
@@ -84,6 +102,10 @@ public class DeDuplicator extends Processor {
      */
     AtomicLong duplicateAmount = new AtomicLong(0);
     
+    /** Number of URIs that got a 304 (not modified) response to a conditional request based on the index
+     */
+    AtomicLong notModifiedNumber = new AtomicLong(0);
+    
     /** The total amount of data represented by all the documents processed **/
     AtomicLong totalAmount = new AtomicLong(0);
 
@@ -93,6 +115,37 @@ public class DeDuplicator extends Processor {
     /** The number of nanoseconds the last lookup took. **/
     long lastLookupDuration = -1L;
     
+    /** Number of lookups actually performed against the index. **/
+    AtomicLong lookupNumber = new AtomicLong(0);
+    
+    // Latency budget statistics and state
+    /** Exponentially weighted moving average of lookup latency, in nanoseconds. Negative until first lookup. **/
+    AtomicLong recentLookupLatency = new AtomicLong(-1L);
+    
+    /** True while the processor is in degraded (pass-through) mode because lookups are too slow. **/
+    volatile boolean degraded = false;
+    
+    /** When (System.nanoTime()) the current degraded period began. Only meaningful while degraded. **/
+    volatile long degradedSince = 0L;
+    
+    /** When (System.nanoTime()) the next probe lookup may be made while in degraded mode. **/
+    AtomicLong nextProbeTime = new AtomicLong(0L);
+    
+    /** Number of times the processor has entered degraded mode. **/
+    AtomicLong degradedPeriods = new AtomicLong(0);
+    
+    /** Accumulated time spent in degraded mode (excluding any current period), in nanoseconds. **/
+    AtomicLong degradedDuration = new AtomicLong(0);
+    
+    /** Number of URIs passed through, without a lookup, while in degraded mode. **/
+    AtomicLong passedThroughNumber = new AtomicLong(0);
+    AtomicLong passedThroughBytes = new AtomicLong(0);
+    
+    /** Number of probe lookups made while in degraded mode. **/
+    AtomicLong probeNumber = new AtomicLong(0);
+    
+    private final Object degradedLock = new Object();
+    
     // Spring configurable parameters
     
     /* Index to use */
@@ -103,6 +156,161 @@ public class DeDuplicator extends Processor {
     public void setIndex(Index index) {
         this.index=index;
     }
+    
+    /* Shadow index */
+    Index shadowIndex = null;
+    public Index getShadowIndex() {
+        return shadowIndex;
+    }
+    /**
+     * Set an index to evaluate, in parallel to the primary index, without it affecting which URIs are marked as 
+     * duplicates. Lookups against the shadow index are done off the ToeThreads and the outcome compared to that of
+     * the primary index in the processor report. Default is no shadow index.
+     * @param shadowIndex The index to evaluate
+     */
+    public void setShadowIndex(Index shadowIndex) {
+        this.shadowIndex = shadowIndex;
+    }
+    
+    int shadowThreads = 1;
+    public int getShadowThreads() {
+        return shadowThreads;
+    }
+    /**
+     * Set the number of threads doing lookups against the shadow index. Default is 1.
+     * Modifying this setting at runtime will have no effect.
+     * @param shadowThreads Number of shadow lookup threads
+     */
+    public void setShadowThreads(int shadowThreads) {
+        this.shadowThreads = shadowThreads;
+    }
+    
+    int shadowQueueSize = 1000;
+    public int getShadowQueueSize() {
+        return shadowQueueSize;
+    }
+    /**
+     * Set the maximum number of shadow lookups waiting for a thread. Further lookups are dropped (and counted) 
+     * until the shadow threads catch up. Default is 1000.
+     * Modifying this setting at runtime will have no effect.
+     * @param shadowQueueSize Maximum number of queued shadow lookups
+     */
+    public void setShadowQueueSize(int shadowQueueSize) {
+        this.shadowQueueSize = shadowQueueSize;
+    }
+    
+    private volatile ShadowIndexEvaluator shadowEvaluator = null;
+    private MemoryBudget.Reservation shadowReservation = null;
+    
+    /* Memory budget */
+    MemoryBudget memoryBudget = null;
+    public MemoryBudget getMemoryBudget() {
+        return memoryBudget;
+    }
+    /**
+     * Set a memory budget to reserve the shadow lookup queue from. The queue has low priority, so it is made
+     * shorter, or shadow evaluation disabled, when memory is needed elsewhere (e.g. for the index's bloom filter).
+     * The budget's reservations are included in the processor report. Default is no budget.
+     * Modifying this setting at runtime will have no effect.
+     * @param memoryBudget The memory budget
+     */
+    public void setMemoryBudget(MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+    
+    /* Latency budget */
+    long lookupLatencyThreshold = 0;
+    public long getLookupLatencyThreshold() {
+        return lookupLatencyThreshold;
+    }
+    /**
+     * Set the lookup latency budget, in milliseconds. If the recent average lookup time goes over this threshold, 
+     * the processor stops doing lookups and passes all URIs through (i.e. they will be written in full, with no
+     * deduplication) until probe lookups show that lookup latency has recovered.
+     * <p>
+     * A value of zero (the default) or less disables the latency budget.
+     * @param lookupLatencyThreshold The latency threshold in milliseconds
+     */
+    public void setLookupLatencyThreshold(long lookupLatencyThreshold) {
+        this.lookupLatencyThreshold = lookupLatencyThreshold;
+    }
+    
+    int latencySampleSize = 50;
+    public int getLatencySampleSize() {
+        return latencySampleSize;
+    }
+    /**
+     * Set roughly how many of the most recent lookups the average lookup latency (that is compared against the
+     * latency threshold) reflects. Smaller values make the processor react faster to a stalled index, larger
+     * values make it less sensitive to isolated slow lookups. Default is 50.
+     * @param latencySampleSize Number of recent lookups the moving average is based on
+     */
+    public void setLatencySampleSize(int latencySampleSize) {
+        if (latencySampleSize < 1) {
+            throw new IllegalArgumentException("Latency sample size must be at least 1");
+        }
+        this.latencySampleSize = latencySampleSize;
+    }
+    
+    long probeInterval = 1000;
+    public long getProbeInterval() {
+        return probeInterval;
+    }
+    /**
+     * Set how often, in milliseconds, a probe lookup is made while in degraded mode. If a probe lookup completes
+     * within the latency threshold, regular lookups are resumed. Default is 1000.
+     * @param probeInterval Milliseconds between probe lookups in degraded mode
+     */
+    public void setProbeInterval(long probeInterval) {
+        this.probeInterval = probeInterval;
+    }
+
+    /* Slow lookup log */
+    long slowLookupThreshold = 0;
+    public long getSlowLookupThreshold() {
+        return slowLookupThreshold;
+    }
+    /**
+     * Set a threshold, in milliseconds, over which individual lookups are written to the slow lookup log, along
+     * with details of the lookup (search strategy, index segments visited, bloom filter use and time spent in each
+     * phase of the lookup). A value of zero (the default) or less disables the slow lookup log.
+     * Modifying this setting at runtime will have no effect.
+     * @param slowLookupThreshold The threshold in milliseconds
+     * @see SlowLookupLog
+     */
+    public void setSlowLookupThreshold(long slowLookupThreshold) {
+        this.slowLookupThreshold = slowLookupThreshold;
+    }
+    
+    int slowLookupsPerMinute = 60;
+    public int getSlowLookupsPerMinute() {
+        return slowLookupsPerMinute;
+    }
+    /**
+     * Set the maximum number of lines written to the slow lookup log per minute. Further slow lookups are only
+     * counted. Default is 60.
+     * Modifying this setting at runtime will have no effect.
+     * @param slowLookupsPerMinute Maximum number of slow lookups logged per minute
+     */
+    public void setSlowLookupsPerMinute(int slowLookupsPerMinute) {
+        this.slowLookupsPerMinute = slowLookupsPerMinute;
+    }
+    
+    String slowLookupLogFile = "slow-lookups.log";
+    public String getSlowLookupLogFile() {
+        return slowLookupLogFile;
+    }
+    /**
+     * Set the name of the slow lookup log. Relative paths are resolved against the crawl job's logs directory.
+     * Default is <code>slow-lookups.log</code>.
+     * Modifying this setting at runtime will have no effect.
+     * @param slowLookupLogFile The log file
+     */
+    public void setSlowLookupLogFile(String slowLookupLogFile) {
+        this.slowLookupLogFile = slowLookupLogFile;
+    }
+    
+    private SlowLookupLog slowLookupLog = null;
 
     // Spring configured access to Heritrix resources
     
@@ -116,11 +324,108 @@ public class DeDuplicator extends Processor {
         this.serverCache = serverCache;
     }
     
+    // Gain access to the crawl's logs directory for the slow lookup log.
+    protected CrawlerLoggerModule loggerModule;
+    public CrawlerLoggerModule getLoggerModule() {
+        return this.loggerModule;
+    }
+    @Autowired(required=false)
+    public void setLoggerModule(CrawlerLoggerModule loggerModule) {
+        this.loggerModule = loggerModule;
+    }
+    
     // TODO: Consider making configurable. Needs to match what is written to the index though.
     AggressiveUrlCanonicalizer canonicalizer = new AggressiveUrlCanonicalizer();
 
+	@Override
+	public void start() {
+		if (isRunning()) {
+			return;
+		}
+		if (shadowIndex != null) {
+			startShadowEvaluator();
+		}
+		if (slowLookupThreshold > 0) {
+			slowLookupLog = new SlowLookupLog(getSlowLookupLogLocation(), slowLookupThreshold, slowLookupsPerMinute);
+		}
+		super.start();
+	}
+	
+	@Override
+	public void stop() {
+		if (shadowEvaluator != null) {
+			shadowEvaluator.shutdown();
+		}
+		if (shadowReservation != null) {
+			shadowReservation.release();
+			shadowReservation = null;
+		}
+		if (slowLookupLog != null) {
+			slowLookupLog.close();
+		}
+		super.stop();
+	}
+	
+	/**
+	 * Start the shadow index evaluator, with as long a queue as the memory budget allows.
+	 */
+	private void startShadowEvaluator() {
+		int queueSize = shadowQueueSize;
+		if (memoryBudget != null) {
+			shadowReservation = memoryBudget.reserve("Shadow lookup queue", MemoryBudget.Priority.LOW, 
+					shadowQueueSize * ShadowIndexEvaluator.BYTES_PER_LOOKUP, ShadowIndexEvaluator.BYTES_PER_LOOKUP,
+					new MemoryBudget.Shrinkable() {
+						@Override
+						public long shrink(MemoryBudget.Reservation reservation, long bytes) {
+							ShadowIndexEvaluator evaluator = shadowEvaluator;
+							if (evaluator != null) {
+								evaluator.disable();
+							}
+							return reservation.getBytes();
+						}
+					});
+			if (shadowReservation == null) {
+				logger.warning("Not enough memory in budget for shadow index evaluation");
+				return;
+			}
+			queueSize = (int)(shadowReservation.getBytes() / ShadowIndexEvaluator.BYTES_PER_LOOKUP);
+		}
+		shadowEvaluator = new ShadowIndexEvaluator(index, shadowIndex, shadowThreads, queueSize);
+	}
+	
+	/**
+	 * @return The slow lookup log file, null if it can not be determined
+	 */
+	private File getSlowLookupLogLocation() {
+		if (slowLookupLogFile == null || slowLookupLogFile.isEmpty()) {
+			return null;
+		}
+		File file = new File(slowLookupLogFile);
+		if (file.isAbsolute()) {
+			return file;
+		}
+		if (loggerModule == null) {
+			logger.warning("No logger module available to locate " + slowLookupLogFile + 
+					". Slow lookups will be written to the Heritrix log.");
+			return null;
+		}
+		return new File(loggerModule.getPath().getFile(), slowLookupLogFile);
+	}
+
+	@Override
+	public ProcessResult process(CrawlURI curi) throws InterruptedException {
+        // The fetch history entry that the ConditionalRequestProcessor added for the fetcher is not a real fetch.
+        // Removed before anything else, as shouldProcess is not reached if disabled or rejected by the rule.
+        ConditionalRequestProcessor.removeConditionalHistory(curi);
+		return super.process(curi);
+	}
+
 	@Override
 	protected boolean shouldProcess(CrawlURI curi) {
+        if (isNotModifiedResponse(curi)) {
+        	// Response to a conditional request prepared by the ConditionalRequestProcessor
+        	return true;
+        }
         if (curi.is2XXSuccess() == false) {
             // No point in doing comparison on failed downloads.
             logger.finest("Not handling " + curi.toString() + ", did not succeed.");
@@ -150,20 +455,53 @@ public class DeDuplicator extends Processor {
 		if (logger.isLoggable(Level.FINEST)) {
 			logger.finest("Processing " + curi.toString() + "(" + curi.getContentType() + ")");
 		}
+		
+		if (isNotModifiedResponse(curi)) {
+			handleNotModified(curi);
+			return ProcessResult.PROCEED;
+		}
 
         handledNumber.incrementAndGet();
         totalAmount.addAndGet(curi.getContentSize());
         
+        boolean probe = false;
+        if (degraded) {
+        	if (!claimProbe()) {
+        		// Index is too slow, let this one through without a lookup
+        		passedThroughNumber.incrementAndGet();
+        		passedThroughBytes.addAndGet(curi.getContentSize());
+        		return ProcessResult.PROCEED;
+        	}
+        	probe = true;
+        }
+        
         String url = curi.getURI();
         String canonicalizedURL = canonicalizer.canonicalize(url);
 		String digest = curi.getContentDigestString();
 		String digestWithScheme = curi.getContentDigestSchemeString();
         
+        LookupTrace trace = slowLookupLog != null ? LookupTrace.start() : null;
 		long beginLookup = System.nanoTime();
-        IdenticalPayloadDigestRevisit duplicate = index.lookup(url, canonicalizedURL, digest, digestWithScheme);
+        IdenticalPayloadDigestRevisit duplicate;
+        try {
+        	duplicate = index.lookup(url, canonicalizedURL, digest, digestWithScheme);
+        } finally {
+        	if (trace != null) {
+        		LookupTrace.end();
+        	}
+        }
         long lookupTook = System.nanoTime()-beginLookup;
+        if (slowLookupLog != null) {
+        	slowLookupLog.offer(trace, lookupTook, index, url, digestWithScheme, duplicate != null);
+        }
+        lookupNumber.incrementAndGet();
         cumulativeLookupDuration.addAndGet(lookupTook);
         lastLookupDuration=lookupTook;
+        updateLatency(lookupTook, probe);
+        if (shadowEvaluator != null) {
+        	shadowEvaluator.submit(url, canonicalizedURL, digest, digestWithScheme, curi.getContentLength(), 
+        			duplicate, lookupTook);
+        }
 
         if (duplicate != null){
         	// A little sanity check
@@ -191,6 +529,109 @@ public class DeDuplicator extends Processor {
         return ProcessResult.PROCEED;
 	}
 	
+	/**
+	 * @return true if the CrawlURI got a 304 response to a conditional request based on a capture in the index.
+	 */
+	private boolean isNotModifiedResponse(CrawlURI curi) {
+		return curi.getFetchStatus() == 304 && curi.getData().containsKey(A_CONDITIONAL_REFERS_TO_URI);
+	}
+	
+	/**
+	 * Record a 304 response to a conditional request as a server-not-modified revisit of the capture in the
+	 * index that the request was based on.
+	 */
+	private void handleNotModified(CrawlURI curi) {
+		Map<String, Object> data = curi.getData();
+		ServerNotModifiedRevisit revisit = new ServerNotModifiedRevisit();
+		revisit.setRefersToTargetURI((String)data.remove(A_CONDITIONAL_REFERS_TO_URI));
+		revisit.setRefersToDate((String)data.remove(A_CONDITIONAL_REFERS_TO_DATE));
+		String refersToRecordID = (String)data.remove(A_CONDITIONAL_REFERS_TO_RECORD_ID);
+		if (refersToRecordID != null) {
+			revisit.setRefersToRecordID(refersToRecordID);
+		}
+		// The validators sent with the request (see ConditionalRequestProcessor)
+		revisit.setETag((String)data.remove(A_CONDITIONAL_ETAG));
+		revisit.setLastModified((String)data.remove(A_CONDITIONAL_LAST_MODIFIED));
+		notModifiedNumber.incrementAndGet();
+		
+		curi.setRevisitProfile(revisit);
+        curi.getAnnotations().add(REVISIT_NOT_MODIFIED_ANNOTATION_MARKER);
+        curi.addExtraInfo(EXTRA_REVISIT_PROFILE, revisit.getProfileName());
+        curi.addExtraInfo(EXTRA_REVISIT_URI, revisit.getRefersToTargetURI());
+        curi.addExtraInfo(EXTRA_REVISIT_DATE, revisit.getRefersToDate());
+	}
+	
+	/**
+	 * While in degraded mode, allow one lookup through per probe interval.
+	 * @return true if the caller may perform a probe lookup
+	 */
+	private boolean claimProbe() {
+		long now = System.nanoTime();
+		long next = nextProbeTime.get();
+		if (now - next < 0) {
+			return false;
+		}
+		if (nextProbeTime.compareAndSet(next, now + probeInterval * 1000000L)) {
+			probeNumber.incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Update the moving average of lookup latency and enter or leave degraded mode as needed.
+	 * @param lookupTook How long the lookup took, in nanoseconds
+	 * @param probe Was this a probe lookup made while in degraded mode
+	 */
+	private void updateLatency(long lookupTook, boolean probe) {
+		double alpha = 2d / (latencySampleSize + 1);
+		long average;
+		long previous;
+		do {
+			previous = recentLookupLatency.get();
+			average = previous < 0 ? lookupTook : (long)(previous + alpha * (lookupTook - previous));
+		} while (!recentLookupLatency.compareAndSet(previous, average));
+		
+		if (lookupLatencyThreshold <= 0) {
+			return;
+		}
+		long threshold = lookupLatencyThreshold * 1000000L;
+		synchronized (degradedLock) {
+			if (probe && degraded && lookupTook <= threshold) {
+				// Index has recovered. Restart the average from the probe so we don't immediately trip again
+				degraded = false;
+				degradedDuration.addAndGet(System.nanoTime() - degradedSince);
+				recentLookupLatency.set(lookupTook);
+				logger.info("Lookup latency recovered (" + formatMillis(lookupTook) + 
+						" ms). Resuming deduplication.");
+			} else if (!probe && !degraded && average > threshold) {
+				degraded = true;
+				degradedSince = System.nanoTime();
+				degradedPeriods.incrementAndGet();
+				nextProbeTime.set(degradedSince + probeInterval * 1000000L);
+				logger.warning("Average lookup latency (" + formatMillis(average) + " ms) exceeds threshold of " + 
+						lookupLatencyThreshold + " ms. Passing URIs through without deduplication until it recovers.");
+			}
+		}
+	}
+	
+	/**
+	 * @return Total time spent in degraded mode, in nanoseconds, including any ongoing degraded period.
+	 */
+	protected long getTimeDegraded() {
+		synchronized (degradedLock) {
+			long total = degradedDuration.get();
+			if (degraded) {
+				total += System.nanoTime() - degradedSince;
+			}
+			return total;
+		}
+	}
+	
+	private static String formatMillis(long nanos) {
+		return String.format("%.3f", nanos / 1000000d);
+	}
+	
 	private void count(IdenticalPayloadDigestRevisit dup, String url, String canonicalUrl, long contentLength) {
 		if (dup.getRefersToTargetURI().equals(url)) {
 			exactURLDuplicates.incrementAndGet();
@@ -222,7 +663,7 @@ public class DeDuplicator extends Processor {
         
     	ret.append("  New (no hits):     " + (handledNumber.get()-
     			(digestDuplicates.get()+exactURLDuplicates.get()+
-    			 canonicalURLDuplicates.get())) + "\n");
+    			 canonicalURLDuplicates.get()+passedThroughNumber.get())) + "\n");
     	ret.append("  Exact URL hits:    " + exactURLDuplicates + "\n");
     	ret.append("  Exact URL bytes:   " + exactURLDuplicatesBytes);
     	ret.append(" (" + ArchiveUtils.formatBytesForDisplay(exactURLDuplicatesBytes.get()) + ")\n");
@@ -232,20 +673,121 @@ public class DeDuplicator extends Processor {
        	ret.append("  Digest hits:       " + digestDuplicates + "\n");
        	ret.append("  Digest bytes:      " + digestDuplicatesBytes);
     	ret.append(" (" + ArchiveUtils.formatBytesForDisplay(digestDuplicatesBytes.get()) + ")\n");
-    	if (handledNumber.get()>0) {
+    	if (notModifiedNumber.get()>0) {
+    		ret.append("  Not modified (304): " + notModifiedNumber + "\n");
+    	}
+    	if (lookupNumber.get()>0) {
 	       	ret.append("  Average lookup time: " + String.format("%.3f", 
-	       			(double)(cumulativeLookupDuration.get()/handledNumber.get())/1000000d)  + " ms\n");
+	       			(double)(cumulativeLookupDuration.get()/lookupNumber.get())/1000000d)  + " ms\n");
 	       	ret.append("  Last lookup time:    " + String.format("%.3f",(double)(lastLookupDuration/1000000d)) + " ms\n");
+	       	ret.append("  Recent lookup time:  " + formatMillis(recentLookupLatency.get()) + " ms\n");
+    	}
+    	if (lookupLatencyThreshold > 0) {
+    		ret.append("  Latency budget:    " + lookupLatencyThreshold + " ms" + 
+    				(degraded ? " (EXCEEDED, passing through)" : "") + "\n");
+    		ret.append("  Degraded periods:  " + degradedPeriods + "\n");
+    		ret.append("  Time degraded:     " + 
+    				ArchiveUtils.formatMillisecondsToConventional(getTimeDegraded()/1000000) + "\n");
+    		ret.append("  Passed through:    " + passedThroughNumber + "\n");
+    		ret.append("  Passed thr. bytes: " + passedThroughBytes);
+    		ret.append(" (" + ArchiveUtils.formatBytesForDisplay(passedThroughBytes.get()) + ")\n");
+    		ret.append("  Probe lookups:     " + probeNumber + "\n");
+    	}
+    	if (slowLookupLog != null) {
+    		ret.append("  Slow lookups:      " + slowLookupLog.getSlowLookups() + " (over " + slowLookupThreshold + 
+    				" ms, " + slowLookupLog.getSuppressed() + " not logged)\n");
     	}
        	
        	ret.append("\n");
        	ret.append("Index:\n");
        	ret.append(index.getInfo());
+       	
+       	if (shadowEvaluator != null) {
+       		ret.append("\n");
+       		ret.append(shadowEvaluator.report());
+       	}
+       	
+       	if (memoryBudget != null) {
+       		ret.append("\n");
+       		ret.append("Memory budget:\n");
+       		ret.append(memoryBudget.getInfo());
+       	}
         
         ret.append("\n");
         return ret.toString();
 	}
 	
+	/**
+	 * @return All statistics counters that should survive a checkpoint/resume, keyed by a stable name.
+	 */
+	private Map<String, AtomicLong> getCounters() {
+		Map<String, AtomicLong> counters = new LinkedHashMap<String, AtomicLong>();
+		counters.put("handledNumber", handledNumber);
+		counters.put("duplicateNumber", duplicateNumber);
+		counters.put("exactURLDuplicates", exactURLDuplicates);
+		counters.put("exactURLDuplicatesBytes", exactURLDuplicatesBytes);
+		counters.put("canonicalURLDuplicates", canonicalURLDuplicates);
+		counters.put("canonicalURLDuplicatesBytes", canonicalURLDuplicatesBytes);
+		counters.put("digestDuplicates", digestDuplicates);
+		counters.put("digestDuplicatesBytes", digestDuplicatesBytes);
+		counters.put("notModifiedNumber", notModifiedNumber);
+		counters.put("duplicateAmount", duplicateAmount);
+		counters.put("totalAmount", totalAmount);
+		counters.put("cumulativeLookupDuration", cumulativeLookupDuration);
+		counters.put("lookupNumber", lookupNumber);
+		counters.put("degradedPeriods", degradedPeriods);
+		counters.put("degradedDuration", degradedDuration);
+		counters.put("passedThroughNumber", passedThroughNumber);
+		counters.put("passedThroughBytes", passedThroughBytes);
+		counters.put("probeNumber", probeNumber);
+		return counters;
+	}
+	
+	@Override
+	public void startCheckpoint(Checkpoint checkpointInProgress) {
+		// Nothing to prepare
+	}
+	
+	@Override
+	public void doCheckpoint(Checkpoint checkpointInProgress) throws IOException {
+		JSONObject json = new JSONObject();
+		try {
+			for (Map.Entry<String, AtomicLong> counter : getCounters().entrySet()) {
+				json.put(counter.getKey(), counter.getValue().get());
+			}
+		} catch (JSONException e) {
+			// Only happens on non-finite numbers, which we don't have
+			throw new IOException(e);
+		}
+		checkpointInProgress.saveJson(getBeanName(), json);
+	}
+	
+	@Override
+	public void finishCheckpoint(Checkpoint checkpointInProgress) {
+		// Nothing to clean up
+	}
+	
+	@Override
+	public void setRecoveryCheckpoint(Checkpoint recoveryCheckpoint) {
+		// Checkpoint.loadJson fails if there is no file, e.g. for a checkpoint made before this was saved
+		if (!new File(recoveryCheckpoint.getCheckpointDir().getFile(), getBeanName()).exists()) {
+			logger.warning("No DeDuplicator state in checkpoint " + recoveryCheckpoint.getName() + 
+					". Statistics restart from zero.");
+			return;
+		}
+		JSONObject json = recoveryCheckpoint.loadJson(getBeanName());
+		try {
+			for (Map.Entry<String, AtomicLong> counter : getCounters().entrySet()) {
+				if (json.has(counter.getKey())) {
+					counter.getValue().set(json.getLong(counter.getKey()));
+				}
+			}
+		} catch (JSONException e) {
+			throw new IllegalStateException("Unable to restore DeDuplicator state from checkpoint " + 
+					recoveryCheckpoint.getName(), e);
+		}
+	}
+	
 	protected static String getPercentage(double portion, double total){
 		NumberFormat percentFormat = NumberFormat.getPercentInstance(Locale.ENGLISH);
 		percentFormat.setMaximumFractionDigits(1);
@@ -1,6 +1,7 @@
 package is.landsbokasafn.deduplicator.heritrix;
 
 import org.archive.modules.revisit.IdenticalPayloadDigestRevisit;
+import org.archive.modules.revisit.ServerNotModifiedRevisit;
 
 public interface Index {
 
@@ -17,6 +18,22 @@ public interface Index {
 	 */
 	IdenticalPayloadDigestRevisit lookup(String url, String canonicalizedURL, String digest, String digestWithScheme);
 	
+	/**
+	 * Look up the most recent capture of a URL, regardless of its content digest. This is used to issue conditional
+	 * requests (If-None-Match/If-Modified-Since) before the URL is fetched.
+	 * <p>
+	 * Indexes that can not look up captures by URL need not override this method.
+	 * 
+	 * @param url The URL (as extracted from source) of the resource.
+	 * @param canonicalizedURL The canonicalized form of the URL.
+	 * @return A {@link ServerNotModifiedRevisit} referring to the latest capture of the URL, with the ETag set if
+	 *         it is available in the index. Returns null if the URL is not found or the index does not support
+	 *         URL lookups.
+	 */
+	default ServerNotModifiedRevisit lookupLatestCapture(String url, String canonicalizedURL) {
+		return null;
+	}
+	
 	String getInfo();
 
 }
@@ -0,0 +1,29 @@
+package is.landsbokasafn.deduplicator.heritrix;
+
+/**
+ * The readiness states of an index that is opened and warmed up in the background.
+ */
+public enum IndexState {
+	/**
+	 * The index is being opened and inspected. No lookups can be done.
+	 */
+	OPENING,
+	
+	/**
+	 * The index is open and can be searched, but in-memory structures (e.g. the bloom filter) are still being 
+	 * populated.
+	 */
+	WARMING,
+	
+	/**
+	 * The index is fully open and warmed up.
+	 */
+	READY,
+	
+	/**
+	 * The index could not be opened or does not support the configured search strategy. Lookups will never find 
+	 * any duplicates.
+	 */
+	FAILED,
+
+}
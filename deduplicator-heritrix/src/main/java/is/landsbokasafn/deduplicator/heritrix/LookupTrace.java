@@ -0,0 +1,106 @@
+package is.landsbokasafn.deduplicator.heritrix;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Details of a single index lookup, collected for the slow lookup log (see {@link SlowLookupLog}).
+ * <p>
+ * The {@link DeDuplicator} starts a trace for the current thread before each lookup. {@link Index} implementations
+ * may then fill in what they did via {@link #current()}, which returns null when no trace is being collected, so
+ * the cost of tracing is a thread local lookup unless the slow lookup log is enabled.
+ */
+public class LookupTrace {
+
+	private static final ThreadLocal<LookupTrace> CURRENT = new ThreadLocal<LookupTrace>();
+
+	private String strategy;
+	private int segments = -1;
+	private boolean bloomConsulted = false;
+	private boolean bloomRejected = false;
+	private final Map<String, Long> phases = new LinkedHashMap<String, Long>();
+
+	/**
+	 * Start collecting a trace for the current thread.
+	 * @return The new trace
+	 */
+	public static LookupTrace start() {
+		LookupTrace trace = new LookupTrace();
+		CURRENT.set(trace);
+		return trace;
+	}
+
+	/**
+	 * @return The trace being collected on the current thread, or null if none
+	 */
+	public static LookupTrace current() {
+		return CURRENT.get();
+	}
+
+	/**
+	 * Stop collecting a trace on the current thread.
+	 */
+	public static void end() {
+		CURRENT.remove();
+	}
+
+	public void setStrategy(String strategy) {
+		this.strategy = strategy;
+	}
+
+	public String getStrategy() {
+		return strategy;
+	}
+
+	/**
+	 * @param segments The number of index segments (or equivalent) visited by the lookup
+	 */
+	public void setSegments(int segments) {
+		this.segments = segments;
+	}
+
+	/**
+	 * Add to the number of index segments (or equivalent) visited by the lookup.
+	 */
+	public void addSegments(int segments) {
+		this.segments = Math.max(this.segments, 0) + segments;
+	}
+
+	public int getSegments() {
+		return segments;
+	}
+
+	/**
+	 * Record that a bloom filter was consulted.
+	 * @param rejected true if the bloom filter ruled out a match, i.e. the index itself was not searched
+	 */
+	public void bloomConsulted(boolean rejected) {
+		bloomConsulted = true;
+		bloomRejected = rejected;
+	}
+
+	public boolean isBloomConsulted() {
+		return bloomConsulted;
+	}
+
+	public boolean isBloomRejected() {
+		return bloomRejected;
+	}
+
+	/**
+	 * Record the time taken by a phase of the lookup. Repeated phases are added up.
+	 * @param name Name of the phase
+	 * @param nanos Time taken, in nanoseconds
+	 */
+	public void phase(String name, long nanos) {
+		Long previous = phases.get(name);
+		phases.put(name, previous == null ? nanos : previous + nanos);
+	}
+
+	/**
+	 * @return Time taken by each phase, in nanoseconds, in the order the phases were first recorded
+	 */
+	public Map<String, Long> getPhases() {
+		return phases;
+	}
+}
@@ -2,23 +2,28 @@ package is.landsbokasafn.deduplicator.heritrix;
 
 import static is.landsbokasafn.deduplicator.IndexFields.DATE;
 import static is.landsbokasafn.deduplicator.IndexFields.DIGEST;
+import static is.landsbokasafn.deduplicator.IndexFields.ETAG;
 import static is.landsbokasafn.deduplicator.IndexFields.ORIGINAL_RECORD_ID;
 import static is.landsbokasafn.deduplicator.IndexFields.URL;
 import static is.landsbokasafn.deduplicator.IndexFields.URL_CANONICALIZED;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import org.apache.lucene.document.Document;
-import org.apache.lucene.index.AtomicReader;
-import org.apache.lucene.index.AtomicReaderContext;
-import org.apache.lucene.index.DirectoryReader;
-import org.apache.lucene.index.FieldInfos;
 import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.index.MultiFields;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.BooleanClause.Occur;
 import org.apache.lucene.search.BooleanQuery;
@@ -26,27 +31,45 @@ import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.TermQuery;
-import org.apache.lucene.store.NIOFSDirectory;
-import org.apache.lucene.util.Bits;
+import org.archive.checkpointing.Checkpoint;
+import org.archive.checkpointing.Checkpointable;
 import org.archive.modules.revisit.IdenticalPayloadDigestRevisit;
-import org.archive.util.ArchiveUtils;
+import org.archive.modules.revisit.ServerNotModifiedRevisit;
 import org.archive.util.BloomFilter64bit;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.springframework.beans.factory.BeanNameAware;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 
-public class LuceneIndexSearcher implements Index, InitializingBean {
+/**
+ * An {@link Index} backed by a Lucene index built by the DeDuplicator's indexer.
+ * <p>
+ * By default the index is opened and warmed up (i.e. the bloom filter populated) in the background, so that a large
+ * index does not hold up crawl build. Progress through the {@link IndexState}s is shown in {@link #getInfo()} and 
+ * over JMX. How lookups are handled until the index is ready is governed by the {@link NotReadyPolicy}.
+ * <p>
+ * If a bloom filter is used, it is included in Heritrix checkpoints, along with statistics, so that a resumed crawl
+ * does not have to rebuild it. The saved filter is only used if the index has not changed since the checkpoint.
+ * <p>
+ * The open index and its bloom filter are obtained from the {@link SharedIndexRegistry}. If several crawl jobs in the
+ * same JVM use the same index (and bloom filter setting), they share one reader and one bloom filter. Search
+ * strategy, policies and statistics remain specific to each searcher.
+ */
+public class LuceneIndexSearcher implements Index, InitializingBean, DisposableBean, Checkpointable, BeanNameAware, 
+		LuceneIndexSearcherMBean {
     private static Logger logger = Logger.getLogger(LuceneIndexSearcher.class.getName());
 
-    protected IndexSearcher searcher = null;
-    protected DirectoryReader dReader = null;
+    /** The index, possibly shared with other searchers in this JVM. Null until initialized and after closing. **/
+    protected volatile SharedIndex sharedIndex = null;
     
-    protected boolean urlIndexed = false;  // Is the URL field indexed
-    protected boolean digestIndexed = false; // Is the Digest field indexed
-    protected boolean canoncialAvailable = false; // Is the URL_Canonicalized field present. Indexed if URL is.
+    private final AtomicLong notReadyLookups = new AtomicLong(); // Lookups that arrived before READY
+    private volatile boolean strategyVerified = false;
+    private volatile boolean strategyFailed = false;
 
     protected boolean useDigestScheme = false; // Is the digest algorithm part of the digest string
     
     private String indexLocation;
-    private int numDocs = -1;
     /**
      * Set the location of the index in the filesystem. Changing this value after the bean has been 
      * initialized will have no effect.
@@ -80,7 +103,8 @@ public class LuceneIndexSearcher implements Index, InitializingBean {
      * @see SearchStrategy
      */
 	public void setSearchStrategy(SearchStrategy strategy) {
-		if (searcher!=null) {
+		SharedIndex index = sharedIndex;
+		if (index != null && (index.getState()==IndexState.WARMING || index.getState()==IndexState.READY)) {
 			verifyStrategy(strategy);
 		}
 		this.strategy = strategy;
@@ -89,7 +113,6 @@ public class LuceneIndexSearcher implements Index, InitializingBean {
 		return strategy;
 	}
 	
-	private BloomFilter64bit bf = null;
 	private AtomicInteger bloomHits = new AtomicInteger(); 
 	protected boolean useBloomFilter = false;
 	public boolean getUseBloomFilter() {
@@ -97,8 +120,8 @@ public class LuceneIndexSearcher implements Index, InitializingBean {
 	}
 	/**
 	 * If true, a bloom filter will be constructed from all available digests in the index.
-	 * This happens on crawl build. It is advised (but not required) to wait until the bloom filter is fully populated
-	 * before moving to crawl launch.  
+	 * This happens on crawl build, while the index is in the {@link IndexState#WARMING} state. The bloom filter is
+	 * only consulted once it is fully populated.
 	 * Modifying this setting at runtime will have no effect.
 	 * @param useBloomFilter
 	 */
@@ -106,49 +129,103 @@ public class LuceneIndexSearcher implements Index, InitializingBean {
 		this.useBloomFilter = useBloomFilter;
 	}
 	
+	protected boolean openAsynchronously = false;
+	public boolean getOpenAsynchronously() {
+		return openAsynchronously;
+	}
+	/**
+	 * If false (default), the index is opened during crawl build, which will fail if the index can not be opened or
+	 * does not support the search strategy. If true, the index is opened and inspected in the background, and if that
+	 * fails, every lookup throws an exception. Warm up (populating the bloom filter) always happens in the background.
+	 * If the index is already in use by another crawl job in this JVM, it is shared rather than opened again.
+	 * Modifying this setting at runtime will have no effect.
+	 * @param openAsynchronously Whether to open the index in the background
+	 */
+	public void setOpenAsynchronously(boolean openAsynchronously) {
+		this.openAsynchronously = openAsynchronously;
+	}
+	
+	protected MemoryBudget memoryBudget = null;
+	public MemoryBudget getMemoryBudget() {
+		return memoryBudget;
+	}
+	/**
+	 * Set a memory budget to reserve the bloom filter from. If the budget is tight, a smaller bloom filter is used
+	 * or none at all. Default is no budget, i.e. the bloom filter is always sized for the number of documents in the
+	 * index. Has no effect if the index is shared with another searcher that has already loaded it.
+	 * Modifying this setting at runtime will have no effect.
+	 * @param memoryBudget The memory budget
+	 */
+	public void setMemoryBudget(MemoryBudget memoryBudget) {
+		this.memoryBudget = memoryBudget;
+	}
+	
+	protected NotReadyPolicy notReadyPolicy = NotReadyPolicy.PARTIAL;
+	public NotReadyPolicy getNotReadyPolicy() {
+		return notReadyPolicy;
+	}
+	/**
+	 * Set how lookups are handled until the index is {@link IndexState#READY}. Default is 
+	 * {@link NotReadyPolicy#PARTIAL}.
+	 * @param notReadyPolicy The policy to apply until the index is ready
+	 * @see NotReadyPolicy
+	 */
+	public void setNotReadyPolicy(NotReadyPolicy notReadyPolicy) {
+		this.notReadyPolicy = notReadyPolicy;
+	}
+	
 	@Override
 	public void afterPropertiesSet() throws Exception {
-    	openIndex(indexLocation);
-    	verifyStrategy(strategy);
-    	if (getUseBloomFilter()){
-    		setupBloomFilter();
-    	}
-    }
-    
-    private void openIndex(String indexLocation) {
-    	if (searcher!=null) {
-    		throw new IllegalStateException("Already have an open index");
-    	}
-    	try {
-            dReader = DirectoryReader.open(new NIOFSDirectory(new File(indexLocation)));
-            searcher = new IndexSearcher(dReader);
-        } catch (Exception e) {
-        	throw new IllegalArgumentException("Unable to find/open index at " + indexLocation,e);
-        } 
-    	inspectIndex();
-    }
-
-    private void inspectIndex() {
-    	// Determine index makeup
-        urlIndexed = isFieldIndexed(URL.name());
-        digestIndexed = isFieldIndexed(DIGEST.name());
-        if (!digestIndexed) {
-        	throw new IllegalStateException("DIGEST fields must be indexed.");
-        }
-        try {
-            boolean canonicalIndexed = isFieldIndexed(URL_CANONICALIZED.name());
-            if (canonicalIndexed==urlIndexed) {
-            	canoncialAvailable=true;
-            } else {
-            	logger.severe("URL_CANONICALIZED and URL fields disagree on indexing. "
-            			+ "Either both must be indexed or neither. Proceeding as if URL_CANONICALIZED "
-            			+ "was not available.");
-            }
-        } catch (NullPointerException e) {
-        	canoncialAvailable=false;
-        }
-        numDocs = dReader.numDocs();
+		registerMBean();
+		try {
+			sharedIndex = SharedIndexRegistry.acquire(indexLocation, useBloomFilter);
+			sharedIndex.load(openAsynchronously, memoryBudget);
+			if (!openAsynchronously) {
+				verifyStrategy(strategy);
+				strategyVerified = true;
+			}
+		} catch (RuntimeException e) {
+			// Spring does not destroy a bean that fails to initialize
+			unregisterMBean();
+			close();
+			throw e;
+		}
     }
+	
+	/**
+	 * @return The state of this searcher. Follows the state of the shared index, except that it is 
+	 *         {@link IndexState#FAILED} if the index does not support the search strategy.
+	 */
+	private IndexState getIndexState() {
+		SharedIndex index = sharedIndex;
+		if (index == null) {
+			return IndexState.OPENING;
+		}
+		IndexState state = index.getState();
+		if (state == IndexState.WARMING || state == IndexState.READY) {
+			if (!strategyVerified) {
+				checkStrategy();
+			}
+			if (strategyFailed) {
+				return IndexState.FAILED;
+			}
+		}
+		return state;
+	}
+	
+	private synchronized void checkStrategy() {
+		if (strategyVerified) {
+			return;
+		}
+		try {
+			verifyStrategy(strategy);
+		} catch (IllegalStateException e) {
+			logger.log(Level.SEVERE, "Index at " + indexLocation + " does not support search strategy " + 
+					strategy + ". Lookups will fail.", e);
+			strategyFailed = true;
+		}
+		strategyVerified = true;
+	}
     
     /**
      * Verify that the current index supports the selected strategy. I.e. that the necessary fields are indexed.
@@ -157,70 +234,92 @@ public class LuceneIndexSearcher implements Index, InitializingBean {
      */
     private void verifyStrategy(SearchStrategy strategy) {
     	if (strategy==SearchStrategy.URL_EXACT || strategy==SearchStrategy.URL_CANONICAL) {
-    		if (!urlIndexed) {
+    		if (!sharedIndex.isUrlIndexed()) {
     			throw new IllegalStateException("URL must be indexed for search strategy " + strategy.name());
     		}
     	}
     	if (strategy==SearchStrategy.URL_CANONICAL) {
-    		if (!canoncialAvailable) {
+    		if (!sharedIndex.isCanonicalAvailable()) {
     			throw new IllegalStateException("Canonical URL must be available for search strategy " + 
     					strategy.name());
     		}
     	}
     }
     
-	private void setupBloomFilter() {
-        bf = new BloomFilter64bit(dReader.maxDoc(),22);
-        BuildBloom buildBloom = new BuildBloom(); 
-        Thread myThread = new Thread(buildBloom);
-        myThread.setDaemon(true); 
-        myThread.start(); 
-	}
-	class BuildBloom implements Runnable{
-		@Override
-		public void run() {
-			try {
-		        Bits liveDocs = MultiFields.getLiveDocs(dReader);
-		        long start = System.nanoTime();
-		        int i=0;
-		        for ( ; i<dReader.maxDoc() ; i++) {
-		            if (liveDocs != null && !liveDocs.get(i))
-		                continue;
-	
-		            Document doc = dReader.document(i);
-		            bf.add(doc.get(DIGEST.name()));
-		        }
-		        logger.info("BloomFilter ready. Read " + i + " documents in " + 
-		        		ArchiveUtils.formatMillisecondsToConventional((System.nanoTime()-start)/1000000));
-			} catch (IOException e) {
-				throw new IllegalStateException("Error building bloom filter for index " + indexLocation, e);
-			}
-		}
-	}
-	
-    protected boolean isFieldIndexed(String field) {
-        IndexReader reader = searcher.getIndexReader();
-        for (AtomicReaderContext rc : reader.leaves()) {
-	        AtomicReader ar = rc.reader();
-	        FieldInfos fis = ar.getFieldInfos();
-	        if (!fis.fieldInfo(field).isIndexed()) {
-	        	// All leaves must agree for us to return true
-	        	return false;
-	        }
-        }
-    	return true;
+    /**
+     * Apply the {@link NotReadyPolicy} to a lookup that arrives while the index is not ready.
+     * @return true if the lookup can proceed against the index, false if it should report no duplicate.
+     * @throws IllegalStateException if the index failed to open, so that is not mistaken for finding no duplicates
+     */
+    private boolean awaitSearchable() {
+    	IndexState state = getIndexState();
+    	if (state == IndexState.READY) {
+    		return true;
+    	}
+    	if (sharedIndex == null) {
+    		return false;
+    	}
+    	if (state == IndexState.FAILED) {
+    		throw failed();
+    	}
+    	notReadyLookups.incrementAndGet();
+    	switch (notReadyPolicy) {
+    	case BLOCK:
+    		sharedIndex.awaitReady();
+    		state = getIndexState();
+    		if (state == IndexState.FAILED) {
+    			throw failed();
+    		}
+    		return state == IndexState.READY;
+    	case PARTIAL:
+    		return state == IndexState.WARMING;
+    	case PASS_THROUGH:
+    	default:
+    		return false;
+    	}
+    }
+    
+    private IllegalStateException failed() {
+    	if (strategyFailed) {
+    		return new IllegalStateException("Index at " + indexLocation + " does not support search strategy " + 
+    				strategy);
+    	}
+    	return new IllegalStateException("Unable to find/open index at " + indexLocation, sharedIndex.getFailure());
     }
     
     @Override
 	public IdenticalPayloadDigestRevisit lookup(String url, String canonicalizedUrl, String digest,
 			String digestWithScheme) {
+    	LookupTrace trace = LookupTrace.current();
+    	long mark = 0;
+    	if (trace != null) {
+    		trace.setStrategy(strategy.name());
+    		mark = System.nanoTime();
+    	}
+    	boolean searchable = awaitSearchable();
+    	if (trace != null) {
+    		long now = System.nanoTime();
+    		trace.phase("ready", now - mark);
+    		mark = now;
+    	}
+    	if (!searchable) {
+    		return null;
+    	}
     	String queryDigest = digest;
     	if (useDigestScheme) {
     		queryDigest = digestWithScheme;
     	}
-    	if (bf!=null && !bf.contains(digest)) {
-    		bloomHits.incrementAndGet();
-    		return null;
+    	BloomFilter64bit bf = sharedIndex.getBloomFilter();
+    	if (bf != null) {
+    		boolean rejected = !bf.contains(digest);
+    		if (trace != null) {
+    			trace.bloomConsulted(rejected);
+    			trace.phase("bloom", System.nanoTime() - mark);
+    		}
+    		if (rejected) {
+    			bloomHits.incrementAndGet();
+    			return null;
+    		}
     	}
     	Document doc = null;
     	switch (strategy) {
@@ -262,8 +361,8 @@ public class LuceneIndexSearcher implements Index, InitializingBean {
     		final String url, final String canonicalizedUrl, final String digest) {
     	BooleanQuery q = new BooleanQuery();
     	q.add(new TermQuery(new Term(DIGEST.name(), digest)), Occur.MUST);
-    	if (urlIndexed) {
-	    	if (canoncialAvailable) {
+    	if (sharedIndex.isUrlIndexed()) {
+	    	if (sharedIndex.isCanonicalAvailable()) {
 	    		q.add(new TermQuery(new Term(URL_CANONICALIZED.name(), canonicalizedUrl)), Occur.SHOULD);
 	    	}
     		q.add(new TermQuery(new Term(URL.name(), url)), Occur.SHOULD);
@@ -275,6 +374,50 @@ public class LuceneIndexSearcher implements Index, InitializingBean {
         return query(new TermQuery(new Term(DIGEST.name(), digest)));
     }
 
+    /**
+     * Maximum number of documents examined for a single URL when looking for its latest capture.
+     */
+    private static final int MAX_CAPTURES_PER_URL = 100;
+    
+    @Override
+    public ServerNotModifiedRevisit lookupLatestCapture(String url, String canonicalizedURL) {
+    	if (!awaitSearchable() || !sharedIndex.isUrlIndexed()) {
+    		return null;
+    	}
+    	IndexSearcher searcher = sharedIndex.getSearcher();
+    	// DATE is not indexed, so we can't sort on it. Pick the latest capture among the hits instead.
+    	Document latest = null;
+    	try {
+    		ScoreDoc[] hits = searcher.search(
+    				new TermQuery(new Term(URL.name(), url)), null, MAX_CAPTURES_PER_URL).scoreDocs;
+    		for (ScoreDoc hit : hits) {
+    			Document doc = searcher.doc(hit.doc);
+    			String date = doc.get(DATE.name());
+    			if (date == null) {
+    				continue;
+    			}
+    			// Dates are w3c-iso8601, so lexical order is chronological order
+    			if (latest == null || date.compareTo(latest.get(DATE.name())) > 0) {
+    				latest = doc;
+    			}
+    		}
+    	} catch (IOException e) {
+			logger.log(Level.SEVERE, "Error accessing index.", e);
+    	}
+    	if (latest == null) {
+    		return null;
+    	}
+    	ServerNotModifiedRevisit capture = new ServerNotModifiedRevisit();
+    	capture.setRefersToTargetURI(latest.get(URL.name()));
+    	capture.setRefersToDate(latest.get(DATE.name()));
+    	capture.setETag(latest.get(ETAG.name()));
+    	String refersToRecordID = latest.get(ORIGINAL_RECORD_ID.name());
+    	if (refersToRecordID!=null && !refersToRecordID.isEmpty()) {
+    		capture.setRefersToRecordID(refersToRecordID);
+    	}
+    	return capture;
+    }
+
     /**
      * Do a search for duplicates in the index based on the provided query. 
      * @param query The query to perform. Query must be structured so that any results returned are valid duplicates
@@ -284,10 +427,22 @@ public class LuceneIndexSearcher implements Index, InitializingBean {
      */
 	protected Document query(Query query) {
 		Document doc = null; 
+		IndexSearcher searcher = sharedIndex.getSearcher();
+		LookupTrace trace = LookupTrace.current();
 		try {
+			long start = trace != null ? System.nanoTime() : 0;
 			ScoreDoc[] hits = searcher.search(query, null, 1).scoreDocs;
+			if (trace != null) {
+				// The searcher visits every segment of the index
+				trace.setSegments(searcher.getIndexReader().leaves().size());
+				trace.phase("search", System.nanoTime() - start);
+				start = System.nanoTime();
+			}
             if(hits != null && hits.length > 0){
                 doc = searcher.doc(hits[0].doc);
+                if (trace != null) {
+                	trace.phase("fetch", System.nanoTime() - start);
+                }
             }
 		} catch (IOException e) {
 			logger.log(Level.SEVERE, "Error accessing index.", e);
@@ -310,41 +465,225 @@ public class LuceneIndexSearcher implements Index, InitializingBean {
 	}
 
     public String getInfo() {
+    	SharedIndex index = sharedIndex;
+    	IndexState state = getIndexState();
     	StringBuilder sb = new StringBuilder();
     	sb.append(LuceneIndexSearcher.class.getCanonicalName());
     	sb.append("\n");
-    	sb.append(" URL indexed: " + urlIndexed);
+    	sb.append(" State: " + state);
+    	if (state != IndexState.READY && state != IndexState.FAILED) {
+    		sb.append(String.format(" (%.1f%%)", getReadinessProgress()));
+    	}
+    	sb.append("\n");
+    	if (notReadyLookups.get() > 0) {
+    		sb.append(" Lookups before ready: " + notReadyLookups + " (policy " + notReadyPolicy + ")");
+    		sb.append("\n");
+    	}
+    	if (index == null) {
+    		return sb.toString();
+    	}
+    	if (index.getReferences() > 1) {
+    		sb.append(" Index shared with " + (index.getReferences()-1) + " other searcher(s)");
+    		sb.append("\n");
+    	}
+    	sb.append(" URL indexed: " + index.isUrlIndexed());
     	sb.append("\n");
-    	sb.append(" Digest indexed: " + digestIndexed);
+    	sb.append(" Digest indexed: " + index.isDigestIndexed());
     	sb.append("\n");
-    	sb.append(" Canonical URL available: " + canoncialAvailable);
+    	sb.append(" Canonical URL available: " + index.isCanonicalAvailable());
     	sb.append("\n");
     	sb.append(" Search strategy: " + getSearchStrategy());
     	sb.append("\n");
     	sb.append(" Digest in index includes hashing algorithm: " + useDigestScheme);
     	sb.append("\n");
 		sb.append(" Records in index: ");
-		sb.append(numDocs);
+		sb.append(index.getNumDocs());
     	sb.append("\n");
+    	if (index.getPartitionCount() > 1) {
+    		sb.append(" Partitions: " + index.getPartitionCount());
+    		sb.append("\n");
+    	}
+    	BloomFilter64bit bf = index.getBloomFilterInProgress();
 		if (bf != null) {
+			if (index.getBloomFilter() == null) {
+	    		sb.append(" BloomFilter populating: ");
+	    		sb.append(index.getWarmedDocs() + " of " + index.getReader().maxDoc());
+	        	sb.append("\n");
+			}
     		sb.append(" BloomFilter size: ");
     		sb.append(bf.size());
         	sb.append("\n");
     		sb.append(" BloomFilter hits: ");
     		sb.append(bloomHits.get());
         	sb.append("\n");
+    	} else if (index.isBloomFilterDisabled()) {
+    		sb.append(" BloomFilter: disabled (memory budget)");
+        	sb.append("\n");
     	}
     	
     	return sb.toString();
     }
 
-	public void close() {
+	// Checkpointing
+	
+	private String beanName = LuceneIndexSearcher.class.getSimpleName();
+	@Override
+	public void setBeanName(String beanName) {
+		this.beanName = beanName;
+	}
+	public String getBeanName() {
+		return beanName;
+	}
+	
+	private File getBloomFilterCheckpointFile(Checkpoint checkpoint) {
+		return new File(checkpoint.getCheckpointDir().getFile(), beanName + "-bloomfilter.bin");
+	}
+	
+	@Override
+	public void startCheckpoint(Checkpoint checkpointInProgress) {
+		// Nothing to prepare
+	}
+	
+	@Override
+	public void doCheckpoint(Checkpoint checkpointInProgress) throws IOException {
+		SharedIndex index = sharedIndex;
+		// Only save a complete filter. A partial one would give false negatives after resuming.
+		BloomFilter64bit bf = index == null ? null : index.getBloomFilter();
+		IndexReader dReader = index == null ? null : index.getReader();
+		JSONObject json = new JSONObject();
 		try {
+			json.put("bloomHits", bloomHits.get());
 			if (dReader != null) {
-				dReader.close();
+				json.put("indexVersion", index.getIndexVersion());
+				json.put("maxDoc", dReader.maxDoc());
 			}
-		} catch (IOException e) {
-			logger.log(Level.SEVERE,"Error closing index",e);
+			json.put("bloomFilter", bf != null);
+		} catch (JSONException e) {
+			// Only happens on non-finite numbers, which we don't have
+			throw new IOException(e);
+		}
+		if (bf != null) {
+			try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(
+					new FileOutputStream(getBloomFilterCheckpointFile(checkpointInProgress))))) {
+				out.writeObject(bf);
+			}
+		}
+		checkpointInProgress.saveJson(beanName, json);
+	}
+	
+	@Override
+	public void finishCheckpoint(Checkpoint checkpointInProgress) {
+		// Nothing to clean up
+	}
+	
+	@Override
+	public void setRecoveryCheckpoint(Checkpoint recoveryCheckpoint) {
+		// Checkpoint.loadJson fails if there is no file, e.g. for a checkpoint made before this was saved
+		if (!new File(recoveryCheckpoint.getCheckpointDir().getFile(), beanName).exists()) {
+			logger.warning("No index state in checkpoint " + recoveryCheckpoint.getName() + 
+					". A new bloom filter will be built, if enabled.");
+			return;
+		}
+		JSONObject json = recoveryCheckpoint.loadJson(beanName);
+		try {
+			bloomHits.set(json.getInt("bloomHits"));
+			if (useBloomFilter && json.getBoolean("bloomFilter") && sharedIndex != null) {
+				// The shared index will use the saved filter instead of building one, if the index is unchanged and
+				// no other user has already provided a filter
+				sharedIndex.offerBloomFilter(getBloomFilterCheckpointFile(recoveryCheckpoint), 
+						json.getLong("indexVersion"), json.getInt("maxDoc"));
+			}
+		} catch (JSONException e) {
+			throw new IllegalStateException("Unable to restore index state from checkpoint " + 
+					recoveryCheckpoint.getName(), e);
+		}
+	}
+
+	// JMX
+	
+	private ObjectName mbeanName = null;
+	
+	private void registerMBean() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			String base = "is.landsbokasafn.deduplicator:type=LuceneIndexSearcher,name=" + ObjectName.quote(beanName);
+			ObjectName name = new ObjectName(base);
+			for (int i = 2; server.isRegistered(name); i++) {
+				// Another crawl job in this JVM has a bean by the same name
+				name = new ObjectName(base + ",instance=" + i);
+			}
+			server.registerMBean(this, name);
+			mbeanName = name;
+		} catch (JMException e) {
+			logger.log(Level.WARNING, "Unable to register index with JMX", e);
+		}
+	}
+	
+	private void unregisterMBean() {
+		if (mbeanName == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+		} catch (JMException e) {
+			logger.log(Level.WARNING, "Unable to unregister index from JMX", e);
+		}
+		mbeanName = null;
+	}
+	
+	@Override
+	public String getState() {
+		return getIndexState().name();
+	}
+	
+	@Override
+	public double getReadinessProgress() {
+		SharedIndex index = sharedIndex;
+		if (index == null || getIndexState() == IndexState.FAILED) {
+			return 0d;
+		}
+		return index.getReadinessProgress();
+	}
+	
+	@Override
+	public String getSearchStrategyName() {
+		return strategy == null ? null : strategy.name();
+	}
+	
+	@Override
+	public String getNotReadyPolicyName() {
+		return notReadyPolicy.name();
+	}
+	
+	@Override
+	public int getNumDocs() {
+		SharedIndex index = sharedIndex;
+		return index == null ? -1 : index.getNumDocs();
+	}
+	
+	@Override
+	public int getBloomFilterHits() {
+		return bloomHits.get();
+	}
+	
+	@Override
+	public long getNotReadyLookups() {
+		return notReadyLookups.get();
+	}
+	
+	@Override
+	public void destroy() {
+		unregisterMBean();
+		close();
+	}
+	
+	/**
+	 * Release the index. It is closed unless other searchers in this JVM are still using it.
+	 */
+	public synchronized void close() {
+		if (sharedIndex != null) {
+			SharedIndexRegistry.release(sharedIndex);
+			sharedIndex = null;
 		}
 	}
 }
@@ -0,0 +1,30 @@
+package is.landsbokasafn.deduplicator.heritrix;
+
+/**
+ * JMX management interface for {@link LuceneIndexSearcher}. Exposes readiness of the index.
+ */
+public interface LuceneIndexSearcherMBean {
+
+	String getIndexLocation();
+	
+	/**
+	 * @return The name of the current {@link IndexState}
+	 */
+	String getState();
+	
+	/**
+	 * @return Progress towards {@link IndexState#READY}, as a percentage.
+	 */
+	double getReadinessProgress();
+	
+	String getSearchStrategyName();
+	
+	String getNotReadyPolicyName();
+	
+	int getNumDocs();
+	
+	int getBloomFilterHits();
+	
+	long getNotReadyLookups();
+	
+}
@@ -0,0 +1,266 @@
+package is.landsbokasafn.deduplicator.heritrix;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.archive.util.ArchiveUtils;
+
+/**
+ * A limit on the heap memory used by the DeDuplicator's in-memory structures (bloom filters, lookup queues etc.).
+ * Rather than each structure sizing itself independently, they reserve memory from a shared budget before
+ * allocating it.
+ * <p>
+ * Reservations have a {@link Priority}. When the budget can not accommodate a reservation, reservations of lower
+ * priority are asked to shrink (or disable themselves) via their {@link Shrinkable}, followed by reservations of
+ * the same priority held by other owners (e.g. the bloom filter of another index). If that does not free enough,
+ * the reservation is granted whatever is left, provided that meets its minimum, or is denied. Users must be
+ * prepared to work with less than they asked for, or without the structure altogether.
+ * <p>
+ * A single budget may be shared by several beans (and by several crawl jobs, if declared in a parent context).
+ * Structures shared between crawl jobs (such as a {@link SharedIndex}'s bloom filter) reserve from the budget of
+ * the first user.
+ */
+public class MemoryBudget {
+    private static Logger logger = Logger.getLogger(MemoryBudget.class.getName());
+
+    /**
+     * The relative importance of a reservation. When memory is tight, lower priority reservations are shrunk or
+     * disabled in favour of higher priority ones.
+     */
+    public enum Priority {
+    	/** Nice to have, e.g. structures used only for evaluation or statistics **/
+    	LOW,
+    	/** Improves performance, e.g. caches **/
+    	NORMAL,
+    	/** Substantially improves performance, e.g. bloom filters **/
+    	HIGH
+    }
+
+    /**
+     * Implemented by users of the budget that are able to give up memory after it has been granted.
+     */
+    public interface Shrinkable {
+    	/**
+    	 * Give up memory. Invoked while the budget is locked, so implementations must not reserve or release memory
+    	 * from the budget.
+    	 * @param reservation The reservation being shrunk
+    	 * @param bytes The number of bytes the budget would like freed
+    	 * @return The number of bytes actually freed (may be more or less than asked for). The reservation is
+    	 *         reduced by that amount.
+    	 */
+    	long shrink(Reservation reservation, long bytes);
+    }
+
+    /**
+     * Memory granted to a user of the budget. Must be released once the memory is no longer in use.
+     */
+    public class Reservation {
+    	private final String owner;
+    	private final Priority priority;
+    	private final Shrinkable shrinkable;
+    	private final long requested;
+    	private long bytes;
+    	private boolean released = false;
+
+    	private Reservation(String owner, Priority priority, Shrinkable shrinkable, long requested, long bytes) {
+    		this.owner = owner;
+    		this.priority = priority;
+    		this.shrinkable = shrinkable;
+    		this.requested = requested;
+    		this.bytes = bytes;
+    	}
+
+    	public String getOwner() {
+    		return owner;
+    	}
+
+    	public Priority getPriority() {
+    		return priority;
+    	}
+
+    	/**
+    	 * @return Number of bytes currently held
+    	 */
+    	public long getBytes() {
+    		synchronized (MemoryBudget.this) {
+    			return bytes;
+    		}
+    	}
+
+    	/**
+    	 * @return Number of bytes originally asked for
+    	 */
+    	public long getRequested() {
+    		return requested;
+    	}
+
+    	/**
+    	 * Return the reserved memory to the budget.
+    	 */
+    	public void release() {
+    		synchronized (MemoryBudget.this) {
+    			if (released) {
+    				return;
+    			}
+    			released = true;
+    			used -= bytes;
+    			bytes = 0;
+    			reservations.remove(this);
+    		}
+    	}
+    }
+
+    // Guarded by this
+    private final List<Reservation> reservations = new ArrayList<Reservation>();
+    private long used = 0;
+
+    // Statistics
+    private final AtomicLong deniedNumber = new AtomicLong();
+    private final AtomicLong reducedNumber = new AtomicLong();
+    private final AtomicLong shrunkNumber = new AtomicLong();
+
+    private long maxBytes = 0;
+    public long getMaxBytes() {
+    	return maxBytes;
+    }
+    /**
+     * Set the size of the budget, in bytes. If zero (the default) or less, the budget is a fraction of the maximum
+     * heap size (see {@link #setHeapFraction(double)}).
+     * @param maxBytes The size of the budget in bytes
+     */
+    public void setMaxBytes(long maxBytes) {
+    	this.maxBytes = maxBytes;
+    }
+
+    private double heapFraction = 0.25;
+    public double getHeapFraction() {
+    	return heapFraction;
+    }
+    /**
+     * Set the fraction of the maximum heap size (<code>-Xmx</code>) to use as the budget, if no explicit size has
+     * been set. Default is 0.25.
+     * @param heapFraction Fraction of the heap, between 0 and 1
+     */
+    public void setHeapFraction(double heapFraction) {
+    	if (heapFraction <= 0 || heapFraction > 1) {
+    		throw new IllegalArgumentException("Heap fraction must be greater than 0 and at most 1");
+    	}
+    	this.heapFraction = heapFraction;
+    }
+
+    /**
+     * @return The size of the budget, in bytes
+     */
+    public long getLimit() {
+    	return maxBytes > 0 ? maxBytes : (long)(Runtime.getRuntime().maxMemory() * heapFraction);
+    }
+
+    /**
+     * @return The number of bytes currently reserved
+     */
+    public synchronized long getUsed() {
+    	return used;
+    }
+
+    /**
+     * Reserve memory.
+     * @param owner Description of the user of the memory, for reports
+     * @param priority The priority of the reservation
+     * @param requested The number of bytes wanted
+     * @param minimum The least number of bytes that is of use. If less is available, the reservation is denied.
+     * @param shrinkable Callback to ask the owner to free memory later on, for reservations of higher (or the same)
+     *        priority. May be null if the memory can not be freed until released.
+     * @return The reservation, possibly for less than requested (but at least the minimum). Null if denied.
+     */
+    public synchronized Reservation reserve(String owner, Priority priority, long requested, long minimum,
+    		Shrinkable shrinkable) {
+    	long limit = getLimit();
+    	if (limit - used < requested) {
+    		reclaim(priority, requested - (limit - used));
+    	}
+    	long available = Math.max(0, limit - used);
+    	long granted = Math.min(requested, available);
+    	if (granted < minimum || granted <= 0) {
+    		deniedNumber.incrementAndGet();
+    		logger.warning("Memory budget exhausted. Denied " + owner + " " +
+    				ArchiveUtils.formatBytesForDisplay(requested) + " (" +
+    				ArchiveUtils.formatBytesForDisplay(available) + " of " +
+    				ArchiveUtils.formatBytesForDisplay(limit) + " available)");
+    		return null;
+    	}
+    	if (granted < requested) {
+    		reducedNumber.incrementAndGet();
+    		logger.warning("Memory budget is tight. Granted " + owner + " " +
+    				ArchiveUtils.formatBytesForDisplay(granted) + " of the " +
+    				ArchiveUtils.formatBytesForDisplay(requested) + " requested");
+    	}
+    	Reservation reservation = new Reservation(owner, priority, shrinkable, requested, granted);
+    	reservations.add(reservation);
+    	used += granted;
+    	return reservation;
+    }
+
+    /**
+     * Ask reservations of lower priority than the given one to free memory. Lowest priority and largest first.
+     * Reservations of the same priority are left alone, as taking from them would let two owners (e.g. the bloom
+     * filters of two indexes) displace each other in turn. The request is reduced or denied instead.
+     */
+    private void reclaim(Priority priority, long needed) {
+    	List<Reservation> candidates = new ArrayList<Reservation>();
+    	for (Reservation r : reservations) {
+    		int c = r.priority.compareTo(priority);
+    		if (c < 0 && r.shrinkable != null && r.bytes > 0) {
+    			candidates.add(r);
+    		}
+    	}
+    	Collections.sort(candidates, new Comparator<Reservation>() {
+			@Override
+			public int compare(Reservation a, Reservation b) {
+				int c = a.priority.compareTo(b.priority);
+				return c != 0 ? c : Long.compare(b.bytes, a.bytes);
+			}
+		});
+    	for (Reservation r : candidates) {
+    		if (needed <= 0) {
+    			break;
+    		}
+    		long freed = Math.min(r.bytes, Math.max(0, r.shrinkable.shrink(r, needed)));
+    		if (freed > 0) {
+    			shrunkNumber.incrementAndGet();
+    			logger.info("Memory budget reclaimed " + ArchiveUtils.formatBytesForDisplay(freed) + " from " +
+    					r.owner);
+    			r.bytes -= freed;
+    			used -= freed;
+    			needed -= freed;
+    		}
+    	}
+    }
+
+    public synchronized String getInfo() {
+    	StringBuilder sb = new StringBuilder();
+    	long limit = getLimit();
+    	sb.append(MemoryBudget.class.getCanonicalName());
+    	sb.append("\n");
+    	sb.append(" Budget: " + ArchiveUtils.formatBytesForDisplay(limit));
+    	sb.append("\n");
+    	sb.append(" Reserved: " + ArchiveUtils.formatBytesForDisplay(used) + " " +
+    			DeDuplicator.getPercentage(used, limit));
+    	sb.append("\n");
+    	for (Reservation r : reservations) {
+    		sb.append("  " + r.owner + " (" + r.priority + "): " + ArchiveUtils.formatBytesForDisplay(r.bytes));
+    		if (r.bytes < r.requested) {
+    			sb.append(" of " + ArchiveUtils.formatBytesForDisplay(r.requested) + " requested");
+    		}
+    		sb.append("\n");
+    	}
+    	if (reducedNumber.get() > 0 || deniedNumber.get() > 0 || shrunkNumber.get() > 0) {
+    		sb.append(" Reduced: " + reducedNumber + ", denied: " + deniedNumber + ", shrunk: " + shrunkNumber);
+    		sb.append("\n");
+    	}
+    	return sb.toString();
+    }
+}
@@ -0,0 +1,23 @@
+package is.landsbokasafn.deduplicator.heritrix;
+
+/**
+ * What to do with lookups that arrive before an index is {@link IndexState#READY}.
+ */
+public enum NotReadyPolicy {
+	/**
+	 * Lookups block until the index is ready. Crawling will effectively not proceed until then.
+	 */
+	BLOCK,
+	
+	/**
+	 * Lookups report no duplicate until the index is ready. Everything crawled in the meantime is written in full.
+	 */
+	PASS_THROUGH,
+	
+	/**
+	 * Lookups use whatever is available. Once the index is open ({@link IndexState#WARMING}) it is searched 
+	 * directly, without the in-memory structures that are still being populated. Before that, lookups pass through.
+	 */
+	PARTIAL,
+
+}
@@ -0,0 +1,250 @@
+/* Copyright (C) 2006-2014 National and University Library of Iceland (NULI)
+ *
+ * This file is part of the DeDuplicator (Heritrix add-on module).
+ *
+ *  NULI licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package is.landsbokasafn.deduplicator.heritrix;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.archive.modules.revisit.IdenticalPayloadDigestRevisit;
+import org.archive.util.ArchiveUtils;
+
+/**
+ * Runs lookups against a <i>shadow</i> {@link Index}, alongside the primary index used by the {@link DeDuplicator},
+ * and compares the outcomes. The shadow index never affects what is written. It is used to evaluate an alternative
+ * index (format, search strategy etc.) under real crawl load.
+ * <p>
+ * Shadow lookups are done on a small, bounded, thread pool so that they do not add to the time spent on ToeThreads.
+ * If the pool falls behind, shadow lookups are dropped (and counted) rather than queued without limit.
+ *
+ * @author Kristinn Sigur&eth;sson
+ */
+public class ShadowIndexEvaluator {
+
+    private static Logger logger =
+        Logger.getLogger(ShadowIndexEvaluator.class.getName());
+
+    /** Rough estimate of the heap used by each queued shadow lookup, for the {@link MemoryBudget} **/
+    public static final long BYTES_PER_LOOKUP = 1024;
+
+    private final Index primary;
+    private final Index shadow;
+    private final ThreadPoolExecutor executor;
+    private volatile boolean disabled = false;
+
+    // Statistics
+    /** Number of shadow lookups submitted **/
+    AtomicLong submittedNumber = new AtomicLong(0);
+    /** Number of shadow lookups dropped because the queue was full **/
+    AtomicLong droppedNumber = new AtomicLong(0);
+    /** Number of shadow lookups that failed with an exception **/
+    AtomicLong errorNumber = new AtomicLong(0);
+    /** Number of lookups compared **/
+    AtomicLong comparedNumber = new AtomicLong(0);
+    /** Number of lookups where both indexes came to the same conclusion **/
+    AtomicLong agreedNumber = new AtomicLong(0);
+    /** Number of lookups where only the primary index found a duplicate **/
+    AtomicLong primaryOnlyNumber = new AtomicLong(0);
+    /** Number of lookups where only the shadow index found a duplicate **/
+    AtomicLong shadowOnlyNumber = new AtomicLong(0);
+    /** Number of lookups where both found a duplicate, but referring to different captures **/
+    AtomicLong differentTargetNumber = new AtomicLong(0);
+    /** Bytes the primary index found to be duplicates, among compared lookups **/
+    AtomicLong primaryBytes = new AtomicLong(0);
+    /** Bytes the shadow index found to be duplicates, among compared lookups **/
+    AtomicLong shadowBytes = new AtomicLong(0);
+    /** Accumulated primary lookup time, in nanoseconds, among compared lookups **/
+    AtomicLong primaryDuration = new AtomicLong(0);
+    /** Accumulated shadow lookup time, in nanoseconds **/
+    AtomicLong shadowDuration = new AtomicLong(0);
+    /** Slowest shadow lookup, in nanoseconds **/
+    AtomicLong shadowMaxDuration = new AtomicLong(0);
+
+    /**
+     * @param primary The index whose results are used by the DeDuplicator
+     * @param shadow The index being evaluated
+     * @param threads Number of threads doing shadow lookups
+     * @param queueSize Maximum number of shadow lookups waiting for a thread
+     */
+    public ShadowIndexEvaluator(Index primary, Index shadow, int threads, int queueSize) {
+    	this.primary = primary;
+    	this.shadow = shadow;
+    	final AtomicInteger threadNumber = new AtomicInteger();
+    	executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+    			new ArrayBlockingQueue<Runnable>(queueSize),
+    			new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "DeDuplicator shadow lookup " + threadNumber.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				},
+    			new RejectedExecutionHandler() {
+					@Override
+					public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+						droppedNumber.incrementAndGet();
+					}
+				});
+    }
+
+    /**
+     * Queue a lookup against the shadow index and compare its outcome to that of the primary index. Returns
+     * immediately.
+     * @param url The URL looked up
+     * @param canonicalizedURL The canonicalized form of the URL
+     * @param digest The content digest, without scheme
+     * @param digestWithScheme The content digest, with scheme
+     * @param contentLength The length of the content, used to count the bytes each index would save
+     * @param primaryResult What the primary index found, null if no duplicate
+     * @param primaryTook How long the primary lookup took, in nanoseconds
+     */
+    public void submit(final String url, final String canonicalizedURL, final String digest,
+    		final String digestWithScheme, final long contentLength,
+    		final IdenticalPayloadDigestRevisit primaryResult, final long primaryTook) {
+    	if (executor.isShutdown()) {
+    		return;
+    	}
+    	submittedNumber.incrementAndGet();
+    	executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				long start = System.nanoTime();
+				IdenticalPayloadDigestRevisit shadowResult;
+				try {
+					shadowResult = shadow.lookup(url, canonicalizedURL, digest, digestWithScheme);
+				} catch (RuntimeException e) {
+					errorNumber.incrementAndGet();
+					logger.log(Level.WARNING, "Shadow lookup failed for " + url, e);
+					return;
+				}
+				long took = System.nanoTime() - start;
+				compare(primaryResult, primaryTook, shadowResult, took, contentLength);
+			}
+		});
+    }
+
+    private void compare(IdenticalPayloadDigestRevisit primaryResult, long primaryTook,
+    		IdenticalPayloadDigestRevisit shadowResult, long shadowTook, long contentLength) {
+    	comparedNumber.incrementAndGet();
+    	primaryDuration.addAndGet(primaryTook);
+    	shadowDuration.addAndGet(shadowTook);
+    	long max;
+    	while ((max = shadowMaxDuration.get()) < shadowTook && !shadowMaxDuration.compareAndSet(max, shadowTook)) {
+    		// Retry
+    	}
+    	if (primaryResult != null) {
+    		primaryBytes.addAndGet(contentLength);
+    	}
+    	if (shadowResult != null) {
+    		shadowBytes.addAndGet(contentLength);
+    	}
+
+    	if (primaryResult == null && shadowResult == null) {
+    		agreedNumber.incrementAndGet();
+    	} else if (shadowResult == null) {
+    		primaryOnlyNumber.incrementAndGet();
+    	} else if (primaryResult == null) {
+    		shadowOnlyNumber.incrementAndGet();
+    	} else if (sameTarget(primaryResult, shadowResult)) {
+    		agreedNumber.incrementAndGet();
+    	} else {
+    		differentTargetNumber.incrementAndGet();
+    	}
+    }
+
+    private static boolean sameTarget(IdenticalPayloadDigestRevisit a, IdenticalPayloadDigestRevisit b) {
+    	return equal(a.getRefersToTargetURI(), b.getRefersToTargetURI()) &&
+    			equal(a.getRefersToDate(), b.getRefersToDate());
+    }
+
+    private static boolean equal(String a, String b) {
+    	return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * Stop doing shadow lookups. Queued lookups are discarded.
+     */
+    public void shutdown() {
+    	executor.shutdownNow();
+    }
+
+    /**
+     * Stop doing shadow lookups to free memory for more important uses. The results so far remain in the report.
+     */
+    public void disable() {
+    	if (!disabled) {
+    		disabled = true;
+    		logger.warning("Shadow index evaluation disabled to free memory");
+    	}
+    	shutdown();
+    }
+
+    /**
+     * @param index An index
+     * @return A short description of the index type and search strategy, for reports
+     */
+    private static String describe(Index index) {
+    	String name = index.getClass().getSimpleName();
+    	if (index instanceof LuceneIndexSearcher) {
+    		name += " (" + ((LuceneIndexSearcher)index).getSearchStrategy() + ")";
+    	}
+    	return name;
+    }
+
+    private static String formatAverageMillis(long nanos, long count) {
+    	return count == 0 ? "-" : String.format("%.3f", (double)nanos/count/1000000d);
+    }
+
+    public String report() {
+    	long compared = comparedNumber.get();
+        StringBuilder ret = new StringBuilder();
+        ret.append("Shadow index evaluation:" + (disabled ? " (disabled to free memory)" : "") + "\n");
+        ret.append("  Primary:           " + describe(primary) + "\n");
+        ret.append("  Shadow:            " + describe(shadow) + "\n");
+        ret.append("  Shadow lookups:    " + submittedNumber + "\n");
+        ret.append("  Dropped (busy):    " + droppedNumber + "\n");
+        ret.append("  Errors:            " + errorNumber + "\n");
+        ret.append("  Queued:            " + executor.getQueue().size() + "\n");
+        ret.append("  Compared:          " + compared + "\n");
+        ret.append("  Agreement:         " + agreedNumber + " " +
+        		DeDuplicator.getPercentage(agreedNumber.get(), compared) + "\n");
+        ret.append("  Primary only hits: " + primaryOnlyNumber + "\n");
+        ret.append("  Shadow only hits:  " + shadowOnlyNumber + "\n");
+        ret.append("  Different target:  " + differentTargetNumber + "\n");
+        ret.append("  Primary bytes:     " + primaryBytes + " (" +
+        		ArchiveUtils.formatBytesForDisplay(primaryBytes.get()) + ")\n");
+        ret.append("  Shadow bytes:      " + shadowBytes + " (" +
+        		ArchiveUtils.formatBytesForDisplay(shadowBytes.get()) + ")\n");
+        long extra = shadowBytes.get() - primaryBytes.get();
+        ret.append("  Shadow extra bytes: " + extra + " (" +
+        		(extra < 0 ? "-" : "") + ArchiveUtils.formatBytesForDisplay(Math.abs(extra)) + ")\n");
+        ret.append("  Primary avg lookup: " + formatAverageMillis(primaryDuration.get(), compared) + " ms\n");
+        ret.append("  Shadow avg lookup:  " + formatAverageMillis(shadowDuration.get(), compared) + " ms\n");
+        ret.append("  Shadow max lookup:  " + String.format("%.3f", shadowMaxDuration.get()/1000000d) + " ms\n");
+        ret.append("\n");
+        ret.append("Shadow index:\n");
+        ret.append(shadow.getInfo());
+        return ret.toString();
+    }
+}
@@ -0,0 +1,582 @@
+package is.landsbokasafn.deduplicator.heritrix;
+
+import static is.landsbokasafn.deduplicator.IndexFields.DIGEST;
+import static is.landsbokasafn.deduplicator.IndexFields.URL;
+import static is.landsbokasafn.deduplicator.IndexFields.URL_CANONICALIZED;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.util.Bits;
+import org.archive.util.ArchiveUtils;
+import org.archive.util.BloomFilter64bit;
+
+import is.landsbokasafn.deduplicator.IndexPartitions;
+import is.landsbokasafn.deduplicator.heritrix.MemoryBudget.Priority;
+import is.landsbokasafn.deduplicator.heritrix.MemoryBudget.Reservation;
+
+/**
+ * An open Lucene index, along with its bloom filter (if any), that may be shared by any number of
+ * {@link LuceneIndexSearcher}s in the same JVM. Instances are obtained from, and must be returned to, the
+ * {@link SharedIndexRegistry}.
+ * <p>
+ * The index is opened and warmed up (bloom filter populated) in the background, moving through the
+ * {@link IndexState}s.
+ * <p>
+ * The index location may be a single index or a directory of partitions (see {@link IndexPartitions}). Partitions
+ * are opened together as one logical index.
+ * <p>
+ * If a {@link MemoryBudget} is given, memory for the bloom filter is reserved from it. If the budget is tight, a
+ * smaller filter (with a higher false positive rate) is built, or none at all.
+ */
+public class SharedIndex {
+    private static Logger logger = Logger.getLogger(SharedIndex.class.getName());
+
+    private static final int BLOOM_HASHES = 22;
+    // Fewer hash functions than this give a false positive rate too high for a bloom filter to be worth its memory
+    private static final int MIN_BLOOM_HASHES = 4;
+
+    private final String key;
+    private final String indexLocation;
+    private final boolean useBloomFilter;
+
+    /** Number of searchers using this index. Guarded by the SharedIndexRegistry. **/
+    int references = 0;
+
+    private volatile IndexSearcher searcher = null;
+    private volatile IndexReader dReader = null;
+    private long indexVersion = -1;
+    private int partitionCount = 0;
+
+    private boolean urlIndexed = false;  // Is the URL field indexed
+    private boolean digestIndexed = false; // Is the Digest field indexed
+    private boolean canoncialAvailable = false; // Is the URL_Canonicalized field present. Indexed if URL is.
+    private int numDocs = -1;
+
+    private volatile IndexState state = IndexState.OPENING;
+    private boolean loadingStarted = false;
+    private volatile boolean closed = false;
+    private final CountDownLatch openLatch = new CountDownLatch(1); // Released on WARMING or FAILED
+    private final CountDownLatch readyLatch = new CountDownLatch(1); // Released on READY or FAILED
+    private final AtomicInteger warmedDocs = new AtomicInteger(); // Documents processed while WARMING
+    private Exception failure = null;
+
+	private volatile BloomFilter64bit bf = null;
+	private volatile boolean bloomReady = false; // Has the bloom filter been fully populated
+	private volatile boolean bloomBuildCancelled = false;
+	private volatile boolean bloomDisabled = false; // Not built, or dropped, due to the memory budget
+
+	private MemoryBudget memoryBudget = null;
+	private Reservation bloomReservation = null; // Guarded by this
+
+	// A bloom filter saved in a checkpoint that may be used instead of building one
+	private File offeredBloomFile = null;
+	private long offeredIndexVersion;
+	private int offeredMaxDoc;
+
+	SharedIndex(String key, String indexLocation, boolean useBloomFilter) {
+		this.key = key;
+		this.indexLocation = indexLocation;
+		this.useBloomFilter = useBloomFilter;
+	}
+
+	String getKey() {
+		return key;
+	}
+
+	public String getIndexLocation() {
+		return indexLocation;
+	}
+
+	public boolean getUseBloomFilter() {
+		return useBloomFilter;
+	}
+
+	/**
+	 * Start opening and warming up the index, unless that has already been started by another user of this index.
+	 * @see #load(boolean, MemoryBudget)
+	 */
+	public void load(boolean asynchronously) {
+		load(asynchronously, null);
+	}
+
+	/**
+	 * Start opening and warming up the index, unless that has already been started by another user of this index.
+	 * @param asynchronously If true, the index is opened in the background. If false, the index is opened before this
+	 *        method returns (or, if already being opened in the background, this method waits for that to finish).
+	 *        Warming up always happens in the background.
+	 * @param budget The memory budget to reserve the bloom filter from. May be null. Ignored if loading has already
+	 *        been started by another user of this index.
+	 * @throws IllegalArgumentException if opening synchronously and the index can not be opened
+	 */
+	public void load(boolean asynchronously, MemoryBudget budget) {
+		boolean openHere = false;
+		synchronized (this) {
+			if (!loadingStarted) {
+				loadingStarted = true;
+				memoryBudget = budget;
+				openHere = !asynchronously;
+				if (asynchronously) {
+					startBackgroundThread(new Runnable() {
+						@Override
+						public void run() {
+							if (open()) {
+								warm();
+							}
+						}
+					});
+				}
+			}
+		}
+		if (openHere) {
+			if (open()) {
+				startBackgroundThread(new Runnable() {
+					@Override
+					public void run() {
+						warm();
+					}
+				});
+			}
+		} else if (!asynchronously) {
+			try {
+				openLatch.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (!asynchronously && state == IndexState.FAILED) {
+			throw new IllegalArgumentException("Unable to find/open index at " + indexLocation, failure);
+		}
+	}
+
+	private void startBackgroundThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "DeDuplicator index loader (" + indexLocation + ")");
+        thread.setDaemon(true);
+        thread.start();
+	}
+
+	/**
+	 * Open and inspect the index, moving to the {@link IndexState#WARMING} state.
+	 * @return true if successful, false if the index failed to open
+	 */
+	private boolean open() {
+		long start = System.nanoTime();
+		try {
+            dReader = IndexPartitions.open(new File(indexLocation));
+            indexVersion = IndexPartitions.getVersion(dReader);
+            partitionCount = dReader instanceof DirectoryReader ? 1 : dReader.getContext().children().size();
+            searcher = new IndexSearcher(dReader);
+	    	inspectIndex();
+		} catch (Exception e) {
+			fail(e);
+			return false;
+		}
+		synchronized (this) {
+			if (closed) {
+				// Released while we were opening
+				closeReader();
+				return false;
+			}
+			state = IndexState.WARMING;
+		}
+		openLatch.countDown();
+        logger.info("Index at " + indexLocation + " opened in " +
+        		ArchiveUtils.formatMillisecondsToConventional((System.nanoTime()-start)/1000000));
+		return true;
+	}
+
+	/**
+	 * Populate in-memory structures, moving to the {@link IndexState#READY} state.
+	 */
+	private void warm() {
+		try {
+			if (useBloomFilter) {
+				if (!restoreBloomFilter()) {
+					buildBloomFilter();
+				}
+			}
+		} catch (RuntimeException e) {
+			fail(e);
+			return;
+		}
+		if (closed) {
+			return;
+		}
+		state = IndexState.READY;
+		readyLatch.countDown();
+		logger.info("Index at " + indexLocation + " is ready");
+	}
+
+	private void fail(Exception e) {
+		logger.log(Level.SEVERE, "Unable to make index at " + indexLocation + " ready. " +
+				"Lookups will fail.", e);
+		failure = e;
+		state = IndexState.FAILED;
+		openLatch.countDown();
+		readyLatch.countDown();
+	}
+
+    private void inspectIndex() {
+    	// Determine index makeup
+        urlIndexed = isFieldIndexed(URL.name());
+        digestIndexed = isFieldIndexed(DIGEST.name());
+        if (!digestIndexed) {
+        	throw new IllegalStateException("DIGEST fields must be indexed.");
+        }
+        try {
+            boolean canonicalIndexed = isFieldIndexed(URL_CANONICALIZED.name());
+            if (canonicalIndexed==urlIndexed) {
+            	canoncialAvailable=true;
+            } else {
+            	logger.severe("URL_CANONICALIZED and URL fields disagree on indexing. "
+            			+ "Either both must be indexed or neither. Proceeding as if URL_CANONICALIZED "
+            			+ "was not available.");
+            }
+        } catch (NullPointerException e) {
+        	canoncialAvailable=false;
+        }
+        numDocs = dReader.numDocs();
+    }
+
+    private boolean isFieldIndexed(String field) {
+        for (AtomicReaderContext rc : dReader.leaves()) {
+	        AtomicReader ar = rc.reader();
+	        FieldInfos fis = ar.getFieldInfos();
+	        if (!fis.fieldInfo(field).isIndexed()) {
+	        	// All leaves must agree for us to return true
+	        	return false;
+	        }
+        }
+    	return true;
+    }
+
+	private void buildBloomFilter() {
+		try {
+			BloomFilter64bit filter;
+			int n = Math.max(dReader.maxDoc(), 1);
+			int hashes = BLOOM_HASHES;
+			Reservation reservation = null;
+			if (memoryBudget != null) {
+				// Reserve outside our lock, the budget may call back to drop the filter
+				reservation = memoryBudget.reserve("Bloom filter (" + indexLocation + ")", Priority.HIGH,
+						bloomFilterBytes(n, BLOOM_HASHES), bloomFilterBytes(n, MIN_BLOOM_HASHES), bloomShrinker);
+				if (reservation == null) {
+					bloomDisabled = true;
+					logger.warning("Not enough memory in budget for a bloom filter for index at " + indexLocation);
+					return;
+				}
+				// Use as many hash functions as the granted memory allows. Optimal for the number of documents.
+				hashes = (int)Math.max(1, Math.min(BLOOM_HASHES, reservation.getBytes() * 8 * Math.log(2) / n));
+			}
+			synchronized (this) {
+				if (bloomBuildCancelled) {
+					// Already restored from a checkpoint
+					if (reservation != null) {
+						reservation.release();
+					}
+					return;
+				}
+				setBloomReservation(reservation);
+				filter = new BloomFilter64bit(n, hashes);
+				bf = filter;
+			}
+	        Bits liveDocs = MultiFields.getLiveDocs(dReader);
+	        long start = System.nanoTime();
+	        int i=0;
+	        for ( ; i<dReader.maxDoc() ; i++) {
+	        	if (bloomBuildCancelled) {
+	        		// Replaced by a filter restored from a checkpoint, or index closed
+	        		return;
+	        	}
+	        	warmedDocs.set(i);
+	            if (liveDocs != null && !liveDocs.get(i))
+	                continue;
+
+	            Document doc = dReader.document(i);
+	            filter.add(doc.get(DIGEST.name()));
+	        }
+	        warmedDocs.set(i);
+	        bloomReady = true;
+	        logger.info("BloomFilter ready. Read " + i + " documents in " +
+	        		ArchiveUtils.formatMillisecondsToConventional((System.nanoTime()-start)/1000000));
+		} catch (IOException e) {
+			throw new IllegalStateException("Error building bloom filter for index " + indexLocation, e);
+		}
+	}
+
+	/**
+	 * @return Approximate size, in bytes, of a bloom filter for n elements using the given number of hash functions
+	 */
+	private static long bloomFilterBytes(long n, int hashes) {
+		return (long)Math.ceil(n * hashes / Math.log(2)) / 8;
+	}
+
+	/**
+	 * Replace the memory reservation for the bloom filter, releasing any previous reservation.
+	 */
+	private synchronized void setBloomReservation(Reservation reservation) {
+		if (bloomReservation != null && bloomReservation != reservation) {
+			bloomReservation.release();
+		}
+		bloomReservation = reservation;
+	}
+
+	/**
+	 * A bloom filter can't be made smaller once built, only dropped. Lookups then go straight to the index.
+	 * Must not synchronize on this, as the budget is locked while this is invoked.
+	 */
+	private final MemoryBudget.Shrinkable bloomShrinker = new MemoryBudget.Shrinkable() {
+		@Override
+		public long shrink(Reservation reservation, long bytes) {
+			bloomBuildCancelled = true;
+			bloomReady = false;
+			bf = null;
+			bloomDisabled = true;
+			logger.warning("Dropped bloom filter for index at " + indexLocation + " to free memory");
+			return reservation.getBytes();
+		}
+	};
+
+	/**
+	 * Offer a bloom filter, saved in a checkpoint, to use instead of building one. It will be used only if the
+	 * index is unchanged since the filter was saved and no complete filter is already available.
+	 * @param bloomFile The file containing the serialized bloom filter
+	 * @param indexVersion The version of the index that the filter was built from
+	 * @param maxDoc The maxDoc of the index that the filter was built from
+	 */
+	public void offerBloomFilter(File bloomFile, long indexVersion, int maxDoc) {
+		synchronized (this) {
+			if (!useBloomFilter || bloomReady || offeredBloomFile != null) {
+				return;
+			}
+			offeredBloomFile = bloomFile;
+			offeredIndexVersion = indexVersion;
+			offeredMaxDoc = maxDoc;
+		}
+		if (state == IndexState.WARMING) {
+			// Bloom filter is being built. Replace it, if possible. Otherwise warm() will pick it up once the
+			// index is open
+			restoreBloomFilter();
+		}
+	}
+
+	/**
+	 * Restore the bloom filter from a file offered via {@link #offerBloomFilter(File, long, int)}, if it matches
+	 * the current index. Requires that the index be open. If a bloom filter is being built, that is cancelled.
+	 * @return true if the bloom filter was restored
+	 */
+	private boolean restoreBloomFilter() {
+		File bloomFile;
+		synchronized (this) {
+			bloomFile = offeredBloomFile;
+			if (bloomFile == null || bloomReady) {
+				return false;
+			}
+			offeredBloomFile = null;
+			if (offeredIndexVersion != indexVersion || offeredMaxDoc != dReader.maxDoc()) {
+				logger.info("Index at " + indexLocation + " has changed since the bloom filter in " +
+						bloomFile.getAbsolutePath() + " was saved. Rebuilding bloom filter.");
+				return false;
+			}
+		}
+		Reservation reservation = null;
+		if (memoryBudget != null) {
+			// Reserve outside our lock, the budget may call back to drop the filter.
+			// The serialized filter is about the size of the filter in memory.
+			reservation = memoryBudget.reserve("Bloom filter (" + indexLocation + ")", Priority.HIGH,
+					bloomFile.length(), bloomFile.length(), bloomShrinker);
+			if (reservation == null) {
+				logger.warning("Not enough memory in budget to restore the bloom filter in " +
+						bloomFile.getAbsolutePath());
+				return false;
+			}
+		}
+		BloomFilter64bit restored;
+		try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(bloomFile)))) {
+			restored = (BloomFilter64bit)in.readObject();
+		} catch (IOException | ClassNotFoundException e) {
+			if (reservation != null) {
+				reservation.release();
+			}
+			logger.log(Level.WARNING, "Unable to restore bloom filter from " + bloomFile.getAbsolutePath() +
+					". Rebuilding it.", e);
+			return false;
+		}
+		synchronized (this) {
+			if (bloomReady || closed) {
+				// Built in the meantime, or no longer needed
+				if (reservation != null) {
+					reservation.release();
+				}
+				return false;
+			}
+			bloomBuildCancelled = true;
+			setBloomReservation(reservation);
+			bf = restored;
+			bloomReady = true;
+			bloomDisabled = false;
+		}
+		logger.info("BloomFilter restored from " + bloomFile.getAbsolutePath());
+		return true;
+	}
+
+	/**
+	 * Wait until the index is ready (or has failed).
+	 * @return true if the index is ready, false if it failed or the thread was interrupted.
+	 */
+	public boolean awaitReady() {
+		try {
+			readyLatch.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		return state == IndexState.READY;
+	}
+
+	/**
+	 * @return The exception that caused the index to fail, if it is {@link IndexState#FAILED}
+	 */
+	public Exception getFailure() {
+		return failure;
+	}
+
+	public IndexState getState() {
+		return state;
+	}
+
+	/**
+	 * @return Progress towards {@link IndexState#READY}, as a percentage.
+	 */
+	public double getReadinessProgress() {
+		switch (state) {
+		case READY:
+			return 100d;
+		case WARMING:
+			if (!useBloomFilter || bloomReady) {
+				return 100d;
+			}
+			int maxDoc = dReader.maxDoc();
+			return maxDoc == 0 ? 100d : 100d * warmedDocs.get() / maxDoc;
+		default:
+			return 0d;
+		}
+	}
+
+	/**
+	 * @return The searcher. Only available once the index is open (i.e. has reached {@link IndexState#WARMING}).
+	 */
+	public IndexSearcher getSearcher() {
+		return searcher;
+	}
+
+	/**
+	 * @return The reader. Only available once the index is open (i.e. has reached {@link IndexState#WARMING}).
+	 */
+	public IndexReader getReader() {
+		return dReader;
+	}
+
+	/**
+	 * @return A version number that changes whenever the index (or any of its partitions) changes. Only available
+	 *         once the index is open.
+	 */
+	public long getIndexVersion() {
+		return indexVersion;
+	}
+
+	/**
+	 * @return The bloom filter, if one is used and it has been fully populated. Otherwise null.
+	 */
+	public BloomFilter64bit getBloomFilter() {
+		return bloomReady ? bf : null;
+	}
+
+	/**
+	 * @return The bloom filter, if one is used, even if it is still being populated. Otherwise null.
+	 */
+	BloomFilter64bit getBloomFilterInProgress() {
+		return bf;
+	}
+
+	int getWarmedDocs() {
+		return warmedDocs.get();
+	}
+
+	/**
+	 * @return true if a bloom filter was wanted, but not built or dropped, because of the memory budget
+	 */
+	public boolean isBloomFilterDisabled() {
+		return bloomDisabled;
+	}
+
+	public boolean isUrlIndexed() {
+		return urlIndexed;
+	}
+
+	public boolean isDigestIndexed() {
+		return digestIndexed;
+	}
+
+	public boolean isCanonicalAvailable() {
+		return canoncialAvailable;
+	}
+
+	public int getNumDocs() {
+		return numDocs;
+	}
+
+	/**
+	 * @return The number of partitions in the index. 1 for an unpartitioned index, 0 until the index is open.
+	 */
+	public int getPartitionCount() {
+		return partitionCount;
+	}
+
+	/**
+	 * @return The number of searchers currently using this index.
+	 */
+	public int getReferences() {
+		synchronized (SharedIndexRegistry.class) {
+			return references;
+		}
+	}
+
+	/**
+	 * Close the index. Invoked by the {@link SharedIndexRegistry} when the last user releases it.
+	 */
+	void close() {
+		bloomBuildCancelled = true;
+		synchronized (this) {
+			closed = true;
+			closeReader();
+			setBloomReservation(null);
+		}
+		readyLatch.countDown();
+	}
+
+	private void closeReader() {
+		try {
+			if (dReader != null) {
+				dReader.close();
+			}
+		} catch (IOException e) {
+			logger.log(Level.SEVERE,"Error closing index",e);
+		}
+	}
+}
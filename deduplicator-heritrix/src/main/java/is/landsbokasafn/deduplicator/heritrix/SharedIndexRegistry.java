@@ -0,0 +1,87 @@
+package is.landsbokasafn.deduplicator.heritrix;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * JVM wide registry of {@link SharedIndex}es. Allows multiple crawl jobs, running in the same Heritrix instance and
+ * using the same index, to share a single reader and bloom filter rather than each keeping a copy in memory.
+ * <p>
+ * Indexes are keyed on their canonical location and on whether a bloom filter is used. An index is opened when first
+ * acquired and closed when the last user releases it.
+ */
+public class SharedIndexRegistry {
+    private static Logger logger = Logger.getLogger(SharedIndexRegistry.class.getName());
+
+    private static final Map<String, SharedIndex> indexes = new HashMap<String, SharedIndex>();
+
+    private SharedIndexRegistry() {
+    	// Static use only
+    }
+
+    /**
+     * Get the shared index for the given location and settings, creating it if no one else is using it. Each call
+     * must be matched by a call to {@link #release(SharedIndex)}. An index that has {@link IndexState#FAILED} is not
+     * shared, so that the index can be opened again once it has been repaired.
+     * @param indexLocation The location of the index in the filesystem
+     * @param useBloomFilter Whether a bloom filter should be built for the index
+     * @return The shared index. Loading it is left to the caller, see {@link SharedIndex#load(boolean)}.
+     */
+    public static synchronized SharedIndex acquire(String indexLocation, boolean useBloomFilter) {
+    	String key = getKey(indexLocation, useBloomFilter);
+    	SharedIndex index = indexes.get(key);
+    	if (index != null && index.getState() == IndexState.FAILED) {
+    		// Left to its current users, who will release it
+    		logger.info("Not sharing index at " + indexLocation + ", as it failed to open. Opening it again.");
+    		indexes.remove(key);
+    		index = null;
+    	}
+    	if (index == null) {
+    		index = new SharedIndex(key, indexLocation, useBloomFilter);
+    		indexes.put(key, index);
+    	} else {
+    		logger.info("Sharing index at " + indexLocation + " with " + index.references + " other user(s)");
+    	}
+    	index.references++;
+    	return index;
+    }
+
+    /**
+     * Release a shared index. It is closed if this was the last user.
+     * @param index The index to release
+     */
+    public static synchronized void release(SharedIndex index) {
+    	if (index.references <= 0) {
+    		throw new IllegalStateException("Index at " + index.getIndexLocation() + " has already been released");
+    	}
+    	index.references--;
+    	if (index.references == 0) {
+    		if (indexes.get(index.getKey()) == index) {
+    			indexes.remove(index.getKey());
+    		}
+    		index.close();
+    		logger.info("Closed index at " + index.getIndexLocation());
+    	}
+    }
+
+    /**
+     * @return The number of distinct indexes currently open
+     */
+    public static synchronized int size() {
+    	return indexes.size();
+    }
+
+    private static String getKey(String indexLocation, boolean useBloomFilter) {
+    	File location = new File(indexLocation);
+    	String path;
+    	try {
+    		path = location.getCanonicalPath();
+    	} catch (IOException e) {
+    		path = location.getAbsolutePath();
+    	}
+    	return path + (useBloomFilter ? "|bloom" : "|nobloom");
+    }
+}
@@ -0,0 +1,184 @@
+package is.landsbokasafn.deduplicator.heritrix;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.FileHandler;
+import java.util.logging.Formatter;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import org.archive.util.ArchiveUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Writes a line for each index lookup that takes longer than a threshold to a separate log, along with what is known
+ * about the lookup from its {@link LookupTrace}.
+ * <p>
+ * Each line is a timestamp followed by a JSON object with the fields <code>took</code> (milliseconds),
+ * <code>thread</code>, <code>index</code>, <code>strategy</code>, <code>url</code>, <code>digest</code>,
+ * <code>duplicate</code>, <code>segments</code>, <code>bloom</code> (<code>passed</code>, <code>rejected</code> or
+ * absent if not consulted) and <code>phases</code> (milliseconds spent in each phase of the lookup). Fields the index
+ * did not report are omitted.
+ * <p>
+ * At most a set number of lines are written per minute, so that a stalled disk, which makes every lookup slow, does
+ * not flood the log. Lines that are dropped are counted and the count is included (as <code>suppressed</code>) in the
+ * next line written.
+ */
+public class SlowLookupLog {
+    private static Logger logger = Logger.getLogger(SlowLookupLog.class.getName());
+
+	private static final long MINUTE = 60 * 1000000000L;
+
+	private final Logger log;
+	private final Handler handler;
+	private final long thresholdNanos;
+	private final int maxPerMinute;
+
+	private final AtomicLong slowLookups = new AtomicLong();
+	private final AtomicLong suppressedTotal = new AtomicLong();
+
+	// Rate limiting state, guarded by this
+	private long windowStart = 0;
+	private int windowCount = 0;
+	private long suppressed = 0;
+
+	/**
+	 * @param file File to write to. If null, lines are logged as warnings to this class's logger instead.
+	 * @param thresholdMillis Lookups taking longer than this are logged
+	 * @param maxPerMinute Maximum number of lines written per minute
+	 */
+	public SlowLookupLog(File file, long thresholdMillis, int maxPerMinute) {
+		this.thresholdNanos = thresholdMillis * 1000000L;
+		this.maxPerMinute = maxPerMinute;
+		Handler fileHandler = null;
+		if (file != null) {
+			try {
+				file.getParentFile().mkdirs();
+				fileHandler = new FileHandler(file.getAbsolutePath(), true);
+				fileHandler.setFormatter(new Formatter() {
+					@Override
+					public String format(LogRecord record) {
+						return ArchiveUtils.getLog17Date(record.getMillis()) + " " + record.getMessage() + "\n";
+					}
+				});
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Unable to open slow lookup log " + file.getPath() +
+						". Logging slow lookups to " + logger.getName() + " instead.", e);
+			}
+		}
+		handler = fileHandler;
+		if (handler != null) {
+			log = Logger.getAnonymousLogger();
+			log.setUseParentHandlers(false);
+			log.addHandler(handler);
+			log.setLevel(Level.INFO);
+		} else {
+			log = logger;
+		}
+	}
+
+	/**
+	 * Log a lookup, if it was slow and the rate limit allows.
+	 * @param trace What the index reported about the lookup, may be null
+	 * @param tookNanos How long the lookup took
+	 * @param index The index the lookup was made against
+	 * @param url The URL looked up
+	 * @param digest The digest looked up
+	 * @param duplicate Was the URL found to be a duplicate
+	 */
+	public void offer(LookupTrace trace, long tookNanos, Index index, String url, String digest, boolean duplicate) {
+		if (tookNanos <= thresholdNanos) {
+			return;
+		}
+		slowLookups.incrementAndGet();
+		long suppressedBefore = admit();
+		if (suppressedBefore < 0) {
+			suppressedTotal.incrementAndGet();
+			return;
+		}
+		try {
+			JSONObject line = new JSONObject();
+			line.put("took", toMillis(tookNanos));
+			line.put("thread", Thread.currentThread().getName());
+			line.put("index", index.getClass().getSimpleName());
+			if (trace != null && trace.getStrategy() != null) {
+				line.put("strategy", trace.getStrategy());
+			}
+			line.put("url", url);
+			line.put("digest", digest);
+			line.put("duplicate", duplicate);
+			if (trace != null) {
+				if (trace.getSegments() >= 0) {
+					line.put("segments", trace.getSegments());
+				}
+				if (trace.isBloomConsulted()) {
+					line.put("bloom", trace.isBloomRejected() ? "rejected" : "passed");
+				}
+				if (!trace.getPhases().isEmpty()) {
+					JSONObject phases = new JSONObject();
+					for (Map.Entry<String, Long> phase : trace.getPhases().entrySet()) {
+						phases.put(phase.getKey(), toMillis(phase.getValue()));
+					}
+					line.put("phases", phases);
+				}
+			}
+			if (suppressedBefore > 0) {
+				line.put("suppressed", suppressedBefore);
+			}
+			log.log(handler != null ? Level.INFO : Level.WARNING, line.toString());
+		} catch (JSONException e) {
+			// Only happens on non-finite numbers, which we don't have
+			logger.log(Level.FINE, "Unable to log slow lookup of " + url, e);
+		}
+	}
+
+	/**
+	 * Apply the rate limit.
+	 * @return -1 if the line should be dropped, otherwise the number of lines dropped since the last one written
+	 */
+	private synchronized long admit() {
+		long now = System.nanoTime();
+		if (windowCount == 0 || now - windowStart >= MINUTE) {
+			windowStart = now;
+			windowCount = 0;
+		}
+		if (windowCount >= maxPerMinute) {
+			suppressed++;
+			return -1;
+		}
+		windowCount++;
+		long dropped = suppressed;
+		suppressed = 0;
+		return dropped;
+	}
+
+	private static double toMillis(long nanos) {
+		return Math.round(nanos / 1000d) / 1000d;
+	}
+
+	/**
+	 * @return Number of lookups that took longer than the threshold
+	 */
+	public long getSlowLookups() {
+		return slowLookups.get();
+	}
+
+	/**
+	 * @return Number of slow lookups that were not logged due to the rate limit
+	 */
+	public long getSuppressed() {
+		return suppressedTotal.get();
+	}
+
+	public void close() {
+		if (handler != null) {
+			log.removeHandler(handler);
+			handler.close();
+		}
+	}
+}
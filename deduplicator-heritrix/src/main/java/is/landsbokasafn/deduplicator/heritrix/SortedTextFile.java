@@ -0,0 +1,155 @@
+package is.landsbokasafn.deduplicator.heritrix;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A read only, memory mapped, text file whose lines are sorted on their first (space delimited) field in byte order
+ * (i.e. as sorted by <code>LC_ALL=C sort</code>). Supports binary search on that field.
+ * <p>
+ * Files larger than 2GB are mapped in several chunks. Mapping a file shares the operating system's page cache with
+ * any other process reading it, such as a wayback instance serving the same CDX files.
+ * <p>
+ * Instances are safe for use by multiple threads.
+ */
+public class SortedTextFile implements Closeable {
+
+	private static final long CHUNK_SIZE = 1L << 30;
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final MappedByteBuffer[] chunks;
+	private final long size;
+
+	public SortedTextFile(File file) throws IOException {
+		this.file = file;
+		raf = new RandomAccessFile(file, "r");
+		try {
+			size = raf.length();
+			FileChannel channel = raf.getChannel();
+			int chunkCount = (int)((size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+			chunks = new MappedByteBuffer[chunkCount];
+			for (int i = 0; i < chunkCount; i++) {
+				long start = i * CHUNK_SIZE;
+				chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(CHUNK_SIZE, size - start));
+			}
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public long size() {
+		return size;
+	}
+
+	private byte get(long pos) {
+		// Absolute gets do not modify the buffer, so this is thread safe
+		return chunks[(int)(pos / CHUNK_SIZE)].get((int)(pos % CHUNK_SIZE));
+	}
+
+	/**
+	 * @return The position of the first line that starts at or after pos. {@link #size()} if there is none.
+	 */
+	private long lineStartAtOrAfter(long pos) {
+		if (pos == 0) {
+			return 0;
+		}
+		for (long p = pos - 1; p < size; p++) {
+			if (get(p) == '\n') {
+				return p + 1;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Compare the first field of the line at pos to the key, in unsigned byte order.
+	 */
+	private int compareKey(long pos, byte[] key) {
+		int i = 0;
+		for (long p = pos; ; p++, i++) {
+			int b = (p < size) ? get(p) & 0xff : '\n';
+			boolean lineKeyEnded = b == ' ' || b == '\n' || b == '\r';
+			if (i == key.length) {
+				return lineKeyEnded ? 0 : 1;
+			}
+			if (lineKeyEnded) {
+				return -1;
+			}
+			int k = key[i] & 0xff;
+			if (b != k) {
+				return b - k;
+			}
+		}
+	}
+
+	/**
+	 * Find the first line whose first field is equal to or greater than the key.
+	 * @param key The key to search for
+	 * @return The position of the line, or {@link #size()} if all lines are less than the key
+	 */
+	public long findFirst(String key) {
+		byte[] k = key.getBytes(StandardCharsets.UTF_8);
+		long lo = 0;
+		long hi = size;
+		while (lo < hi) {
+			long mid = (lo + hi) >>> 1;
+			long lineStart = lineStartAtOrAfter(mid);
+			if (lineStart < size && compareKey(lineStart, k) < 0) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lineStartAtOrAfter(lo);
+	}
+
+	/**
+	 * @return true if the line at pos exists and its first field is equal to the key
+	 */
+	public boolean keyEquals(long pos, String key) {
+		return pos < size && compareKey(pos, key.getBytes(StandardCharsets.UTF_8)) == 0;
+	}
+
+	/**
+	 * @return The line at pos, without line terminator. Null if pos is at or past the end of the file.
+	 */
+	public String readLine(long pos) {
+		if (pos >= size) {
+			return null;
+		}
+		ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+		for (long p = pos; p < size; p++) {
+			byte b = get(p);
+			if (b == '\n') {
+				break;
+			}
+			line.write(b);
+		}
+		String s = new String(line.toByteArray(), StandardCharsets.UTF_8);
+		return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
+	}
+
+	/**
+	 * @return The position of the line following the one at pos
+	 */
+	public long nextLine(long pos) {
+		return lineStartAtOrAfter(pos + 1);
+	}
+
+	@Override
+	public void close() throws IOException {
+		raf.close();
+	}
+}
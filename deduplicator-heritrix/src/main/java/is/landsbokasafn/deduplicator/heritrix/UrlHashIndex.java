@@ -0,0 +1,206 @@
+package is.landsbokasafn.deduplicator.heritrix;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.archive.modules.revisit.IdenticalPayloadDigestRevisit;
+import org.archive.modules.revisit.ServerNotModifiedRevisit;
+import org.archive.util.ArchiveUtils;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import is.landsbokasafn.deduplicator.UrlHashTable;
+
+/**
+ * An {@link Index} backed by a memory mapped {@link UrlHashTable}, built from a DeDuplicator index by the indexer's
+ * <code>UrlHashTableBuilder</code>.
+ * <p>
+ * Only supports the {@link SearchStrategy#URL_EXACT} strategy, and only considers the latest capture of each URL.
+ * A lookup is a hash probe into the (off-heap) table, comparing the digest hash found there to that of the current
+ * capture. The record with the details of the capture is only read, and verified, on a match.
+ */
+public class UrlHashIndex implements Index, InitializingBean, DisposableBean {
+    private static Logger logger = Logger.getLogger(UrlHashIndex.class.getName());
+
+    // Record field positions, as written by UrlHashTableBuilder
+    private static final int RECORD_URL = 0;
+    private static final int RECORD_DIGEST = 1;
+    private static final int RECORD_DATE = 2;
+    private static final int RECORD_ETAG = 3;
+    private static final int RECORD_ID = 4;
+
+    private UrlHashTable table;
+    private RandomAccessFile recordsFile;
+    private FileChannel records;
+
+    // Statistics
+    private AtomicLong lookups = new AtomicLong();
+    private AtomicLong urlHits = new AtomicLong(); // URL found in table
+    private AtomicLong digestMatches = new AtomicLong(); // URL found with same digest
+    private AtomicLong falseMatches = new AtomicLong(); // Hashes matched, but record did not
+
+    private String indexLocation;
+    /**
+     * Set the location of the URL hash table directory in the filesystem. Changing this value after the bean has been
+     * initialized will have no effect.
+     * @param indexLocation The location of the table.
+     */
+    public void setIndexLocation(String indexLocation) {
+        this.indexLocation=indexLocation;
+    }
+    public String getIndexLocation() {
+        return indexLocation;
+    }
+
+    protected boolean useDigestScheme = false; // Is the digest algorithm part of the digest string
+    /**
+     * If true, it is assumed that the digest string, in the index, contains the hashing algorithm 'scheme' prefix.
+     * If false, it is assumed to not have that prefix and the scheme will be omitted when doing lookup.
+     * Must match the index the table was built from.
+     * @param useDigestScheme Whether or not the digest algorithm prefix is part of the digest strings in the index.
+     */
+	public void setUseDigestScheme(boolean useDigestScheme) {
+		this.useDigestScheme = useDigestScheme;
+	}
+	public boolean isUseDigestScheme() {
+		return useDigestScheme;
+	}
+
+	@Override
+	public void afterPropertiesSet() throws Exception {
+		File location = new File(indexLocation);
+		try {
+			table = UrlHashTable.open(location);
+			recordsFile = new RandomAccessFile(new File(location, UrlHashTable.RECORDS_FILE), "r");
+			records = recordsFile.getChannel();
+		} catch (IOException e) {
+			close();
+			throw new IllegalArgumentException("Unable to open URL hash table at " + indexLocation, e);
+		}
+		logger.info("Opened URL hash table at " + indexLocation + " with " + table.getEntries() + " URLs");
+	}
+
+	/**
+	 * @return The record for the latest capture of the URL, or null if the URL is not in the table.
+	 */
+	private String[] lookupRecord(String url, String digest) throws IOException {
+		long slot = table.findSlot(UrlHashTable.hash(url));
+		if (slot < 0 || table.getUrlHash(slot) == 0) {
+			return null;
+		}
+		urlHits.incrementAndGet();
+		if (digest != null && table.getDigestHash(slot) != UrlHashTable.hash(digest)) {
+			// Content has changed since the latest capture
+			return null;
+		}
+		String[] record = UrlHashTable.readRecord(records, table.getRecordPointer(slot));
+		if (!url.equals(record[RECORD_URL]) || (digest != null && !digest.equals(record[RECORD_DIGEST]))) {
+			falseMatches.incrementAndGet();
+			return null;
+		}
+		return record;
+	}
+
+	@Override
+	public IdenticalPayloadDigestRevisit lookup(String url, String canonicalizedUrl, String digest,
+			String digestWithScheme) {
+		lookups.incrementAndGet();
+		String queryDigest = useDigestScheme ? digestWithScheme : digest;
+		String[] record;
+		try {
+			record = lookupRecord(url, queryDigest);
+		} catch (IOException e) {
+			logger.log(Level.SEVERE, "Error accessing URL hash table.", e);
+			return null;
+		}
+		if (record == null) {
+			return null;
+		}
+		digestMatches.incrementAndGet();
+		IdenticalPayloadDigestRevisit duplicate = new IdenticalPayloadDigestRevisit(digestWithScheme);
+		duplicate.setRefersToTargetURI(record[RECORD_URL]);
+		duplicate.setRefersToDate(record[RECORD_DATE]);
+		if (record[RECORD_ID] != null) {
+			duplicate.setRefersToRecordID(record[RECORD_ID]);
+		}
+		return duplicate;
+	}
+
+	@Override
+	public ServerNotModifiedRevisit lookupLatestCapture(String url, String canonicalizedURL) {
+		String[] record;
+		try {
+			record = lookupRecord(url, null);
+		} catch (IOException e) {
+			logger.log(Level.SEVERE, "Error accessing URL hash table.", e);
+			return null;
+		}
+		if (record == null) {
+			return null;
+		}
+		ServerNotModifiedRevisit capture = new ServerNotModifiedRevisit();
+		capture.setRefersToTargetURI(record[RECORD_URL]);
+		capture.setRefersToDate(record[RECORD_DATE]);
+		capture.setETag(record[RECORD_ETAG]);
+		if (record[RECORD_ID] != null) {
+			capture.setRefersToRecordID(record[RECORD_ID]);
+		}
+		return capture;
+	}
+
+	public SearchStrategy getSearchStrategy() {
+		return SearchStrategy.URL_EXACT;
+	}
+
+	@Override
+	public String getInfo() {
+    	StringBuilder sb = new StringBuilder();
+    	sb.append(UrlHashIndex.class.getCanonicalName());
+    	sb.append("\n");
+    	sb.append(" Location: " + indexLocation);
+    	sb.append("\n");
+    	sb.append(" Search strategy: " + SearchStrategy.URL_EXACT + " (latest capture only)");
+    	sb.append("\n");
+    	sb.append(" Digest in index includes hashing algorithm: " + useDigestScheme);
+    	sb.append("\n");
+    	if (table != null) {
+    		sb.append(" URLs in table: " + table.getEntries() + " (capacity " + table.getCapacity() + ", " +
+    				ArchiveUtils.formatBytesForDisplay(table.getCapacity() * UrlHashTable.SLOT_SIZE) + ")");
+    		sb.append("\n");
+    	}
+    	sb.append(" Lookups: " + lookups);
+    	sb.append("\n");
+    	sb.append(" URL found: " + urlHits);
+    	sb.append("\n");
+    	sb.append(" Digest matched: " + digestMatches);
+    	sb.append("\n");
+    	if (falseMatches.get() > 0) {
+    		sb.append(" Hash collisions: " + falseMatches);
+    		sb.append("\n");
+    	}
+		return sb.toString();
+	}
+
+	@Override
+	public void destroy() {
+		close();
+	}
+
+	public void close() {
+		try {
+			if (recordsFile != null) {
+				recordsFile.close();
+			}
+			if (table != null) {
+				table.close();
+			}
+		} catch (IOException e) {
+			logger.log(Level.SEVERE,"Error closing URL hash table",e);
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package is.landsbokasafn.deduplicator.heritrix;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import junit.framework.TestCase;
+
+import org.archive.modules.revisit.IdenticalPayloadDigestRevisit;
+import org.archive.modules.revisit.ServerNotModifiedRevisit;
+
+public class CdxIndexTest extends TestCase {
+
+	// Sorted as by LC_ALL=C sort, on SURT keys as made by wayback and pywb
+	private static final String[] CDX = {
+		" CDX N b a m s k r M S V g",
+		"com,example)/ 20140301120000 http://example.com/ text/html 200 AAAA - - 1000 0 a.warc.gz",
+		"com,example)/ 20140401120000 http://example.com/ text/html 200 AAAA - - 1000 1000 a.warc.gz",
+		"com,example)/page.html 20140301120000 http://www.example.com/page.html text/html 200 BBBB - - 500 2000 "
+				+ "a.warc.gz",
+		"com,example)/page.html 20140501120000 http://www.example.com/page.html warc/revisit - BBBB - - 300 2500 "
+				+ "a.warc.gz",
+		"org,example)/ 20140301120000 http://example.org/ text/html 404 CCCC - - 100 3000 a.warc.gz",
+	};
+
+	private static final String[] CDXJ = {
+		"!meta {\"format\": \"cdxj-1.0\"}",
+		"com,example)/ 20140301120000 {\"url\": \"http://example.com/\", \"mime\": \"text/html\", \"status\": \"200\", "
+				+ "\"digest\": \"sha1:AAAA\"}",
+		"com,example)/page.html 20140301120000 {\"url\": \"http://www.example.com/page.html\", \"mime\": "
+				+ "\"text/html\", \"status\": \"200\", \"digest\": \"sha1:BBBB\"}",
+		"org,example)/ 20140301120000 {\"url\": \"http://example.org/\", \"mime\": \"text/html\", \"status\": \"200\", "
+				+ "\"digest\": \"sha1:CCCC\"}",
+	};
+
+	private File dir;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = Files.createTempDirectory("cdxindex").toFile();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	private CdxIndex open(String name, String[] lines) throws Exception {
+		File file = new File(dir, name);
+		Files.write(file.toPath(), Arrays.asList(lines), StandardCharsets.UTF_8);
+		CdxIndex index = new CdxIndex();
+		index.setCdxFiles(Collections.singletonList(file.getPath()));
+		index.afterPropertiesSet();
+		return index;
+	}
+
+	public void testCdxLookup() throws Exception {
+		CdxIndex index = open("index.cdx", CDX);
+		try {
+			IdenticalPayloadDigestRevisit duplicate = 
+					index.lookup("http://www.example.com/page.html", null, "BBBB", "sha1:BBBB");
+			assertNotNull(duplicate);
+			assertEquals("http://www.example.com/page.html", duplicate.getRefersToTargetURI());
+			// The later revisit is not a capture of the content
+			assertEquals("2014-03-01T12:00:00Z", duplicate.getRefersToDate());
+
+			duplicate = index.lookup("http://example.com/", null, "AAAA", "sha1:AAAA");
+			assertNotNull(duplicate);
+			assertEquals("2014-04-01T12:00:00Z", duplicate.getRefersToDate());
+
+			// Any URL with the same SURT key matches with URL_CANONICAL
+			assertNotNull(index.lookup("http://www.example.com/", null, "AAAA", "sha1:AAAA"));
+
+			assertNull(index.lookup("http://example.com/", null, "BBBB", "sha1:BBBB"));
+			assertNull(index.lookup("http://example.com/other.html", null, "AAAA", "sha1:AAAA"));
+			// Not a 200
+			assertNull(index.lookup("http://example.org/", null, "CCCC", "sha1:CCCC"));
+		} finally {
+			index.close();
+		}
+	}
+
+	public void testCdxUrlExactLookup() throws Exception {
+		CdxIndex index = open("index.cdx", CDX);
+		index.setSearchStrategy(SearchStrategy.URL_EXACT);
+		try {
+			assertNotNull(index.lookup("http://example.com/", null, "AAAA", "sha1:AAAA"));
+			assertNull(index.lookup("http://www.example.com/", null, "AAAA", "sha1:AAAA"));
+		} finally {
+			index.close();
+		}
+	}
+
+	public void testCdxjLookup() throws Exception {
+		CdxIndex index = open("index.cdxj", CDXJ);
+		try {
+			IdenticalPayloadDigestRevisit duplicate = 
+					index.lookup("http://www.example.com/page.html", null, "BBBB", "sha1:BBBB");
+			assertNotNull(duplicate);
+			assertEquals("http://www.example.com/page.html", duplicate.getRefersToTargetURI());
+			assertEquals("2014-03-01T12:00:00Z", duplicate.getRefersToDate());
+
+			assertNotNull(index.lookup("http://example.org/", null, "CCCC", "sha1:CCCC"));
+			assertNull(index.lookup("http://example.org/", null, "AAAA", "sha1:AAAA"));
+		} finally {
+			index.close();
+		}
+	}
+
+	public void testLookupLatestCapture() throws Exception {
+		CdxIndex index = open("index.cdx", CDX);
+		try {
+			ServerNotModifiedRevisit capture = index.lookupLatestCapture("http://example.com/", null);
+			assertNotNull(capture);
+			assertEquals("2014-04-01T12:00:00Z", capture.getRefersToDate());
+			assertNull(index.lookupLatestCapture("http://example.com/other.html", null));
+		} finally {
+			index.close();
+		}
+	}
+
+}
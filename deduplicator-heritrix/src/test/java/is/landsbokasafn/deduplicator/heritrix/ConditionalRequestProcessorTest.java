@@ -0,0 +1,155 @@
+/* Copyright (C) 2006-2014 National and University Library of Iceland (NULI)
+ * 
+ * This file is part of the DeDuplicator (Heritrix add-on module).
+ * 
+ *  NULI licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package is.landsbokasafn.deduplicator.heritrix;
+
+import static org.archive.modules.recrawl.RecrawlAttributeConstants.A_ETAG_HEADER;
+import static org.archive.modules.recrawl.RecrawlAttributeConstants.A_FETCH_HISTORY;
+import static org.archive.modules.recrawl.RecrawlAttributeConstants.A_LAST_MODIFIED_HEADER;
+import static org.archive.modules.recrawl.RecrawlAttributeConstants.A_STATUS;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.archive.modules.CrawlURI;
+import org.archive.modules.deciderules.RejectDecideRule;
+import org.archive.modules.revisit.IdenticalPayloadDigestRevisit;
+import org.archive.modules.revisit.ServerNotModifiedRevisit;
+import org.archive.net.UURIFactory;
+
+public class ConditionalRequestProcessorTest extends TestCase {
+
+    private static final String URL = "http://www.example.com/page.html";
+    private static final String DATE = "2014-03-01T12:00:00Z";
+    private static final String ETAG = "\"abc123\"";
+
+    private ConditionalRequestProcessor conditional;
+    private DeDuplicator deduplicator;
+
+    @Override
+    protected void setUp() throws Exception {
+        Index index = new Index() {
+            @Override
+            public IdenticalPayloadDigestRevisit lookup(String url, String canonicalizedURL, String digest,
+                    String digestWithScheme) {
+                return null;
+            }
+            @Override
+            public ServerNotModifiedRevisit lookupLatestCapture(String url, String canonicalizedURL) {
+                if (!URL.equals(url)) {
+                    return null;
+                }
+                ServerNotModifiedRevisit capture = new ServerNotModifiedRevisit();
+                capture.setRefersToTargetURI(URL);
+                capture.setRefersToDate(DATE);
+                capture.setETag(ETAG);
+                return capture;
+            }
+            @Override
+            public String getInfo() {
+                return "Test index";
+            }
+        };
+        conditional = new ConditionalRequestProcessor();
+        conditional.setIndex(index);
+        deduplicator = new DeDuplicator();
+        deduplicator.setIndex(index);
+    }
+
+    public void testConditionalRequestHistory() throws Exception {
+        CrawlURI curi = new CrawlURI(UURIFactory.getInstance(URL));
+        conditional.process(curi);
+
+        // The fetcher bases the conditional request on the latest entry in the fetch history
+        Map<String, Object>[] history = curi.getFetchHistory();
+        assertNotNull(history);
+        assertEquals(200, history[0].get(A_STATUS));
+        assertEquals(ETAG, history[0].get(A_ETAG_HEADER));
+        assertEquals("Sat, 01 Mar 2014 12:00:00 GMT", history[0].get(A_LAST_MODIFIED_HEADER));
+    }
+
+    public void testNotModifiedIsRevisit() throws Exception {
+        CrawlURI curi = new CrawlURI(UURIFactory.getInstance(URL));
+        conditional.process(curi);
+        curi.setFetchStatus(304);
+        deduplicator.process(curi);
+
+        assertTrue(curi.isRevisit());
+        ServerNotModifiedRevisit revisit = (ServerNotModifiedRevisit)curi.getRevisitProfile();
+        assertEquals(URL, revisit.getRefersToTargetURI());
+        assertEquals(DATE, revisit.getRefersToDate());
+        assertEquals(ETAG, revisit.getETag());
+        assertEquals("Sat, 01 Mar 2014 12:00:00 GMT", revisit.getLastModified());
+        assertEquals(1, deduplicator.notModifiedNumber.get());
+
+        // Nothing the ConditionalRequestProcessor added may be persisted
+        assertFalse(curi.getData().containsKey(A_FETCH_HISTORY));
+        assertFalse(curi.getData().containsKey(ConditionalRequestProcessor.A_CONDITIONAL_REFERS_TO_URI));
+        assertFalse(curi.getData().containsKey(ConditionalRequestProcessor.A_CONDITIONAL_ETAG));
+    }
+
+    public void testHistoryRemovedAfterFetchHistoryProcessor() throws Exception {
+        CrawlURI curi = new CrawlURI(UURIFactory.getInstance(URL));
+        conditional.process(curi);
+        curi.setFetchStatus(304);
+
+        // As the FetchHistoryProcessor does, put the actual fetch in front of the previous one
+        Map<String, Object>[] history = curi.getFetchHistory();
+        Map<String, Object> latestFetch = new HashMap<String, Object>();
+        latestFetch.put(A_STATUS, 304);
+        @SuppressWarnings("unchecked")
+        Map<String, Object>[] updated = new Map[] {latestFetch, history[0]};
+        curi.getData().put(A_FETCH_HISTORY, updated);
+
+        deduplicator.process(curi);
+
+        assertTrue(curi.isRevisit());
+        history = curi.getFetchHistory();
+        assertNotNull(history);
+        assertSame(latestFetch, history[0]);
+        assertNull(history[1]);
+    }
+
+    public void testHistoryRemovedWhenDisabled() throws Exception {
+        CrawlURI curi = new CrawlURI(UURIFactory.getInstance(URL));
+        conditional.process(curi);
+        curi.setFetchStatus(200);
+        deduplicator.setEnabled(false);
+        deduplicator.process(curi);
+
+        assertFalse(curi.getData().containsKey(A_FETCH_HISTORY));
+    }
+
+    public void testHistoryRemovedWhenRejected() throws Exception {
+        CrawlURI curi = new CrawlURI(UURIFactory.getInstance(URL));
+        conditional.process(curi);
+        curi.setFetchStatus(200);
+        deduplicator.setShouldProcessRule(new RejectDecideRule());
+        deduplicator.process(curi);
+
+        assertFalse(curi.getData().containsKey(A_FETCH_HISTORY));
+    }
+
+    public void testNoHistoryWithoutCapture() throws Exception {
+        CrawlURI curi = new CrawlURI(UURIFactory.getInstance("http://www.example.com/other.html"));
+        conditional.process(curi);
+        assertNull(curi.getFetchHistory());
+        assertFalse(ConditionalRequestProcessor.removeConditionalHistory(curi));
+    }
+
+}
@@ -1,11 +1,62 @@
 package is.landsbokasafn.deduplicator.heritrix;
 
+import java.io.File;
+import java.nio.file.Files;
+
 import junit.framework.TestCase;
 
+import org.apache.commons.io.FileUtils;
+import org.archive.checkpointing.Checkpoint;
+import org.archive.spring.ConfigPath;
+
 public class DeDuplicatorTest extends TestCase {
 
 	public void testGetPercentage() throws Exception{
 		assertEquals("2.5%",DeDuplicator.getPercentage(5,200));
 	}
+
+	public void testCheckpointRecovery() throws Exception {
+		File dir = Files.createTempDirectory("deduplicator-checkpoints").toFile();
+		try {
+			Checkpoint checkpoint = newCheckpoint(dir, 1);
+			DeDuplicator deduplicator = new DeDuplicator();
+			deduplicator.setBeanName("deduplicator");
+			deduplicator.duplicateNumber.set(42);
+			deduplicator.doCheckpoint(checkpoint);
+
+			DeDuplicator recovered = new DeDuplicator();
+			recovered.setBeanName("deduplicator");
+			recovered.setRecoveryCheckpoint(checkpoint);
+			assertEquals(42, recovered.duplicateNumber.get());
+		} finally {
+			FileUtils.deleteDirectory(dir);
+		}
+	}
+
+	public void testRecoveryWithoutBeanState() throws Exception {
+		File dir = Files.createTempDirectory("deduplicator-checkpoints").toFile();
+		try {
+			// E.g. a checkpoint made before the DeDuplicator was added to the crawl
+			Checkpoint checkpoint = newCheckpoint(dir, 1);
+
+			DeDuplicator recovered = new DeDuplicator();
+			recovered.setBeanName("deduplicator");
+			recovered.setRecoveryCheckpoint(checkpoint);
+			assertEquals(0, recovered.duplicateNumber.get());
+
+			LuceneIndexSearcher searcher = new LuceneIndexSearcher();
+			searcher.setBeanName("index");
+			searcher.setRecoveryCheckpoint(checkpoint);
+		} finally {
+			FileUtils.deleteDirectory(dir);
+		}
+	}
+
+	private static Checkpoint newCheckpoint(File dir, int number) {
+		Checkpoint checkpoint = new Checkpoint();
+		checkpoint.generateFrom(new ConfigPath("checkpoints", dir.getAbsolutePath()), number);
+		checkpoint.getCheckpointDir().getFile().mkdirs();
+		return checkpoint;
+	}
     
 }
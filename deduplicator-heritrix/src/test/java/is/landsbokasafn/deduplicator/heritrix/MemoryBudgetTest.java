@@ -0,0 +1,60 @@
+package is.landsbokasafn.deduplicator.heritrix;
+
+import is.landsbokasafn.deduplicator.heritrix.MemoryBudget.Priority;
+import is.landsbokasafn.deduplicator.heritrix.MemoryBudget.Reservation;
+import junit.framework.TestCase;
+
+public class MemoryBudgetTest extends TestCase {
+
+	/**
+	 * Gives up all of a reservation when asked, like a bloom filter being dropped.
+	 */
+	private static class Dropper implements MemoryBudget.Shrinkable {
+		int shrunk = 0;
+		@Override
+		public long shrink(Reservation reservation, long bytes) {
+			shrunk++;
+			return reservation.getBytes();
+		}
+	}
+
+	public void testReclaimLowerPriority() throws Exception {
+		MemoryBudget budget = new MemoryBudget();
+		budget.setMaxBytes(1000);
+		Dropper queue = new Dropper();
+		assertNotNull(budget.reserve("Queue", Priority.LOW, 800, 100, queue));
+
+		Reservation filter = budget.reserve("Bloom filter (a)", Priority.HIGH, 600, 600, new Dropper());
+		assertNotNull(filter);
+		assertEquals(1, queue.shrunk);
+		assertEquals(600, budget.getUsed());
+	}
+
+	public void testSamePriorityNotReclaimed() throws Exception {
+		MemoryBudget budget = new MemoryBudget();
+		budget.setMaxBytes(1000);
+		Dropper first = new Dropper();
+		assertNotNull(budget.reserve("Bloom filter (a)", Priority.HIGH, 800, 800, first));
+
+		// Another index's filter is not displaced, the new one is denied or made smaller
+		assertNull(budget.reserve("Bloom filter (b)", Priority.HIGH, 800, 800, new Dropper()));
+		Reservation second = budget.reserve("Bloom filter (b)", Priority.HIGH, 800, 100, new Dropper());
+		assertNotNull(second);
+		assertEquals(200, second.getBytes());
+		assertEquals(0, first.shrunk);
+		assertEquals(1000, budget.getUsed());
+	}
+
+	public void testHigherPriorityNotReclaimed() throws Exception {
+		MemoryBudget budget = new MemoryBudget();
+		budget.setMaxBytes(1000);
+		Dropper filter = new Dropper();
+		assertNotNull(budget.reserve("Bloom filter (a)", Priority.HIGH, 800, 800, filter));
+
+		Reservation queue = budget.reserve("Queue", Priority.LOW, 500, 100, new Dropper());
+		assertNotNull(queue);
+		assertEquals(200, queue.getBytes());
+		assertEquals(0, filter.shrunk);
+	}
+
+}
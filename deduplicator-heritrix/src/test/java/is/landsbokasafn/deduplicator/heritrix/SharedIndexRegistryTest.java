@@ -0,0 +1,64 @@
+package is.landsbokasafn.deduplicator.heritrix;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+public class SharedIndexRegistryTest extends TestCase {
+
+	private File dir;
+	private String missing;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = Files.createTempDirectory("sharedindex").toFile();
+		missing = new File(dir, "missing").getAbsolutePath();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		FileUtils.deleteDirectory(dir);
+	}
+
+	public void testFailedIndexNotShared() throws Exception {
+		int open = SharedIndexRegistry.size();
+		SharedIndex failed = SharedIndexRegistry.acquire(missing, false);
+		try {
+			failed.load(false);
+			fail("Opened a missing index");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+		assertEquals(IndexState.FAILED, failed.getState());
+
+		SharedIndex again = SharedIndexRegistry.acquire(missing, false);
+		assertNotSame(failed, again);
+		assertEquals(1, again.getReferences());
+		SharedIndexRegistry.release(again);
+		SharedIndexRegistry.release(failed);
+		assertEquals(open, SharedIndexRegistry.size());
+	}
+
+	public void testFailedInitReleasesIndex() throws Exception {
+		int open = SharedIndexRegistry.size();
+		LuceneIndexSearcher searcher = new LuceneIndexSearcher();
+		searcher.setBeanName("failedInit");
+		searcher.setIndexLocation(missing);
+		try {
+			searcher.afterPropertiesSet();
+			fail("Opened a missing index");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+		assertEquals(open, SharedIndexRegistry.size());
+		assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(new ObjectName(
+				"is.landsbokasafn.deduplicator:type=LuceneIndexSearcher,name=" + ObjectName.quote("failedInit"))));
+	}
+
+}
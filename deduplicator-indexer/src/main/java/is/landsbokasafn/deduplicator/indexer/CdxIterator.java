@@ -0,0 +1,368 @@
+/* Copyright (C) 2006-2014 National and University Library of Iceland (NULI)
+ * 
+ * This file is part of the DeDuplicator (Heritrix add-on module).
+ * 
+ *  NULI licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package is.landsbokasafn.deduplicator.indexer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import is.landsbokasafn.deduplicator.CdxFormat;
+import is.landsbokasafn.deduplicator.CdxRecord;
+
+/**
+ * Iterates over the records of CDX or CDXJ files, as an alternative to reading the WARC files they describe. A CDX
+ * line has everything the index needs (URL, digest, date, status and MIME type), so there is nothing to decompress or
+ * parse but the line itself. As with the {@link WarcIterator}, only records of HTTP(S) URLs are used.
+ * <p>
+ * The source may be a single file or a directory, which is searched (recursively) for files ending in
+ * <code>.cdx</code> or <code>.cdxj</code>, optionally followed by <code>.gz</code>. Files are read in order of their
+ * path. The format of each file is determined by its first line (see {@link CdxFormat#detect(String, CdxFormat)}),
+ * defaulting to the 11 field CDX format.
+ * <p>
+ * CDX files do not record which capture a revisit refers to. A revisit is resolved to the earliest capture of the
+ * same URL with the same digest that precedes it in the file. As CDX files are sorted by URL and date, that is the
+ * capture it revisits, if it is in the file. Other revisits are unresolved.
+ * <p>
+ * The iterator can be split (see {@link SplittableCrawlDataIterator}). Uncompressed files are split into newline
+ * aligned byte ranges of (about) <code>deduplicator.cdxiterator.split-size</code> bytes, compressed files are read
+ * whole. Revisits whose original is in the preceding range are left unresolved, but as the original itself is
+ * indexed from that range, the index ends up the same.
+ */
+public class CdxIterator implements SplittableCrawlDataIterator {
+	private static final Log log = LogFactory.getLog(CdxIterator.class);
+
+	public static final String CDX_FILE_REGEX = "^.*\\.cdxj?(\\.gz)?$";
+
+	private static final long SPLIT_SIZE = 64 * 1024 * 1024;
+	private static final String SPLIT_SIZE_PROPERTY = "deduplicator.cdxiterator.split-size";
+
+	private static final String DEFAULT_DIGEST_SCHEME = "sha1:";
+
+	private final long splitSize;
+
+	private List<File> cdxFiles;
+	private Iterator<File> fileIterator;
+
+	/**
+	 * The channel a byte range is being read from, if this iterator covers a part of a split file
+	 */
+	private FileChannel channel;
+
+	/**
+	 * A reader for the file being processed. Null until the first item is requested.
+	 */
+	private BufferedReader in;
+
+	/**
+	 * The format of the file being processed
+	 */
+	private CdxFormat format;
+
+	/**
+	 * A line read to determine the format of a file, that is yet to be processed. Null if none.
+	 */
+	private String firstLine;
+
+	private CrawlDataItem next;
+
+	/**
+	 * The URL key of the last record, and captures of it that revisits may refer to, by digest
+	 */
+	private String urlKey;
+	private final Map<String, CdxRecord> originals = new HashMap<String, CdxRecord>();
+
+	public CdxIterator() {
+		if (System.getProperties().containsKey(SPLIT_SIZE_PROPERTY)) {
+			splitSize = Long.parseLong(System.getProperty(SPLIT_SIZE_PROPERTY).trim());
+			if (splitSize < 1) {
+				throw new IllegalArgumentException(SPLIT_SIZE_PROPERTY + " must be a positive number of bytes");
+			}
+		} else {
+			splitSize = SPLIT_SIZE;
+		}
+	}
+
+	/**
+	 * @param source A CDX(J) file, or a directory holding them
+	 */
+	@Override
+	public void initialize(String source) throws IOException {
+		File file = new File(source);
+		if (!file.exists()) {
+			throw new IllegalArgumentException(source + " does not exist");
+		}
+		cdxFiles = new ArrayList<File>();
+		if (file.isDirectory()) {
+			addCdxFilesInDir(file);
+			Collections.sort(cdxFiles);
+			if (cdxFiles.isEmpty()) {
+				log.warn("No CDX files found in " + source);
+			}
+		} else {
+			cdxFiles.add(file);
+		}
+		fileIterator = cdxFiles.iterator();
+	}
+
+	private void addCdxFilesInDir(File dir) {
+		for (File f : dir.listFiles()) {
+			if (f.isDirectory()) {
+				addCdxFilesInDir(f);
+			} else if (f.getName().matches(CDX_FILE_REGEX)) {
+				cdxFiles.add(f);
+			}
+		}
+	}
+
+	/**
+	 * Initialize this iterator to cover only the lines starting within a byte range of an uncompressed file.
+	 * @param file The file
+	 * @param format The format of the file
+	 * @param start Start of the range
+	 * @param end End of the range
+	 * @throws IOException If the file can not be opened
+	 */
+	protected void initialize(File file, CdxFormat format, long start, long end) throws IOException {
+		cdxFiles = Collections.emptyList();
+		fileIterator = cdxFiles.iterator();
+		this.format = format;
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		in = new BufferedReader(new InputStreamReader(new LineRangeInputStream(channel, start, end),
+				StandardCharsets.UTF_8), 1 << 16);
+	}
+
+	@Override
+	public List<CrawlDataPart> split() throws IOException {
+		if (in != null) {
+			throw new IllegalStateException("Can not split an iterator that is already in use");
+		}
+		List<CrawlDataPart> parts = new ArrayList<CrawlDataPart>();
+		for (final File cdxFile : cdxFiles) {
+			if (isCompressed(cdxFile)) {
+				parts.add(new CrawlDataPart() {
+					@Override
+					public String getName() {
+						return cdxFile.getName();
+					}
+					@Override
+					public long getSize() {
+						return cdxFile.length();
+					}
+					@Override
+					public File getFile() {
+						return cdxFile;
+					}
+					@Override
+					public CrawlDataIterator open() throws IOException {
+						CdxIterator part = new CdxIterator();
+						part.initialize(cdxFile.getAbsolutePath());
+						return part;
+					}
+				});
+				continue;
+			}
+			// All ranges need to know the format, which is given by the first line
+			final CdxFormat fileFormat;
+			BufferedReader reader = openReader(cdxFile);
+			try {
+				fileFormat = CdxFormat.detect(reader.readLine(), CdxFormat.CDX11);
+			} finally {
+				reader.close();
+			}
+			long length = cdxFile.length();
+			for (long offset = 0; offset < length; offset += splitSize) {
+				final long start = offset;
+				final long end = Math.min(length, offset + splitSize);
+				parts.add(new CrawlDataPart() {
+					@Override
+					public String getName() {
+						return cdxFile.getName() + " [" + start + "-" + end + "]";
+					}
+					@Override
+					public long getSize() {
+						return end - start;
+					}
+					@Override
+					public File getFile() {
+						return cdxFile;
+					}
+					@Override
+					public CrawlDataIterator open() throws IOException {
+						CdxIterator part = new CdxIterator();
+						part.initialize(cdxFile, fileFormat, start, end);
+						return part;
+					}
+				});
+			}
+		}
+		return parts;
+	}
+
+	private static boolean isCompressed(File file) {
+		return file.getName().endsWith(".gz");
+	}
+
+	private static BufferedReader openReader(File file) throws IOException {
+		InputStream stream = new FileInputStream(file);
+		if (isCompressed(file)) {
+			stream = new GZIPInputStream(stream, 1 << 16);
+		}
+		return new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8), 1 << 16);
+	}
+
+	/**
+	 * Open the next file and determine its format.
+	 * @return false if there are no more files
+	 */
+	private boolean openNextFile() throws IOException {
+		IOUtils.closeQuietly(in);
+		in = null;
+		if (!fileIterator.hasNext()) {
+			return false;
+		}
+		File file = fileIterator.next();
+		log.info("Opening " + file.getPath());
+		in = openReader(file);
+		firstLine = in.readLine();
+		format = CdxFormat.detect(firstLine, CdxFormat.CDX11);
+		urlKey = null;
+		originals.clear();
+		return true;
+	}
+
+	@Override
+	public boolean hasNext() throws IOException {
+		if (next == null) {
+			prepareNext();
+		}
+		return next != null;
+	}
+
+	@Override
+	public CrawlDataItem next() throws IOException {
+		if (hasNext()) {
+			CrawlDataItem tmp = next;
+			this.next = null;
+			return tmp;
+		}
+		throw new NoSuchElementException("No more items");
+	}
+
+	/**
+	 * Ready the next item. When the method returns, either next is non-null or there are no more items.
+	 */
+	private void prepareNext() throws IOException {
+		if (in == null && !openNextFile()) {
+			return;
+		}
+		do {
+			String line = firstLine;
+			firstLine = null;
+			if (line == null) {
+				line = in.readLine();
+			}
+			for (; line != null; line = in.readLine()) {
+				if (line.isEmpty() || CdxFormat.isHeader(line)) {
+					continue;
+				}
+				CdxRecord record = format.parse(line);
+				next = record == null ? null : toItem(record);
+				if (next != null) {
+					return;
+				}
+				log.debug("Ignoring unusable line:\n" + line);
+			}
+		} while (openNextFile());
+	}
+
+	/**
+	 * @return An item for a record, or null if the record lacks a URL, digest or timestamp, or is not of an HTTP(S) 
+	 *         URL (such as DNS lookups), which the WARC iterators leave out as well
+	 */
+	private CrawlDataItem toItem(CdxRecord record) {
+		if (record.getOriginalUrl() == null || record.getDigest() == null || record.getTimestamp() == null) {
+			return null;
+		}
+		if (!record.getOriginalUrl().startsWith("http")) {
+			return null;
+		}
+		String key = record.getUrlKey() != null ? record.getUrlKey() : record.getOriginalUrl();
+		if (!key.equals(urlKey)) {
+			urlKey = key;
+			originals.clear();
+		}
+		String digest = record.getDigestWithoutScheme();
+
+		CrawlDataItem cdi = new CrawlDataItem();
+		cdi.setURL(record.getOriginalUrl());
+		// Same format as the WARC-Date the CDX was made from
+		cdi.setTimestamp(record.getIsoDate());
+		// CDX files leave out the scheme of the (SHA-1) digest, CDXJ files may include it
+		cdi.setContentDigest(record.getDigest().indexOf(':') < 0 ?
+				DEFAULT_DIGEST_SCHEME + record.getDigest() : record.getDigest());
+		// The MIME type of a revisit is that of the record (warc/revisit), not of the content
+		cdi.setMimeType(record.getMimeType() != null && !record.isRevisit() ? record.getMimeType() : "-");
+		cdi.setStatusCode(record.getStatusCode());
+		cdi.setRevisit(record.isRevisit());
+		if (record.isRevisit()) {
+			CdxRecord original = originals.get(digest);
+			if (original != null) {
+				cdi.setOriginalURL(original.getOriginalUrl());
+				cdi.setOriginalTimestamp(original.getIsoDate());
+				// Revisit records rarely carry the status and content type of the capture
+				if (cdi.getStatusCode() <= 0) {
+					cdi.setStatusCode(original.getStatusCode());
+				}
+				if (original.getMimeType() != null) {
+					cdi.setMimeType(original.getMimeType());
+				}
+			}
+		} else if (!originals.containsKey(digest)) {
+			originals.put(digest, record);
+		}
+		return cdi;
+	}
+
+	@Override
+	public void close() throws IOException {
+		IOUtils.closeQuietly(in);
+		IOUtils.closeQuietly(channel);
+	}
+
+	@Override
+	public String getSourceType() {
+		return "Iterator over CDX and CDXJ files (optionally gzipped), or a directory of them (recursive).";
+	}
+}
@@ -97,7 +97,30 @@ public class CommandLineParser {
         this.options.addOption(opt);
 
         this.options.addOption(new Option("a","add", false,
-            "Add source data to existing index."));
+            "Add source data to existing index. Source files listed in " +
+            "the index's manifest, and unchanged since, are skipped."));
+
+        opt = new Option("p","partition-by", true,
+                "Split the index into time based partitions, by the date of " +
+                "each capture. One of NONE, YEAR or MONTH. Default: NONE");
+        opt.setArgName("period");
+        this.options.addOption(opt);
+
+        this.options.addOption(new Option("b","bulk", false,
+                "Build a new index in bulk. Entries are sorted on disk and " +
+                "written in order when done, ending in a single segment. " +
+                "Can not be combined with --add."));
+
+        this.options.addOption(new Option("d","daemon", false,
+                "Keep running, adding WARC files to the index as they " +
+                "appear in the source directories (several may be given). " +
+                "Implies --add."));
+
+        opt = new Option("t","threads", true,
+                "Number of threads reading the source data in parallel (one " +
+                "WARC file per thread). Default: 1");
+        opt.setArgName("count");
+        this.options.addOption(opt);
 
         PosixParser parser = new PosixParser();
         try {
@@ -0,0 +1,50 @@
+/* Copyright (C) 2006-2014 National and University Library of Iceland (NULI)
+ * 
+ * This file is part of the DeDuplicator (Heritrix add-on module).
+ * 
+ *  NULI licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package is.landsbokasafn.deduplicator.indexer;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A part of the crawl data covered by a {@link SplittableCrawlDataIterator}, e.g. a single WARC file, that can be
+ * iterated over independently of (and concurrently with) other parts.
+ */
+public interface CrawlDataPart {
+
+	/**
+	 * @return A short, human readable, description of the part, e.g. a file name
+	 */
+	public String getName();
+
+	/**
+	 * @return The size of the part in bytes, for throughput statistics. -1 if unknown.
+	 */
+	public long getSize();
+
+	/**
+	 * @return The file the part is read from, or null if it is not read from a single file. Several (consecutive)
+	 *         parts may share a file.
+	 */
+	public File getFile();
+
+	/**
+	 * Open an iterator over the items in this part. The caller must close it.
+	 * @return An initialized iterator
+	 * @throws IOException If an error occurs opening the part
+	 */
+	public CrawlDataIterator open() throws IOException;
+}
@@ -16,34 +16,50 @@
  */
 package is.landsbokasafn.deduplicator.indexer;
 
-import static is.landsbokasafn.deduplicator.DeDuplicatorConstants.EXTRA_REVISIT_DATE;
-import static is.landsbokasafn.deduplicator.DeDuplicatorConstants.EXTRA_REVISIT_PROFILE;
-import static is.landsbokasafn.deduplicator.DeDuplicatorConstants.EXTRA_REVISIT_URI;
 import static is.landsbokasafn.deduplicator.DeDuplicatorConstants.REVISIT_ANNOTATION_MARKER;
 
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.text.ParseException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.zip.GZIPInputStream;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.archive.util.DateUtils;
-import org.json.JSONObject;
 
 /**
  * <p>An implementation of a  {@link is.landsbokasafn.deduplicator.indexer.CrawlDataIterator}
  * capable of iterating over a Heritrix's style <code>crawl.log</code>.</p>
  * <p>For correct handling of duplicates in the crawl log, it is important that 'extra info' logging
  * was enabled in <pre>CrawlerLoggerModule</pre> in the crawl configuration.</p>
+ * <p>The source may also be a directory holding a rotated set of crawl logs (all files whose name starts with
+ * <code>crawl.log</code>). Rotated logs are read in order of their name, followed by the current
+ * <code>crawl.log</code>. Files ending in <code>.gz</code> are decompressed.</p>
+ * <p>The iterator can be split (see {@link SplittableCrawlDataIterator}) so that a log is parsed by several threads.
+ * Uncompressed logs are split into newline aligned byte ranges of (about) 
+ * <code>deduplicator.crawllogiterator.split-size</code> bytes, read via a {@link FileChannel}. Compressed logs can 
+ * not be split and are read in full by one thread, but several of them can still be read in parallel.</p>
+ * <p>In follow mode (<code>deduplicator.crawllogiterator.follow</code>), the current <code>crawl.log</code> is read
+ * as Heritrix writes it, after any rotated logs, until an end marker file appears or nothing has been written for a
+ * while (see {@link LogFollower}). Logs rotated while the earlier ones are read are read before it. A followed log is 
+ * not split.</p>
  * 
  * @author Kristinn Sigur&eth;sson
  */
-public class CrawlLogIterator implements CrawlDataIterator {
+public class CrawlLogIterator implements SplittableCrawlDataIterator {
 	private static final Log log = LogFactory.getLog(CrawlLogIterator.class);
 
 	// By default, we look for the standard revisit annotation marker 
@@ -52,10 +68,48 @@ public class CrawlLogIterator implements CrawlDataIterator {
 	private static final String REVISIT_ANNOTATION_REGEX_PROPERTY = 
 			"deduplicator.crawllogiterator.revisit-annotation-regex";
 	
-	private final String revisitMatchingRegex;
+	public static final String CRAWL_LOG_FILE_REGEX = "^crawl\\.log.*$";
+	private static final String CRAWL_LOG_FILE_NAME = "crawl.log";
+	
+	private static final long SPLIT_SIZE = 64 * 1024 * 1024;
+	private static final String SPLIT_SIZE_PROPERTY = "deduplicator.crawllogiterator.split-size";
+	
+	private static final String FOLLOW_PROPERTY = "deduplicator.crawllogiterator.follow";
+	private static final String FOLLOW_END_MARKER_PROPERTY = "deduplicator.crawllogiterator.follow.end-marker";
+	private static final String FOLLOW_IDLE_TIMEOUT_PROPERTY = "deduplicator.crawllogiterator.follow.idle-timeout";
+	private static final long FOLLOW_POLL_INTERVAL = 1000;
+	
+	private final CrawlLogLineParser parser;
+	private final long splitSize;
+	private final boolean follow;
+	
+	private String source;
+	
+	/**
+	 * Reads the current crawl.log, once any rotated logs have been read, in follow mode. Null otherwise.
+	 */
+	private LogFollower follower;
+	
+	/**
+	 * The directory whose crawl.log is followed, if following a directory
+	 */
+	private File followedDirectory;
+	
+	/**
+	 * Set once the follower has been started, and all logs rotated before that have been read
+	 */
+	private boolean caughtUp = false;
+	
+	private List<File> logFiles;
+	private Iterator<File> fileIterator;
+	
+	/**
+	 * The channel a byte range is being read from, if this iterator covers a part of a split log
+	 */
+	private FileChannel channel;
 	
     /** 
-     * A reader for the crawl.log file being processed
+     * A reader for the crawl.log file being processed. Null until the first item is requested.
      */
     protected BufferedReader in;
     
@@ -67,22 +121,288 @@ public class CrawlLogIterator implements CrawlDataIterator {
     
     public CrawlLogIterator() {
     	if (System.getProperties().containsKey(REVISIT_ANNOTATION_REGEX_PROPERTY)) {
-        	revisitMatchingRegex = System.getProperty(REVISIT_ANNOTATION_REGEX_PROPERTY);
+        	parser = new CrawlLogLineParser(System.getProperty(REVISIT_ANNOTATION_REGEX_PROPERTY), null);
+    	} else {
+    		parser = new CrawlLogLineParser(REVISIT_ANNOTATION_REGEX, REVISIT_ANNOTATION_MARKER);
+    	}
+    	if (System.getProperties().containsKey(SPLIT_SIZE_PROPERTY)) {
+    		splitSize = Long.parseLong(System.getProperty(SPLIT_SIZE_PROPERTY).trim());
+    		if (splitSize < 1) {
+    			throw new IllegalArgumentException(SPLIT_SIZE_PROPERTY + " must be a positive number of bytes");
+    		}
     	} else {
-			revisitMatchingRegex = REVISIT_ANNOTATION_REGEX;
+    		splitSize = SPLIT_SIZE;
     	}
+    	follow = Boolean.parseBoolean(System.getProperty(FOLLOW_PROPERTY, "false").trim());
     }
     
     /** 
      * Create a new CrawlLogIterator that reads items from a Heritrix crawl.log
      *
-     * @param source The path of a Heritrix crawl.log file.
+     * @param source The path of a Heritrix crawl.log file, or of a directory holding a rotated set of them.
      * @throws IOException If errors were found reading the log.
      */
     public void initialize(String source) throws IOException {
-    	log.info("Opening " + source);
-        in = new BufferedReader(new InputStreamReader(
-                new FileInputStream(new File(source))));
+    	this.source = source;
+    	File file = new File(source);
+    	if (follow) {
+    		initializeFollowing(file);
+    		return;
+    	}
+    	if (!file.exists()) {
+    		throw new IllegalArgumentException(source + " does not exist");
+    	}
+    	logFiles = new ArrayList<File>();
+    	if (file.isDirectory()) {
+    		File current = null;
+    		for (File f : file.listFiles()) {
+    			if (!f.isFile() || !f.getName().matches(CRAWL_LOG_FILE_REGEX)) {
+    				continue;
+    			}
+    			if (f.getName().equals(CRAWL_LOG_FILE_NAME)) {
+    				current = f;
+    			} else {
+    				logFiles.add(f);
+    			}
+    		}
+    		Collections.sort(logFiles);
+    		if (current != null) {
+    			// The log being written to is the most recent one
+    			logFiles.add(current);
+    		}
+    		if (logFiles.isEmpty()) {
+    			log.warn("No crawl logs found in " + source);
+    		}
+    	} else {
+    		logFiles.add(file);
+    	}
+    	fileIterator = logFiles.iterator();
+    }
+    
+    /**
+     * Set up follow mode. For a directory, any rotated logs in it are read first, and then its crawl.log followed
+     * (see {@link #listNewlyRotatedLogs()}). Logs rotated while following are not read again, as they are the log 
+     * that was being followed. A single file is simply followed. Neither need exist yet.
+     */
+    private void initializeFollowing(File file) throws IOException {
+    	logFiles = new ArrayList<File>();
+    	File current = file;
+    	if (file.isDirectory()) {
+    		followedDirectory = file;
+    		logFiles.addAll(listRotatedLogs(file));
+    		current = new File(file, CRAWL_LOG_FILE_NAME);
+    	}
+    	fileIterator = logFiles.iterator();
+    	
+    	File endMarker = null;
+    	String marker = System.getProperty(FOLLOW_END_MARKER_PROPERTY);
+    	if (marker != null && !marker.trim().isEmpty()) {
+    		endMarker = new File(marker.trim());
+    		if (!endMarker.isAbsolute()) {
+    			// Relative to the directory of the log
+    			endMarker = new File(current.getAbsoluteFile().getParentFile(), marker.trim());
+    		}
+    	}
+    	long idleTimeout = Long.parseLong(System.getProperty(FOLLOW_IDLE_TIMEOUT_PROPERTY, "0").trim()) * 1000;
+    	if (idleTimeout < 0) {
+    		throw new IllegalArgumentException(FOLLOW_IDLE_TIMEOUT_PROPERTY + " can not be negative");
+    	}
+    	if (endMarker == null && idleTimeout == 0) {
+    		log.warn("Following " + current.getPath() + " with neither an end marker nor an idle timeout. " + 
+    				"It will be followed until the indexer is stopped.");
+    	}
+    	follower = new LogFollower(current, endMarker, idleTimeout, FOLLOW_POLL_INTERVAL);
+    }
+    
+    /**
+     * @return The rotated logs in a directory, i.e. those whose name starts with, but is not, crawl.log. In order.
+     */
+    private static List<File> listRotatedLogs(File dir) {
+    	List<File> rotated = new ArrayList<File>();
+    	File[] files = dir.listFiles();
+    	if (files != null) {
+    		for (File f : files) {
+    			if (f.isFile() && f.getName().matches(CRAWL_LOG_FILE_REGEX) && 
+    					!f.getName().equals(CRAWL_LOG_FILE_NAME)) {
+    				rotated.add(f);
+    			}
+    		}
+    	}
+    	Collections.sort(rotated);
+    	return rotated;
+    }
+    
+    /**
+     * In follow mode, once the logs to read before following have been read, start the follower and look for logs 
+     * that were rotated meanwhile. The follower is started first, so that a log rotated from then on is read to its
+     * end by the follower, and not listed here (where the platform provides file keys to tell).
+     * @return true if there are newly rotated logs to read before following
+     */
+    private boolean listNewlyRotatedLogs() throws IOException {
+    	if (follower == null || caughtUp) {
+    		return false;
+    	}
+    	follower.start();
+    	if (followedDirectory == null) {
+    		caughtUp = true;
+    		return false;
+    	}
+    	Object followedKey = follower.getFileKey();
+    	List<File> rotated = new ArrayList<File>();
+    	for (File f : listRotatedLogs(followedDirectory)) {
+    		if (logFiles.contains(f)) {
+    			continue;
+    		}
+    		try {
+    			Object key = Files.readAttributes(f.toPath(), BasicFileAttributes.class).fileKey();
+    			if (followedKey != null && followedKey.equals(key)) {
+    				// Rotated after the follower opened it
+    				continue;
+    			}
+    		} catch (NoSuchFileException e) {
+    			// Removed (e.g. replaced by a compressed copy) since it was listed
+    			continue;
+    		}
+    		rotated.add(f);
+    	}
+    	if (rotated.isEmpty()) {
+    		caughtUp = true;
+    		return false;
+    	}
+    	log.info(rotated.size() + " log(s) were rotated while reading earlier logs. Reading them before following.");
+    	logFiles.addAll(rotated);
+    	fileIterator = rotated.iterator();
+    	return true;
+    }
+    
+    /**
+     * Initialize this iterator to cover only the lines starting within a byte range of an uncompressed crawl.log.
+     * @param file The crawl.log
+     * @param start Start of the range
+     * @param end End of the range
+     * @throws IOException If the file can not be opened
+     */
+    protected void initialize(File file, long start, long end) throws IOException {
+    	logFiles = Collections.emptyList();
+    	fileIterator = logFiles.iterator();
+    	channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    	in = new BufferedReader(new InputStreamReader(new LineRangeInputStream(channel, start, end)));
+    }
+    
+    /**
+     * Create an iterator for a part of a split log. Override if overriding {@link #parseLine(String)}, so that the
+     * parts parse lines the same way.
+     * @return A new, uninitialized, iterator
+     */
+    protected CrawlLogIterator newPartIterator() {
+    	return new CrawlLogIterator();
+    }
+    
+    @Override
+    public List<CrawlDataPart> split() throws IOException {
+    	if (in != null) {
+    		throw new IllegalStateException("Can not split an iterator that is already in use");
+    	}
+    	List<CrawlDataPart> parts = new ArrayList<CrawlDataPart>();
+    	if (follow) {
+    		// The end of a log that is being written is not known, it can only be read as a whole
+    		parts.add(new CrawlDataPart() {
+    			@Override
+    			public String getName() {
+    				return source + " (following)";
+    			}
+    			@Override
+    			public long getSize() {
+    				return -1;
+    			}
+    			@Override
+    			public File getFile() {
+    				return null;
+    			}
+    			@Override
+    			public CrawlDataIterator open() throws IOException {
+    				CrawlLogIterator part = newPartIterator();
+    				part.initialize(source);
+    				return part;
+    			}
+    		});
+    		return parts;
+    	}
+    	for (final File logFile : logFiles) {
+    		if (isCompressed(logFile)) {
+    			parts.add(new CrawlDataPart() {
+    				@Override
+    				public String getName() {
+    					return logFile.getName();
+    				}
+    				@Override
+    				public long getSize() {
+    					return logFile.length();
+    				}
+    				@Override
+    				public File getFile() {
+    					return logFile;
+    				}
+    				@Override
+    				public CrawlDataIterator open() throws IOException {
+    					CrawlLogIterator part = newPartIterator();
+    					part.initialize(logFile.getAbsolutePath());
+    					return part;
+    				}
+    			});
+    			continue;
+    		}
+    		long length = logFile.length();
+    		for (long offset = 0; offset < length; offset += splitSize) {
+    			final long start = offset;
+    			final long end = Math.min(length, offset + splitSize);
+    			parts.add(new CrawlDataPart() {
+    				@Override
+    				public String getName() {
+    					return logFile.getName() + " [" + start + "-" + end + "]";
+    				}
+    				@Override
+    				public long getSize() {
+    					return end - start;
+    				}
+    				@Override
+    				public File getFile() {
+    					return logFile;
+    				}
+    				@Override
+    				public CrawlDataIterator open() throws IOException {
+    					CrawlLogIterator part = newPartIterator();
+    					part.initialize(logFile, start, end);
+    					return part;
+    				}
+    			});
+    		}
+    	}
+    	return parts;
+    }
+    
+    private static boolean isCompressed(File file) {
+    	return file.getName().endsWith(".gz");
+    }
+    
+    /**
+     * Open the next log file.
+     * @return false if there are no more files
+     */
+    private boolean openNextFile() throws IOException {
+    	IOUtils.closeQuietly(in);
+    	in = null;
+    	if (!fileIterator.hasNext()) {
+    		return false;
+    	}
+    	File file = fileIterator.next();
+    	log.info("Opening " + file.getPath());
+    	InputStream stream = new FileInputStream(file);
+    	if (isCompressed(file)) {
+    		stream = new GZIPInputStream(stream);
+    	}
+        in = new BufferedReader(new InputStreamReader(stream));
+        return true;
     }
 
     /** 
@@ -123,12 +443,27 @@ public class CrawlLogIterator implements CrawlDataIterator {
     	if (next!=null) {
     		throw new IllegalStateException("Can't prepare next, when next is non-null");
     	}
-        String line;
-        while ((line = in.readLine()) != null) {
-            next = parseLine(line);
-            if (next != null) {
-                return;
-            }
+        do {
+	        if (in != null || openNextFile()) {
+		        do {
+			        String line;
+			        while ((line = in.readLine()) != null) {
+			            next = parseLine(line);
+			            if (next != null) {
+			                return;
+			            }
+			        }
+		        } while (openNextFile());
+	        }
+        } while (listNewlyRotatedLogs());
+        if (follower != null) {
+        	String line;
+        	while ((line = follower.readLine()) != null) {
+        		next = parseLine(line);
+        		if (next != null) {
+        			return;
+        		}
+        	}
         }
      }
 
@@ -144,87 +479,7 @@ public class CrawlLogIterator implements CrawlDataIterator {
      *         a usable item, null otherwise.
      */
     protected CrawlDataItem parseLine(String line) throws IOException {
-        if (line != null && line.length() > 42) {
-            // Split the line up by whitespaces.
-            // Limit to 13 parts. Annotations containing spaces will break this.
-            String[] lineParts = line.split("\\s+",13);
-            
-            if(lineParts.length<10){
-                log.debug("Ignoring malformed line, lineParts are fewer then 10 in line:\n" + line);
-                return null;
-            }
-            
-            // Index 0: Timestamp, this is the time of log writing and not of interest
-            
-            // Index 1: status return code 
-            int status = Integer.parseInt(lineParts[1]);
-            if (status<=0) {
-            	log.debug("Ignoring failed fetch based on status code. Line:\n" + line);
-            	return null;
-            }
-            
-            // Index 2: File size (ignore) 
-
-            // Index 3: URL
-            String url = lineParts[3];
-            
-            // Index 4: Hop path (ignore)
-            // Index 5: Parent URL (ignore)
-            
-            // Index 6: Mime type
-            String mime = lineParts[6];
-
-            // Index 7: ToeThread number (ignore)
-            
-            // Index 8: ArcTimeAndDuration, this is the time when fetch begin, followed by a plus 
-            //          sign and the number of milliseconds the fetch took.
-            // Convert from the crawl log dateformat to w3c-iso8601
-            String timestamp;
-            try {
-            	String fetchBegan = lineParts[8];
-           		fetchBegan = fetchBegan.substring(0,fetchBegan.indexOf("+")); // Ignore + fetch duration
-				timestamp = DateUtils.getLog14Date(DateUtils.parse17DigitDate(fetchBegan));
-			} catch (ParseException e1) {
-				throw new IOException(e1);
-			}
-            
-
-            // Index 9: Digest
-            String digest = lineParts[9];
-            
-            // Index 10: Source tag (ignore)
-            
-            // Index 11: Annotations 
-            boolean revisit = false;
-        	if (lineParts[11].matches(revisitMatchingRegex)) {
-        		revisit=true;
-        	}
-            
-            // Index 12: Extra info in JSON format. May be missing
-            String originalURL = null;
-            String originalTimestamp = null;
-        	String revisitProfile = null;
-            if(revisit && lineParts.length==13){
-            	JSONObject extraInfo = new JSONObject(lineParts[12]);
-            	originalURL = extraInfo.getString(EXTRA_REVISIT_URI);
-            	originalTimestamp = extraInfo.getString(EXTRA_REVISIT_DATE);
-            	revisitProfile=extraInfo.getString(EXTRA_REVISIT_PROFILE);
-            }
-            
-            // Got a valid item.
-            CrawlDataItem cdi = new CrawlDataItem();
-            cdi.setURL(url);
-            cdi.setTimestamp(timestamp);
-            cdi.setStatusCode(status);
-            cdi.setContentDigest(digest);
-            cdi.setMimeType(mime);
-            cdi.setRevisit(revisit);
-            cdi.setOriginalURL(originalURL);
-            cdi.setOriginalTimestamp(originalTimestamp);
-            cdi.setRevisitProfile(revisitProfile);
-            return cdi;
-        } 
-        return null;
+        return parser.parse(line);
     }
     
     /**
@@ -232,6 +487,8 @@ public class CrawlLogIterator implements CrawlDataIterator {
      */
     public void close() throws IOException{
         IOUtils.closeQuietly(in);
+        IOUtils.closeQuietly(channel);
+        IOUtils.closeQuietly(follower);
     }
 
     /*
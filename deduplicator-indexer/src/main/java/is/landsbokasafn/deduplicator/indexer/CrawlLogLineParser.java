@@ -0,0 +1,293 @@
+/* Copyright (C) 2006-2014 National and University Library of Iceland (NULI)
+ * 
+ * This file is part of the DeDuplicator (Heritrix add-on module).
+ * 
+ *  NULI licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package is.landsbokasafn.deduplicator.indexer;
+
+import static is.landsbokasafn.deduplicator.DeDuplicatorConstants.EXTRA_REVISIT_DATE;
+import static is.landsbokasafn.deduplicator.DeDuplicatorConstants.EXTRA_REVISIT_PROFILE;
+import static is.landsbokasafn.deduplicator.DeDuplicatorConstants.EXTRA_REVISIT_URI;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.archive.util.DateUtils;
+import org.json.JSONObject;
+
+/**
+ * Parses lines from a Heritrix crawl.log into {@link CrawlDataItem}s.
+ * <p>
+ * Fields are located by scanning the line once, recording their offsets in a reusable array, rather than by
+ * splitting it. Only the fields that end up in the item are copied out. The status code is parsed in place, the
+ * fetch timestamp is converted without parsing it into a date (where it is well formed) and the annotations are
+ * matched with a precompiled pattern over a reusable view of the line. The JSON 'extra info' is only parsed for
+ * revisits.
+ * <p>
+ * Produces the same items as splitting the line on whitespace (into at most 13 fields) and parsing each field.
+ * Instances are not thread safe.
+ */
+public class CrawlLogLineParser {
+	private static final Log log = LogFactory.getLog(CrawlLogLineParser.class);
+
+	private static final int MAX_FIELDS = 13;
+	private static final int MIN_LENGTH = 42;
+
+	private static final int FIELD_STATUS = 1;
+	private static final int FIELD_URL = 3;
+	private static final int FIELD_MIME = 6;
+	private static final int FIELD_FETCH_TIME = 8;
+	private static final int FIELD_DIGEST = 9;
+	private static final int FIELD_ANNOTATIONS = 11;
+	private static final int FIELD_EXTRA_INFO = 12;
+
+	private static final int[] DAYS_IN_MONTH = {31, 28, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31};
+
+	/**
+	 * A view of a part of the line being parsed, so patterns can be matched against a field without copying it.
+	 */
+	private static class Field implements CharSequence {
+		private String line;
+		private int start;
+		private int end;
+
+		void set(String line, int start, int end) {
+			this.line = line;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		public int length() {
+			return end - start;
+		}
+
+		@Override
+		public char charAt(int index) {
+			return line.charAt(start + index);
+		}
+
+		@Override
+		public CharSequence subSequence(int from, int to) {
+			return line.substring(start + from, start + to);
+		}
+
+		@Override
+		public String toString() {
+			return line.substring(start, end);
+		}
+	}
+
+	// Start and end offsets of each field
+	private final int[] starts = new int[MAX_FIELDS];
+	private final int[] ends = new int[MAX_FIELDS];
+
+	private final Field field = new Field();
+	private final Matcher revisitMatcher;
+	// If the revisit pattern is simply '^.*marker.*$', a plain search for the marker is used
+	private final String revisitMarker;
+
+	/**
+	 * @param revisitRegex Regular expression that the annotations of revisits match
+	 * @param revisitMarker If not null, revisitRegex is known to be <code>^.*marker.*$</code> for this marker
+	 */
+	public CrawlLogLineParser(String revisitRegex, String revisitMarker) {
+		this.revisitMatcher = Pattern.compile(revisitRegex).matcher("");
+		this.revisitMarker = revisitMarker;
+	}
+
+	/**
+	 * Parse a line from a crawl.log.
+	 * @param line The line. May be null.
+	 * @return An item, or null if the line is not usable
+	 * @throws IOException If the fetch time is not a valid timestamp
+	 */
+	public CrawlDataItem parse(String line) throws IOException {
+		if (line == null || line.length() <= MIN_LENGTH) {
+			return null;
+		}
+		int fields = tokenize(line);
+		if (fields < 10) {
+            log.debug("Ignoring malformed line, lineParts are fewer then 10 in line:\n" + line);
+            return null;
+		}
+
+		int status = parseStatus(line);
+		if (status <= 0) {
+        	log.debug("Ignoring failed fetch based on status code. Line:\n" + line);
+			return null;
+		}
+
+		String timestamp = parseFetchTime(line);
+
+		if (fields <= FIELD_ANNOTATIONS) {
+			log.debug("Ignoring malformed line, no annotations in line:\n" + line);
+			return null;
+		}
+		boolean revisit = isRevisit(line);
+
+        String originalURL = null;
+        String originalTimestamp = null;
+    	String revisitProfile = null;
+		if (revisit && fields == MAX_FIELDS) {
+        	JSONObject extraInfo = new JSONObject(line.substring(starts[FIELD_EXTRA_INFO], ends[FIELD_EXTRA_INFO]));
+        	originalURL = extraInfo.getString(EXTRA_REVISIT_URI);
+        	originalTimestamp = extraInfo.getString(EXTRA_REVISIT_DATE);
+        	revisitProfile = extraInfo.getString(EXTRA_REVISIT_PROFILE);
+		}
+
+		CrawlDataItem cdi = new CrawlDataItem();
+		cdi.setURL(line.substring(starts[FIELD_URL], ends[FIELD_URL]));
+		cdi.setTimestamp(timestamp);
+		cdi.setStatusCode(status);
+		cdi.setContentDigest(line.substring(starts[FIELD_DIGEST], ends[FIELD_DIGEST]));
+		cdi.setMimeType(line.substring(starts[FIELD_MIME], ends[FIELD_MIME]));
+		cdi.setRevisit(revisit);
+		cdi.setOriginalURL(originalURL);
+		cdi.setOriginalTimestamp(originalTimestamp);
+		cdi.setRevisitProfile(revisitProfile);
+		return cdi;
+	}
+
+	/**
+	 * Find the fields of the line, the same way as <code>line.split("\\s+", 13)</code>. That is, a line that starts
+	 * with whitespace has an empty first field, one that ends with whitespace an empty last field, and the last of
+	 * 13 fields extends to the end of the line.
+	 * @return The number of fields
+	 */
+	private int tokenize(String line) {
+		int length = line.length();
+		int count = 0;
+		int start = 0;
+		int i = 0;
+		while (count < MAX_FIELDS - 1) {
+			while (i < length && !isWhitespace(line.charAt(i))) {
+				i++;
+			}
+			if (i == length) {
+				break;
+			}
+			starts[count] = start;
+			ends[count] = i;
+			count++;
+			while (i < length && isWhitespace(line.charAt(i))) {
+				i++;
+			}
+			start = i;
+		}
+		starts[count] = start;
+		ends[count] = length;
+		return count + 1;
+	}
+
+	/**
+	 * @return true for the characters matched by <code>\s</code> in a regular expression
+	 */
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+	}
+
+	private int parseStatus(String line) {
+		int start = starts[FIELD_STATUS];
+		int end = ends[FIELD_STATUS];
+		boolean negative = start < end && line.charAt(start) == '-';
+		int i = negative ? start + 1 : start;
+		if (i == end || end - i > 9) {
+			// Empty or possibly out of range, leave it to Integer.parseInt to decide
+			return Integer.parseInt(line.substring(start, end));
+		}
+		int status = 0;
+		for (; i < end; i++) {
+			char c = line.charAt(i);
+			if (c < '0' || c > '9') {
+				// Let Integer.parseInt decide, and complain
+				return Integer.parseInt(line.substring(start, end));
+			}
+			status = status * 10 + (c - '0');
+		}
+		return negative ? -status : status;
+	}
+
+	/**
+	 * The fetch time field consists of a 17 digit timestamp, followed by a plus sign and the fetch duration. Convert
+	 * the timestamp to a 14 digit one. For a valid timestamp, that simply means dropping the milliseconds. Anything
+	 * else is left to {@link DateUtils}, which normalizes out of range values.
+	 */
+	private String parseFetchTime(String line) throws IOException {
+		int start = starts[FIELD_FETCH_TIME];
+		int end = ends[FIELD_FETCH_TIME];
+		if (end - start > 17 && line.charAt(start + 17) == '+' && isValid17DigitDate(line, start)) {
+			return line.substring(start, start + 14);
+		}
+		String fetchBegan = line.substring(start, end);
+		fetchBegan = fetchBegan.substring(0, fetchBegan.indexOf("+")); // Ignore + fetch duration
+		try {
+			return DateUtils.getLog14Date(DateUtils.parse17DigitDate(fetchBegan));
+		} catch (ParseException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private static boolean isValid17DigitDate(String line, int start) {
+		for (int i = start; i < start + 17; i++) {
+			char c = line.charAt(i);
+			if (c < '0' || c > '9') {
+				return false;
+			}
+		}
+		int year = digits(line, start, 4);
+		int month = digits(line, start + 4, 2);
+		int day = digits(line, start + 6, 2);
+		int hour = digits(line, start + 8, 2);
+		int minute = digits(line, start + 10, 2);
+		int second = digits(line, start + 12, 2);
+		// Dates before the Gregorian calendar was in place are unlikely, and left to DateUtils
+		if (year < 1600 || month < 1 || month > 12 || day < 1 || hour > 23 || minute > 59 || second > 59) {
+			return false;
+		}
+		boolean leap = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+		int daysInMonth = month == 2 && leap ? 29 : DAYS_IN_MONTH[month - 1];
+		return day <= daysInMonth;
+	}
+
+	private static int digits(String line, int start, int count) {
+		int value = 0;
+		for (int i = start; i < start + count; i++) {
+			value = value * 10 + (line.charAt(i) - '0');
+		}
+		return value;
+	}
+
+	private boolean isRevisit(String line) {
+		int start = starts[FIELD_ANNOTATIONS];
+		int end = ends[FIELD_ANNOTATIONS];
+		if (revisitMarker != null) {
+			// '.' does not match line terminators. Line feeds and carriage returns can not occur within a field.
+			for (int i = start; i < end; i++) {
+				char c = line.charAt(i);
+				if (c == '\u0085' || c == '\u2028' || c == '\u2029') {
+					return false;
+				}
+			}
+			int found = line.indexOf(revisitMarker, start);
+			return found >= 0 && found + revisitMarker.length() <= end;
+		}
+		field.set(line, start, end);
+		return revisitMatcher.reset(field).matches();
+	}
+}
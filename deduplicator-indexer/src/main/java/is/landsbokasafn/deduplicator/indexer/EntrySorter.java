@@ -0,0 +1,417 @@
+/* Copyright (C) 2006-2014 National and University Library of Iceland (NULI)
+ * 
+ * This file is part of the DeDuplicator (Heritrix add-on module).
+ * 
+ *  NULI licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package is.landsbokasafn.deduplicator.indexer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.commons.io.IOUtils;
+
+import is.landsbokasafn.deduplicator.indexer.IndexBuilder.Entry;
+
+/**
+ * An external sort of index entries, for building a new index in bulk. Entries are sorted by partition, digest and
+ * key. Where several entries share a partition and key, only the last one added is kept, as it would have replaced
+ * the others had they been written to the index one by one. Alternatively, a precedence may be given, in which case
+ * the greatest entry is kept.
+ * <p>
+ * Up to <code>maxInMemory</code> entries are sorted in memory at a time, and written to a run file on disk. The
+ * runs are merged when the entries are read back.
+ * <p>
+ * Not thread safe.
+ */
+class EntrySorter {
+
+	/**
+	 * Receives the sorted entries.
+	 */
+	interface Sink {
+		void write(String partition, Entry entry) throws IOException;
+	}
+
+	private static class Record {
+		final String partition;
+		final Entry entry;
+		final long sequence;
+
+		Record(String partition, Entry entry, long sequence) {
+			this.partition = partition;
+			this.entry = entry;
+			this.sequence = sequence;
+		}
+
+		boolean sameKey(Record other) {
+			return partition.equals(other.partition) && entry.key.equals(other.entry.key);
+		}
+	}
+
+	private interface RecordSource {
+		/**
+		 * @return The next record, or null if there are no more
+		 */
+		Record next() throws IOException;
+	}
+
+	private interface RecordSink {
+		void write(Record record) throws IOException;
+	}
+
+	/** Maximum number of runs merged at once **/
+	private static final int MAX_MERGE_RUNS = 64;
+
+	private final Comparator<Record> order = new Comparator<Record>() {
+		@Override
+		public int compare(Record a, Record b) {
+			int c = a.partition.compareTo(b.partition);
+			if (c == 0) {
+				c = a.entry.digest.compareTo(b.entry.digest);
+			}
+			if (c == 0) {
+				c = a.entry.key.compareTo(b.entry.key);
+			}
+			if (c == 0 && precedence != null) {
+				c = precedence.compare(a.entry, b.entry);
+			}
+			if (c == 0) {
+				c = Long.compare(a.sequence, b.sequence);
+			}
+			return c;
+		}
+	};
+
+	/**
+	 * Reads back a run file.
+	 */
+	private static class RunReader {
+		final DataInputStream in;
+		long remaining;
+		Record head;
+
+		RunReader(File file, long entries) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+			remaining = entries;
+		}
+
+		/**
+		 * @return false if the run is exhausted
+		 */
+		boolean advance() throws IOException {
+			if (remaining == 0) {
+				head = null;
+				return false;
+			}
+			remaining--;
+			String partition = readString(in);
+			String url = readString(in);
+			String canonicalizedURL = readString(in);
+			String digest = readString(in);
+			String timestamp = readString(in);
+			String etag = readString(in);
+			String originalRecordId = readString(in);
+			String key = readString(in);
+			long sequence = in.readLong();
+			head = new Record(partition, 
+					new Entry(url, canonicalizedURL, digest, timestamp, etag, originalRecordId, key), sequence);
+			return true;
+		}
+	}
+
+	private final int maxInMemory;
+	private final File tempDirectory;
+	private final Comparator<Entry> precedence;
+
+	private final List<Record> buffer = new ArrayList<Record>();
+	private final List<File> runs = new ArrayList<File>();
+	private final List<Long> runSizes = new ArrayList<Long>();
+	private long sequence = 0;
+	private long dropped = 0;
+	private int runsWritten = 0;
+
+	/**
+	 * @param maxInMemory Maximum number of entries to sort in memory
+	 * @param tempDirectory Where to write run files. Null for the system's temporary directory.
+	 */
+	EntrySorter(int maxInMemory, File tempDirectory) {
+		this(maxInMemory, tempDirectory, null);
+	}
+
+	/**
+	 * @param precedence Where entries share a key, the greatest is kept (the last one added, if equal). Null to
+	 *        keep the last one added.
+	 * @see #EntrySorter(int, File)
+	 */
+	EntrySorter(int maxInMemory, File tempDirectory, Comparator<Entry> precedence) {
+		if (maxInMemory < 1) {
+			throw new IllegalArgumentException("Must be able to hold at least one entry in memory");
+		}
+		this.maxInMemory = maxInMemory;
+		this.tempDirectory = tempDirectory;
+		this.precedence = precedence;
+	}
+
+	/**
+	 * Add an entry. Unless a precedence was given, entries added later take precedence over earlier ones with the
+	 * same key.
+	 * @param partition The partition the entry belongs to, empty if the index is not partitioned
+	 * @param entry The entry
+	 * @throws IOException If an error occurs writing a run
+	 */
+	void add(String partition, Entry entry) throws IOException {
+		buffer.add(new Record(partition, entry, sequence++));
+		if (buffer.size() >= maxInMemory) {
+			spill();
+		}
+	}
+
+	private void spill() throws IOException {
+		Collections.sort(buffer, order);
+		final Iterator<Record> records = buffer.iterator();
+		writeRun(new RecordSource() {
+			@Override
+			public Record next() {
+				return records.hasNext() ? records.next() : null;
+			}
+		});
+		buffer.clear();
+	}
+
+	/**
+	 * Write sorted records to a new run file, dropping superseded ones.
+	 */
+	private void writeRun(RecordSource source) throws IOException {
+		File file = File.createTempFile("entries", ".run", tempDirectory);
+		file.deleteOnExit();
+		final DataOutputStream out =
+				new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+		long written;
+		try {
+			written = lastOfEachKey(source, new RecordSink() {
+				@Override
+				public void write(Record record) throws IOException {
+					EntrySorter.write(out, record);
+				}
+			});
+		} finally {
+			out.close();
+		}
+		runs.add(file);
+		runSizes.add(written);
+		runsWritten++;
+	}
+
+	/**
+	 * Pass on the last record of each key, from sorted records.
+	 * @return The number of records passed on
+	 */
+	private long lastOfEachKey(RecordSource source, RecordSink sink) throws IOException {
+		long written = 0;
+		Record previous = null;
+		Record record;
+		while ((record = source.next()) != null) {
+			if (previous != null && !previous.sameKey(record)) {
+				sink.write(previous);
+				written++;
+			} else if (previous != null) {
+				dropped++;
+			}
+			previous = record;
+		}
+		if (previous != null) {
+			sink.write(previous);
+			written++;
+		}
+		return written;
+	}
+
+	private static void write(DataOutputStream out, Record record) throws IOException {
+		Entry entry = record.entry;
+		writeString(out, record.partition);
+		writeString(out, entry.url);
+		writeString(out, entry.canonicalizedURL);
+		writeString(out, entry.digest);
+		writeString(out, entry.timestamp);
+		writeString(out, entry.etag);
+		writeString(out, entry.originalRecordId);
+		writeString(out, entry.key);
+		out.writeLong(record.sequence);
+	}
+
+	/**
+	 * Strings are written as their length in bytes (-1 for null) followed by UTF-8, as URLs may be longer than
+	 * {@link DataOutputStream#writeUTF(String)} allows.
+	 */
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Pass all entries, in order and without superseded ones, to a sink. May only be invoked once.
+	 * @param sink Receives the entries
+	 * @return The number of entries written to the sink
+	 * @throws IOException If an error occurs reading the runs, or in the sink
+	 */
+	long writeSorted(final Sink sink) throws IOException {
+		RecordSink entrySink = new RecordSink() {
+			@Override
+			public void write(Record record) throws IOException {
+				sink.write(record.partition, record.entry);
+			}
+		};
+		if (runs.isEmpty()) {
+			// Everything fits in memory
+			Collections.sort(buffer, order);
+			final Iterator<Record> records = buffer.iterator();
+			long written = lastOfEachKey(new RecordSource() {
+				@Override
+				public Record next() {
+					return records.hasNext() ? records.next() : null;
+				}
+			}, entrySink);
+			buffer.clear();
+			return written;
+		}
+		if (!buffer.isEmpty()) {
+			spill();
+		}
+		// Limit the number of files open at once
+		while (runs.size() > MAX_MERGE_RUNS) {
+			List<File> files = new ArrayList<File>(runs.subList(0, MAX_MERGE_RUNS));
+			List<Long> sizes = new ArrayList<Long>(runSizes.subList(0, MAX_MERGE_RUNS));
+			runs.subList(0, MAX_MERGE_RUNS).clear();
+			runSizes.subList(0, MAX_MERGE_RUNS).clear();
+			final List<RunReader> readers = open(files, sizes);
+			try {
+				writeRun(merge(readers));
+			} finally {
+				close(readers);
+				for (File file : files) {
+					file.delete();
+				}
+			}
+		}
+		List<RunReader> readers = open(runs, runSizes);
+		try {
+			return lastOfEachKey(merge(readers), entrySink);
+		} finally {
+			close(readers);
+		}
+	}
+
+	private static List<RunReader> open(List<File> files, List<Long> sizes) throws IOException {
+		List<RunReader> readers = new ArrayList<RunReader>();
+		try {
+			for (int i = 0; i < files.size(); i++) {
+				readers.add(new RunReader(files.get(i), sizes.get(i)));
+			}
+		} catch (IOException e) {
+			close(readers);
+			throw e;
+		}
+		return readers;
+	}
+
+	private static void close(List<RunReader> readers) {
+		for (RunReader reader : readers) {
+			IOUtils.closeQuietly(reader.in);
+		}
+	}
+
+	/**
+	 * @return The records of the runs, in order
+	 */
+	private RecordSource merge(List<RunReader> readers) throws IOException {
+		final PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(Math.max(1, readers.size()),
+				new Comparator<RunReader>() {
+					@Override
+					public int compare(RunReader a, RunReader b) {
+						return order.compare(a.head, b.head);
+					}
+				});
+		for (RunReader reader : readers) {
+			if (reader.advance()) {
+				queue.add(reader);
+			}
+		}
+		return new RecordSource() {
+			@Override
+			public Record next() throws IOException {
+				RunReader reader = queue.poll();
+				if (reader == null) {
+					return null;
+				}
+				Record record = reader.head;
+				if (reader.advance()) {
+					queue.add(reader);
+				}
+				return record;
+			}
+		};
+	}
+
+	/**
+	 * @return The number of runs written to disk
+	 */
+	int getRuns() {
+		return runsWritten;
+	}
+
+	/**
+	 * @return The number of entries dropped because another with the same key took precedence
+	 */
+	long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * Delete the run files.
+	 */
+	void close() {
+		for (File run : runs) {
+			run.delete();
+		}
+		runs.clear();
+	}
+}
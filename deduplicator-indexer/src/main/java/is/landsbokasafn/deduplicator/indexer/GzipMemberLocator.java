@@ -0,0 +1,315 @@
+/* Copyright (C) 2006-2014 National and University Library of Iceland (NULI)
+ * 
+ * This file is part of the DeDuplicator (Heritrix add-on module).
+ * 
+ *  NULI licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package is.landsbokasafn.deduplicator.indexer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import is.landsbokasafn.deduplicator.CdxFormat;
+import is.landsbokasafn.deduplicator.CdxRecord;
+
+/**
+ * Finds the boundaries between the gzip members of a compressed WARC, so that it can be divided into byte ranges
+ * that can be decompressed independently (and concurrently). A WARC written by Heritrix has one member per record.
+ * <p>
+ * Boundaries are taken from the record offsets in a CDX file next to the WARC, if there is one, otherwise they are
+ * found by scanning the WARC for gzip member headers. As those bytes may also occur inside compressed data, a
+ * member is only accepted if the start of it inflates to a WARC record.
+ */
+public class GzipMemberLocator {
+	private static final Log log = LogFactory.getLog(GzipMemberLocator.class);
+
+	private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+	private static final int VALIDATE_BUFFER_SIZE = 4 * 1024;
+
+	private static final byte[] WARC_VERSION_PREFIX = "WARC/".getBytes(StandardCharsets.US_ASCII);
+
+	// Gzip header flags (RFC 1952)
+	private static final int FHCRC = 2;
+	private static final int FEXTRA = 4;
+	private static final int FNAME = 8;
+	private static final int FCOMMENT = 16;
+	private static final int RESERVED = 0xe0;
+
+	private final File warcFile;
+	private final FileChannel channel;
+	private List<Long> cdxOffsets = null;
+
+	/**
+	 * @param warcFile The compressed WARC
+	 * @param channel An open channel to it. Not closed by the locator.
+	 * @throws IOException If a CDX file for the WARC exists but can not be read
+	 */
+	public GzipMemberLocator(File warcFile, FileChannel channel) throws IOException {
+		this.warcFile = warcFile;
+		this.channel = channel;
+		File cdx = findCdx(warcFile);
+		if (cdx != null) {
+			cdxOffsets = readOffsets(cdx, warcFile.getName());
+			log.debug("Read " + cdxOffsets.size() + " record offsets for " + warcFile.getName() + " from " + cdx);
+		}
+	}
+
+	/**
+	 * Divide the WARC into ranges of about the given size, each starting at a member boundary.
+	 * @param rangeSize Size of each range, in bytes. The actual size depends on where members begin.
+	 * @return The start offset of each range, beginning with 0
+	 * @throws IOException If the WARC can not be read
+	 */
+	public List<Long> split(long rangeSize) throws IOException {
+		List<Long> starts = new ArrayList<Long>();
+		starts.add(0L);
+		long size = channel.size();
+		long target = rangeSize;
+		while (target < size) {
+			long member = nextMember(target);
+			if (member < 0) {
+				break;
+			}
+			starts.add(member);
+			target = Math.max(target, member) + rangeSize;
+		}
+		return starts;
+	}
+
+	/**
+	 * @param from Offset in the WARC
+	 * @return Offset of the first member starting at or after <code>from</code>, or -1 if there is none
+	 * @throws IOException If the WARC can not be read
+	 */
+	public long nextMember(long from) throws IOException {
+		if (cdxOffsets != null) {
+			int i = Collections.binarySearch(cdxOffsets, from);
+			i = i < 0 ? -i - 1 : i;
+			if (i == cdxOffsets.size()) {
+				return -1;
+			}
+			long offset = cdxOffsets.get(i);
+			if (isMember(offset)) {
+				return offset;
+			}
+			log.warn("No gzip member at offset " + offset + " of " + warcFile + ", as the CDX says. Scanning.");
+			cdxOffsets = null;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+		byte[] bytes = buffer.array();
+		long position = from;
+		while (true) {
+			buffer.clear();
+			int read = channel.read(buffer, position);
+			if (read < 3) {
+				return -1;
+			}
+			// Stop two bytes short, so a header split between reads is found in the next one
+			int end = read == buffer.capacity() ? read - 2 : read;
+			for (int i = 0; i < end; i++) {
+				if (bytes[i] == (byte)0x1f && i + 2 < read && bytes[i + 1] == (byte)0x8b && bytes[i + 2] == 8 &&
+						isMember(position + i)) {
+					return position + i;
+				}
+			}
+			position += end;
+		}
+	}
+
+	/**
+	 * @return true if a gzip member, whose content starts with a WARC record, begins at the offset
+	 */
+	private boolean isMember(long offset) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(VALIDATE_BUFFER_SIZE);
+		int read = channel.read(buffer, offset);
+		byte[] bytes = buffer.array();
+		if (read < 10 || bytes[0] != (byte)0x1f || bytes[1] != (byte)0x8b || bytes[2] != 8) {
+			return false;
+		}
+		int flags = bytes[3] & 0xff;
+		if ((flags & RESERVED) != 0) {
+			return false;
+		}
+		int pos = 10;
+		if ((flags & FEXTRA) != 0) {
+			if (pos + 2 > read) {
+				return false;
+			}
+			pos += 2 + ((bytes[pos] & 0xff) | (bytes[pos + 1] & 0xff) << 8);
+		}
+		if ((flags & FNAME) != 0) {
+			while (pos < read && bytes[pos] != 0) {
+				pos++;
+			}
+			pos++;
+		}
+		if ((flags & FCOMMENT) != 0) {
+			while (pos < read && bytes[pos] != 0) {
+				pos++;
+			}
+			pos++;
+		}
+		if ((flags & FHCRC) != 0) {
+			pos += 2;
+		}
+		if (pos >= read) {
+			return false;
+		}
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(bytes, pos, read - pos);
+			byte[] start = new byte[WARC_VERSION_PREFIX.length];
+			int inflated = 0;
+			while (inflated < start.length && !inflater.finished() && !inflater.needsInput()) {
+				inflated += inflater.inflate(start, inflated, start.length - inflated);
+			}
+			if (inflated < start.length) {
+				return false;
+			}
+			for (int i = 0; i < start.length; i++) {
+				if (start[i] != WARC_VERSION_PREFIX[i]) {
+					return false;
+				}
+			}
+			return true;
+		} catch (DataFormatException e) {
+			return false;
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * @return A CDX file for the WARC, i.e. with the same name, but ending in .cdx (or .cdx.gz) rather than
+	 *         .warc.gz, or with that added to the WARC's name. Null if there is none.
+	 */
+	private static File findCdx(File warcFile) {
+		String name = warcFile.getName();
+		String base = name.replaceFirst("\\.warc\\.gz$", "");
+		for (String candidate : new String[] {base + ".cdx", base + ".cdx.gz", name + ".cdx", name + ".cdx.gz"}) {
+			File cdx = new File(warcFile.getParentFile(), candidate);
+			if (cdx.isFile()) {
+				return cdx;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return The sorted offsets of the WARC's records in a CDX
+	 */
+	private static List<Long> readOffsets(File cdx, String warcName) throws IOException {
+		InputStream in = new FileInputStream(cdx);
+		if (cdx.getName().endsWith(".gz")) {
+			in = new GZIPInputStream(in);
+		}
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+		List<Long> offsets = new ArrayList<Long>();
+		try {
+			String line = reader.readLine();
+			CdxFormat format = CdxFormat.detect(line, CdxFormat.CDX11);
+			for (; line != null; line = reader.readLine()) {
+				if (line.isEmpty() || CdxFormat.isHeader(line)) {
+					continue;
+				}
+				CdxRecord record = format.parse(line);
+				if (record == null || record.getOffset() == null ||
+						(record.getFilename() != null && !record.getFilename().endsWith(warcName))) {
+					continue;
+				}
+				try {
+					offsets.add(Long.parseLong(record.getOffset()));
+				} catch (NumberFormatException e) {
+					log.debug("Ignoring invalid offset in " + cdx + ": " + line);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		Collections.sort(offsets);
+		return offsets;
+	}
+
+	/**
+	 * An input stream over a byte range of a file, to be read by a {@link GZIPInputStream}. Reports the bytes left in
+	 * the range as available, so that the GZIPInputStream continues with the next member.
+	 */
+	public static class RangeInputStream extends InputStream {
+		private final FileChannel channel;
+		private long position;
+		private final long end;
+
+		/**
+		 * @param channel The file. Closed along with the stream.
+		 * @param start Start of the range
+		 * @param end End of the range (exclusive)
+		 */
+		public RangeInputStream(FileChannel channel, long start, long end) {
+			this.channel = channel;
+			this.position = start;
+			this.end = end;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (position >= end) {
+				return -1;
+			}
+			len = (int)Math.min(len, end - position);
+			int read = channel.read(ByteBuffer.wrap(b, off, len), position);
+			if (read > 0) {
+				position += read;
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(long n) {
+			long skipped = Math.max(0, Math.min(n, end - position));
+			position += skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() {
+			return (int)Math.min(Integer.MAX_VALUE, end - position);
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+}
@@ -19,26 +19,45 @@ package is.landsbokasafn.deduplicator.indexer;
 import static is.landsbokasafn.deduplicator.IndexFields.DATE;
 import static is.landsbokasafn.deduplicator.IndexFields.DIGEST;
 import static is.landsbokasafn.deduplicator.IndexFields.ETAG;
+import static is.landsbokasafn.deduplicator.IndexFields.KEY;
+import static is.landsbokasafn.deduplicator.IndexFields.ORIGINAL_RECORD_ID;
 import static is.landsbokasafn.deduplicator.IndexFields.URL;
 import static is.landsbokasafn.deduplicator.IndexFields.URL_CANONICALIZED;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.FieldType;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FieldInfo.IndexOptions;
+import org.apache.lucene.index.IndexFileNames;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.Term;
-import org.apache.lucene.search.BooleanClause.Occur;
-import org.apache.lucene.search.BooleanQuery;
-import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.util.Version;
+import org.archive.util.DateUtils;
 import org.archive.wayback.util.url.AggressiveUrlCanonicalizer;
 
+import is.landsbokasafn.deduplicator.IndexPartitioning;
+import is.landsbokasafn.deduplicator.IndexPartitions;
+
 /**
  * A class for building a de-duplication index.
  *
@@ -51,9 +70,12 @@ public class IndexBuilder {
 	
 	public static final String WARC_DATE_FORMAT="yyyy-MM-dd'T'HH:mm:ss'Z'";
 	
-    /** The index being manipulated **/
+    /** The index being manipulated. Null if the index is partitioned. **/
     IndexWriter index;
     
+    /** Writers for each partition, keyed on partition name. Opened as needed. **/
+    Map<String, IndexWriter> partitions = new HashMap<String, IndexWriter>();
+    
     private static final AggressiveUrlCanonicalizer canonicalizer = new AggressiveUrlCanonicalizer();
     
     // The options with default settings
@@ -61,6 +83,38 @@ public class IndexBuilder {
     boolean includeCanonicalizedURL = false;
     boolean indexURL = true;
     boolean indexDigestScheme = false;
+    boolean addToExistingIndex = false;
+    String indexLocation;
+    IndexPartitioning partitioning = IndexPartitioning.NONE;
+    KeyPostingsFormat keyPostingsFormat = KeyPostingsFormat.DEFAULT;
+    
+    /** Keys written during this run. Null if not tracked. **/
+    SeenKeySet seenKeys = null;
+    /** Number of documents not written as an identical one had already been written during this run **/
+    long repeated = 0;
+    /** Collects the entries when building in bulk. Null otherwise. **/
+    EntrySorter sorter = null;
+    
+    /** Number of segments to merge each index down to when building in bulk **/
+    int maxSegments = 1;
+    
+    /** The source files written to the index. Null if not tracked. **/
+    IndexManifest manifest = null;
+    /** Minimum time, in milliseconds, between commits when tracking source files **/
+    long commitInterval = 0;
+    private volatile long lastCommit = System.currentTimeMillis();
+    /** Whether anything has been written since the last commit **/
+    private boolean uncommitted = false;
+    private volatile long commits = 0;
+    
+    /** Reads, transforms and writes crawl data on separate threads. Null to do it all on one thread. **/
+    IndexingPipeline<Entry> pipeline = null;
+    
+    /** Memory, in bytes, that the workers may use for documents read ahead of their turn, in all **/
+    long readAhead = Runtime.getRuntime().maxMemory() / 4;
+    
+    /** Size of the index writers' RAM buffer when building in bulk **/
+    private static final double BULK_RAM_BUFFER_MB = 256;
 
     /**
      * Each instance of this class wraps one Lucene index for writing 
@@ -85,12 +139,150 @@ public class IndexBuilder {
             boolean includeEtag,
             boolean addToExistingIndex,
             boolean indexDigestScheme) throws IOException {
+    	this(indexLocation, indexURL, includeCanonicalizedURL, includeEtag, addToExistingIndex, indexDigestScheme, 
+    			IndexPartitioning.NONE, KeyPostingsFormat.DEFAULT);
+    }
+
+    /**
+     * Each instance of this class wraps one Lucene index, or a set of time based partitions, for writing 
+     * deduplication information to it.
+     * 
+     * @param partitioning How to partition the index. If not {@link IndexPartitioning#NONE}, 
+     *                     <code>indexLocation</code> is a directory of partitions, each a separate index named after
+     *                     its period. Partitions are opened as needed. Unless adding to an existing index, any 
+     *                     index at the location, partitioned or not, is deleted first. When adding, the existing
+     *                     index must be partitioned the same way (or not at all).
+     * @throws IllegalStateException If adding to an index that is partitioned differently
+     * @param keyPostingsFormat The postings format to use for the DIGEST and URL fields.
+     * @see #IndexBuilder(String, boolean, boolean, boolean, boolean, boolean)
+     */
+    public IndexBuilder(
+            String indexLocation,
+            boolean indexURL,
+            boolean includeCanonicalizedURL,
+            boolean includeEtag,
+            boolean addToExistingIndex,
+            boolean indexDigestScheme,
+            IndexPartitioning partitioning,
+            KeyPostingsFormat keyPostingsFormat) throws IOException {
         
     	this.indexURL = indexURL;
         this.includeEtag = includeEtag;
         this.includeCanonicalizedURL = includeCanonicalizedURL;
         this.indexDigestScheme = indexDigestScheme;
+        this.addToExistingIndex = addToExistingIndex;
+        this.indexLocation = indexLocation;
+        this.partitioning = partitioning;
+        this.keyPostingsFormat = keyPostingsFormat;
         
+        File location = new File(indexLocation);
+        if (addToExistingIndex) {
+        	verifyLayout(location);
+        } else {
+        	deleteIndex(location);
+        }
+        if (partitioning == IndexPartitioning.NONE) {
+        	index = openWriter(new File(indexLocation));
+        }
+    }
+    
+    /**
+     * Track the keys written during this run, so that documents identical to one already written can be skipped
+     * rather than replace it. The set is closed along with the index.
+     * @param seenKeys The set to use, or null to write every document
+     */
+    public void setSeenKeySet(SeenKeySet seenKeys) {
+    	this.seenKeys = seenKeys;
+    }
+    
+    /**
+     * Build the index in bulk. Rather than writing entries to the index as they are read, they are sorted (on disk,
+     * if need be) by digest and URL, entries superseded by later ones with the same key are dropped, and the rest
+     * written in sorted order when the index is closed. Each index (or partition) ends up with a single segment. 
+     * Builds faster and yields a smaller index, with related keys close together, but only possible for new indexes.
+     * @param sortBuffer The number of entries to sort in memory at a time
+     * @throws IllegalStateException If adding to an existing index
+     */
+    public void setBulkBuild(int sortBuffer) {
+    	setBulkBuild(sortBuffer, null);
+    }
+    
+    /**
+     * Build the index in bulk, choosing between entries with the same key by something other than the order they
+     * were added in.
+     * @param precedence Where entries share a key, the greatest one is kept. Null to keep the last one added.
+     * @see #setBulkBuild(int)
+     */
+    void setBulkBuild(int sortBuffer, Comparator<Entry> precedence) {
+    	if (addToExistingIndex) {
+    		throw new IllegalStateException("Can only build new indexes in bulk");
+    	}
+    	sorter = new EntrySorter(sortBuffer, null, precedence);
+    	if (index != null) {
+    		index.getConfig().setRAMBufferSizeMB(BULK_RAM_BUFFER_MB);
+    	}
+    }
+    
+    /**
+     * Track the source files written to the index in a manifest, committing the index (and saving the manifest)
+     * periodically. Source files that are in the manifest, and have not changed since, are skipped. Thus, an 
+     * interrupted run can be resumed, and the same source directory indexed again to pick up new files, by adding to 
+     * the index.
+     * <p>
+     * Only applies to {@link SplittableCrawlDataIterator}s whose parts know the file they are read from. When 
+     * building in bulk, nothing is committed (and the manifest not saved) until the index is closed. Without a 
+     * manifest, the index is only committed when closed.
+     * @param manifest The manifest. When adding to an existing index, its manifest as read by 
+     *                 {@link IndexManifest#load(File)}.
+     * @param commitInterval Minimum time, in milliseconds, between commits. The index is committed once a source 
+     *                       file has been completely written, if at least this long has passed since the last commit.
+     *                       If greater than zero, the index is also committed when writing a document this long 
+     *                       after the last commit, so that a source that is read for a long time (such as a log that
+     *                       is being followed) is committed as it is read. 
+     */
+    public void setManifest(IndexManifest manifest, long commitInterval) {
+    	this.manifest = manifest;
+    	this.commitInterval = commitInterval;
+    }
+    
+    /**
+     * Index crawl data in a pipeline (see {@link IndexingPipeline}), with one thread reading it, a number of workers
+     * filtering items and preparing documents, and documents written on the thread doing the indexing. Applies
+     * when the crawl data is read on a single thread, i.e. unless a {@link SplittableCrawlDataIterator} is indexed
+     * with more than one thread. The index is the same either way.
+     * @param workers Number of threads preparing documents. 0 to index without a pipeline.
+     * @param queueCapacity Number of batches of items that may wait between stages
+     */
+    public void setPipeline(int workers, int queueCapacity) {
+    	pipeline = workers > 0 ? new IndexingPipeline<Entry>(workers, queueCapacity) : null;
+    }
+    
+    /**
+     * Set how much memory the threads indexing a {@link SplittableCrawlDataIterator} may use, between them, for 
+     * documents prepared before it is their turn to write them. A thread that has used its share waits for the parts
+     * before its own to be written. The more memory, the less the threads wait for each other. 
+     * @param bytes Memory for read ahead documents, in bytes. Default is a quarter of the maximum heap size.
+     * @see #writeToIndex(CrawlDataIterator, String, boolean, boolean, int)
+     */
+    public void setReadAhead(long bytes) {
+    	if (bytes < 1) {
+    		throw new IllegalArgumentException("Read ahead must be at least 1 byte");
+    	}
+    	this.readAhead = bytes;
+    }
+    
+    /**
+     * @param maxSegments The number of segments to merge each index (or partition) down to when building in bulk.
+     *                    Default is 1.
+     */
+    public void setMaxSegments(int maxSegments) {
+    	if (maxSegments < 1) {
+    		throw new IllegalArgumentException("Need at least one segment");
+    	}
+    	this.maxSegments = maxSegments;
+    }
+    
+    private IndexWriter openWriter(File location) throws IOException {
         IndexWriterConfig indexWriterConfig = 
         		new IndexWriterConfig(LUCENE_VER, new WhitespaceAnalyzer(LUCENE_VER));
         if (addToExistingIndex) {
@@ -98,10 +290,131 @@ public class IndexBuilder {
         } else {
         	indexWriterConfig.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
         }
+        indexWriterConfig.setCodec(keyPostingsFormat.createCodec());
+        if (sorter != null) {
+        	indexWriterConfig.setRAMBufferSizeMB(BULK_RAM_BUFFER_MB);
+        }
         
-        // Set up the index writer
-        index = new IndexWriter(FSDirectory.open(new File(indexLocation)),indexWriterConfig); 
+        Directory directory = FSDirectory.open(location);
+        if (addToExistingIndex) {
+        	verifyKeyed(directory, location);
+        }
         
+        // Set up the index writer
+        return new IndexWriter(directory,indexWriterConfig); 
+    }
+    
+    /**
+     * Refuse to add partitions to an unpartitioned index, or vice versa. When the index is opened, a single index 
+     * hides any partitions next to it (see {@link IndexPartitions#open(File)}), and adding a single index to a
+     * partitioned one would hide the partitions.
+     * @throws IllegalStateException If the index at the location is partitioned differently
+     */
+    private void verifyLayout(File location) throws IOException {
+    	if (!location.isDirectory()) {
+    		return;
+    	}
+    	boolean single = IndexPartitions.isSingleIndex(location);
+    	if (partitioning == IndexPartitioning.NONE) {
+    		if (!single && !IndexPartitions.listPartitions(location).isEmpty()) {
+    			throw new IllegalStateException("Index at " + location + " is partitioned. Add to it with the " +
+    					"partitioning it was built with.");
+    		}
+    	} else if (single) {
+    		throw new IllegalStateException("Index at " + location + " is not partitioned and can not be added to " +
+    				"with partitioning " + partitioning);
+    	}
+    }
+    
+    /**
+     * Delete the index at a location, i.e. the files of a single index, any partitions and the index manifest, so
+     * that nothing from an earlier build is read along with the new index. Other files are left in place.
+     * @throws IOException If the index is in use, or can not be deleted
+     */
+    private static void deleteIndex(File location) throws IOException {
+    	if (!location.isDirectory()) {
+    		return;
+    	}
+    	List<File> indexes = IndexPartitions.listPartitions(location);
+    	indexes.add(location);
+    	for (File dir : indexes) {
+    		Directory directory = FSDirectory.open(dir);
+    		try {
+    			if (IndexWriter.isLocked(directory)) {
+    				throw new IOException("Index at " + dir + " is in use");
+    			}
+    		} finally {
+    			directory.close();
+    		}
+    	}
+    	for (File partition : indexes.subList(0, indexes.size() - 1)) {
+    		FileUtils.deleteDirectory(partition);
+    	}
+    	File[] files = location.listFiles();
+    	for (File file : files == null ? new File[0] : files) {
+    		String name = file.getName();
+    		if (file.isFile() && (name.startsWith(IndexFileNames.SEGMENTS) || name.equals(IndexManifest.FILE_NAME) 
+    				|| IndexFileNames.CODEC_FILE_PATTERN.matcher(name).matches())) {
+    			if (!file.delete()) {
+    				throw new IOException("Unable to delete " + file);
+    			}
+    		}
+    	}
+    }
+    
+    /**
+     * Refuse to add to an index built before documents were given a KEY. Documents are replaced by their KEY, so 
+     * captures already in such an index would be duplicated rather than replaced.
+     * @throws IllegalStateException If the index has documents without a KEY
+     */
+    private static void verifyKeyed(Directory directory, File location) throws IOException {
+    	if (!DirectoryReader.indexExists(directory)) {
+    		return;
+    	}
+    	DirectoryReader reader = DirectoryReader.open(directory);
+    	try {
+    		for (AtomicReaderContext rc : reader.leaves()) {
+    			AtomicReader ar = rc.reader();
+    			if (ar.numDocs() > 0 && ar.getFieldInfos().fieldInfo(KEY.name()) == null) {
+    				throw new IllegalStateException("Index at " + location + " was built without the " + 
+    						KEY.name() + " field and can not be added to. Rebuild it with " + 
+    						IndexCompactor.class.getSimpleName() + " first.");
+    			}
+    		}
+    	} finally {
+    		reader.close();
+    	}
+    }
+    
+    /**
+     * @param timestamp The DATE of the capture being indexed
+     * @return The writer for the index, or partition, the capture belongs in
+     */
+    private IndexWriter getWriter(String timestamp) throws IOException {
+    	if (partitioning == IndexPartitioning.NONE) {
+    		return index;
+    	}
+    	String partition = partitioning.partitionFor(timestamp);
+    	return getPartitionWriter(partition);
+    }
+    
+    /**
+     * @return The name of the partition a capture belongs in, empty if the index is not partitioned
+     */
+    private String partitionOf(String timestamp) {
+    	return partitioning == IndexPartitioning.NONE ? "" : partitioning.partitionFor(timestamp);
+    }
+    
+    private IndexWriter getPartitionWriter(String partition) throws IOException {
+    	if (partitioning == IndexPartitioning.NONE) {
+    		return index;
+    	}
+    	IndexWriter writer = partitions.get(partition);
+    	if (writer == null) {
+    		writer = openWriter(new File(indexLocation, partition));
+    		partitions.put(partition, writer);
+    	}
+    	return writer;
     }
 
     /**
@@ -128,116 +441,606 @@ public class IndexBuilder {
             boolean verbose) 
             throws IOException {
 
-        int count = 0;
-        int skipped = 0;
-        int unresolved = 0;
+        Counts counts = new Counts();
+        Pattern mimePattern = Pattern.compile(mimeFilter);
+        if (pipeline != null) {
+        	runPipeline(dataIt, mimePattern, blacklist, verbose, counts);
+        	pipeline.printStatistics();
+        } else {
+	        while (dataIt.hasNext()) {
+	            CrawlDataItem item = dataIt.next();
+	            Entry entry = prepare(item, mimePattern, blacklist, counts);
+	            if (entry == null) {
+	            	continue;
+	            }
+	            if (verbose && counts.count%10000==0) {
+	                System.out.println("Indexed " + counts.count + ", unresolved " + counts.unresolved + 
+	                		" - Last URL from " + item.getTimestamp());
+	            }
+	            write(entry);
+	        }
+        }
+        System.out.println("Indexed " + counts.count + " items (unresolved " + counts.unresolved + 
+        		", skipped " + counts.skipped + ", repeated " + repeated + ")");
+        return counts.count;
+    }
+
+    /**
+     * Writes the contents of a {@link CrawlDataIterator} to this index, using several threads if the iterator is
+     * a {@link SplittableCrawlDataIterator}.
+     * <p>
+     * Each thread reads and parses whole parts (e.g. WARC files) of the crawl data. Documents are written to the
+     * index by the same threads, but in the order of the parts, as a part is only written once all preceding parts 
+     * have been (while later parts are read ahead, see {@link #setReadAhead(long)}). The resulting index therefore 
+     * has the same content as if the crawl data had been indexed by 
+     * {@link #writeToIndex(CrawlDataIterator, String, boolean, boolean)}, which matters when a capture replaces an 
+     * earlier one with the same URL and digest.
+     * 
+     * If a manifest is kept (see {@link #setManifest(IndexManifest, long)}), the iterator is split even when using
+     * a single thread, so that progress can be recorded one source file at a time.
+     * 
+     * @param threads The number of threads to use. If 1, or the iterator can not be split, the crawl data is 
+     *                indexed on the calling thread.
+     * @see #writeToIndex(CrawlDataIterator, String, boolean, boolean)
+     */
+    public long writeToIndex(
+            CrawlDataIterator dataIt, 
+            final String mimeFilter, 
+            final boolean blacklist,
+            final boolean verbose,
+            int threads) 
+            throws IOException {
+    	if ((threads <= 1 && manifest == null) || !(dataIt instanceof SplittableCrawlDataIterator)) {
+    		return writeToIndex(dataIt, mimeFilter, blacklist, verbose);
+    	}
+    	List<CrawlDataPart> parts = ((SplittableCrawlDataIterator)dataIt).split();
+    	final Map<File, SourceProgress> sources = new HashMap<File, SourceProgress>();
+    	if (manifest != null) {
+    		parts = excludeIndexed(parts, sources);
+    	}
+    	final Counts total = new Counts();
+    	final Map<String, WorkerStats> workers = new TreeMap<String, WorkerStats>();
+    	final Pattern mimePattern = Pattern.compile(mimeFilter);
+    	// Parts are read one at a time, each through the pipeline
+    	final boolean pipelined = pipeline != null && threads <= 1;
+    	final long maxPendingBytes = Math.max(1, readAhead / threads);
+    	long start = System.nanoTime();
+    	
+    	SequencedWorkerPool<CrawlDataPart> pool = new SequencedWorkerPool<CrawlDataPart>(threads, "Indexer");
+    	pool.run(parts, new SequencedWorkerPool.Worker<CrawlDataPart>() {
+			@Override
+			public void process(CrawlDataPart part, SequencedWorkerPool.Turn turn) 
+					throws IOException {
+				long partStart = System.nanoTime();
+				long waited = 0;
+				Counts counts = new Counts();
+				List<Entry> pending = new ArrayList<Entry>();
+				long pendingBytes = 0;
+				CrawlDataIterator it = part.open();
+				try {
+					if (pipelined) {
+						// Parts are read one at a time, so it is always this part's turn
+						runPipeline(it, mimePattern, blacklist, verbose, counts);
+					} else {
+						while (it.hasNext()) {
+							Entry entry = prepare(it.next(), mimePattern, blacklist, counts);
+							if (entry == null) {
+								continue;
+							}
+							if (pending.isEmpty() && turn.isCurrent()) {
+								write(entry);
+							} else {
+								// Read ahead of the parts before this one. Wait for them if we get too far ahead.
+								pending.add(entry);
+								pendingBytes += entry.estimateSize();
+								if (pendingBytes >= maxPendingBytes) {
+									long waitStart = System.nanoTime();
+									turn.await();
+									waited += System.nanoTime() - waitStart;
+									writeAll(pending);
+									pendingBytes = 0;
+								}
+							}
+						}
+					}
+				} finally {
+					it.close();
+				}
+				long waitStart = System.nanoTime();
+				turn.await();
+				waited += System.nanoTime() - waitStart;
+				writeAll(pending);
+				partWritten(part, counts, sources);
+				
+				long took = System.nanoTime() - partStart;
+				synchronized (total) {
+					total.add(counts);
+					String worker = Thread.currentThread().getName();
+					WorkerStats stats = workers.get(worker);
+					if (stats == null) {
+						stats = new WorkerStats();
+						workers.put(worker, stats);
+					}
+					stats.parts++;
+					stats.items += counts.count;
+					stats.bytes += Math.max(0, part.getSize());
+					stats.nanos += took;
+					stats.waitNanos += waited;
+					if (verbose) {
+						System.out.println("Indexed " + counts.count + " items from " + part.getName() + " in " + 
+								DateUtils.formatMillisecondsToConventional(took/1000000) + " (" + worker + 
+								", " + total.count + " items in total)");
+					}
+				}
+			}
+		});
+    	
+    	long took = System.nanoTime() - start;
+        System.out.println("Indexed " + total.count + " items (unresolved " + total.unresolved + 
+        		", skipped " + total.skipped + ", repeated " + repeated + ") from " + parts.size() + " parts using " + 
+        		threads + " threads in " +
+        		DateUtils.formatMillisecondsToConventional(took/1000000));
+        for (Map.Entry<String, WorkerStats> worker : workers.entrySet()) {
+        	WorkerStats stats = worker.getValue();
+        	double seconds = Math.max(stats.nanos, 1) / 1000000000d;
+        	System.out.println(String.format(" %-12s %6d parts %12d items %10.1f items/s %8.1f MB/s %5.1f%% waiting", 
+        			worker.getKey(), stats.parts, stats.items, stats.items / seconds, 
+        			stats.bytes / seconds / (1024 * 1024), 100d * stats.waitNanos / Math.max(stats.nanos, 1)));
+        }
+        if (pipelined) {
+        	pipeline.printStatistics();
+        }
+    	return total.count;
+    }
+    
+    /**
+     * Index the items of an iterator through the pipeline.
+     * @param counts Updated with the outcome for each item
+     */
+    private void runPipeline(CrawlDataIterator dataIt, final Pattern mimeFilter, final boolean blacklist, 
+    		final boolean verbose, final Counts counts) throws IOException {
+    	pipeline.run(dataIt, new IndexingPipeline.Transformer<Entry>() {
+			@Override
+			public void transform(List<CrawlDataItem> items, List<Entry> results) {
+				Counts batch = new Counts();
+				for (CrawlDataItem item : items) {
+					Entry entry = prepare(item, mimeFilter, blacklist, batch);
+					if (entry != null) {
+						results.add(entry);
+					}
+				}
+				synchronized (counts) {
+					counts.add(batch);
+				}
+			}
+		}, new IndexingPipeline.Sink<Entry>() {
+			long written = 0;
+			@Override
+			public void write(Entry entry) throws IOException {
+				if (verbose && ++written%10000==0) {
+					long unresolved;
+					synchronized (counts) {
+						unresolved = counts.unresolved;
+					}
+					System.out.println("Indexed " + written + ", unresolved " + unresolved + 
+							" - Last URL from " + entry.timestamp + " (batches queued: " + 
+							pipeline.getSourceQueueDepth() + " to prepare, " + pipeline.getResultQueueDepth() + 
+							" to write)");
+				}
+				IndexBuilder.this.write(entry);
+			}
+		});
+    }
+    
+    /**
+     * Leave out the parts of source files that are already in the manifest, and note the size and modification time
+     * of the rest, before they are read.
+     * @param sources Receives the source files to be read
+     * @return The remaining parts
+     */
+    private List<CrawlDataPart> excludeIndexed(List<CrawlDataPart> parts, Map<File, SourceProgress> sources) {
+    	List<CrawlDataPart> remaining = new ArrayList<CrawlDataPart>();
+    	Set<File> skipped = new HashSet<File>();
+    	for (CrawlDataPart part : parts) {
+    		File file = part.getFile();
+    		if (file == null) {
+    			remaining.add(part);
+    			continue;
+    		}
+    		if (skipped.contains(file) || (!sources.containsKey(file) && manifest.isIndexed(file))) {
+    			skipped.add(file);
+    			continue;
+    		}
+    		SourceProgress source = sources.get(file);
+    		if (source == null) {
+    			source = new SourceProgress(file.length(), file.lastModified());
+    			sources.put(file, source);
+    		}
+    		source.lastPart = part;
+    		remaining.add(part);
+    	}
+    	if (!skipped.isEmpty()) {
+    		System.out.println("Skipping " + skipped.size() + " source files already in the index manifest");
+    	}
+    	return remaining;
+    }
+    
+    /**
+     * Note that a part has been written to the index. Once all parts of a source file have been written, the file 
+     * is added to the manifest and the index committed, if it is time. Only invoked in turn, i.e. once all preceding
+     * parts have been written.
+     */
+    private void partWritten(CrawlDataPart part, Counts counts, Map<File, SourceProgress> sources) 
+    		throws IOException {
+    	SourceProgress source = part.getFile() == null ? null : sources.get(part.getFile());
+    	if (source == null) {
+    		return;
+    	}
+    	source.records += counts.count + counts.skipped + counts.unresolved;
+    	if (source.lastPart != part) {
+    		return;
+    	}
+    	manifest.put(part.getFile(), source.size, source.lastModified, source.records);
+    	if (sorter == null && System.currentTimeMillis() - lastCommit >= commitInterval) {
+    		commit();
+    	}
+    }
+    
+    /**
+     * Commit the index if anything has been written since the last commit, and the commit interval has passed. For
+     * long running processes that write to the index now and then. Not thread safe.
+     * @see #setManifest(IndexManifest, long)
+     */
+    void commitIfDue() throws IOException {
+    	if (uncommitted && sorter == null && System.currentTimeMillis() - lastCommit >= commitInterval) {
+    		commit();
+    	}
+    }
+    
+    /**
+     * @return The number of times the index has been committed, other than when closing it
+     */
+    long getCommits() {
+    	return commits;
+    }
+    
+    /**
+     * @return The time of the last commit, or of when the builder was created if not committed yet
+     */
+    long getLastCommit() {
+    	return lastCommit;
+    }
+    
+    /**
+     * Commit all changes to the index (or each partition), and then save the manifest, if any.
+     */
+    private void commit() throws IOException {
+    	long start = System.currentTimeMillis();
+    	if (index != null) {
+    		index.commit();
+    	}
+    	for (IndexWriter writer : partitions.values()) {
+    		writer.commit();
+    	}
+    	if (manifest != null) {
+    		manifest.save();
+    	}
+    	uncommitted = false;
+    	commits++;
+    	lastCommit = System.currentTimeMillis();
+    	long docs = index != null ? index.numDocs() : 0;
+    	for (IndexWriter writer : partitions.values()) {
+    		docs += writer.numDocs();
+    	}
+    	System.out.println("Committed the index, " + docs + " documents" + 
+    			(manifest != null ? ", " + manifest.size() + " source files in the manifest" : "") + " (took " + 
+    			DateUtils.formatMillisecondsToConventional(lastCommit - start) + ")");
+    }
+    
+    /**
+     * A source file being indexed.
+     */
+    private static class SourceProgress {
+    	final long size;
+    	final long lastModified;
+    	long records = 0;
+    	/** The last part of the file. Once written, so is the whole file. **/
+    	CrawlDataPart lastPart;
+    	
+    	SourceProgress(long size, long lastModified) {
+    		this.size = size;
+    		this.lastModified = lastModified;
+    	}
+    }
+    
+    /**
+     * Item counts while indexing.
+     */
+    private static class Counts {
+        long count = 0;
+        long skipped = 0;
+        long unresolved = 0;
+        
+        void add(Counts other) {
+        	count += other.count;
+        	skipped += other.skipped;
+        	unresolved += other.unresolved;
+        }
+    }
+    
+    /**
+     * Throughput of a worker thread while indexing in parallel.
+     */
+    private static class WorkerStats {
+    	long parts = 0;
+    	long items = 0;
+    	long bytes = 0;
+    	long nanos = 0;
+    	/** Time spent waiting for the turn to write **/
+    	long waitNanos = 0;
+    }
 
-        // Define field types for indexed and non indexed fields. No fields are tokenized
-        FieldType ftIndexed = new FieldType();
+    // Define field types for indexed and non indexed fields. No fields are tokenized
+    private static final FieldType ftIndexed = new FieldType();
+    static {
         ftIndexed.setIndexed(true);
         ftIndexed.setTokenized(false);
         ftIndexed.setStored(true);
-
-        FieldType ftNotIndexed = new FieldType(ftIndexed);
+        ftIndexed.freeze();
+    }
+    private static final FieldType ftNotIndexed = new FieldType(ftIndexed);
+    static {
         ftNotIndexed.setIndexed(false);
-        
-        while (dataIt.hasNext()) {
-            CrawlDataItem item = dataIt.next();
-
-            if (item.getStatusCode()!=200) {
-            	// Only index items that were crawled without issues
-            	// TODO: Consider widening to 4XXs at least
-                skipped++;
-            	continue;
-            }
-            
-            if (item.getMimeType().matches(mimeFilter) == blacklist) {
-            	skipped++;
-            	continue;
-            }
-
-            String url = item.getURL();
-            String timestamp = item.getTimestamp();
-
-            if (item.isRevisit()) {
-            	if (item.getOriginalURL()==null || item.getOriginalTimestamp()==null) {
-            		// Can't index without information about the original capture 
-        			unresolved++;
-            		continue;
-            	} else {
-            		url = item.getOriginalURL();
-            		timestamp = item.getOriginalTimestamp();
-            	}
-            }
-
-            // Ok, we wish to index this URL/Digest
-            count++;
-            if (verbose && count%10000==0) {
-                System.out.println("Indexed " + count + ", unresolved " + unresolved + " - Last URL " +
-                		"from " + item.getTimestamp());
-            }
-
-            if (url.contains("\"")) {
-            	// TODO: Consider other sanity checks and also option to just log and continue on failed
-            	//       sanity checks.
-            	throw new IllegalStateException("Double quotes in URLs should always be properly escaped. " 
-            			+ item.getURL());
-            }
+        ftNotIndexed.freeze();
+    }
+    // The KEY field is only ever used to find documents to replace
+    private static final FieldType ftKey = new FieldType();
+    static {
+        ftKey.setIndexed(true);
+        ftKey.setTokenized(false);
+        ftKey.setStored(false);
+        ftKey.setOmitNorms(true);
+        ftKey.setIndexOptions(IndexOptions.DOCS_ONLY);
+        ftKey.freeze();
+    }
+    
+    // Seeds for the hashes used with the SeenKeySet
+    private static final long KEY_HASH_SEED = 0;
+    private static final long CONTENT_HASH_SEED = 0x5bd1e995L;
 
-            // Add URL to document.
+    /**
+     * A capture ready to be written to the index.
+     */
+    static class Entry {
+    	final String url;
+    	final String canonicalizedURL; // Null if not included
+    	final String digest;
+    	final String timestamp;
+    	final String etag; // Null if not included
+    	final String originalRecordId; // Null if not known
+    	final String key;
+    	long keyHash;
+    	long contentHash;
+    	
+    	/** Rough heap use of an entry and of a string, not counting the characters **/
+    	private static final int ENTRY_OVERHEAD = 64;
+    	private static final int STRING_OVERHEAD = 56;
+    	
+    	Entry(String url, String canonicalizedURL, String digest, String timestamp, String etag, 
+    			String originalRecordId, String key) {
+    		this.url = url;
+    		this.canonicalizedURL = canonicalizedURL;
+    		this.digest = digest;
+    		this.timestamp = timestamp;
+    		this.etag = etag;
+    		this.originalRecordId = originalRecordId;
+    		this.key = key;
+    	}
+    	
+    	/**
+    	 * @return A rough estimate of the memory used by the entry
+    	 */
+    	long estimateSize() {
+    		long size = ENTRY_OVERHEAD;
+    		for (String s : new String[] {url, canonicalizedURL, digest, timestamp, etag, originalRecordId, key}) {
+    			if (s != null) {
+    				size += STRING_OVERHEAD + 2L * s.length();
+    			}
+    		}
+    		return size;
+    	}
+    	
+    	/**
+    	 * @param indexURL Whether the URL fields are indexed
+    	 * @return The document for the index
+    	 */
+    	Document toDocument(boolean indexURL) {
             Document doc = new Document();
-
             doc.add(new Field(
                     URL.name(),
                     url,
                     (indexURL ? ftIndexed : ftNotIndexed)));
-            if(includeCanonicalizedURL){
+            if (canonicalizedURL != null) {
                 doc.add(new Field(
                         URL_CANONICALIZED.name(),
-                        canonicalizer.canonicalize(item.getURL()),
+                        canonicalizedURL,
                         (indexURL ? ftIndexed : ftNotIndexed)));
             }
-
-            // Add digest to document
-            String digest = item.getContentDigest();
-            if (!indexDigestScheme && digest.lastIndexOf(":") >= 0) {
-	            // The prefix will be terminated by a : which is immediately 
-	            // followed by the actual digest
-				digest = digest.substring(digest.lastIndexOf(":") + 1);
-            }
-
             doc.add(new Field(
                     DIGEST.name(),
                     digest,
                     ftIndexed));
-            
-            // add timestamp
             doc.add(new Field(
                     DATE.name(),
                     timestamp,
                     ftNotIndexed));
-
-            // Include etag?
-            if(includeEtag && item.getEtag()!=null){
+            if (etag != null) {
                 doc.add(new Field(
                         ETAG.name(),
-                        item.getEtag(),
+                        etag,
                         ftNotIndexed));
             }
-            if (indexURL) {
-            	// Delete any URL+Digest matches from index first
-            	BooleanQuery q = new BooleanQuery();
-            	q.add(new TermQuery(new Term(URL.name(), url)), Occur.MUST);
-            	q.add(new TermQuery(new Term(DIGEST.name(), item.getContentDigest())), Occur.MUST);
-            	index.deleteDocuments(q);
-            	index.addDocument(doc);
-            } else {
-                index.updateDocument(new Term(DIGEST.name()), doc);
+            if (originalRecordId != null) {
+                doc.add(new Field(
+                        ORIGINAL_RECORD_ID.name(),
+                        originalRecordId,
+                        ftNotIndexed));
             }
-            
+            // The unique key. A document with the same key replaces this one.
+            doc.add(new Field(
+            		KEY.name(),
+            		key,
+            		ftKey));
+            return doc;
+    	}
+    }
+
+    /**
+     * Turn a {@link CrawlDataItem} into an entry for the index, unless it should be left out. Thread safe.
+     * @param item The item
+     * @param counts Updated to reflect whether the item is indexed, skipped or unresolved
+     * @return The entry, or null if the item should not be indexed
+     */
+    private Entry prepare(CrawlDataItem item, Pattern mimeFilter, boolean blacklist, Counts counts) {
+        if (item.isRevisit() && (item.getOriginalURL()==null || item.getOriginalTimestamp()==null)) {
+        	// Can't index without information about the original capture. Checked first, as the status of such 
+        	// revisits is often not known (e.g. in CDX files)
+        	counts.unresolved++;
+        	return null;
+        }
+
+        if (item.getStatusCode()!=200) {
+        	// Only index items that were crawled without issues
+        	// TODO: Consider widening to 4XXs at least
+            counts.skipped++;
+        	return null;
+        }
+        
+        if (mimeFilter.matcher(item.getMimeType()).matches() == blacklist) {
+        	counts.skipped++;
+        	return null;
+        }
+
+        String url = item.getURL();
+        String timestamp = item.getTimestamp();
+
+        if (item.isRevisit()) {
+        	url = item.getOriginalURL();
+        	timestamp = item.getOriginalTimestamp();
+        }
+
+        // Ok, we wish to index this URL/Digest
+        counts.count++;
+
+        if (url.contains("\"")) {
+        	// TODO: Consider other sanity checks and also option to just log and continue on failed
+        	//       sanity checks.
+        	throw new IllegalStateException("Double quotes in URLs should always be properly escaped. " 
+        			+ item.getURL());
+        }
+
+        String canonicalizedURL = null;
+        if(includeCanonicalizedURL){
+        	canonicalizedURL = canonicalizer.canonicalize(item.getURL());
+        }
+
+        String digest = item.getContentDigest();
+        if (!indexDigestScheme && digest.lastIndexOf(":") >= 0) {
+            // The prefix will be terminated by a : which is immediately 
+            // followed by the actual digest
+			digest = digest.substring(digest.lastIndexOf(":") + 1);
+        }
+
+        String etag = null;
+        if(includeEtag && item.getEtag()!=null){
+        	etag = item.getEtag();
+        }
+        
+        String key = keyOf(url, digest, indexURL);
+        Entry entry = new Entry(url, canonicalizedURL, digest, timestamp, etag, null, key);
+        if (seenKeys != null) {
+        	entry.keyHash = SeenKeySet.hash(KEY_HASH_SEED, key);
+        	entry.contentHash = SeenKeySet.hash(CONTENT_HASH_SEED, url, digest, timestamp, canonicalizedURL, etag);
+        }
+        return entry;
+    }
+    
+    /**
+     * @return The unique KEY of a capture
+     */
+    static String keyOf(String url, String digest, boolean indexURL) {
+    	return indexURL ? url + " " + digest : digest;
+    }
+    
+    /**
+     * Write an entry to the index. Not thread safe.
+     */
+    void add(Entry entry) throws IOException {
+    	write(entry);
+    }
+    
+    /**
+     * Write an entry, prepared by {@link #prepare(CrawlDataItem, Pattern, boolean, Counts)}, to the index. 
+     * Not thread safe.
+     */
+    private void write(Entry entry) throws IOException {
+        if (seenKeys != null && !seenKeys.add(entry.keyHash, entry.contentHash)) {
+        	// An identical document has already been written during this run, writing it again changes nothing
+        	repeated++;
+        	return;
+        }
+        if (sorter != null) {
+        	// Written once all entries have been sorted, see close()
+        	sorter.add(partitionOf(entry.timestamp), entry);
+        	return;
+        }
+        // Replaces any document with the same key (URL+Digest or Digest)
+        getWriter(entry.timestamp).updateDocument(new Term(KEY.name(), entry.key), entry.toDocument(indexURL));
+        uncommitted = true;
+        if (manifest != null && commitInterval > 0 && System.currentTimeMillis() - lastCommit >= commitInterval) {
+        	// Readers of the index see a consistent snapshot, up to this document
+        	commit();
         }
-        System.out.println("Indexed " + count + " items (unresolved " + unresolved + ", skipped " + skipped + ")");
-        return count;
+    }
+    
+    /**
+     * Write the entries collected when building in bulk, and merge each index down to the maximum number of 
+     * segments.
+     */
+    private void writeSorted() throws IOException {
+    	long start = System.currentTimeMillis();
+    	long written;
+    	try {
+    		written = sorter.writeSorted(new EntrySorter.Sink() {
+    			@Override
+    			public void write(String partition, Entry entry) throws IOException {
+    				// Keys are unique after sorting, no need to update
+    				getPartitionWriter(partition).addDocument(entry.toDocument(indexURL));
+    			}
+    		});
+    	} finally {
+    		sorter.close();
+    	}
+        System.out.println("Wrote " + written + " sorted entries (" + sorter.getDropped() + " superseded, " + 
+        		sorter.getRuns() + " runs) in " + 
+        		DateUtils.formatMillisecondsToConventional(System.currentTimeMillis() - start));
+        start = System.currentTimeMillis();
+    	if (index != null) {
+    		index.forceMerge(maxSegments);
+    	}
+    	for (IndexWriter writer : partitions.values()) {
+    		writer.forceMerge(maxSegments);
+    	}
+        System.out.println("Merged to " + (maxSegments == 1 ? "a single segment" : maxSegments + " segments") +
+        		" in " + DateUtils.formatMillisecondsToConventional(System.currentTimeMillis() - start));
+    	sorter = null;
+    }
+    
+    private void writeAll(List<Entry> entries) throws IOException {
+    	for (Entry entry : entries) {
+    		write(entry);
+    	}
+    	entries.clear();
     }
     
     /**
@@ -245,7 +1048,46 @@ public class IndexBuilder {
      * @throws IOException If an error occurs closing the index.
      */
     public void close() throws IOException{
-        index.close();
+    	if (sorter != null) {
+    		writeSorted();
+    	}
+    	if (index != null) {
+    		index.close();
+    	}
+        for (IndexWriter writer : partitions.values()) {
+        	writer.close();
+        }
+        partitions.clear();
+        if (manifest != null) {
+        	// Only once everything has been committed
+        	manifest.save();
+        }
+        if (seenKeys != null) {
+        	seenKeys.close();
+        }
+    }
+    
+    /**
+     * Close the index without committing what has been written since the last commit, releasing its write lock. 
+     * Entries collected for a bulk build are discarded and the manifest, if any, is not saved. For when building the 
+     * index has failed.
+     * @throws IOException If an error occurs closing the index.
+     */
+    void abort() throws IOException {
+    	if (sorter != null) {
+    		sorter.close();
+    		sorter = null;
+    	}
+    	if (index != null) {
+    		index.rollback();
+    	}
+        for (IndexWriter writer : partitions.values()) {
+        	writer.rollback();
+        }
+        partitions.clear();
+        if (seenKeys != null) {
+        	seenKeys.close();
+        }
     }
 
 }
@@ -0,0 +1,381 @@
+/* Copyright (C) 2006-2014 National and University Library of Iceland (NULI)
+ * 
+ * This file is part of the DeDuplicator (Heritrix add-on module).
+ * 
+ *  NULI licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package is.landsbokasafn.deduplicator.indexer;
+
+import static is.landsbokasafn.deduplicator.IndexFields.DATE;
+import static is.landsbokasafn.deduplicator.IndexFields.DIGEST;
+import static is.landsbokasafn.deduplicator.IndexFields.ETAG;
+import static is.landsbokasafn.deduplicator.IndexFields.ORIGINAL_RECORD_ID;
+import static is.landsbokasafn.deduplicator.IndexFields.URL;
+import static is.landsbokasafn.deduplicator.IndexFields.URL_CANONICALIZED;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.util.Bits;
+import org.archive.util.ArchiveUtils;
+import org.archive.util.DateUtils;
+
+import is.landsbokasafn.deduplicator.IndexPartitioning;
+import is.landsbokasafn.deduplicator.IndexPartitions;
+import is.landsbokasafn.deduplicator.indexer.IndexBuilder.Entry;
+
+/**
+ * Merges one or more deduplication indexes into a new, compact, one. Keeps one document per key (URL+Digest, or
+ * Digest if URLs are not indexed) according to a {@link Retention} policy, drops deleted documents and merges the
+ * result down to a given number of segments. Sources may be single or partitioned indexes.
+ * <p>
+ * Documents are read by several threads, one segment at a time, and written in bulk (see
+ * {@link IndexBuilder#setBulkBuild(int)}).
+ * <p>
+ * Usage: <code>IndexCompactor [options] &lt;target&gt; &lt;source&gt;...</code>
+ */
+public class IndexCompactor {
+
+	/**
+	 * Which document to keep when several share a key.
+	 */
+	public enum Retention {
+		/** The oldest capture, i.e. the first time the content was seen at the URL **/
+		OLDEST,
+		/** The newest capture, as when appending to an index **/
+		NEWEST;
+
+		/**
+		 * @return Orders entries so that the one to keep is the greatest
+		 */
+		Comparator<Entry> precedence() {
+			final Retention retention = this;
+			return new Comparator<Entry>() {
+				@Override
+				public int compare(Entry a, Entry b) {
+					int c = 0;
+					switch (retention) {
+					case OLDEST:
+						c = normalizeDate(b.timestamp).compareTo(normalizeDate(a.timestamp));
+						break;
+					case NEWEST:
+						c = normalizeDate(a.timestamp).compareTo(normalizeDate(b.timestamp));
+						break;
+					}
+					// Make the outcome independent of the order documents are read in
+					if (c == 0) {
+						c = compareNullable(a.timestamp, b.timestamp);
+					}
+					if (c == 0) {
+						c = compareNullable(a.url, b.url);
+					}
+					if (c == 0) {
+						c = compareNullable(a.canonicalizedURL, b.canonicalizedURL);
+					}
+					if (c == 0) {
+						c = compareNullable(a.etag, b.etag);
+					}
+					if (c == 0) {
+						c = compareNullable(a.originalRecordId, b.originalRecordId);
+					}
+					return c;
+				}
+			};
+		}
+	}
+
+	/**
+	 * Dates are either 14 digit timestamps or W3C-ISO8601 ones, depending on the crawl data the index was built
+	 * from. Keeping only the digits makes them comparable.
+	 */
+	static String normalizeDate(String date) {
+		StringBuilder sb = new StringBuilder(14);
+		for (int i = 0; i < date.length() && sb.length() < 14; i++) {
+			char c = date.charAt(i);
+			if (c >= '0' && c <= '9') {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	private static int compareNullable(String a, String b) {
+		if (a == null || b == null) {
+			return a == null ? (b == null ? 0 : -1) : 1;
+		}
+		return a.compareTo(b);
+	}
+
+	private static final int SORT_BUFFER = 500000;
+
+	private final IndexBuilder builder;
+	private final boolean indexURL;
+	private final AtomicLong read = new AtomicLong();
+	private final AtomicLong malformed = new AtomicLong();
+
+	private IndexCompactor(IndexBuilder builder, boolean indexURL) {
+		this.builder = builder;
+		this.indexURL = indexURL;
+	}
+
+	/**
+	 * Read the live documents of a segment and pass them to the builder.
+	 */
+	private void compact(AtomicReader reader) throws IOException {
+		Bits liveDocs = reader.getLiveDocs();
+		for (int i = 0; i < reader.maxDoc(); i++) {
+			if (Thread.currentThread().isInterrupted()) {
+				throw new InterruptedIOException("Compaction aborted");
+			}
+			if (liveDocs != null && !liveDocs.get(i)) {
+				continue;
+			}
+			Document doc = reader.document(i);
+			read.incrementAndGet();
+			String url = doc.get(URL.name());
+			String digest = doc.get(DIGEST.name());
+			String date = doc.get(DATE.name());
+			if (url == null || digest == null || date == null) {
+				malformed.incrementAndGet();
+				continue;
+			}
+			Entry entry = new Entry(url, doc.get(URL_CANONICALIZED.name()), digest, date, doc.get(ETAG.name()),
+					doc.get(ORIGINAL_RECORD_ID.name()), IndexBuilder.keyOf(url, digest, indexURL));
+			synchronized (builder) {
+				builder.add(entry);
+			}
+		}
+	}
+
+	/**
+	 * @return true if the URL field is indexed in any segment
+	 */
+	private static boolean isURLIndexed(List<IndexReader> readers) {
+		for (IndexReader reader : readers) {
+			for (AtomicReaderContext leaf : reader.leaves()) {
+				FieldInfo info = leaf.reader().getFieldInfos().fieldInfo(URL.name());
+				if (info != null && info.isIndexed()) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static long sizeOf(File file) {
+		if (file.isDirectory()) {
+			long size = 0;
+			File[] files = file.listFiles();
+			if (files != null) {
+				for (File f : files) {
+					size += sizeOf(f);
+				}
+			}
+			return size;
+		}
+		return file.length();
+	}
+
+	private static void printStats(String label, File location, IndexReader reader) {
+		System.out.println(String.format(" %-40s %12d docs %12d deleted %5d segments %12s",
+				label + " " + location.getPath(), reader.numDocs(), reader.numDeletedDocs(), reader.leaves().size(),
+				ArchiveUtils.formatBytesForDisplay(sizeOf(location))));
+	}
+
+	private static Options options() {
+		Options options = new Options();
+		options.addOption(new Option("h", "help", false, "Prints this message and exits."));
+		Option opt = new Option("k", "keep", true,
+				"Which document to keep where several share a key. Either OLDEST or NEWEST. Default: NEWEST");
+		opt.setArgName("policy");
+		options.addOption(opt);
+		opt = new Option("s", "segments", true, "Number of segments to merge the index down to. Default: 1");
+		opt.setArgName("count");
+		options.addOption(opt);
+		opt = new Option("t", "threads", true,
+				"Number of threads reading the source indexes. Default: number of processors");
+		opt.setArgName("count");
+		options.addOption(opt);
+		opt = new Option("p", "partition-by", true,
+				"Split the new index into time based partitions. One of NONE, YEAR or MONTH. Default: NONE");
+		opt.setArgName("period");
+		options.addOption(opt);
+		opt = new Option("f", "postings-format", true,
+				"Postings format for the key fields. One of DEFAULT, BLOOM, PULSING or MEMORY. Default: DEFAULT");
+		opt.setArgName("format");
+		options.addOption(opt);
+		return options;
+	}
+
+	private static void usage(Options options, String message) {
+		if (message != null) {
+			System.out.println(message);
+		}
+		new HelpFormatter().printHelp(IndexCompactor.class.getName() + " [options] <target> <source>...",
+				"Merges deduplication indexes into a new one, keeping one document per key.", options, null);
+		System.exit(1);
+	}
+
+	public static void main(String[] args) throws Exception {
+		Options options = options();
+		CommandLine cl = null;
+		try {
+			cl = new PosixParser().parse(options, args);
+		} catch (ParseException e) {
+			usage(options, e.getMessage());
+		}
+		if (cl.hasOption('h') || cl.getArgs().length < 2) {
+			usage(options, null);
+		}
+		Retention retention = null;
+		IndexPartitioning partitioning = null;
+		KeyPostingsFormat postingsFormat = null;
+		int segments = 0;
+		int threads = 0;
+		try {
+			retention = Retention.valueOf(cl.getOptionValue('k', Retention.NEWEST.name()).trim().toUpperCase());
+			partitioning = IndexPartitioning.valueOf(
+					cl.getOptionValue('p', IndexPartitioning.NONE.name()).trim().toUpperCase());
+			postingsFormat = KeyPostingsFormat.valueOf(
+					cl.getOptionValue('f', KeyPostingsFormat.DEFAULT.name()).trim().toUpperCase());
+			segments = Integer.parseInt(cl.getOptionValue('s', "1").trim());
+			threads = Integer.parseInt(cl.getOptionValue('t',
+					Integer.toString(Runtime.getRuntime().availableProcessors())).trim());
+		} catch (IllegalArgumentException e) {
+			usage(options, "Invalid option value: " + e.getMessage());
+		}
+		if (segments < 1 || threads < 1) {
+			usage(options, "Number of segments and threads must be at least 1");
+		}
+
+		File target = new File(cl.getArgs()[0]);
+		List<File> sources = new ArrayList<File>();
+		for (int i = 1; i < cl.getArgs().length; i++) {
+			File source = new File(cl.getArgs()[i]);
+			if (source.getCanonicalFile().equals(target.getCanonicalFile())) {
+				usage(options, "The target can not also be a source");
+			}
+			sources.add(source);
+		}
+		if (target.exists() && target.list() != null && target.list().length > 0) {
+			usage(options, "Target " + target + " exists and is not empty");
+		}
+		compact(target, sources, retention, partitioning, postingsFormat, segments, threads);
+	}
+
+	/**
+	 * Compact the sources into a new index. If this fails, the target is removed.
+	 * @param target Where to write the new index. Must not exist, or be empty.
+	 */
+	static void compact(File target, List<File> sources, Retention retention, IndexPartitioning partitioning,
+			KeyPostingsFormat postingsFormat, int segments, int threads) throws IOException, InterruptedException {
+		long start = System.currentTimeMillis();
+		List<IndexReader> readers = new ArrayList<IndexReader>();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		IndexBuilder builder = null;
+		boolean compacted = false;
+		try {
+			System.out.println("Before:");
+			for (File source : sources) {
+				IndexReader reader = IndexPartitions.open(source);
+				readers.add(reader);
+				printStats("Source", source, reader);
+			}
+			boolean indexURL = isURLIndexed(readers);
+			System.out.println("Keeping the " + retention.name().toLowerCase() + " document per " +
+					(indexURL ? "URL+Digest" : "Digest") + " using " + threads + " threads");
+
+			builder = new IndexBuilder(target.getPath(), indexURL, false, false, false, false,
+					partitioning, postingsFormat);
+			builder.setBulkBuild(SORT_BUFFER, retention.precedence());
+			builder.setMaxSegments(segments);
+			final IndexCompactor compactor = new IndexCompactor(builder, indexURL);
+
+			List<Future<Void>> results = new ArrayList<Future<Void>>();
+			for (IndexReader reader : readers) {
+				for (final AtomicReaderContext leaf : reader.leaves()) {
+					results.add(executor.submit(new Callable<Void>() {
+						@Override
+						public Void call() throws IOException {
+							compactor.compact(leaf.reader());
+							return null;
+						}
+					}));
+				}
+			}
+			try {
+				for (Future<Void> result : results) {
+					result.get();
+				}
+			} catch (ExecutionException e) {
+				executor.shutdownNow();
+				throw new IOException("Failed reading source index", e.getCause());
+			}
+			System.out.println("Read " + compactor.read + " documents" +
+					(compactor.malformed.get() > 0 ? " (" + compactor.malformed + " without URL, DIGEST or DATE " +
+							"skipped)" : ""));
+			builder.close();
+			compacted = true;
+		} finally {
+			if (!compacted) {
+				// Let the readers stop before closing the sources and discarding what has been read
+				executor.shutdownNow();
+				executor.awaitTermination(1, TimeUnit.MINUTES);
+			}
+			executor.shutdown();
+			for (IndexReader reader : readers) {
+				reader.close();
+			}
+			if (!compacted) {
+				if (builder != null) {
+					builder.abort();
+				}
+				// The target was empty, don't leave a partial index behind
+				FileUtils.deleteQuietly(target);
+			}
+		}
+
+		System.out.println("After:");
+		IndexReader reader = IndexPartitions.open(target);
+		try {
+			printStats("Target", target, reader);
+		} finally {
+			reader.close();
+		}
+		System.out.println("Total run time: " +
+				DateUtils.formatMillisecondsToConventional(System.currentTimeMillis() - start));
+	}
+}
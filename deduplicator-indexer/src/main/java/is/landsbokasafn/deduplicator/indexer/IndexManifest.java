@@ -0,0 +1,214 @@
+/* Copyright (C) 2006-2014 National and University Library of Iceland (NULI)
+ * 
+ * This file is part of the DeDuplicator (Heritrix add-on module).
+ * 
+ *  NULI licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package is.landsbokasafn.deduplicator.indexer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Records which source files (WARCs, crawl logs) have been written to an index, along with their size and last
+ * modified time when they were read and the number of records read from them. Kept in the index directory (the
+ * top level directory of a partitioned index) and saved whenever the index is committed, so it never lists files
+ * whose documents are not in the committed index.
+ * <p>
+ * A source file whose size and modification time match the manifest need not be indexed again.
+ * <p>
+ * The manifest is a plain text file, one source file per line: its absolute path, size in bytes, last modified
+ * time (milliseconds since the epoch) and number of records, separated by tabs.
+ */
+public class IndexManifest {
+
+	public static final String FILE_NAME = "deduplicator-manifest.txt";
+
+	private static final String HEADER = "# DeDuplicator index manifest: path, size, last modified, records";
+
+	/**
+	 * A source file, as it was when it was indexed.
+	 */
+	public static class Source {
+		private final String path;
+		private final long size;
+		private final long lastModified;
+		private final long records;
+
+		Source(String path, long size, long lastModified, long records) {
+			this.path = path;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.records = records;
+		}
+
+		public String getPath() {
+			return path;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		public long getRecords() {
+			return records;
+		}
+	}
+
+	private final File file;
+	private final Map<String, Source> sources = new LinkedHashMap<String, Source>();
+
+	/**
+	 * Create an empty manifest for an index. Nothing is written until {@link #save()}.
+	 * @param indexLocation The index directory
+	 */
+	public IndexManifest(File indexLocation) {
+		this.file = new File(indexLocation, FILE_NAME);
+	}
+
+	/**
+	 * Read the manifest of an existing index.
+	 * @param indexLocation The index directory
+	 * @return The manifest. Empty if the index has none (e.g. it does not exist, or was built without one).
+	 * @throws IOException If the manifest exists but can not be read
+	 */
+	public static IndexManifest load(File indexLocation) throws IOException {
+		IndexManifest manifest = new IndexManifest(indexLocation);
+		if (!manifest.file.exists()) {
+			return manifest;
+		}
+		BufferedReader reader = new BufferedReader(
+				new InputStreamReader(new FileInputStream(manifest.file), StandardCharsets.UTF_8));
+		try {
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				// Path may, in theory, contain tabs. The numbers can not.
+				String[] fields = new String[4];
+				int end = line.length();
+				for (int i = 3; i > 0; i--) {
+					int tab = line.lastIndexOf('\t', end - 1);
+					if (tab < 0) {
+						throw new IOException("Malformed line " + lineNumber + " in " + manifest.file);
+					}
+					fields[i] = line.substring(tab + 1, end);
+					end = tab;
+				}
+				fields[0] = line.substring(0, end);
+				try {
+					manifest.sources.put(fields[0], new Source(fields[0], Long.parseLong(fields[1]),
+							Long.parseLong(fields[2]), Long.parseLong(fields[3])));
+				} catch (NumberFormatException e) {
+					throw new IOException("Malformed line " + lineNumber + " in " + manifest.file, e);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return manifest;
+	}
+
+	private static String pathOf(File source) {
+		return source.getAbsolutePath();
+	}
+
+	/**
+	 * @param source A source file
+	 * @return true if the file is in the manifest and has the same size and modification time as when it was
+	 *         indexed
+	 */
+	public synchronized boolean isIndexed(File source) {
+		Source indexed = sources.get(pathOf(source));
+		return indexed != null && indexed.size == source.length() && indexed.lastModified == source.lastModified();
+	}
+
+	/**
+	 * @return The source file's entry, or null if it is not in the manifest
+	 */
+	public synchronized Source get(File source) {
+		return sources.get(pathOf(source));
+	}
+
+	/**
+	 * Record a source file as indexed, replacing any earlier record of it. Not saved until {@link #save()}.
+	 * @param source The file
+	 * @param size Its size when it was read
+	 * @param lastModified Its modification time when it was read
+	 * @param records The number of records read from it
+	 */
+	public synchronized void put(File source, long size, long lastModified, long records) {
+		String path = pathOf(source);
+		// Keep the files in the order they were (last) indexed
+		sources.remove(path);
+		sources.put(path, new Source(path, size, lastModified, records));
+	}
+
+	/**
+	 * @return The number of source files in the manifest
+	 */
+	public synchronized int size() {
+		return sources.size();
+	}
+
+	/**
+	 * Write the manifest to the index directory. The previous version is replaced in one step, so a crash while
+	 * saving leaves either the old or the new manifest.
+	 * @throws IOException If unable to write the manifest
+	 */
+	public synchronized void save() throws IOException {
+		File dir = file.getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Unable to create " + dir);
+		}
+		File temp = new File(dir, FILE_NAME + ".tmp");
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			PrintWriter writer = new PrintWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+			writer.print(HEADER + "\n");
+			for (Source source : sources.values()) {
+				writer.print(source.path + "\t" + source.size + "\t" + source.lastModified + "\t" + source.records +
+						"\n");
+			}
+			writer.flush();
+			if (writer.checkError()) {
+				throw new IOException("Unable to write " + temp);
+			}
+			out.getFD().sync();
+		} finally {
+			IOUtils.closeQuietly(out);
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+}
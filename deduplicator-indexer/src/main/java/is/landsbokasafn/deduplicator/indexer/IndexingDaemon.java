@@ -0,0 +1,410 @@
+/* Copyright (C) 2006-2014 National and University Library of Iceland (NULI)
+ * 
+ * This file is part of the DeDuplicator (Heritrix add-on module).
+ * 
+ *  NULI licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package is.landsbokasafn.deduplicator.indexer;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.archive.util.ArchiveUtils;
+
+/**
+ * Keeps an index open and adds WARC files to it as they appear in one or more directories (and their
+ * sub-directories), such as the WARC output directories of running crawls. Heritrix writes WARCs with an
+ * <code>.open</code> suffix, and renames them once they are complete, so only files matching
+ * {@link WarcIterator#WARC_FILE_REGEX} are indexed, once their size has stopped changing.
+ * <p>
+ * On start, WARCs already in the directories are indexed, unless the index manifest lists them. The index is
+ * committed, and the manifest saved, on the schedule set on the {@link IndexBuilder} (see
+ * {@link IndexBuilder#setManifest(IndexManifest, long)}), so restarting the daemon picks up where it left off.
+ * <p>
+ * Throughput counters are exposed over JMX (see {@link IndexingDaemonMBean}).
+ */
+public class IndexingDaemon implements IndexingDaemonMBean {
+	private static final Log log = LogFactory.getLog(IndexingDaemon.class);
+
+	/** How long to wait for file system events before checking pending files and commits **/
+	private static final long POLL_INTERVAL = 1000;
+
+	private final IndexBuilder builder;
+	private final IndexManifest manifest;
+	private final String indexLocation;
+	private final List<File> directories;
+	private final String mimeFilter;
+	private final boolean blacklist;
+	private final boolean verbose;
+	private final int threads;
+
+	private final Map<WatchKey, Path> keys = new HashMap<WatchKey, Path>();
+	/** New files, and their size when last checked. Indexed once the size stops changing. **/
+	private final Map<File, Long> pending = new TreeMap<File, Long>();
+	private boolean rescan = false;
+
+	private volatile boolean running = true;
+	private final CountDownLatch stopped = new CountDownLatch(1);
+
+	private final AtomicLong filesIndexed = new AtomicLong();
+	private final AtomicLong filesFailed = new AtomicLong();
+	private final AtomicLong itemsIndexed = new AtomicLong();
+	private final AtomicLong bytesIndexed = new AtomicLong();
+	private final AtomicLong busyNanos = new AtomicLong();
+	private volatile int pendingFiles = 0;
+	private volatile String lastFileIndexed = null;
+
+	/**
+	 * @param builder The index. Closed when the daemon stops.
+	 * @param manifest The index manifest, also set on the builder
+	 * @param indexLocation The location of the index
+	 * @param directories Directories to watch for WARC files
+	 * @param mimeFilter See {@link IndexBuilder#writeToIndex(CrawlDataIterator, String, boolean, boolean, int)}
+	 * @param blacklist See {@link IndexBuilder#writeToIndex(CrawlDataIterator, String, boolean, boolean, int)}
+	 * @param verbose See {@link IndexBuilder#writeToIndex(CrawlDataIterator, String, boolean, boolean, int)}
+	 * @param threads Number of threads used to index new files, when several are ready at once
+	 */
+	public IndexingDaemon(IndexBuilder builder, IndexManifest manifest, String indexLocation,
+			List<File> directories, String mimeFilter, boolean blacklist, boolean verbose, int threads) {
+		this.builder = builder;
+		this.manifest = manifest;
+		this.indexLocation = indexLocation;
+		this.directories = directories;
+		this.mimeFilter = mimeFilter;
+		this.blacklist = blacklist;
+		this.verbose = verbose;
+		this.threads = threads;
+	}
+
+	/**
+	 * Watch the directories and index new WARC files, until {@link #shutdown()} is invoked. Closes the index
+	 * before returning.
+	 * @throws IOException If unable to watch the directories, or an error occurs writing to the index
+	 */
+	public void run() throws IOException {
+		registerMBean();
+		try {
+			WatchService watcher = FileSystems.getDefault().newWatchService();
+			try {
+				for (File dir : directories) {
+					if (!dir.isDirectory()) {
+						throw new IOException(dir + " is not a directory");
+					}
+					register(watcher, dir);
+				}
+				System.out.println("Watching " + keys.size() + " directories for WARC files");
+				while (running) {
+					WatchKey key = watcher.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+					while (key != null) {
+						handle(watcher, key);
+						key = watcher.poll();
+					}
+					if (rescan) {
+						rescan = false;
+						log.warn("Missed file system events, rescanning");
+						for (File dir : directories) {
+							scan(dir);
+						}
+					}
+					indexSettled();
+					builder.commitIfDue();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				log.warn("Interrupted, stopping");
+			} finally {
+				watcher.close();
+			}
+		} finally {
+			try {
+				builder.close();
+			} finally {
+				unregisterMBean();
+				stopped.countDown();
+			}
+		}
+	}
+
+	/**
+	 * Watch a directory and its sub-directories, and note the WARCs in them.
+	 */
+	private void register(WatchService watcher, File dir) throws IOException {
+		Path path = dir.toPath();
+		keys.put(path.register(watcher, ENTRY_CREATE, ENTRY_MODIFY), path);
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File f : files) {
+			if (f.isDirectory()) {
+				register(watcher, f);
+			} else {
+				offer(f);
+			}
+		}
+	}
+
+	/**
+	 * Note the WARCs in a directory, and its sub-directories, that are not in the manifest.
+	 */
+	private void scan(File dir) {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File f : files) {
+			if (f.isDirectory()) {
+				scan(f);
+			} else {
+				offer(f);
+			}
+		}
+	}
+
+	private void offer(File file) {
+		if (file.getName().matches(WarcIterator.WARC_FILE_REGEX) && !pending.containsKey(file) &&
+				!manifest.isIndexed(file)) {
+			pending.put(file, -1L);
+		}
+		pendingFiles = pending.size();
+	}
+
+	private void handle(WatchService watcher, WatchKey key) throws IOException {
+		Path dir = keys.get(key);
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == OVERFLOW) {
+				rescan = true;
+				continue;
+			}
+			if (dir == null) {
+				continue;
+			}
+			File file = dir.resolve((Path)event.context()).toFile();
+			if (file.isDirectory()) {
+				if (event.kind() == ENTRY_CREATE) {
+					register(watcher, file);
+				}
+			} else {
+				offer(file);
+			}
+		}
+		if (!key.reset()) {
+			// The directory is gone
+			keys.remove(key);
+		}
+	}
+
+	/**
+	 * Index the pending files whose size has not changed since they were last checked.
+	 */
+	private void indexSettled() {
+		List<File> ready = new ArrayList<File>();
+		for (Iterator<Map.Entry<File, Long>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+			Map.Entry<File, Long> entry = it.next();
+			File file = entry.getKey();
+			if (!file.isFile()) {
+				it.remove();
+				continue;
+			}
+			long size = file.length();
+			if (size == entry.getValue()) {
+				ready.add(file);
+				it.remove();
+			} else {
+				entry.setValue(size);
+			}
+		}
+		pendingFiles = pending.size();
+		if (!ready.isEmpty()) {
+			index(ready);
+		}
+	}
+
+	/**
+	 * Index a batch of files. If that fails, they are indexed one at a time, so that only the broken files are
+	 * left out.
+	 */
+	private void index(List<File> files) {
+		long start = System.nanoTime();
+		WarcIterator iterator = new WarcIterator();
+		iterator.initialize(files);
+		try {
+			long items;
+			try {
+				items = builder.writeToIndex(iterator, mimeFilter, blacklist, verbose, threads);
+			} finally {
+				iterator.close();
+			}
+			long bytes = 0;
+			for (File file : files) {
+				bytes += file.length();
+			}
+			filesIndexed.addAndGet(files.size());
+			itemsIndexed.addAndGet(items);
+			bytesIndexed.addAndGet(bytes);
+			lastFileIndexed = files.get(files.size() - 1).getAbsolutePath();
+		} catch (Exception e) {
+			if (files.size() == 1) {
+				log.error("Unable to index " + files.get(0).getAbsolutePath() + ", skipping it", e);
+				filesFailed.incrementAndGet();
+			} else {
+				log.warn("Unable to index " + files.size() + " files, indexing them one at a time", e);
+				for (File file : files) {
+					if (!manifest.isIndexed(file)) {
+						index(Collections.singletonList(file));
+					}
+				}
+			}
+		} finally {
+			busyNanos.addAndGet(System.nanoTime() - start);
+		}
+	}
+
+	@Override
+	public void shutdown() {
+		running = false;
+	}
+
+	/**
+	 * Stop the daemon and wait for the index to be closed.
+	 */
+	public void shutdownAndWait() {
+		shutdown();
+		try {
+			stopped.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// JMX
+
+	private ObjectName mbeanName = null;
+
+	private void registerMBean() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName("is.landsbokasafn.deduplicator:type=IndexingDaemon,name=" +
+					ObjectName.quote(indexLocation));
+			server.registerMBean(this, name);
+			mbeanName = name;
+		} catch (JMException e) {
+			log.warn("Unable to register indexing daemon with JMX", e);
+		}
+	}
+
+	private void unregisterMBean() {
+		if (mbeanName == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+		} catch (JMException e) {
+			log.warn("Unable to unregister indexing daemon from JMX", e);
+		}
+		mbeanName = null;
+	}
+
+	@Override
+	public String getIndexLocation() {
+		return indexLocation;
+	}
+
+	@Override
+	public String getWatchedDirectories() {
+		StringBuilder sb = new StringBuilder();
+		for (File dir : directories) {
+			if (sb.length() > 0) {
+				sb.append(File.pathSeparator);
+			}
+			sb.append(dir.getAbsolutePath());
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public long getFilesIndexed() {
+		return filesIndexed.get();
+	}
+
+	@Override
+	public long getFilesFailed() {
+		return filesFailed.get();
+	}
+
+	@Override
+	public long getItemsIndexed() {
+		return itemsIndexed.get();
+	}
+
+	@Override
+	public long getBytesIndexed() {
+		return bytesIndexed.get();
+	}
+
+	@Override
+	public double getItemsPerSecond() {
+		return itemsIndexed.get() / Math.max(busyNanos.get() / 1000000000d, 0.001);
+	}
+
+	@Override
+	public double getMegabytesPerSecond() {
+		return bytesIndexed.get() / (1024d * 1024) / Math.max(busyNanos.get() / 1000000000d, 0.001);
+	}
+
+	@Override
+	public int getPendingFiles() {
+		return pendingFiles;
+	}
+
+	@Override
+	public String getLastFileIndexed() {
+		return lastFileIndexed;
+	}
+
+	@Override
+	public long getCommits() {
+		return builder.getCommits();
+	}
+
+	@Override
+	public String getLastCommit() {
+		return ArchiveUtils.get14DigitDate(builder.getLastCommit());
+	}
+}
@@ -0,0 +1,74 @@
+/* Copyright (C) 2006-2014 National and University Library of Iceland (NULI)
+ * 
+ * This file is part of the DeDuplicator (Heritrix add-on module).
+ * 
+ *  NULI licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package is.landsbokasafn.deduplicator.indexer;
+
+/**
+ * JMX management interface for {@link IndexingDaemon}. Exposes throughput counters.
+ */
+public interface IndexingDaemonMBean {
+
+	String getIndexLocation();
+
+	String getWatchedDirectories();
+
+	/**
+	 * @return Number of WARC files indexed since the daemon started
+	 */
+	long getFilesIndexed();
+
+	/**
+	 * @return Number of WARC files that could not be indexed
+	 */
+	long getFilesFailed();
+
+	/**
+	 * @return Number of items (captures) written to the index since the daemon started
+	 */
+	long getItemsIndexed();
+
+	long getBytesIndexed();
+
+	/**
+	 * @return Items written per second, while indexing (i.e. not counting time spent waiting for files)
+	 */
+	double getItemsPerSecond();
+
+	/**
+	 * @return MB of WARC files read per second, while indexing
+	 */
+	double getMegabytesPerSecond();
+
+	/**
+	 * @return Number of new files seen, waiting to be indexed
+	 */
+	int getPendingFiles();
+
+	String getLastFileIndexed();
+
+	long getCommits();
+
+	/**
+	 * @return Time of the last commit, as a 14 digit timestamp
+	 */
+	String getLastCommit();
+
+	/**
+	 * Stop watching for files, commit and close the index.
+	 */
+	void shutdown();
+
+}
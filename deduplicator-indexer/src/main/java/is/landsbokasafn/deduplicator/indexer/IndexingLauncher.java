@@ -20,12 +20,15 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.commons.cli.Option;
 import org.apache.log4j.PropertyConfigurator;
 import org.archive.util.DateUtils;
 
+import is.landsbokasafn.deduplicator.IndexPartitioning;
+
 /**
  * This class handles loading configuration files, parsing command line arguments, loading the crawl data iterator
  * and any other classes needed before starting the indexing process. 
@@ -41,6 +44,16 @@ public class IndexingLauncher {
 	private static final String ITERATOR_CONF_KEY = "deduplicator.crawldataiterator";
 	private static final String VERBOSE_CONF_KEY = "deduplicator.verbose";
 	private static final String INDEX_DIGEST_SCHEME = "deduplicator.indexdigestscheme";
+	private static final String PARTITION_CONF_KEY = "deduplicator.partitionby";
+	private static final String POSTINGS_FORMAT_CONF_KEY = "deduplicator.postingsformat";
+	private static final String THREADS_CONF_KEY = "deduplicator.threads";
+	private static final String READ_AHEAD_CONF_KEY = "deduplicator.threads.readahead";
+	private static final String SEEN_KEYS_CONF_KEY = "deduplicator.seenkeys";
+	private static final String BULK_CONF_KEY = "deduplicator.bulk";
+	private static final String BULK_SORT_BUFFER_CONF_KEY = "deduplicator.bulk.sortbuffer";
+	private static final String COMMIT_INTERVAL_CONF_KEY = "deduplicator.commitinterval";
+	private static final String PIPELINE_WORKERS_CONF_KEY = "deduplicator.pipeline.workers";
+	private static final String PIPELINE_QUEUE_CONF_KEY = "deduplicator.pipeline.queue";
 	
 	private static void loadConfiguration() {
 		// Load properties file, either from heritrix.home/conf or
@@ -101,6 +114,17 @@ public class IndexingLauncher {
         String mimefilter = readStringConfig(MIME_CONF_KEY, "^text/.*");
         boolean whitelist = readBooleanConfig(WHITELIST_CONF_KEY, false);
         String iteratorClassName = readStringConfig(ITERATOR_CONF_KEY, WarcIterator.class.getName());
+        String partitionBy = readStringConfig(PARTITION_CONF_KEY, IndexPartitioning.NONE.name());
+        String postingsFormat = readStringConfig(POSTINGS_FORMAT_CONF_KEY, KeyPostingsFormat.DEFAULT.name());
+        String threadCount = readStringConfig(THREADS_CONF_KEY, "1");
+        String readAheadMB = readStringConfig(READ_AHEAD_CONF_KEY, "0");
+        String seenKeyCount = readStringConfig(SEEN_KEYS_CONF_KEY, "1000000");
+        boolean bulk = readBooleanConfig(BULK_CONF_KEY, false);
+        String sortBufferCount = readStringConfig(BULK_SORT_BUFFER_CONF_KEY, "500000");
+        String commitIntervalSeconds = readStringConfig(COMMIT_INTERVAL_CONF_KEY, "600");
+        String pipelineWorkerCount = readStringConfig(PIPELINE_WORKERS_CONF_KEY, "0");
+        String pipelineQueueCapacity = readStringConfig(PIPELINE_QUEUE_CONF_KEY, "16");
+        boolean daemon = false;
     	
 		// Parse command line options    	
         CommandLineParser clp = new CommandLineParser(args,new PrintWriter(System.out));
@@ -117,6 +141,10 @@ public class IndexingLauncher {
             case 'u' : indexURL = false; break;
             case 's' : canonical = false; break;
             case 'v' : verbose = true; break;
+            case 'p' : partitionBy = opt.getValue(); break;
+            case 't' : threadCount = opt.getValue(); break;
+            case 'b' : bulk = true; break;
+            case 'd' : daemon = true; break;
             }
         }
         
@@ -125,19 +153,113 @@ public class IndexingLauncher {
         }
 
         List<String> cargs = clp.getCommandLineArguments(); 
-        if(cargs.size() != 2){
-            // Should be exactly two arguments. Source and target!
+        if(cargs.size() != 2 && !(daemon && cargs.size() > 2)){
+            // Should be exactly two arguments. Source and target! A daemon may watch several sources.
             clp.usage(0);
         }
+        if (daemon) {
+        	if (bulk) {
+        		clp.usage("Can not run as a daemon in bulk mode", 1);
+        	}
+        	// Keeps adding to the index, also when restarted
+        	addToIndex = true;
+        }
+        
+        IndexPartitioning partitioning = null;
+        try {
+        	partitioning = IndexPartitioning.valueOf(partitionBy.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+        	clp.usage("Unknown partitioning: " + partitionBy, 1);
+        }
+        KeyPostingsFormat keyPostingsFormat = null;
+        try {
+        	keyPostingsFormat = KeyPostingsFormat.valueOf(postingsFormat.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+        	clp.message("Unknown postings format in " + POSTINGS_FORMAT_CONF_KEY + ": " + postingsFormat, 1);
+        }
+        
+        int threads = 1;
+        try {
+        	threads = Integer.parseInt(threadCount.trim());
+        } catch (NumberFormatException e) {
+        	clp.usage("Invalid number of threads: " + threadCount, 1);
+        }
+        if (threads < 1) {
+        	clp.usage("Number of threads must be at least 1", 1);
+        }
+        long readAhead = 0;
+        try {
+        	readAhead = Long.parseLong(readAheadMB.trim()) * 1024 * 1024;
+        } catch (NumberFormatException e) {
+        	clp.message("Invalid number in " + READ_AHEAD_CONF_KEY + ": " + readAheadMB, 1);
+        }
+        if (readAhead < 0) {
+        	clp.message(READ_AHEAD_CONF_KEY + " can not be negative", 1);
+        }
+        
+        int seenKeys = 0;
+        try {
+        	seenKeys = Integer.parseInt(seenKeyCount.trim());
+        } catch (NumberFormatException e) {
+        	clp.message("Invalid number in " + SEEN_KEYS_CONF_KEY + ": " + seenKeyCount, 1);
+        }
+        
+        int sortBuffer = 0;
+        if (bulk) {
+        	if (addToIndex) {
+        		clp.usage("Can not add to an existing index in bulk mode", 1);
+        	}
+	        try {
+	        	sortBuffer = Integer.parseInt(sortBufferCount.trim());
+	        } catch (NumberFormatException e) {
+	        	clp.message("Invalid number in " + BULK_SORT_BUFFER_CONF_KEY + ": " + sortBufferCount, 1);
+	        }
+	        if (sortBuffer < 1) {
+	        	clp.message(BULK_SORT_BUFFER_CONF_KEY + " must be at least 1", 1);
+	        }
+        }
+        
+        long commitInterval = 0;
+        try {
+        	commitInterval = Long.parseLong(commitIntervalSeconds.trim());
+        } catch (NumberFormatException e) {
+        	clp.message("Invalid number in " + COMMIT_INTERVAL_CONF_KEY + ": " + commitIntervalSeconds, 1);
+        }
+        if (commitInterval < 0) {
+        	clp.message(COMMIT_INTERVAL_CONF_KEY + " can not be negative", 1);
+        }
+        
+        int pipelineWorkers = 0;
+        int pipelineQueue = 0;
+        try {
+        	pipelineWorkers = Integer.parseInt(pipelineWorkerCount.trim());
+        	pipelineQueue = Integer.parseInt(pipelineQueueCapacity.trim());
+        } catch (NumberFormatException e) {
+        	clp.message("Invalid number in " + PIPELINE_WORKERS_CONF_KEY + " or " + PIPELINE_QUEUE_CONF_KEY, 1);
+        }
+        if (pipelineWorkers < 0) {
+        	clp.message(PIPELINE_WORKERS_CONF_KEY + " can not be negative", 1);
+        }
+        if (pipelineWorkers > 0 && pipelineQueue < 1) {
+        	clp.message(PIPELINE_QUEUE_CONF_KEY + " must be at least 1", 1);
+        }
         
         String source = cargs.get(0);
-        String target = cargs.get(1);
+        String target = cargs.get(cargs.size() - 1);
 
         // Load the CrawlDataIterator
         CrawlDataIterator iterator = (CrawlDataIterator)Class.forName(iteratorClassName).newInstance();
 
         // Print initial stuff
-        System.out.println("Indexing: " + source);
+        if (daemon) {
+        	System.out.println("Watching: " + cargs.subList(0, cargs.size() - 1));
+        	if (!(iterator instanceof WarcIterator)) {
+        		System.out.println(" - Only WARC files are indexed in daemon mode, ignoring iterator " + 
+        				iteratorClassName);
+        	}
+        } else {
+        	System.out.println("Indexing: " + source);
+        }
         System.out.println(" - Index URL: " + indexURL);
         System.out.println(" - Mime filter: " + mimefilter + 
                 " (" + (whitelist?"whitelist":"blacklist")+")");
@@ -147,14 +269,43 @@ public class IndexingLauncher {
         System.out.println(" - Iterator: " + iteratorClassName);
         System.out.println("   - " + iterator.getSourceType());
         System.out.println("Target: " + target);
+        if (partitioning != IndexPartitioning.NONE) {
+        	System.out.println(" - Partitioned by " + partitioning.name().toLowerCase());
+        }
+        if (threads > 1) {
+        	System.out.println(" - Threads: " + threads + 
+        			(iterator instanceof SplittableCrawlDataIterator ? "" : " (ignored, iterator can not be split)"));
+        }
+        if (pipelineWorkers > 0) {
+        	System.out.println(" - Pipeline: " + pipelineWorkers + " workers" + 
+        			(threads > 1 && iterator instanceof SplittableCrawlDataIterator ? 
+        					" (ignored, parts are read by separate threads)" : ""));
+        }
+        if (keyPostingsFormat != KeyPostingsFormat.DEFAULT) {
+        	System.out.println(" - Postings format for key fields: " + keyPostingsFormat.name());
+        }
         if(addToIndex){
             System.out.println(" - Add to existing index (if any)");
+        } else if (bulk) {
+            System.out.println(" - New index, built in bulk (erases any existing index at that location)");
         } else {
             System.out.println(" - New index (erases any existing index at " +
                     "that location)");
         }
         
-        iterator.initialize(source);
+        // A manifest is only kept, and the index committed periodically, when adding to an index. Files already
+        // indexed, according to the manifest, are then skipped. A new index is written in one go.
+        IndexManifest manifest = null;
+        if (addToIndex) {
+        	manifest = IndexManifest.load(new File(target));
+        	if (manifest.size() > 0) {
+        		System.out.println(" - Manifest lists " + manifest.size() + " source files already in the index");
+        	}
+        }
+        
+        if (!daemon) {
+        	iterator.initialize(source);
+        }
 
         // Create the index
         long start = System.currentTimeMillis();
@@ -164,8 +315,43 @@ public class IndexingLauncher {
                 canonical, 
                 etag,
                 addToIndex,
-                indexDigestScheme);
-        di.writeToIndex(iterator, mimefilter, !whitelist, verbose);
+                indexDigestScheme,
+                partitioning,
+                keyPostingsFormat);
+        if (seenKeys > 0) {
+        	di.setSeenKeySet(new SeenKeySet(seenKeys, null));
+        }
+        if (bulk) {
+        	di.setBulkBuild(sortBuffer);
+        }
+        if (manifest != null) {
+        	di.setManifest(manifest, commitInterval * 1000);
+        }
+        di.setPipeline(pipelineWorkers, pipelineQueue);
+        if (readAhead > 0) {
+        	di.setReadAhead(readAhead);
+        }
+        if (daemon) {
+        	List<File> directories = new ArrayList<File>();
+        	for (String dir : cargs.subList(0, cargs.size() - 1)) {
+        		directories.add(new File(dir));
+        	}
+        	final IndexingDaemon indexingDaemon = new IndexingDaemon(di, manifest, target, directories, 
+        			mimefilter, !whitelist, verbose, threads);
+        	// Close the index cleanly when stopped
+        	Runtime.getRuntime().addShutdownHook(new Thread("Indexing daemon shutdown") {
+        		@Override
+        		public void run() {
+        			indexingDaemon.shutdownAndWait();
+        		}
+        	});
+        	indexingDaemon.run();
+            System.out.println("Total run time: " + 
+            		DateUtils.formatMillisecondsToConventional(System.currentTimeMillis()-start));
+        	return;
+        }
+        di.writeToIndex(iterator, mimefilter, !whitelist, verbose, threads);
+        iterator.close();
         
         // Clean-up
         di.close();
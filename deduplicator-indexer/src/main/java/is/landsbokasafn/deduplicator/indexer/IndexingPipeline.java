@@ -0,0 +1,370 @@
+/* Copyright (C) 2006-2014 National and University Library of Iceland (NULI)
+ * 
+ * This file is part of the DeDuplicator (Heritrix add-on module).
+ * 
+ *  NULI licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package is.landsbokasafn.deduplicator.indexer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Indexes the items of a {@link CrawlDataIterator} in three stages, each on its own thread(s):
+ * <ol>
+ * <li><b>source</b>: reads items from the iterator (I/O and parsing of the crawl data)</li>
+ * <li><b>transform</b>: a number of workers turn items into results (filtering, canonicalization etc.)</li>
+ * <li><b>writer</b>: writes the results, in the order of the items, on the thread invoking
+ * {@link #run(CrawlDataIterator, Transformer, Sink)}</li>
+ * </ol>
+ * Items are passed between stages in batches, over bounded queues. The number of batches between the source and
+ * the writer is also bounded, so a stage that can not keep up holds up the stages before it, rather than letting
+ * batches pile up in memory.
+ * <p>
+ * The time each stage spends working, waiting for the next stage (blocked) and waiting for the previous one
+ * (starved), and the depth of the queues, are kept across runs and printed by {@link #printStatistics()}. The
+ * stage that is busy most of the time is the bottleneck: the source if reading the crawl data is I/O (or parsing)
+ * bound, the workers if transforming is CPU bound, the writer if writing the index is.
+ *
+ * @param <O> The type of result
+ */
+public class IndexingPipeline<O> {
+
+	/**
+	 * Transforms a batch of items. Invoked concurrently by the workers.
+	 */
+	public interface Transformer<O> {
+		/**
+		 * @param items The items, in order
+		 * @param results Receives the results, in order. An item may have no result.
+		 * @throws IOException If the items can not be transformed. Aborts the run.
+		 */
+		void transform(List<CrawlDataItem> items, List<O> results) throws IOException;
+	}
+
+	/**
+	 * Receives the results, in order, on the thread running the pipeline.
+	 */
+	public interface Sink<O> {
+		/**
+		 * @throws IOException If the result can not be written. Aborts the run.
+		 */
+		void write(O result) throws IOException;
+	}
+
+	static final int BATCH_SIZE = 256;
+
+	private final int workers;
+	private final int queueCapacity;
+
+	private volatile BlockingQueue<Batch<O>> sourceQueue;
+	private volatile BlockingQueue<Batch<O>> resultQueue;
+
+	private final StageStats source = new StageStats();
+	private final StageStats transform = new StageStats();
+	private final StageStats writer = new StageStats();
+	private final QueueStats sourceQueueStats = new QueueStats();
+	private final QueueStats resultQueueStats = new QueueStats();
+	private long nanos = 0;
+
+	/**
+	 * @param workers Number of transform workers
+	 * @param queueCapacity Number of batches (of up to 256 items) each queue can hold
+	 */
+	public IndexingPipeline(int workers, int queueCapacity) {
+		if (workers < 1) {
+			throw new IllegalArgumentException("Need at least one worker");
+		}
+		if (queueCapacity < 1) {
+			throw new IllegalArgumentException("Queue capacity must be at least 1");
+		}
+		this.workers = workers;
+		this.queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * Items on their way through the pipeline. A batch with no items marks the end of the source.
+	 */
+	private static class Batch<O> {
+		final long sequence;
+		final List<CrawlDataItem> items;
+		final List<O> results;
+
+		Batch(long sequence, List<CrawlDataItem> items) {
+			this.sequence = sequence;
+			this.items = items;
+			this.results = new ArrayList<O>(items.size());
+		}
+	}
+
+	/**
+	 * Index all the items of the iterator, returning once all the results have been written. The iterator is not
+	 * closed.
+	 * @throws IOException If any stage fails. Runtime exceptions and errors are rethrown as is.
+	 */
+	public void run(final CrawlDataIterator dataIt, final Transformer<O> transformer, Sink<O> sink)
+			throws IOException {
+		long start = System.nanoTime();
+		sourceQueue = new ArrayBlockingQueue<Batch<O>>(queueCapacity);
+		resultQueue = new ArrayBlockingQueue<Batch<O>>(queueCapacity);
+		// Batches read but not yet written. Bounds the batches held by the writer while it waits for a slow one.
+		final Semaphore inFlight = new Semaphore(2 * queueCapacity + workers);
+		final AtomicLong batchCount = new AtomicLong(-1);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+		final AtomicInteger threadNumber = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(workers + 1, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				int number = threadNumber.getAndIncrement();
+				Thread thread = new Thread(r, number == 0 ? "Pipeline source" : "Pipeline worker " + number);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						readSource(dataIt, inFlight, batchCount);
+					} catch (Throwable t) {
+						failure.compareAndSet(null, t);
+					}
+				}
+			});
+			for (int i = 0; i < workers; i++) {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							transform(transformer);
+						} catch (Throwable t) {
+							failure.compareAndSet(null, t);
+						}
+					}
+				});
+			}
+			write(sink, inFlight, batchCount, failure);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted", e);
+		} finally {
+			executor.shutdownNow();
+			nanos += System.nanoTime() - start;
+		}
+		try {
+			executor.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void readSource(CrawlDataIterator dataIt, Semaphore inFlight, AtomicLong batchCount)
+			throws IOException, InterruptedException {
+		long sequence = 0;
+		while (true) {
+			long start = System.nanoTime();
+			List<CrawlDataItem> items = new ArrayList<CrawlDataItem>(BATCH_SIZE);
+			while (items.size() < BATCH_SIZE && dataIt.hasNext()) {
+				items.add(dataIt.next());
+			}
+			long read = System.nanoTime();
+			source.busy(read - start, items.size());
+			if (items.isEmpty()) {
+				break;
+			}
+			inFlight.acquire();
+			sourceQueue.put(new Batch<O>(sequence++, items));
+			source.blocked(System.nanoTime() - read);
+			sourceQueueStats.sample(sourceQueue.size());
+		}
+		batchCount.set(sequence);
+		for (int i = 0; i < workers; i++) {
+			sourceQueue.put(new Batch<O>(-1, new ArrayList<CrawlDataItem>(0)));
+		}
+	}
+
+	private void transform(Transformer<O> transformer) throws IOException, InterruptedException {
+		while (true) {
+			long start = System.nanoTime();
+			Batch<O> batch = sourceQueue.take();
+			if (batch.items.isEmpty()) {
+				return;
+			}
+			long taken = System.nanoTime();
+			transformer.transform(batch.items, batch.results);
+			long transformed = System.nanoTime();
+			resultQueue.put(batch);
+			transform.starved(taken - start);
+			transform.busy(transformed - taken, batch.items.size());
+			transform.blocked(System.nanoTime() - transformed);
+		}
+	}
+
+	private void write(Sink<O> sink, Semaphore inFlight, AtomicLong batchCount, AtomicReference<Throwable> failure)
+			throws IOException, InterruptedException {
+		// Batches that were transformed before one that precedes them
+		Map<Long, Batch<O>> waiting = new HashMap<Long, Batch<O>>();
+		long next = 0;
+		while (batchCount.get() < 0 || next < batchCount.get()) {
+			Batch<O> batch = waiting.remove(next);
+			if (batch == null) {
+				long start = System.nanoTime();
+				resultQueueStats.sample(resultQueue.size());
+				batch = resultQueue.poll(100, TimeUnit.MILLISECONDS);
+				writer.starved(System.nanoTime() - start);
+				rethrow(failure.get());
+				if (batch == null) {
+					continue;
+				}
+				if (batch.sequence != next) {
+					waiting.put(batch.sequence, batch);
+					continue;
+				}
+			}
+			long start = System.nanoTime();
+			for (O result : batch.results) {
+				sink.write(result);
+			}
+			writer.busy(System.nanoTime() - start, batch.results.size());
+			inFlight.release();
+			next++;
+		}
+		// The source may have failed after the last batch was read
+		rethrow(failure.get());
+	}
+
+	private static void rethrow(Throwable failure) throws IOException {
+		if (failure instanceof IOException) {
+			throw (IOException)failure;
+		} else if (failure instanceof RuntimeException) {
+			throw (RuntimeException)failure;
+		} else if (failure instanceof Error) {
+			throw (Error)failure;
+		} else if (failure != null) {
+			throw new IOException(failure);
+		}
+	}
+
+	/**
+	 * @return Number of batches waiting to be transformed
+	 */
+	public int getSourceQueueDepth() {
+		BlockingQueue<?> queue = sourceQueue;
+		return queue == null ? 0 : queue.size();
+	}
+
+	/**
+	 * @return Number of batches waiting to be written
+	 */
+	public int getResultQueueDepth() {
+		BlockingQueue<?> queue = resultQueue;
+		return queue == null ? 0 : queue.size();
+	}
+
+	/**
+	 * Print the throughput of each stage and the depth of the queues, over all runs so far, to standard out.
+	 */
+	public void printStatistics() {
+		double wall = Math.max(nanos, 1);
+		System.out.println("Pipeline (" + workers + " workers, queues of " + queueCapacity + " batches):");
+		source.print("source", wall);
+		transform.print("transform", wall * workers);
+		writer.print("writer", wall);
+		sourceQueueStats.print("source queue", queueCapacity);
+		resultQueueStats.print("result queue", queueCapacity);
+		double sourceLoad = source.load(wall);
+		double transformLoad = transform.load(wall * workers);
+		double writerLoad = writer.load(wall);
+		String bottleneck;
+		if (sourceLoad >= transformLoad && sourceLoad >= writerLoad) {
+			bottleneck = "source (reading crawl data, I/O bound unless the iterator's parsing is slow)";
+		} else if (transformLoad >= writerLoad) {
+			bottleneck = "transform (CPU bound, consider more workers)";
+		} else {
+			bottleneck = "writer (writing the index)";
+		}
+		System.out.println(" Busiest stage: " + bottleneck);
+	}
+
+	/**
+	 * Time spent, and items processed, by a stage. Updated by the stage's threads.
+	 */
+	private static class StageStats {
+		final AtomicLong items = new AtomicLong();
+		final AtomicLong busyNanos = new AtomicLong();
+		final AtomicLong blockedNanos = new AtomicLong();
+		final AtomicLong starvedNanos = new AtomicLong();
+
+		void busy(long nanos, int count) {
+			busyNanos.addAndGet(nanos);
+			items.addAndGet(count);
+		}
+
+		void blocked(long nanos) {
+			blockedNanos.addAndGet(nanos);
+		}
+
+		void starved(long nanos) {
+			starvedNanos.addAndGet(nanos);
+		}
+
+		/**
+		 * @return Share of the available thread time spent working
+		 */
+		double load(double threadNanos) {
+			return busyNanos.get() / threadNanos;
+		}
+
+		void print(String name, double threadNanos) {
+			double seconds = Math.max(busyNanos.get(), 1) / 1000000000d;
+			System.out.println(String.format(" %-12s %12d items %10.1f items/s %5.1f%% busy %5.1f%% blocked " +
+					"%5.1f%% starved", name, items.get(), items.get() / seconds, 100 * load(threadNanos),
+					100 * blockedNanos.get() / threadNanos, 100 * starvedNanos.get() / threadNanos));
+		}
+	}
+
+	/**
+	 * Depth of a queue, sampled by a single thread.
+	 */
+	private static class QueueStats {
+		long samples = 0;
+		long total = 0;
+		int max = 0;
+
+		synchronized void sample(int depth) {
+			samples++;
+			total += depth;
+			max = Math.max(max, depth);
+		}
+
+		synchronized void print(String name, int capacity) {
+			System.out.println(String.format(" %-12s %6.1f batches on average, %d at most (capacity %d)", name,
+					samples == 0 ? 0d : (double)total / samples, max, capacity));
+		}
+	}
+}
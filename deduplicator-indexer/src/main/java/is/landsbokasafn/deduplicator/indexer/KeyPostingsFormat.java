@@ -0,0 +1,89 @@
+/* Copyright (C) 2006-2014 National and University Library of Iceland (NULI)
+ * 
+ * This file is part of the DeDuplicator (Heritrix add-on module).
+ * 
+ *  NULI licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package is.landsbokasafn.deduplicator.indexer;
+
+import static is.landsbokasafn.deduplicator.IndexFields.DIGEST;
+import static is.landsbokasafn.deduplicator.IndexFields.KEY;
+import static is.landsbokasafn.deduplicator.IndexFields.URL;
+import static is.landsbokasafn.deduplicator.IndexFields.URL_CANONICALIZED;
+
+import org.apache.lucene.codecs.Codec;
+import org.apache.lucene.codecs.PostingsFormat;
+import org.apache.lucene.codecs.bloom.BloomFilteringPostingsFormat;
+import org.apache.lucene.codecs.lucene41.Lucene41PostingsFormat;
+import org.apache.lucene.codecs.lucene46.Lucene46Codec;
+import org.apache.lucene.codecs.memory.MemoryPostingsFormat;
+import org.apache.lucene.codecs.pulsing.Pulsing41PostingsFormat;
+
+/**
+ * The Lucene postings format used for the key fields of the index, i.e. the DIGEST, URL, URL_CANONICALIZED and 
+ * KEY fields. These are nearly primary keys (each term occurs in one or a few documents) so formats tuned for that
+ * can make lookups cheaper than Lucene's default, which is tuned for full text.
+ * <p>
+ * Indexes written with a non default format can only be read if the <code>lucene-codecs</code> jar is available.
+ * Use the <code>LookupBenchmark</code> tool to compare formats on your own data.
+ */
+public enum KeyPostingsFormat {
+	/** Lucene's default postings format **/
+	DEFAULT,
+	/** 
+	 * Default postings, with a bloom filter over the terms of each segment. Most lookups for terms that are not in a
+	 * segment are answered from memory, without touching the term dictionary.
+	 */
+	BLOOM,
+	/** Postings for rare terms are inlined into the term dictionary, saving a seek on hits **/
+	PULSING,
+	/** Terms and postings are held in memory (an FST). Fastest, but uses heap proportional to the index size **/
+	MEMORY;
+
+	private PostingsFormat createPostingsFormat() {
+		switch (this) {
+		case BLOOM:
+			return new BloomFilteringPostingsFormat(new Lucene41PostingsFormat());
+		case PULSING:
+			return new Pulsing41PostingsFormat();
+		case MEMORY:
+			return new MemoryPostingsFormat();
+		default:
+			return new Lucene41PostingsFormat();
+		}
+	}
+
+	/**
+	 * @return A codec that uses this postings format for the key fields and Lucene's defaults for everything else
+	 */
+	public Codec createCodec() {
+		if (this == DEFAULT) {
+			return Codec.getDefault();
+		}
+		final PostingsFormat keyFormat = createPostingsFormat();
+		return new Lucene46Codec() {
+			@Override
+			public PostingsFormat getPostingsFormatForField(String field) {
+				if (isKeyField(field)) {
+					return keyFormat;
+				}
+				return super.getPostingsFormatForField(field);
+			}
+		};
+	}
+
+	private static boolean isKeyField(String field) {
+		return field.equals(DIGEST.name()) || field.equals(URL.name()) || field.equals(URL_CANONICALIZED.name()) ||
+				field.equals(KEY.name());
+	}
+}
@@ -0,0 +1,150 @@
+/* Copyright (C) 2006-2014 National and University Library of Iceland (NULI)
+ * 
+ * This file is part of the DeDuplicator (Heritrix add-on module).
+ * 
+ *  NULI licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package is.landsbokasafn.deduplicator.indexer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An input stream over the lines of a file that <i>start</i> within a given byte range. Used to split a large text
+ * file (e.g. a crawl.log) into parts that can be read concurrently.
+ * <p>
+ * If the range does not start at the beginning of the file, the stream skips ahead to the start of the first line
+ * beginning in the range. It ends with the line that straddles the end of the range. Thus, for adjacent ranges, each
+ * line is read exactly once. Lines are terminated by <code>\n</code> (optionally preceded by <code>\r</code>).
+ * <p>
+ * The stream reads from a {@link FileChannel}, with positional reads, so several streams may share one channel.
+ */
+public class LineRangeInputStream extends InputStream {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final FileChannel channel;
+	private final long start;
+	private final long end;
+
+	private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+	private long position; // File position of the next byte to read into the buffer
+	private boolean aligned = false;
+	private boolean done = false;
+
+	/**
+	 * @param channel The file to read
+	 * @param start Lines starting at or after this position are included
+	 * @param end Lines starting before this position are included
+	 */
+	public LineRangeInputStream(FileChannel channel, long start, long end) {
+		this.channel = channel;
+		this.start = start;
+		this.end = end;
+		this.position = start;
+		buffer.flip(); // Empty
+	}
+
+	/**
+	 * Make sure the buffer has data, unless at the end of file.
+	 * @return false if at end of file
+	 */
+	private boolean fill() throws IOException {
+		if (buffer.hasRemaining()) {
+			return true;
+		}
+		buffer.clear();
+		int read;
+		do {
+			read = channel.read(buffer, position);
+		} while (read == 0);
+		buffer.flip();
+		if (read < 0) {
+			return false;
+		}
+		position += read;
+		return true;
+	}
+
+	/**
+	 * @return The file position of the next byte to be returned
+	 */
+	private long current() {
+		return position - buffer.remaining();
+	}
+
+	/**
+	 * Skip to the start of the first line that begins at or after the start of the range.
+	 */
+	private void align() throws IOException {
+		aligned = true;
+		if (start == 0) {
+			return;
+		}
+		// The previous byte tells us if a line starts exactly at the start of the range
+		position = start - 1;
+		while (fill()) {
+			if (buffer.get() == '\n') {
+				break;
+			}
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		int n = read(b, 0, 1);
+		return n < 0 ? -1 : b[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (!aligned) {
+			align();
+			// No line starts within the range
+			done = current() >= end;
+		}
+		if (done) {
+			return -1;
+		}
+		if (len == 0) {
+			return 0;
+		}
+		if (!fill()) {
+			done = true;
+			return -1;
+		}
+		int n = 0;
+		while (n < len && buffer.hasRemaining()) {
+			boolean last = current() >= end - 1;
+			byte c = buffer.get();
+			b[off + n++] = c;
+			if (last && c == '\n') {
+				// The next line starts at or after the end of the range
+				done = true;
+				break;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Does not close the underlying channel, which may be shared.
+	 */
+	@Override
+	public void close() {
+		done = true;
+	}
+}
@@ -0,0 +1,268 @@
+/* Copyright (C) 2006-2014 National and University Library of Iceland (NULI)
+ * 
+ * This file is part of the DeDuplicator (Heritrix add-on module).
+ * 
+ *  NULI licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package is.landsbokasafn.deduplicator.indexer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Reads lines from a log file as they are appended to it, like <code>tail -F</code>. Only complete lines are
+ * returned, so a line that is being written is not returned until its line break has been.
+ * <p>
+ * If the file is rotated (renamed and replaced by a new file), the old file is read to its end before continuing
+ * with the new one. If it is truncated, reading starts over from the beginning. Rotation is detected by the file key
+ * (inode) of the file, where the platform provides one, otherwise only if the new file is smaller than the part
+ * of the old file that has been read.
+ * <p>
+ * Following ends once an end marker file exists (and everything written to the log before that has been read), or
+ * when nothing has been written to the log for a given time.
+ */
+public class LogFollower implements Closeable {
+	private static final Log log = LogFactory.getLog(LogFollower.class);
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final File file;
+	private final File endMarker;
+	private final long idleTimeout;
+	private final long pollInterval;
+
+	private FileChannel channel;
+	private Object fileKey;
+	private long position;
+
+	private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+	private byte[] line = new byte[1024];
+	private int lineLength = 0;
+
+	private long lastData = System.currentTimeMillis();
+	private boolean draining = false;
+	private boolean ended = false;
+
+	/**
+	 * @param file The log to follow. Need not exist yet.
+	 * @param endMarker A file whose existence signals that nothing more will be written to the log. Null for none.
+	 * @param idleTimeout Stop following after this many milliseconds without any new data. 0 to wait indefinitely.
+	 * @param pollInterval How long to wait, in milliseconds, before checking the log for new data
+	 */
+	public LogFollower(File file, File endMarker, long idleTimeout, long pollInterval) {
+		this.file = file;
+		this.endMarker = endMarker;
+		this.idleTimeout = idleTimeout;
+		this.pollInterval = pollInterval;
+		buffer.flip(); // Empty
+	}
+
+	/**
+	 * Open the log now, if it exists, rather than when the first line is read. If the log is rotated before then, the
+	 * file that was opened is still read to its end before the new log.
+	 * @throws IOException If the log exists but can not be opened
+	 */
+	public void start() throws IOException {
+		if (channel == null && !ended) {
+			open();
+		}
+	}
+
+	/**
+	 * @return The file key (see {@link BasicFileAttributes#fileKey()}) of the file being read. Null if none is open,
+	 *         or the platform does not provide file keys.
+	 */
+	public Object getFileKey() {
+		return channel == null ? null : fileKey;
+	}
+
+	/**
+	 * Get the next line, waiting for it to be written if need be.
+	 * @return The line, without its line break. Null once following has ended.
+	 * @throws IOException If the log can not be read, or the thread is interrupted while waiting
+	 */
+	public String readLine() throws IOException {
+		while (true) {
+			if (scanLine()) {
+				return takeLine();
+			}
+			if (ended) {
+				return null;
+			}
+			if (readMore()) {
+				continue;
+			}
+			// Read everything written so far
+			if (rotated()) {
+				continue;
+			}
+			if (draining) {
+				end("end marker " + endMarker.getPath() + " found");
+			} else if (endMarker != null && endMarker.exists()) {
+				// Lines written before the marker appeared may still be unread
+				draining = true;
+				continue;
+			} else if (idleTimeout > 0 && System.currentTimeMillis() - lastData >= idleTimeout) {
+				end("nothing written for " + (idleTimeout / 1000) + " seconds");
+			} else {
+				try {
+					Thread.sleep(pollInterval);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while following " + file.getPath(), e);
+				}
+				continue;
+			}
+			// A final line without a line break is still a line
+			if (lineLength > 0) {
+				return takeLine();
+			}
+		}
+	}
+
+	private void end(String reason) {
+		log.info("Stopped following " + file.getPath() + ", " + reason);
+		ended = true;
+	}
+
+	/**
+	 * Move bytes from the buffer to the current line, up to the next line break.
+	 * @return true if a complete line is ready
+	 */
+	private boolean scanLine() {
+		while (buffer.hasRemaining()) {
+			byte b = buffer.get();
+			if (b == '\n') {
+				return true;
+			}
+			if (lineLength == line.length) {
+				line = Arrays.copyOf(line, line.length * 2);
+			}
+			line[lineLength++] = b;
+		}
+		return false;
+	}
+
+	private String takeLine() {
+		int length = lineLength;
+		if (length > 0 && line[length - 1] == '\r') {
+			length--;
+		}
+		lineLength = 0;
+		return new String(line, 0, length, Charset.defaultCharset());
+	}
+
+	/**
+	 * Read more of the log into the (empty) buffer, opening it if need be.
+	 * @return false if there was nothing more to read
+	 */
+	private boolean readMore() throws IOException {
+		if (channel == null && !open()) {
+			return false;
+		}
+		buffer.clear();
+		int read = channel.read(buffer, position);
+		buffer.flip();
+		if (read <= 0) {
+			return false;
+		}
+		position += read;
+		lastData = System.currentTimeMillis();
+		return true;
+	}
+
+	/**
+	 * @return false if the log does not exist (yet)
+	 */
+	private boolean open() throws IOException {
+		try {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		} catch (NoSuchFileException e) {
+			return false;
+		}
+		fileKey = Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+		position = 0;
+		log.info("Following " + file.getPath());
+		return true;
+	}
+
+	/**
+	 * Check if the file that has been read to its end is still the one at the log's path. Only invoked once the
+	 * open file has been read to its end.
+	 * @return true if it was replaced (or truncated) and there is more to read, in the old file or the new one
+	 */
+	private boolean rotated() throws IOException {
+		if (channel == null) {
+			return false;
+		}
+		BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+		} catch (NoSuchFileException e) {
+			// Renamed, but the new log has not been created yet
+			return false;
+		}
+		boolean replaced = fileKey != null && attributes.fileKey() != null && !fileKey.equals(attributes.fileKey());
+		if (!replaced && attributes.size() >= position) {
+			return false;
+		}
+		if (replaced && channel.size() > position) {
+			// Written to after it was read to its end, but before it was renamed
+			return true;
+		}
+		if (replaced) {
+			log.info(file.getPath() + " was rotated");
+		} else {
+			log.warn(file.getPath() + " was truncated, reading it from the beginning");
+		}
+		IOUtils.closeQuietly(channel);
+		channel = null;
+		if (replaced && lineLength > 0) {
+			// The old log ended without a line break. Terminate its last line.
+			buffer.clear();
+			buffer.put((byte)'\n');
+			buffer.flip();
+		} else {
+			lineLength = 0;
+		}
+		open();
+		return true;
+	}
+
+	/**
+	 * @return true once following has ended
+	 */
+	public boolean isEnded() {
+		return ended;
+	}
+
+	@Override
+	public void close() {
+		ended = true;
+		IOUtils.closeQuietly(channel);
+		channel = null;
+	}
+}
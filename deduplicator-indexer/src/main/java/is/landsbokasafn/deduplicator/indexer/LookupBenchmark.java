@@ -0,0 +1,160 @@
+/* Copyright (C) 2006-2014 National and University Library of Iceland (NULI)
+ * 
+ * This file is part of the DeDuplicator (Heritrix add-on module).
+ * 
+ *  NULI licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package is.landsbokasafn.deduplicator.indexer;
+
+import static is.landsbokasafn.deduplicator.IndexFields.DIGEST;
+import static is.landsbokasafn.deduplicator.IndexFields.URL;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.codecs.perfield.PerFieldPostingsFormat;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.Bits;
+
+import is.landsbokasafn.deduplicator.IndexPartitions;
+
+/**
+ * Measures the cost of the term lookups the DeDuplicator does against an index, for hits and misses on the DIGEST
+ * and URL fields. Used to compare indexes built with different {@link KeyPostingsFormat}s (or other settings) from
+ * the same data.
+ * <p>
+ * Usage: <code>LookupBenchmark &lt;index&gt; [samples] [rounds]</code>
+ */
+public class LookupBenchmark {
+
+	private final IndexSearcher searcher;
+
+	private LookupBenchmark(IndexReader reader) {
+		searcher = new IndexSearcher(reader);
+	}
+
+	/**
+	 * Run each lookup once and return the average time per lookup, in microseconds.
+	 */
+	private double time(String field, List<String> terms) throws Exception {
+		long start = System.nanoTime();
+		for (String term : terms) {
+			ScoreDoc[] docs = searcher.search(new TermQuery(new Term(field, term)), null, 1).scoreDocs;
+			if (docs.length > 0) {
+				// Hits also fetch the stored fields, as the DeDuplicator does
+				searcher.doc(docs[0].doc);
+			}
+		}
+		long took = System.nanoTime() - start;
+		return terms.isEmpty() ? 0 : took / 1000d / terms.size();
+	}
+
+	private static String describeFormat(IndexReader reader, String field) {
+		String format = null;
+		for (AtomicReaderContext leaf : reader.leaves()) {
+			FieldInfo info = leaf.reader().getFieldInfos().fieldInfo(field);
+			if (info == null || !info.isIndexed()) {
+				continue;
+			}
+			String leafFormat = info.getAttribute(PerFieldPostingsFormat.PER_FIELD_FORMAT_KEY);
+			if (format == null) {
+				format = leafFormat;
+			} else if (!format.equals(leafFormat)) {
+				return "mixed";
+			}
+		}
+		return format == null ? "not indexed" : format;
+	}
+
+	/**
+	 * Turn a term into one that is (almost certainly) not in the index, while keeping its length and alphabet.
+	 */
+	private static String miss(String term) {
+		return new StringBuilder(term).reverse().toString() + "~";
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1 || args.length > 3) {
+			System.out.println("Usage: " + LookupBenchmark.class.getName() + " <index> [samples] [rounds]");
+			System.out.println("Times DIGEST and URL term lookups (hits and misses) against an index.");
+			System.out.println("Defaults: 10000 samples, 5 rounds (the first round is a warm up and not counted).");
+			System.exit(1);
+		}
+		int samples = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+		IndexReader reader = IndexPartitions.open(new File(args[0]));
+		try {
+			System.out.println("Index: " + args[0]);
+			System.out.println(" - Records: " + reader.numDocs() + " in " + reader.leaves().size() + " segments");
+			System.out.println(" - DIGEST postings format: " + describeFormat(reader, DIGEST.name()));
+			System.out.println(" - URL postings format: " + describeFormat(reader, URL.name()));
+
+			// Sample terms spread evenly over the index
+			List<String> digestHits = new ArrayList<String>();
+			List<String> urlHits = new ArrayList<String>();
+			Bits liveDocs = MultiFields.getLiveDocs(reader);
+			int step = Math.max(1, reader.maxDoc() / samples);
+			for (int i = 0; i < reader.maxDoc() && digestHits.size() < samples; i += step) {
+				if (liveDocs != null && !liveDocs.get(i)) {
+					continue;
+				}
+				Document doc = reader.document(i);
+				digestHits.add(doc.get(DIGEST.name()));
+				urlHits.add(doc.get(URL.name()));
+			}
+			List<String> digestMisses = new ArrayList<String>();
+			List<String> urlMisses = new ArrayList<String>();
+			for (int i = 0; i < digestHits.size(); i++) {
+				digestMisses.add(miss(digestHits.get(i)));
+				urlMisses.add(miss(urlHits.get(i)));
+			}
+			boolean urlIndexed = !describeFormat(reader, URL.name()).equals("not indexed");
+
+			LookupBenchmark benchmark = new LookupBenchmark(reader);
+			double[] totals = new double[4];
+			for (int round = 0; round < rounds; round++) {
+				double[] times = new double[] {
+						benchmark.time(DIGEST.name(), digestHits),
+						benchmark.time(DIGEST.name(), digestMisses),
+						urlIndexed ? benchmark.time(URL.name(), urlHits) : 0,
+						urlIndexed ? benchmark.time(URL.name(), urlMisses) : 0};
+				if (round == 0 && rounds > 1) {
+					continue; // Warm up
+				}
+				for (int i = 0; i < totals.length; i++) {
+					totals[i] += times[i];
+				}
+			}
+			int counted = rounds > 1 ? rounds - 1 : 1;
+			System.out.println("Average lookup time over " + digestHits.size() + " samples, " + counted + " rounds:");
+			System.out.println(String.format(" - DIGEST hit:  %.2f us", totals[0] / counted));
+			System.out.println(String.format(" - DIGEST miss: %.2f us", totals[1] / counted));
+			if (urlIndexed) {
+				System.out.println(String.format(" - URL hit:     %.2f us", totals[2] / counted));
+				System.out.println(String.format(" - URL miss:    %.2f us", totals[3] / counted));
+			}
+		} finally {
+			reader.close();
+		}
+	}
+}
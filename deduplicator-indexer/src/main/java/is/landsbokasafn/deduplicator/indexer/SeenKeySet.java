@@ -0,0 +1,412 @@
+/* Copyright (C) 2006-2014 National and University Library of Iceland (NULI)
+ * 
+ * This file is part of the DeDuplicator (Heritrix add-on module).
+ * 
+ *  NULI licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package is.landsbokasafn.deduplicator.indexer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Remembers the keys written to the index during a run, along with a hash of the content last written for each key.
+ * Lets the indexer skip documents that would only replace an identical document written earlier in the same run
+ * (e.g. the many revisit records referring to the same original capture).
+ * <p>
+ * Keys and content are identified by 64 bit hashes (see {@link #hash(long, String...)}). A document is only
+ * skipped if both hashes match, so a false positive needs two unrelated documents to collide on both.
+ * <p>
+ * Memory use is bounded. Up to <code>maxInMemory</code> keys are held in an in-memory hash table. When that fills
+ * up, its contents are sorted and spilled to a run file on disk, with a sparse index of every
+ * {@value #BLOCK_ENTRIES}th key kept in memory. Lookups that miss the table read at most one block from each run.
+ * When there are more than {@value #MAX_RUNS} runs, they are merged into one.
+ * <p>
+ * Not thread safe.
+ */
+public class SeenKeySet {
+
+	private static final int ENTRY_BYTES = 16;
+	private static final int BLOCK_ENTRIES = 256;
+	private static final int MAX_RUNS = 8;
+	private static final long EMPTY = 0;
+
+	/**
+	 * A sorted file of key and content hash pairs.
+	 */
+	private static class Run {
+		final File file;
+		final FileChannel channel;
+		final long entries;
+		final long[] index; // First key of each block
+
+		Run(File file, long entries, long[] index) throws IOException {
+			this.file = file;
+			this.entries = entries;
+			this.index = index;
+			this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		}
+
+		/**
+		 * @return The content hash for the key, or EMPTY if the key is not in this run
+		 */
+		long get(long key, ByteBuffer block) throws IOException {
+			// Last block whose first key is not greater than the key
+			int lo = 0;
+			int hi = index.length - 1;
+			if (index.length == 0 || key < index[0]) {
+				return EMPTY;
+			}
+			while (lo < hi) {
+				int mid = (lo + hi + 1) >>> 1;
+				if (index[mid] <= key) {
+					lo = mid;
+				} else {
+					hi = mid - 1;
+				}
+			}
+			long first = (long)lo * BLOCK_ENTRIES;
+			int count = (int)Math.min(BLOCK_ENTRIES, entries - first);
+			block.clear();
+			block.limit(count * ENTRY_BYTES);
+			long position = first * ENTRY_BYTES;
+			while (block.hasRemaining()) {
+				if (channel.read(block, position + block.position()) < 0) {
+					throw new EOFException("Unexpected end of " + file);
+				}
+			}
+			block.flip();
+			for (int i = 0; i < count; i++) {
+				long k = block.getLong();
+				long v = block.getLong();
+				if (k == key) {
+					return v;
+				} else if (k > key) {
+					break;
+				}
+			}
+			return EMPTY;
+		}
+
+		void delete() {
+			IOUtils.closeQuietly(channel);
+			file.delete();
+		}
+	}
+
+	private final int maxInMemory;
+	private final File spillDirectory;
+
+	// Open addressing hash table, EMPTY marks a free slot
+	private final long[] keys;
+	private final long[] values;
+	private final int mask;
+	private int size = 0;
+
+	// Newest last
+	private final List<Run> runs = new ArrayList<Run>();
+	private final ByteBuffer block = ByteBuffer.allocate(BLOCK_ENTRIES * ENTRY_BYTES);
+
+	private long spills = 0;
+	private long spilled = 0;
+
+	/**
+	 * @param maxInMemory The number of keys to hold in memory before spilling to disk. Each takes about 24 bytes.
+	 * @param spillDirectory Where to write run files. Null for the system's temporary directory.
+	 */
+	public SeenKeySet(int maxInMemory, File spillDirectory) {
+		if (maxInMemory < 1) {
+			throw new IllegalArgumentException("Must be able to hold at least one key in memory");
+		}
+		this.spillDirectory = spillDirectory;
+		// Keep the load factor at or below 3/4
+		int capacity = Integer.highestOneBit(Math.max(2, (int)Math.min(1 << 30, maxInMemory * 4L / 3 + 1)) - 1) << 1;
+		keys = new long[capacity];
+		values = new long[capacity];
+		mask = capacity - 1;
+		this.maxInMemory = Math.min(maxInMemory, capacity / 4 * 3);
+	}
+
+	/**
+	 * Record that a document has been written for a key.
+	 * @param key Hash of the document's key
+	 * @param content Hash of the document's content
+	 * @return false if the same content has already been recorded for the key, i.e. writing the document again
+	 *         would not change the index
+	 * @throws IOException If an error occurs reading or writing spilled keys
+	 */
+	public boolean add(long key, long content) throws IOException {
+		if (key == EMPTY) {
+			key = 1;
+		}
+		if (content == EMPTY) {
+			content = 1;
+		}
+		int slot = slot(key);
+		if (keys[slot] == key) {
+			if (values[slot] == content) {
+				return false;
+			}
+			values[slot] = content;
+			return true;
+		}
+		// Not in memory, check the runs, newest first
+		for (int i = runs.size() - 1; i >= 0; i--) {
+			long previous = runs.get(i).get(key, block);
+			if (previous != EMPTY) {
+				if (previous == content) {
+					return false;
+				}
+				break;
+			}
+		}
+		keys[slot] = key;
+		values[slot] = content;
+		size++;
+		if (size >= maxInMemory) {
+			spill();
+		}
+		return true;
+	}
+
+	/**
+	 * @return The slot holding the key, or the free slot where it belongs
+	 */
+	private int slot(long key) {
+		int slot = (int)(key ^ (key >>> 32)) & mask;
+		while (keys[slot] != EMPTY && keys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/**
+	 * Write the in-memory keys to a new run, and clear the table.
+	 */
+	private void spill() throws IOException {
+		// Compact the table into its start and sort
+		int n = 0;
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != EMPTY) {
+				keys[n] = keys[i];
+				values[n] = values[i];
+				n++;
+			}
+		}
+		sort(0, n - 1);
+		File file = File.createTempFile("seenkeys", ".run", spillDirectory);
+		file.deleteOnExit();
+		long[] index = new long[(n + BLOCK_ENTRIES - 1) / BLOCK_ENTRIES];
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			for (int i = 0; i < n; i++) {
+				if (i % BLOCK_ENTRIES == 0) {
+					index[i / BLOCK_ENTRIES] = keys[i];
+				}
+				out.writeLong(keys[i]);
+				out.writeLong(values[i]);
+			}
+		} finally {
+			out.close();
+		}
+		runs.add(new Run(file, n, index));
+		Arrays.fill(keys, EMPTY);
+		size = 0;
+		spills++;
+		spilled += n;
+		if (runs.size() > MAX_RUNS) {
+			merge();
+		}
+	}
+
+	/**
+	 * Sort the compacted table (keys and values together) on keys.
+	 */
+	private void sort(int lo, int hi) {
+		while (lo < hi) {
+			long pivot = keys[(lo + hi) >>> 1];
+			int i = lo;
+			int j = hi;
+			while (i <= j) {
+				while (keys[i] < pivot) {
+					i++;
+				}
+				while (keys[j] > pivot) {
+					j--;
+				}
+				if (i <= j) {
+					long k = keys[i];
+					keys[i] = keys[j];
+					keys[j] = k;
+					long v = values[i];
+					values[i] = values[j];
+					values[j] = v;
+					i++;
+					j--;
+				}
+			}
+			// Recurse into the smaller part, loop on the larger
+			if (j - lo < hi - i) {
+				sort(lo, j);
+				lo = i;
+			} else {
+				sort(i, hi);
+				hi = j;
+			}
+		}
+	}
+
+	/**
+	 * Merge all runs into one. Where a key occurs in more than one run, the newest content hash is kept.
+	 */
+	private void merge() throws IOException {
+		int count = runs.size();
+		DataInputStream[] ins = new DataInputStream[count];
+		long[] heads = new long[count];
+		long[] headValues = new long[count];
+		long[] remaining = new long[count];
+		File file = File.createTempFile("seenkeys", ".run", spillDirectory);
+		file.deleteOnExit();
+		long entries = 0;
+		List<Long> index = new ArrayList<Long>();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			for (int i = 0; i < count; i++) {
+				Run run = runs.get(i);
+				ins[i] = new DataInputStream(new BufferedInputStream(new FileInputStream(run.file)));
+				remaining[i] = run.entries;
+				advance(ins, heads, headValues, remaining, i);
+			}
+			while (true) {
+				// Smallest key, newest run wins ties
+				int min = -1;
+				for (int i = 0; i < count; i++) {
+					if (remaining[i] >= 0 && (min < 0 || heads[i] <= heads[min])) {
+						min = i;
+					}
+				}
+				if (min < 0) {
+					break;
+				}
+				long key = heads[min];
+				long value = headValues[min];
+				for (int i = 0; i < count; i++) {
+					if (remaining[i] >= 0 && heads[i] == key) {
+						advance(ins, heads, headValues, remaining, i);
+					}
+				}
+				if (entries % BLOCK_ENTRIES == 0) {
+					index.add(key);
+				}
+				out.writeLong(key);
+				out.writeLong(value);
+				entries++;
+			}
+		} finally {
+			out.close();
+			for (DataInputStream in : ins) {
+				IOUtils.closeQuietly(in);
+			}
+		}
+		for (Run run : runs) {
+			run.delete();
+		}
+		runs.clear();
+		long[] blocks = new long[index.size()];
+		for (int i = 0; i < blocks.length; i++) {
+			blocks[i] = index.get(i);
+		}
+		runs.add(new Run(file, entries, blocks));
+	}
+
+	/**
+	 * Read the next entry of a run being merged. Sets remaining to -1 when the run is exhausted.
+	 */
+	private static void advance(DataInputStream[] ins, long[] heads, long[] headValues, long[] remaining, int i)
+			throws IOException {
+		if (remaining[i] == 0) {
+			remaining[i] = -1;
+			return;
+		}
+		heads[i] = ins[i].readLong();
+		headValues[i] = ins[i].readLong();
+		remaining[i]--;
+	}
+
+	/**
+	 * @return The number of times keys have been spilled to disk
+	 */
+	public long getSpills() {
+		return spills;
+	}
+
+	/**
+	 * @return The number of keys spilled to disk (counting keys spilled more than once repeatedly)
+	 */
+	public long getSpilled() {
+		return spilled;
+	}
+
+	/**
+	 * Delete any spilled keys.
+	 */
+	public void close() {
+		for (Run run : runs) {
+			run.delete();
+		}
+		runs.clear();
+	}
+
+	/**
+	 * A 64 bit hash of a sequence of strings (FNV-1a over the characters, with a final mix). Nulls are allowed and
+	 * hash differently from empty strings.
+	 * @param seed Use different seeds for hashes that should be independent
+	 * @param parts The strings to hash
+	 * @return The hash
+	 */
+	public static long hash(long seed, String... parts) {
+		long h = 0xcbf29ce484222325L ^ seed;
+		for (String part : parts) {
+			if (part == null) {
+				h = (h ^ 0xff) * 0x100000001b3L;
+				continue;
+			}
+			for (int i = 0; i < part.length(); i++) {
+				h = (h ^ part.charAt(i)) * 0x100000001b3L;
+			}
+			// Separate the parts, so that ("ab", "c") and ("a", "bc") differ
+			h = (h ^ part.length() ^ 0x10000) * 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
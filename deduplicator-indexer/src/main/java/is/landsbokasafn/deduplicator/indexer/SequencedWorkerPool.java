@@ -0,0 +1,198 @@
+/* Copyright (C) 2006-2014 National and University Library of Iceland (NULI)
+ * 
+ * This file is part of the DeDuplicator (Heritrix add-on module).
+ * 
+ *  NULI licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package is.landsbokasafn.deduplicator.indexer;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a list of tasks on a pool of threads, while letting each task wait for its <i>turn</i>, i.e. for all
+ * preceding tasks to complete. This allows the expensive part of each task (e.g. reading and parsing a file) to
+ * run concurrently, while the part whose outcome depends on order (e.g. writing to an index) happens in the same
+ * order as if the tasks had been run one after another.
+ * <p>
+ * Tasks are started in order, so the earliest unfinished task is always running and waiting for a turn can not
+ * deadlock. A task that has not explicitly waited for its turn does so after it returns, before it is marked as
+ * complete.
+ * <p>
+ * If a task fails, tasks waiting for their turn are aborted, no further tasks are started and the failure is
+ * rethrown by {@link #run(List, Worker)}.
+ *
+ * @param <T> The type of task
+ */
+public class SequencedWorkerPool<T> {
+
+	/**
+	 * Processes a single task.
+	 */
+	public interface Worker<T> {
+		/**
+		 * @param task The task to process
+		 * @param turn Allows the worker to wait until all preceding tasks have completed
+		 * @throws Exception If processing fails. Aborts the whole run.
+		 */
+		void process(T task, Turn turn) throws Exception;
+	}
+
+	/**
+	 * The position of a task in the sequence.
+	 */
+	public static class Turn {
+		private final SequencedWorkerPool<?> pool;
+		private final int position;
+
+		private Turn(SequencedWorkerPool<?> pool, int position) {
+			this.pool = pool;
+			this.position = position;
+		}
+
+		/**
+		 * @return true if all preceding tasks have completed
+		 */
+		public boolean isCurrent() {
+			synchronized (pool.lock) {
+				return pool.completed == position;
+			}
+		}
+
+		/**
+		 * Wait until all preceding tasks have completed.
+		 * @throws IOException If another task has failed, aborting the run
+		 */
+		public void await() throws IOException {
+			synchronized (pool.lock) {
+				while (pool.completed != position && pool.failure == null) {
+					try {
+						pool.lock.wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IOException("Interrupted while waiting for turn", e);
+					}
+				}
+				if (pool.failure != null) {
+					throw new IOException("Aborted due to failure of another task", pool.failure);
+				}
+			}
+		}
+
+		/**
+		 * @return The position of the task in the sequence, starting at zero
+		 */
+		public int getPosition() {
+			return position;
+		}
+	}
+
+	private final int threads;
+	private final String name;
+
+	private final Object lock = new Object();
+	// Guarded by lock
+	private int completed = 0;
+	private Throwable failure = null;
+
+	/**
+	 * @param threads Number of worker threads
+	 * @param name Name of the pool, used to name its threads
+	 */
+	public SequencedWorkerPool(int threads, String name) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Need at least one thread");
+		}
+		this.threads = threads;
+		this.name = name;
+	}
+
+	/**
+	 * Process all the tasks and wait for them to complete. May only be invoked once per instance.
+	 * @param tasks The tasks, in order
+	 * @param worker Processes each task
+	 * @throws IOException If any task failed. Runtime exceptions and errors are rethrown as is.
+	 */
+	public void run(List<T> tasks, final Worker<T> worker) throws IOException {
+		final AtomicInteger threadNumber = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, tasks.size())),
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, name + " " + threadNumber.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		for (int i = 0; i < tasks.size(); i++) {
+			final T task = tasks.get(i);
+			final Turn turn = new Turn(this, i);
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						synchronized (lock) {
+							if (failure != null) {
+								return;
+							}
+						}
+						worker.process(task, turn);
+						turn.await();
+						synchronized (lock) {
+							completed++;
+							lock.notifyAll();
+						}
+					} catch (Throwable t) {
+						fail(t);
+					}
+				}
+			});
+		}
+		executor.shutdown();
+		try {
+			while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+				// Keep waiting
+			}
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted", e);
+		}
+		synchronized (lock) {
+			if (failure instanceof IOException) {
+				throw (IOException)failure;
+			} else if (failure instanceof RuntimeException) {
+				throw (RuntimeException)failure;
+			} else if (failure instanceof Error) {
+				throw (Error)failure;
+			} else if (failure != null) {
+				throw new IOException(failure);
+			}
+		}
+	}
+
+	private void fail(Throwable t) {
+		synchronized (lock) {
+			// Keep the first failure, later ones are most likely aborts caused by it
+			if (failure == null) {
+				failure = t;
+			}
+			lock.notifyAll();
+		}
+	}
+}
@@ -0,0 +1,36 @@
+/* Copyright (C) 2006-2014 National and University Library of Iceland (NULI)
+ * 
+ * This file is part of the DeDuplicator (Heritrix add-on module).
+ * 
+ *  NULI licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package is.landsbokasafn.deduplicator.indexer;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A {@link CrawlDataIterator} whose source can be split into parts that can be processed concurrently, e.g. by
+ * {@link IndexBuilder#writeToIndex(CrawlDataIterator, String, boolean, boolean, int)}.
+ */
+public interface SplittableCrawlDataIterator extends CrawlDataIterator {
+
+	/**
+	 * Split the source into parts. Iterating over each part, in order, yields the same items in the same order as
+	 * this iterator. May only be invoked after {@link #initialize(String)}, and the iterator itself should not be
+	 * used after the parts have been obtained, other than to close it.
+	 * @return The parts, in order
+	 * @throws IOException If an error occurs examining the source
+	 */
+	public List<CrawlDataPart> split() throws IOException;
+}
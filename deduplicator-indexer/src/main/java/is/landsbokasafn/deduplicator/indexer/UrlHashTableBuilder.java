@@ -0,0 +1,179 @@
+/* Copyright (C) 2006-2014 National and University Library of Iceland (NULI)
+ *
+ * This file is part of the DeDuplicator (Heritrix add-on module).
+ *
+ *  NULI licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package is.landsbokasafn.deduplicator.indexer;
+
+import static is.landsbokasafn.deduplicator.IndexFields.DATE;
+import static is.landsbokasafn.deduplicator.IndexFields.DIGEST;
+import static is.landsbokasafn.deduplicator.IndexFields.ETAG;
+import static is.landsbokasafn.deduplicator.IndexFields.ORIGINAL_RECORD_ID;
+import static is.landsbokasafn.deduplicator.IndexFields.URL;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.util.Bits;
+import org.archive.util.DateUtils;
+
+import is.landsbokasafn.deduplicator.IndexPartitions;
+import is.landsbokasafn.deduplicator.UrlHashTable;
+
+/**
+ * Builds a {@link UrlHashTable} from an existing DeDuplicator (Lucene) index. The table holds the latest capture of
+ * each URL in the index and is used by the <code>UrlHashIndex</code> in Heritrix for <code>URL_EXACT</code> crawls.
+ * <p>
+ * Digests are copied as they are in the index, i.e. with or without the digest scheme.
+ * <p>
+ * Usage: <code>UrlHashTableBuilder &lt;lucene index&gt; &lt;table directory&gt;</code>
+ */
+public class UrlHashTableBuilder {
+
+	private static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+
+	private final UrlHashTable table;
+	private final FileChannel records;
+	private final RandomAccessFile recordsFile;
+	private final ByteBuffer writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+	private long flushedPosition = 0;
+
+	// Statistics
+	private long replaced = 0;
+	private long superseded = 0;
+	private long collisions = 0;
+
+	private UrlHashTableBuilder(File target, long expectedEntries) throws IOException {
+		table = UrlHashTable.create(target, expectedEntries);
+		recordsFile = new RandomAccessFile(new File(target, UrlHashTable.RECORDS_FILE), "rw");
+		recordsFile.setLength(0);
+		records = recordsFile.getChannel();
+	}
+
+	/**
+	 * Add a capture to the table, unless a later capture of the same URL is already there.
+	 */
+	private void add(String url, String digest, String date, String etag, String recordId) throws IOException {
+		long urlHash = UrlHashTable.hash(url);
+		long slot = table.findSlot(urlHash);
+		if (slot < 0) {
+			throw new IllegalStateException("URL hash table is full");
+		}
+		if (table.getUrlHash(slot) != 0) {
+			String[] existing = readRecord(table.getRecordPointer(slot));
+			if (!url.equals(existing[0])) {
+				// Two URLs with the same 64 bit hash. Keep the first, the other will not be found.
+				collisions++;
+				return;
+			}
+			if (existing[2] != null && date != null && existing[2].compareTo(date) >= 0) {
+				// Dates are w3c-iso8601, so lexical order is chronological order
+				superseded++;
+				return;
+			}
+			replaced++;
+		}
+		long pointer = writeRecord(UrlHashTable.encodeRecord(url, digest, date, etag, recordId));
+		table.set(slot, urlHash, UrlHashTable.hash(digest), pointer);
+	}
+
+	private long writeRecord(byte[] record) throws IOException {
+		if (writeBuffer.remaining() < record.length) {
+			flush();
+		}
+		long pointer = flushedPosition + writeBuffer.position();
+		if (record.length > writeBuffer.capacity()) {
+			records.write(ByteBuffer.wrap(record), flushedPosition);
+			flushedPosition += record.length;
+		} else {
+			writeBuffer.put(record);
+		}
+		return pointer;
+	}
+
+	private String[] readRecord(long pointer) throws IOException {
+		if (pointer >= flushedPosition) {
+			flush();
+		}
+		return UrlHashTable.readRecord(records, pointer);
+	}
+
+	private void flush() throws IOException {
+		writeBuffer.flip();
+		while (writeBuffer.hasRemaining()) {
+			flushedPosition += records.write(writeBuffer, flushedPosition);
+		}
+		writeBuffer.clear();
+	}
+
+	private void close() throws IOException {
+		flush();
+		records.force(true);
+		recordsFile.close();
+		table.close();
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length != 2) {
+			System.out.println("Usage: " + UrlHashTableBuilder.class.getName() +
+					" <lucene index> <table directory>");
+			System.out.println("Builds a URL hash table, for URL_EXACT lookups, from an existing DeDuplicator index.");
+			System.out.println("Any existing table in the target directory is overwritten.");
+			System.exit(1);
+		}
+		long start = System.currentTimeMillis();
+		// Partitioned indexes are read newest partition first, so the latest capture is usually seen first
+		IndexReader reader = IndexPartitions.open(new File(args[0]));
+		File target = new File(args[1]);
+		System.out.println("Building URL hash table from " + args[0] + " (" + reader.numDocs() + " records)");
+		System.out.println("Target: " + target.getAbsolutePath());
+
+		UrlHashTableBuilder builder = new UrlHashTableBuilder(target, reader.numDocs());
+		try {
+			Bits liveDocs = MultiFields.getLiveDocs(reader);
+			int count = 0;
+			for (int i = 0; i < reader.maxDoc(); i++) {
+				if (liveDocs != null && !liveDocs.get(i)) {
+					continue;
+				}
+				Document doc = reader.document(i);
+				builder.add(doc.get(URL.name()), doc.get(DIGEST.name()), doc.get(DATE.name()),
+						doc.get(ETAG.name()), doc.get(ORIGINAL_RECORD_ID.name()));
+				count++;
+				if (count % 100000 == 0) {
+					System.out.println("Read " + count + " records, " + builder.table.getEntries() + " URLs");
+				}
+			}
+		} finally {
+			builder.close();
+			reader.close();
+		}
+
+		System.out.println("URLs in table: " + builder.table.getEntries() + " (capacity " +
+				builder.table.getCapacity() + ")");
+		System.out.println("Replaced by later capture: " + builder.replaced + ", older captures skipped: " +
+				builder.superseded);
+		if (builder.collisions > 0) {
+			System.out.println("Hash collisions (URLs omitted): " + builder.collisions);
+		}
+		System.out.println("Total run time: " +
+				DateUtils.formatMillisecondsToConventional(System.currentTimeMillis() - start));
+	}
+}
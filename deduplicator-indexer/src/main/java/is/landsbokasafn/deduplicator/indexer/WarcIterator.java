@@ -18,21 +18,41 @@ package is.landsbokasafn.deduplicator.indexer;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.NoSuchElementException;
 
-public class WarcIterator implements CrawlDataIterator {
+/**
+ * Iterates over all WARC files in a directory, and its sub-directories, in order of their path.
+ * <p>
+ * The iterator can be split into one part per WARC file (see {@link SplittableCrawlDataIterator}) so that several
+ * files can be processed concurrently. Compressed WARCs larger than <code>deduplicator.warciterator.split-size</code>
+ * bytes are split further, into ranges of gzip members (see {@link GzipMemberLocator}), so that a single large WARC
+ * is also decompressed by several threads. Items are still written to the index in the order of the file.
+ * <p>
+ * Files are read with the {@link WarcRecordScanner}, unless the system property
+ * <code>deduplicator.warciterator.scanner</code> is <code>false</code>, in which case the {@link WarcFileIterator}
+ * (using the webarchive-commons WARCReader) is used. Both produce the same items.
+ */
+public class WarcIterator implements SplittableCrawlDataIterator {
 
 	public static final String WARC_FILE_REGEX = "^.*\\.warc(.gz)?$";
+
+	private static final String SCANNER_PROPERTY = "deduplicator.warciterator.scanner";
+	private static final long SPLIT_SIZE = 1024L * 1024 * 1024;
+	private static final String SPLIT_SIZE_PROPERTY = "deduplicator.warciterator.split-size";
 	
 	private List<File> warcFiles;
 	private Iterator<File> fileIterator = null;
-    private WarcFileIterator recordIterator = null;
+    private CrawlDataIterator recordIterator = null;
     
     private CrawlDataItem nextItem = null;
+    private boolean started = false;
     
     public WarcIterator(){
     	
@@ -58,7 +78,110 @@ public class WarcIterator implements CrawlDataIterator {
 		addWarcsInDir(baseDir);
 		Collections.sort(warcFiles);
 		fileIterator=warcFiles.iterator();
-		readNextItem();
+		// The first file is opened on first use, so that splitting does not leave it open
+		started = false;
+	}
+	
+	/**
+	 * Initialize the iterator to cover the given WARC files, rather than those in a directory.
+	 * @param files The WARC files. Read in order of their path.
+	 */
+	public void initialize(List<File> files) {
+		warcFiles = new ArrayList<File>(files);
+		Collections.sort(warcFiles);
+		fileIterator=warcFiles.iterator();
+		started = false;
+	}
+	
+	private void ensureStarted() throws IOException {
+		if (!started) {
+			started = true;
+			readNextItem();
+		}
+	}
+	
+	@Override
+	public List<CrawlDataPart> split() throws IOException {
+		if (started) {
+			throw new IllegalStateException("Can not split an iterator that is already in use");
+		}
+		long splitSize = Long.parseLong(System.getProperty(SPLIT_SIZE_PROPERTY, Long.toString(SPLIT_SIZE)).trim());
+		if (splitSize < 1) {
+			throw new IllegalArgumentException(SPLIT_SIZE_PROPERTY + " must be a positive number of bytes");
+		}
+		List<CrawlDataPart> parts = new ArrayList<CrawlDataPart>(warcFiles.size());
+		for (final File warcFile : warcFiles) {
+			if (warcFile.getName().endsWith(".gz") && warcFile.length() > splitSize && useScanner()) {
+				addMemberRanges(warcFile, splitSize, parts);
+				continue;
+			}
+			parts.add(new CrawlDataPart() {
+				@Override
+				public String getName() {
+					return warcFile.getName();
+				}
+				@Override
+				public long getSize() {
+					return warcFile.length();
+				}
+				@Override
+				public File getFile() {
+					return warcFile;
+				}
+				@Override
+				public CrawlDataIterator open() throws IOException {
+					return openWarc(warcFile);
+				}
+			});
+		}
+		return parts;
+	}
+	
+	/**
+	 * Add a part for each range of gzip members in a compressed WARC.
+	 */
+	private void addMemberRanges(final File warcFile, long splitSize, List<CrawlDataPart> parts) throws IOException {
+		final List<Long> starts;
+		FileChannel channel = FileChannel.open(warcFile.toPath(), StandardOpenOption.READ);
+		try {
+			starts = new GzipMemberLocator(warcFile, channel).split(splitSize);
+		} finally {
+			channel.close();
+		}
+		final long length = warcFile.length();
+		for (int i = 0; i < starts.size(); i++) {
+			final long start = starts.get(i);
+			final long end = i + 1 < starts.size() ? starts.get(i + 1) : length;
+			parts.add(new CrawlDataPart() {
+				@Override
+				public String getName() {
+					return warcFile.getName() + " [" + start + "-" + end + "]";
+				}
+				@Override
+				public long getSize() {
+					return end - start;
+				}
+				@Override
+				public File getFile() {
+					return warcFile;
+				}
+				@Override
+				public CrawlDataIterator open() throws IOException {
+					return new WarcRecordScanner(warcFile, start, end);
+				}
+			});
+		}
+	}
+	
+	private static boolean useScanner() {
+		return Boolean.parseBoolean(System.getProperty(SCANNER_PROPERTY, "true").trim());
+	}
+	
+	private static CrawlDataIterator openWarc(File warcFile) throws IOException {
+		if (useScanner()) {
+			return new WarcRecordScanner(warcFile.getAbsolutePath());
+		}
+		return new WarcFileIterator(warcFile.getAbsolutePath());
 	}
 	
 	private void addWarcsInDir(File dir) {
@@ -77,10 +200,14 @@ public class WarcIterator implements CrawlDataIterator {
 		nextItem = null;
 		// Open new record iterator if needed
 		while (recordIterator==null || !recordIterator.hasNext()) {
+			if (recordIterator!=null) {
+				recordIterator.close();
+				recordIterator=null;
+			}
 			if (fileIterator.hasNext()) {
 				File warcFile = fileIterator.next();
 				System.out.println("Opening up " + warcFile.getAbsolutePath());			
-				recordIterator=new WarcFileIterator(warcFile.getAbsolutePath());
+				recordIterator=openWarc(warcFile);
 			} else {
 				return;
 			}
@@ -90,6 +217,7 @@ public class WarcIterator implements CrawlDataIterator {
 	
 	@Override
 	public boolean hasNext() throws IOException {
+		ensureStarted();
 		return nextItem!=null;
 	}
 
@@ -107,7 +235,10 @@ public class WarcIterator implements CrawlDataIterator {
 
 	@Override
 	public void close() throws IOException {
-		// No action needed
+		if (recordIterator!=null) {
+			recordIterator.close();
+			recordIterator=null;
+		}
 	}
 
 	@Override
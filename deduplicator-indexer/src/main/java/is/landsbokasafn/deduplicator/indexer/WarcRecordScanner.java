@@ -0,0 +1,487 @@
+/* Copyright (C) 2006-2014 National and University Library of Iceland (NULI)
+ * 
+ * This file is part of the DeDuplicator (Heritrix add-on module).
+ * 
+ *  NULI licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package is.landsbokasafn.deduplicator.indexer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.httpclient.ProtocolException;
+import org.apache.commons.httpclient.StatusLine;
+import org.apache.commons.io.IOUtils;
+import org.archive.format.warc.WARCConstants;
+
+/**
+ * Iterates over the response and revisit records of a single WARC file, like {@link WarcFileIterator}, and produces
+ * the same items, but reads only what it needs. The WARC header block is scanned for the few fields that are
+ * used, and only the status line and the <code>Content-Type</code> and <code>ETag</code> headers are taken from
+ * the HTTP response header. Everything else is skipped over without being turned into Java objects. In an
+ * uncompressed WARC the rest of each record is not read at all.
+ * <p>
+ * All reading goes through a single buffer, and header lines are assembled in a single line buffer, both reused
+ * for every record.
+ */
+public class WarcRecordScanner implements CrawlDataIterator {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final Charset WARC_HEADER_CHARSET = StandardCharsets.UTF_8;
+	private static final Charset HTTP_HEADER_CHARSET = Charset.forName(WARCConstants.DEFAULT_ENCODING);
+
+	private static final byte[] WARC_VERSION_PREFIX = ascii("WARC/");
+	private static final byte[] CONTENT_TYPE = ascii("Content-Type");
+	private static final byte[] ETAG = ascii("ETag");
+
+	// The WARC header fields that are used, in the order their values are kept in warcHeaders
+	private static final int TYPE = 0;
+	private static final int TARGET_URI = 1;
+	private static final int DATE = 2;
+	private static final int PAYLOAD_DIGEST = 3;
+	private static final int RECORD_ID = 4;
+	private static final int REFERS_TO_TARGET_URI = 5;
+	private static final int REFERS_TO_DATE = 6;
+	private static final int PROFILE = 7;
+	private static final int CONTENT_LENGTH = 8;
+	private static final byte[][] WARC_HEADER_NAMES = {
+		ascii(WARCConstants.HEADER_KEY_TYPE),
+		ascii(WARCConstants.HEADER_KEY_URI),
+		ascii(WARCConstants.HEADER_KEY_DATE),
+		ascii(WARCConstants.HEADER_KEY_PAYLOAD_DIGEST),
+		ascii(WARCConstants.HEADER_KEY_ID),
+		ascii(WARCConstants.HEADER_KEY_REFERS_TO_TARGET_URI),
+		ascii(WARCConstants.HEADER_KEY_REFERS_TO_DATE),
+		ascii(WARCConstants.HEADER_KEY_PROFILE),
+		ascii(WARCConstants.CONTENT_LENGTH)
+	};
+
+	private File warcFile;
+
+	/**
+	 * The WARC, if it is uncompressed. Skipped content is never read.
+	 */
+	private FileChannel channel;
+	/**
+	 * The decompressed WARC, if it is compressed.
+	 */
+	private InputStream stream;
+
+	private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+	private byte[] line = new byte[1024];
+	private int lineLength;
+
+	private final String[] warcHeaders = new String[WARC_HEADER_NAMES.length];
+	/**
+	 * Bytes of the current record's content block that have not been consumed
+	 */
+	private long remaining = 0;
+
+	private CrawlDataItem nextItem = null;
+
+	public WarcRecordScanner() {
+		buffer.flip(); // Empty
+	}
+
+	/**
+	 * Convenience constructor. Equivalent to using no-arg constructor and than invoking initialize with the
+	 * same parameter.
+	 * @param source The WARC file to iterate over
+	 * @throws IOException If an error occurs reading the first record
+	 */
+	public WarcRecordScanner(String source) throws IOException {
+		this();
+		initialize(source);
+	}
+
+	/**
+	 * Scan the records in a byte range of a compressed WARC. The range must begin and end at gzip member
+	 * boundaries (see {@link GzipMemberLocator}).
+	 * @param warcFile The compressed WARC
+	 * @param start Start of the range
+	 * @param end End of the range (exclusive)
+	 * @throws IOException If an error occurs reading the first record
+	 */
+	public WarcRecordScanner(File warcFile, long start, long end) throws IOException {
+		this();
+		this.warcFile = warcFile;
+		FileChannel file = FileChannel.open(warcFile.toPath(), StandardOpenOption.READ);
+		stream = new GZIPInputStream(new GzipMemberLocator.RangeInputStream(file, start, end), BUFFER_SIZE);
+		readNextItem();
+	}
+
+	@Override
+	public void initialize(String source) throws IOException {
+		warcFile = new File(source);
+		if (!warcFile.exists()) {
+			throw new IllegalArgumentException("No such file " + warcFile.getAbsolutePath());
+		}
+		try {
+			if (warcFile.getName().endsWith(".gz")) {
+				// Reads all gzip members, one after the other
+				stream = new GZIPInputStream(new FileInputStream(warcFile), BUFFER_SIZE);
+			} else {
+				channel = FileChannel.open(warcFile.toPath(), StandardOpenOption.READ);
+			}
+		} catch (IOException e) {
+			System.out.println("Failed to open and read " + warcFile.getAbsolutePath());
+			return;
+		}
+		readNextItem();
+	}
+
+	private void readNextItem() throws IOException {
+		nextItem = null;
+		while (nextItem == null) {
+			// Whatever is left of the previous record
+			skip(remaining);
+			remaining = 0;
+			if (!readWarcHeaders()) {
+				close();
+				return;
+			}
+			String url = warcHeaders[TARGET_URI];
+			if (url == null || !url.startsWith("http")) {
+				continue;
+			}
+			String type = warcHeaders[TYPE];
+			if (WARCConstants.WARCRecordType.response.name().equals(type)) {
+				nextItem = processResponse();
+			} else if (WARCConstants.WARCRecordType.revisit.name().equals(type)) {
+				nextItem = processRevisit();
+			}
+		}
+	}
+
+	/**
+	 * Read the header block of the next record, keeping the values of the fields that are used.
+	 * @return false if there are no more records
+	 * @throws IOException If there is something other than a WARC record where a record should start
+	 */
+	private boolean readWarcHeaders() throws IOException {
+		Arrays.fill(warcHeaders, null);
+		// Records are separated by two line breaks
+		do {
+			if (readLine(false) < 0) {
+				return false;
+			}
+		} while (isBlank());
+		if (!startsWith(line, lineLength, WARC_VERSION_PREFIX)) {
+			throw new IOException("Expected a WARC record in " + warcFile + ", found: " +
+					new String(line, 0, Math.min(lineLength, 80), WARC_HEADER_CHARSET));
+		}
+		// Parsed the same way as by the WARCReader (LaxHttpParser): trimmed name and value, folded lines appended
+		int current = -1;
+		while (readLine(false) >= 0 && !isBlank()) {
+			if (line[0] == ' ' || line[0] == '\t') {
+				if (current >= 0) {
+					warcHeaders[current] = warcHeaders[current] + " " + trimmed(WARC_HEADER_CHARSET);
+				}
+				continue;
+			}
+			current = -1;
+			int colon = indexOf(':');
+			if (colon < 0) {
+				continue;
+			}
+			for (int i = 0; i < WARC_HEADER_NAMES.length; i++) {
+				if (nameEquals(colon, WARC_HEADER_NAMES[i], false)) {
+					current = i;
+					warcHeaders[i] = value(colon, WARC_HEADER_CHARSET);
+					break;
+				}
+			}
+		}
+		if (warcHeaders[CONTENT_LENGTH] == null) {
+			throw new IOException("WARC record without " + WARCConstants.CONTENT_LENGTH + " in " + warcFile);
+		}
+		try {
+			remaining = Long.parseLong(warcHeaders[CONTENT_LENGTH]);
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid " + WARCConstants.CONTENT_LENGTH + " in " + warcFile + ": " +
+					warcHeaders[CONTENT_LENGTH]);
+		}
+		return true;
+	}
+
+	private CrawlDataItem processResponse() throws IOException {
+		CrawlDataItem cdi = new CrawlDataItem();
+		cdi.setURL(warcHeaders[TARGET_URI]);
+		cdi.setContentDigest(warcHeaders[PAYLOAD_DIGEST]);
+		cdi.setRevisit(false);
+		cdi.setTimestamp(warcHeaders[DATE]);
+		cdi.setWarcRecordId(warcHeaders[RECORD_ID]);
+
+		// Process the HTTP header, if any. Parsed as by HttpParser, in WarcFileIterator.
+		if (readLine(true) > 0 && line[lineLength - 1] == '\n') {
+			String statusLine = new String(line, 0, lineLength - eolLength(), HTTP_HEADER_CHARSET);
+			if (StatusLine.startsWithHTTP(statusLine)) {
+				cdi.setStatusCode(new StatusLine(statusLine).getStatusCode());
+				// The header the last (unfolded) line belonged to, 1 for Content-Type, 2 for ETag, 0 for any other
+				int current = 0;
+				while (readLine(true) >= 0 && !isBlank()) {
+					if (line[0] == ' ' || line[0] == '\t') {
+						if (current == 1) {
+							cdi.setMimeType(cdi.getMimeType() + " " + trimmed(HTTP_HEADER_CHARSET));
+						} else if (current == 2) {
+							cdi.setEtag(cdi.getEtag() + " " + trimmed(HTTP_HEADER_CHARSET));
+						}
+						continue;
+					}
+					int colon = indexOf(':');
+					if (colon < 0) {
+						throw new ProtocolException("Unable to parse header: " +
+								new String(line, 0, lineLength - eolLength(), HTTP_HEADER_CHARSET));
+					}
+					current = 0;
+					if (nameEquals(colon, CONTENT_TYPE, true)) {
+						current = 1;
+						cdi.setMimeType(value(colon, HTTP_HEADER_CHARSET));
+					} else if (nameEquals(colon, ETAG, true)) {
+						current = 2;
+						cdi.setEtag(value(colon, HTTP_HEADER_CHARSET));
+					}
+				}
+			}
+		}
+		return cdi;
+	}
+
+	private CrawlDataItem processRevisit() throws IOException {
+		CrawlDataItem cdi = processResponse();
+		cdi.setOriginalURL(warcHeaders[REFERS_TO_TARGET_URI]);
+		cdi.setOriginalTimestamp(warcHeaders[REFERS_TO_DATE]);
+		cdi.setRevisitProfile(warcHeaders[PROFILE]);
+		if (!WARCConstants.PROFILE_REVISIT_NOT_MODIFIED.equals(cdi.getRevisitProfile())) {
+			// ETags are of questionable value in this scenario, null it out, if any
+			cdi.setEtag(null);
+		}
+		cdi.setRevisit(true);
+		return cdi;
+	}
+
+	/**
+	 * Read bytes into the buffer, after any that have not been consumed.
+	 * @return false if at the end of the file
+	 */
+	private boolean fill() throws IOException {
+		buffer.compact();
+		int read;
+		if (channel != null) {
+			read = channel.read(buffer);
+		} else {
+			read = stream.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+			if (read > 0) {
+				buffer.position(buffer.position() + read);
+			}
+		}
+		buffer.flip();
+		return read > 0;
+	}
+
+	/**
+	 * Read a line, including its line break, into the line buffer.
+	 * @param content If true, the line is read from the current record's content block and ends at its end
+	 * @return The length of the line, or -1 if there was nothing more to read
+	 */
+	private int readLine(boolean content) throws IOException {
+		lineLength = 0;
+		if (content && remaining <= 0) {
+			return -1;
+		}
+		while (true) {
+			if (!buffer.hasRemaining() && !fill()) {
+				break;
+			}
+			byte[] bytes = buffer.array();
+			int start = buffer.arrayOffset() + buffer.position();
+			int end = start + buffer.remaining();
+			if (content && end - start > remaining - lineLength) {
+				end = start + (int)(remaining - lineLength);
+			}
+			int eol = start;
+			while (eol < end && bytes[eol] != '\n') {
+				eol++;
+			}
+			boolean found = eol < end;
+			int length = (found ? eol + 1 : eol) - start;
+			if (lineLength + length > line.length) {
+				line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + length));
+			}
+			System.arraycopy(bytes, start, line, lineLength, length);
+			lineLength += length;
+			buffer.position(buffer.position() + length);
+			if (found || (content && lineLength == remaining)) {
+				break;
+			}
+		}
+		if (content) {
+			remaining -= lineLength;
+		}
+		return lineLength == 0 ? -1 : lineLength;
+	}
+
+	/**
+	 * Skip bytes without reading them into the line buffer, or at all in an uncompressed WARC.
+	 */
+	private void skip(long bytes) throws IOException {
+		int fromBuffer = (int)Math.min(bytes, buffer.remaining());
+		buffer.position(buffer.position() + fromBuffer);
+		bytes -= fromBuffer;
+		if (bytes <= 0) {
+			return;
+		}
+		if (channel != null) {
+			channel.position(Math.min(channel.size(), channel.position() + bytes));
+			return;
+		}
+		while (bytes > 0) {
+			buffer.clear();
+			buffer.flip();
+			if (!fill()) {
+				return;
+			}
+			fromBuffer = (int)Math.min(bytes, buffer.remaining());
+			buffer.position(buffer.position() + fromBuffer);
+			bytes -= fromBuffer;
+		}
+	}
+
+	private boolean isBlank() {
+		for (int i = 0; i < lineLength; i++) {
+			if ((line[i] & 0xff) > ' ') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return Number of line break characters at the end of the line, as counted by WarcFileIterator
+	 */
+	private int eolLength() {
+		if (lineLength == 0 || line[lineLength - 1] != '\n') {
+			return 0;
+		}
+		return lineLength > 1 && line[lineLength - 2] == '\r' ? 2 : 1;
+	}
+
+	private int indexOf(char c) {
+		for (int i = 0; i < lineLength; i++) {
+			if (line[i] == c) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return true if the (trimmed) part of the line before the colon is the given name
+	 */
+	private boolean nameEquals(int colon, byte[] name, boolean ignoreCase) {
+		int start = 0;
+		while (start < colon && (line[start] & 0xff) <= ' ') {
+			start++;
+		}
+		int end = colon;
+		while (end > start && (line[end - 1] & 0xff) <= ' ') {
+			end--;
+		}
+		if (end - start != name.length) {
+			return false;
+		}
+		for (int i = 0; i < name.length; i++) {
+			byte b = line[start + i];
+			if (b != name[i] && !(ignoreCase &&
+					Character.toLowerCase((char)b) == Character.toLowerCase((char)name[i]))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return The trimmed part of the line after the colon
+	 */
+	private String value(int colon, Charset charset) {
+		return trimmed(colon + 1, charset);
+	}
+
+	/**
+	 * @return The whole line, trimmed
+	 */
+	private String trimmed(Charset charset) {
+		return trimmed(0, charset);
+	}
+
+	private String trimmed(int start, Charset charset) {
+		int end = lineLength;
+		// Same as String.trim(). Bytes of multi byte UTF-8 characters are never below space.
+		while (start < end && (line[start] & 0xff) <= ' ') {
+			start++;
+		}
+		while (end > start && (line[end - 1] & 0xff) <= ' ') {
+			end--;
+		}
+		return new String(line, start, end - start, charset);
+	}
+
+	private static boolean startsWith(byte[] bytes, int length, byte[] prefix) {
+		if (length < prefix.length) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length; i++) {
+			if (bytes[i] != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static byte[] ascii(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	@Override
+	public boolean hasNext() {
+		return nextItem != null;
+	}
+
+	@Override
+	public CrawlDataItem next() throws IOException {
+		CrawlDataItem next = nextItem;
+		readNextItem();
+		return next;
+	}
+
+	@Override
+	public void close() throws IOException {
+		IOUtils.closeQuietly(channel);
+		IOUtils.closeQuietly(stream);
+	}
+
+	@Override
+	public String getSourceType() {
+		return "Scanner over a single WARC (ISO-28500) file, reading only the headers that are indexed.";
+	}
+}
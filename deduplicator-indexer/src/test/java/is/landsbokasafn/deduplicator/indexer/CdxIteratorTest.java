@@ -0,0 +1,150 @@
+/* Copyright (C) 2006-2014 National and University Library of Iceland (NULI)
+ * 
+ * This file is part of the DeDuplicator (Heritrix add-on module).
+ * 
+ *  NULI licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package is.landsbokasafn.deduplicator.indexer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class CdxIteratorTest extends TestCase {
+
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = Files.createTempDirectory("cdxiterator").toFile();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestWarcFiles.delete(dir);
+    }
+
+    private static String[] headers(String type, String uri, String date, String digest, String... more) {
+        List<String> headers = new ArrayList<String>();
+        headers.add("WARC-Type: " + type);
+        headers.add("WARC-Target-URI: " + uri);
+        headers.add("WARC-Date: " + date);
+        headers.add("WARC-Record-ID: <urn:uuid:" + date + uri + ">");
+        headers.add("WARC-Payload-Digest: sha1:" + digest);
+        headers.addAll(Arrays.asList(more));
+        headers.add("Content-Type: application/http; msgtype=response");
+        return headers.toArray(new String[headers.size()]);
+    }
+
+    /**
+     * The records of a crawl, in the order they were written
+     */
+    private static List<byte[]> records() throws IOException {
+        String identical = "WARC-Profile: http://netpreserve.org/warc/1.0/revisit/identical-payload-digest";
+        List<byte[]> records = new ArrayList<byte[]>();
+        records.add(TestWarcFiles.record(headers("response", "http://example.com/a", "2014-02-01T12:00:00Z", "AAAA"),
+                "HTTP/1.1 200 OK\r\nContent-Type: text/html\r\n\r\nhello"));
+        records.add(TestWarcFiles.record(headers("response", "http://example.com/b", "2014-02-01T12:00:01Z", "BBBB"),
+                "HTTP/1.1 404 Not Found\r\nContent-Type: text/html\r\n\r\nnot found"));
+        records.add(TestWarcFiles.record(headers("response", "dns:example.com", "2014-02-01T12:00:02Z", "CCCC"),
+                "20140201120002\r\nexample.com. 300 IN A 192.0.2.1\r\n"));
+        records.add(TestWarcFiles.record(headers("revisit", "http://example.com/a", "2014-03-01T12:00:00Z", "AAAA",
+                identical, "WARC-Refers-To-Target-URI: http://example.com/a",
+                "WARC-Refers-To-Date: 2014-02-01T12:00:00Z"),
+                "HTTP/1.1 200 OK\r\nContent-Type: text/html\r\n\r\n"));
+        // The original capture is in another WARC
+        records.add(TestWarcFiles.record(headers("revisit", "http://example.com/c", "2014-03-01T12:00:01Z", "DDDD",
+                identical), "HTTP/1.1 200 OK\r\nContent-Type: image/png\r\n\r\n"));
+        records.add(TestWarcFiles.record(headers("response", "https://example.com/d", "2014-03-01T12:00:02Z", "EEEE"),
+                "HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\n\r\nd"));
+        return records;
+    }
+
+    /**
+     * The CDX of the same records, as made by the usual tools
+     */
+    private static final String CDX =
+            " CDX N b a m s k r M S V g\n" +
+            "com,example)/a 20140201120000 http://example.com/a text/html 200 AAAA - - 100 0 test.warc\n" +
+            "com,example)/a 20140301120000 http://example.com/a warc/revisit - AAAA - - 100 300 test.warc\n" +
+            "com,example)/b 20140201120001 http://example.com/b text/html 404 BBBB - - 100 100 test.warc\n" +
+            "com,example)/c 20140301120001 http://example.com/c warc/revisit - DDDD - - 100 400 test.warc\n" +
+            "com,example)/d 20140301120002 https://example.com/d text/plain 200 EEEE - - 100 500 test.warc\n" +
+            "dns:example.com 20140201120002 dns:example.com text/dns - CCCC - - 100 200 test.warc\n";
+
+    /**
+     * The parts of an item that decide what is indexed. CDX files do not record the status or content type of
+     * revisits, so those are left out for revisits that can not be resolved.
+     */
+    private static String summary(CrawlDataItem item) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(item.getURL()).append(' ').append(item.getTimestamp()).append(' ').append(item.getContentDigest());
+        if (item.isRevisit() && (item.getOriginalURL() == null || item.getOriginalTimestamp() == null)) {
+            return sb.append(" unresolved revisit").toString();
+        }
+        sb.append(' ').append(item.getStatusCode()).append(' ').append(item.getMimeType());
+        if (item.isRevisit()) {
+            sb.append(" revisit of ").append(item.getOriginalURL()).append(' ').append(item.getOriginalTimestamp());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return The summaries of the items, sorted as CDX and WARC files have them in a different order
+     */
+    private static List<String> summaries(CrawlDataIterator iterator) throws IOException {
+        List<String> summaries = new ArrayList<String>();
+        try {
+            while (iterator.hasNext()) {
+                summaries.add(summary(iterator.next()));
+            }
+        } finally {
+            iterator.close();
+        }
+        Collections.sort(summaries);
+        return summaries;
+    }
+
+    private List<String> cdxSummaries(String name) throws IOException {
+        File cdx = new File(dir, name);
+        Files.write(cdx.toPath(), CDX.getBytes(StandardCharsets.UTF_8));
+        CdxIterator iterator = new CdxIterator();
+        iterator.initialize(cdx.getPath());
+        return summaries(iterator);
+    }
+
+    public void testSameAsWarcIterator() throws Exception {
+        File warcs = new File(dir, "warcs");
+        assertTrue(warcs.mkdir());
+        TestWarcFiles.write(new File(warcs, "test.warc.gz"), records());
+        List<String> expected = summaries(new WarcIterator(warcs.getPath()));
+        // No DNS lookup
+        assertEquals(5, expected.size());
+        assertEquals(expected, cdxSummaries("test.cdx"));
+    }
+
+    public void testUnresolvedRevisit() throws Exception {
+        List<String> summaries = cdxSummaries("test.cdx");
+        assertTrue(summaries.contains("http://example.com/c 2014-03-01T12:00:01Z sha1:DDDD unresolved revisit"));
+        assertTrue(summaries.contains("http://example.com/a 2014-03-01T12:00:00Z sha1:AAAA 200 text/html " +
+                "revisit of http://example.com/a 2014-02-01T12:00:00Z"));
+    }
+
+}
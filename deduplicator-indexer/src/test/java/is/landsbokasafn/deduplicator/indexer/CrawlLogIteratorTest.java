@@ -16,12 +16,34 @@
  */
 package is.landsbokasafn.deduplicator.indexer;
 
+import static is.landsbokasafn.deduplicator.DeDuplicatorConstants.EXTRA_REVISIT_DATE;
+import static is.landsbokasafn.deduplicator.DeDuplicatorConstants.EXTRA_REVISIT_PROFILE;
+import static is.landsbokasafn.deduplicator.DeDuplicatorConstants.EXTRA_REVISIT_URI;
+import static is.landsbokasafn.deduplicator.DeDuplicatorConstants.REVISIT_ANNOTATION_MARKER;
+
 import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 
 import junit.framework.TestCase;
 
+import org.archive.util.DateUtils;
+import org.json.JSONObject;
+
 public class CrawlLogIteratorTest extends TestCase {
+    private static final String[] TEST_LINES = {
+        "2006-10-17T14:22:29.343Z   200      29764 http://www.bok.hi.is/image.gif E http://www.bok.hi.is/ image/gif #008 20061017142229253+74 YA3G7O6TNMHXA5WWDSIZJDNXV56WDRCA - -",
+        "2006-10-17T14:22:29.391Z   200       7951 http://www.bok.hi.is/ X http://bok.hi.is/ text/html #029 20061017142228950+364 SBRY3NIKXYAIKSCJ5QL2F6AE4GG7P6VR - 3t",
+        "2006-10-17T14:22:29.399Z   200      18803 http://www.bok.hi.is/ X http://bok.hi.is/ text/html #041 20061017142229087+180 OHCVML7NJ4STPQSRRWY7WWJL6T5H2R6L - duplicate:\"ORIGIN\",3t",
+        "2006-10-17T14:22:29.399Z   200      18803 http://www.bok.hi.is/ X http://bok.hi.",
+        "2006-10-17T14:22:29.343Z   200      29764 http://www.bok.hi.is/image.gif E http://www.bok.hi.is/ image/gif #008 20061017142229253+74 sha1:YA3G7O6TNMHXA5WWDSIZJDNXV56WDRCA - -",
+    };
+
     public void testParseLine() throws IOException{
         File testFile = new File("test");
         testFile.createNewFile();
@@ -62,4 +84,333 @@ public class CrawlLogIteratorTest extends TestCase {
         
         testFile.delete(); //Cleanup
     }
+
+    public void testSplit() throws IOException {
+        File testFile = File.createTempFile("crawl", ".log");
+        Writer out = new FileWriter(testFile);
+        for (int i = 0; i < 1000; i++) {
+            out.write("2006-10-17T14:22:29.343Z   200      29764 http://www.bok.hi.is/image" + i + 
+                    ".gif E http://www.bok.hi.is/ image/gif #008 20061017142229253+74 " + 
+                    "sha1:YA3G7O6TNMHXA5WWDSIZJDNXV56WDRCA - -\n");
+        }
+        out.close();
+
+        List<String> serial = new ArrayList<String>();
+        CrawlLogIterator cli = new CrawlLogIterator();
+        cli.initialize(testFile.getAbsolutePath());
+        while (cli.hasNext()) {
+            serial.add(cli.next().getURL());
+        }
+        cli.close();
+        assertEquals(1000, serial.size());
+
+        // Ranges that do not fall on line boundaries
+        System.setProperty("deduplicator.crawllogiterator.split-size", "1000");
+        List<String> split = new ArrayList<String>();
+        try {
+            cli = new CrawlLogIterator();
+            cli.initialize(testFile.getAbsolutePath());
+            List<CrawlDataPart> parts = cli.split();
+            assertTrue(parts.size() > 1);
+            for (CrawlDataPart part : parts) {
+                CrawlDataIterator partIterator = part.open();
+                while (partIterator.hasNext()) {
+                    split.add(partIterator.next().getURL());
+                }
+                partIterator.close();
+            }
+            cli.close();
+        } finally {
+            System.clearProperty("deduplicator.crawllogiterator.split-size");
+            testFile.delete();
+        }
+        assertEquals(serial, split);
+    }
+
+    private static String followLine(int i) {
+        return "2006-10-17T14:22:29.343Z   200      29764 http://www.bok.hi.is/image" + i + 
+                ".gif E http://www.bok.hi.is/ image/gif #008 20061017142229253+74 " + 
+                "sha1:YA3G7O6TNMHXA5WWDSIZJDNXV56WDRCA - -";
+    }
+
+    public void testFollow() throws Exception {
+        final File dir = File.createTempFile("crawllogs", "");
+        dir.delete();
+        dir.mkdir();
+        Writer out = new FileWriter(new File(dir, "crawl.log.20061017000000"));
+        for (int i = 0; i < 10; i++) {
+            out.write(followLine(i) + "\n");
+        }
+        out.close();
+        final File log = new File(dir, "crawl.log");
+        out = new FileWriter(log);
+        for (int i = 10; i < 20; i++) {
+            out.write(followLine(i) + "\n");
+        }
+        out.close();
+
+        // Append to the log while it is followed, with a line written in two steps, rotate it and end the crawl
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        Thread crawler = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                    Writer out = new FileWriter(log, true);
+                    for (int i = 20; i < 30; i++) {
+                        out.write(followLine(i) + "\n");
+                    }
+                    String line = followLine(30);
+                    out.write(line.substring(0, 50));
+                    out.flush();
+                    Thread.sleep(1500);
+                    out.write(line.substring(50) + "\n");
+                    out.close();
+                    assertTrue(log.renameTo(new File(dir, "crawl.log.20061017120000")));
+                    out = new FileWriter(log);
+                    for (int i = 31; i < 35; i++) {
+                        out.write(followLine(i) + "\n");
+                    }
+                    // Last line of the crawl, without a line break
+                    out.write(followLine(35));
+                    out.close();
+                    new File(dir, "crawl.ended").createNewFile();
+                } catch (Throwable t) {
+                    failures.add(t);
+                }
+            }
+        };
+
+        List<String> urls = new ArrayList<String>();
+        System.setProperty("deduplicator.crawllogiterator.follow", "true");
+        System.setProperty("deduplicator.crawllogiterator.follow.end-marker", "crawl.ended");
+        System.setProperty("deduplicator.crawllogiterator.follow.idle-timeout", "60");
+        try {
+            CrawlLogIterator cli = new CrawlLogIterator();
+            cli.initialize(dir.getAbsolutePath());
+            crawler.start();
+            while (cli.hasNext()) {
+                urls.add(cli.next().getURL());
+            }
+            cli.close();
+            crawler.join();
+        } finally {
+            System.clearProperty("deduplicator.crawllogiterator.follow");
+            System.clearProperty("deduplicator.crawllogiterator.follow.end-marker");
+            System.clearProperty("deduplicator.crawllogiterator.follow.idle-timeout");
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+        assertTrue(failures.toString(), failures.isEmpty());
+        assertEquals(36, urls.size());
+        for (int i = 0; i < urls.size(); i++) {
+            assertEquals("http://www.bok.hi.is/image" + i + ".gif", urls.get(i));
+        }
+    }
+
+    public void testFollowRotatedWhileReadingBacklog() throws Exception {
+        File dir = File.createTempFile("crawllogs", "");
+        dir.delete();
+        dir.mkdir();
+        Writer out = new FileWriter(new File(dir, "crawl.log.20061017000000"));
+        for (int i = 0; i < 10; i++) {
+            out.write(followLine(i) + "\n");
+        }
+        out.close();
+        File log = new File(dir, "crawl.log");
+        out = new FileWriter(log);
+        for (int i = 10; i < 20; i++) {
+            out.write(followLine(i) + "\n");
+        }
+        out.close();
+
+        List<String> urls = new ArrayList<String>();
+        System.setProperty("deduplicator.crawllogiterator.follow", "true");
+        System.setProperty("deduplicator.crawllogiterator.follow.end-marker", "crawl.ended");
+        System.setProperty("deduplicator.crawllogiterator.follow.idle-timeout", "60");
+        try {
+            CrawlLogIterator cli = new CrawlLogIterator();
+            cli.initialize(dir.getAbsolutePath());
+            // Start reading the rotated log
+            urls.add(cli.next().getURL());
+
+            // Rotate the log twice before the iterator gets to it, and end the crawl
+            assertTrue(log.renameTo(new File(dir, "crawl.log.20061017060000")));
+            out = new FileWriter(log);
+            for (int i = 20; i < 25; i++) {
+                out.write(followLine(i) + "\n");
+            }
+            out.close();
+            assertTrue(log.renameTo(new File(dir, "crawl.log.20061017120000")));
+            out = new FileWriter(log);
+            for (int i = 25; i < 30; i++) {
+                out.write(followLine(i) + "\n");
+            }
+            out.close();
+            new File(dir, "crawl.ended").createNewFile();
+
+            while (cli.hasNext()) {
+                urls.add(cli.next().getURL());
+            }
+            cli.close();
+        } finally {
+            System.clearProperty("deduplicator.crawllogiterator.follow");
+            System.clearProperty("deduplicator.crawllogiterator.follow.end-marker");
+            System.clearProperty("deduplicator.crawllogiterator.follow.idle-timeout");
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+        assertEquals(30, urls.size());
+        for (int i = 0; i < urls.size(); i++) {
+            assertEquals("http://www.bok.hi.is/image" + i + ".gif", urls.get(i));
+        }
+    }
+
+    public void testParserEquivalence() throws IOException {
+        CrawlLogLineParser parser = 
+                new CrawlLogLineParser("^.*" + REVISIT_ANNOTATION_MARKER + ".*$", REVISIT_ANNOTATION_MARKER);
+        for (String line : TEST_LINES) {
+            assertEquivalent(parser, "^.*" + REVISIT_ANNOTATION_MARKER + ".*$", line);
+        }
+
+        // A generated corpus, with some unusual but possible lines
+        Random random = new Random(42);
+        CrawlLogLineParser customParser = new CrawlLogLineParser("^.*(dup|3t).*$", null);
+        for (int i = 0; i < 20000; i++) {
+            String line = generateLine(random);
+            assertEquivalent(parser, "^.*" + REVISIT_ANNOTATION_MARKER + ".*$", line);
+            assertEquivalent(customParser, "^.*(dup|3t).*$", line);
+        }
+    }
+
+    private static final String[] STATUSES = {"200", "404", "-1", "-404", "0", "1", "+200", "2147483647"};
+    private static final String[] FETCH_TIMES = {"20061017142229253+74", "20120229235959999+1", 
+        "20130229120000000+5", "20141301000000000+5", "20140101246000000+5", "1500010100000000+3",
+        "15820101000000000+3", "20140101000000000+12345"};
+    private static final String[] SEPARATORS = {" ", "   ", "\t", " \t "};
+
+    private static String generateLine(Random random) {
+        StringBuilder sb = new StringBuilder();
+        if (random.nextInt(50) == 0) {
+            sb.append(" ");
+        }
+        boolean revisit = random.nextInt(3) == 0;
+        String[] fields = {
+            "2014-10-17T14:22:29.343Z",
+            STATUSES[random.nextInt(STATUSES.length)],
+            Integer.toString(random.nextInt(100000)),
+            "http://www.example.com/" + Integer.toHexString(random.nextInt()) + ".html",
+            random.nextBoolean() ? "LLE" : "-",
+            "http://www.example.com/",
+            random.nextBoolean() ? "text/html" : "image/png",
+            "#" + random.nextInt(100),
+            FETCH_TIMES[random.nextInt(FETCH_TIMES.length)],
+            "sha1:" + Long.toString(random.nextLong() & Long.MAX_VALUE, 32).toUpperCase(),
+            "-",
+            revisit ? "duplicate:digest," + REVISIT_ANNOTATION_MARKER : (random.nextBoolean() ? "3t" : "-"),
+            "{\"" + EXTRA_REVISIT_URI + "\":\"http://www.example.com/\",\"" + EXTRA_REVISIT_DATE + 
+                "\":\"20140101000000\",\"" + EXTRA_REVISIT_PROFILE + "\":\"identical-payload\", \"x\": 1}"
+        };
+        int count = random.nextInt(10) == 0 ? 9 + random.nextInt(4) : 13;
+        for (int f = 0; f < count; f++) {
+            if (f > 0) {
+                sb.append(SEPARATORS[random.nextInt(SEPARATORS.length)]);
+            }
+            sb.append(fields[f]);
+        }
+        if (random.nextInt(20) == 0) {
+            sb.append(" ");
+        }
+        return sb.toString();
+    }
+
+    private void assertEquivalent(CrawlLogLineParser parser, String revisitRegex, String line) {
+        CrawlDataItem expected;
+        Exception expectedException = null;
+        try {
+            expected = referenceParseLine(line, revisitRegex);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            // Lines with fewer than 12 fields, the split based parser crashed on those
+            expected = null;
+        } catch (Exception e) {
+            expected = null;
+            expectedException = e;
+        }
+        CrawlDataItem actual = null;
+        try {
+            actual = parser.parse(line);
+        } catch (Exception e) {
+            assertNotNull("Unexpected " + e + " for " + line, expectedException);
+            assertEquals(line, expectedException.getClass(), e.getClass());
+            return;
+        }
+        assertNull("Expected " + expectedException + " for " + line, expectedException);
+        if (expected == null) {
+            assertNull(line, actual);
+            return;
+        }
+        assertNotNull(line, actual);
+        assertEquals(line, expected.getURL(), actual.getURL());
+        assertEquals(line, expected.getTimestamp(), actual.getTimestamp());
+        assertEquals(line, expected.getStatusCode(), actual.getStatusCode());
+        assertEquals(line, expected.getContentDigest(), actual.getContentDigest());
+        assertEquals(line, expected.getMimeType(), actual.getMimeType());
+        assertEquals(line, expected.isRevisit(), actual.isRevisit());
+        assertEquals(line, expected.getOriginalURL(), actual.getOriginalURL());
+        assertEquals(line, expected.getOriginalTimestamp(), actual.getOriginalTimestamp());
+        assertEquals(line, expected.getRevisitProfile(), actual.getRevisitProfile());
+    }
+
+    /**
+     * The split based parser that CrawlLogLineParser replaced.
+     */
+    private static CrawlDataItem referenceParseLine(String line, String revisitRegex) throws IOException {
+        if (line != null && line.length() > 42) {
+            String[] lineParts = line.split("\\s+",13);
+            if(lineParts.length<10){
+                return null;
+            }
+            int status = Integer.parseInt(lineParts[1]);
+            if (status<=0) {
+            	return null;
+            }
+            String url = lineParts[3];
+            String mime = lineParts[6];
+            String timestamp;
+            try {
+            	String fetchBegan = lineParts[8];
+           		fetchBegan = fetchBegan.substring(0,fetchBegan.indexOf("+"));
+				timestamp = DateUtils.getLog14Date(DateUtils.parse17DigitDate(fetchBegan));
+			} catch (ParseException e1) {
+				throw new IOException(e1);
+			}
+            String digest = lineParts[9];
+            boolean revisit = lineParts[11].matches(revisitRegex);
+            String originalURL = null;
+            String originalTimestamp = null;
+        	String revisitProfile = null;
+            if(revisit && lineParts.length==13){
+            	JSONObject extraInfo = new JSONObject(lineParts[12]);
+            	originalURL = extraInfo.getString(EXTRA_REVISIT_URI);
+            	originalTimestamp = extraInfo.getString(EXTRA_REVISIT_DATE);
+            	revisitProfile=extraInfo.getString(EXTRA_REVISIT_PROFILE);
+            }
+            CrawlDataItem cdi = new CrawlDataItem();
+            cdi.setURL(url);
+            cdi.setTimestamp(timestamp);
+            cdi.setStatusCode(status);
+            cdi.setContentDigest(digest);
+            cdi.setMimeType(mime);
+            cdi.setRevisit(revisit);
+            cdi.setOriginalURL(originalURL);
+            cdi.setOriginalTimestamp(originalTimestamp);
+            cdi.setRevisitProfile(revisitProfile);
+            return cdi;
+        } 
+        return null;
+    }
 }
@@ -0,0 +1,176 @@
+/* Copyright (C) 2006-2014 National and University Library of Iceland (NULI)
+ * 
+ * This file is part of the DeDuplicator (Heritrix add-on module).
+ * 
+ *  NULI licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package is.landsbokasafn.deduplicator.indexer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import is.landsbokasafn.deduplicator.indexer.IndexBuilder.Entry;
+
+public class EntrySorterTest extends TestCase {
+
+    /** Keeps the entry with the greatest timestamp **/
+    private static final Comparator<Entry> NEWEST = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            return a.timestamp.compareTo(b.timestamp);
+        }
+    };
+
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = Files.createTempDirectory("entrysorter").toFile();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    private static Entry entry(String url, String digest, String timestamp) {
+        return new Entry(url, null, digest, timestamp, null, null, IndexBuilder.keyOf(url, digest, true));
+    }
+
+    private static List<String> sorted(EntrySorter sorter) throws IOException {
+        final List<String> result = new ArrayList<String>();
+        try {
+            sorter.writeSorted(new EntrySorter.Sink() {
+                @Override
+                public void write(String partition, Entry entry) {
+                    result.add(partition + " " + entry.key + " " + entry.timestamp);
+                }
+            });
+        } finally {
+            sorter.close();
+        }
+        return result;
+    }
+
+    /**
+     * Entries for 20 keys in two partitions, each key added several times with different timestamps, not in order.
+     */
+    private static void addEntries(EntrySorter sorter) throws IOException {
+        for (int i = 0; i < 300; i++) {
+            int n = (i * 7) % 100;
+            String partition = n % 2 == 0 ? "2013" : "2014";
+            sorter.add(partition, entry("http://example.com/" + (n % 20), "DIGEST" + (n % 5),
+                    String.format("%04d", (i * 37) % 300)));
+        }
+    }
+
+    public void testOrder() throws Exception {
+        EntrySorter sorter = new EntrySorter(100, dir);
+        sorter.add("2014", entry("http://example.com/a", "BBBB", "1"));
+        sorter.add("2013", entry("http://example.com/b", "BBBB", "2"));
+        sorter.add("2013", entry("http://example.com/c", "AAAA", "3"));
+        sorter.add("2013", entry("http://example.com/a", "BBBB", "4"));
+        List<String> result = sorted(sorter);
+        assertEquals(4, result.size());
+        assertEquals("2013 http://example.com/c AAAA 3", result.get(0));
+        assertEquals("2013 http://example.com/a BBBB 4", result.get(1));
+        assertEquals("2013 http://example.com/b BBBB 2", result.get(2));
+        assertEquals("2014 http://example.com/a BBBB 1", result.get(3));
+        assertEquals(0, sorter.getDropped());
+        assertEquals(0, sorter.getRuns());
+    }
+
+    public void testLastAddedKept() throws Exception {
+        EntrySorter sorter = new EntrySorter(100, dir);
+        sorter.add("", entry("http://example.com/a", "AAAA", "3"));
+        sorter.add("", entry("http://example.com/a", "AAAA", "1"));
+        sorter.add("", entry("http://example.com/a", "BBBB", "1"));
+        sorter.add("", entry("http://example.com/a", "AAAA", "2"));
+        List<String> result = sorted(sorter);
+        assertEquals(2, result.size());
+        assertEquals(" http://example.com/a AAAA 2", result.get(0));
+        assertEquals(" http://example.com/a BBBB 1", result.get(1));
+        assertEquals(2, sorter.getDropped());
+    }
+
+    public void testPrecedence() throws Exception {
+        EntrySorter sorter = new EntrySorter(100, dir, NEWEST);
+        sorter.add("", entry("http://example.com/a", "AAAA", "3"));
+        sorter.add("", entry("http://example.com/a", "AAAA", "1"));
+        sorter.add("", entry("http://example.com/a", "AAAA", "2"));
+        List<String> result = sorted(sorter);
+        assertEquals(1, result.size());
+        assertEquals(" http://example.com/a AAAA 3", result.get(0));
+        assertEquals(2, sorter.getDropped());
+    }
+
+    public void testEqualPrecedence() throws Exception {
+        EntrySorter sorter = new EntrySorter(100, dir, NEWEST);
+        sorter.add("", new Entry("http://example.com/a", null, "AAAA", "1", "first", null,
+                IndexBuilder.keyOf("http://example.com/a", "AAAA", true)));
+        sorter.add("", new Entry("http://example.com/a", null, "AAAA", "1", "second", null,
+                IndexBuilder.keyOf("http://example.com/a", "AAAA", true)));
+        final List<String> etags = new ArrayList<String>();
+        sorter.writeSorted(new EntrySorter.Sink() {
+            @Override
+            public void write(String partition, Entry entry) {
+                etags.add(entry.etag);
+            }
+        });
+        sorter.close();
+        assertEquals(1, etags.size());
+        assertEquals("second", etags.get(0));
+    }
+
+    /**
+     * Sorting in small runs, merged on disk, must yield the same as sorting in memory.
+     */
+    public void testMergeRuns() throws Exception {
+        EntrySorter inMemory = new EntrySorter(1000, dir);
+        addEntries(inMemory);
+        List<String> expected = sorted(inMemory);
+        assertEquals(0, inMemory.getRuns());
+        assertEquals(20, expected.size());
+
+        EntrySorter onDisk = new EntrySorter(7, dir);
+        addEntries(onDisk);
+        assertEquals(expected, sorted(onDisk));
+        assertTrue(onDisk.getRuns() > 1);
+        assertEquals(inMemory.getDropped(), onDisk.getDropped());
+    }
+
+    /**
+     * More runs than are merged at once.
+     */
+    public void testMergeManyRuns() throws Exception {
+        EntrySorter inMemory = new EntrySorter(1000, dir, NEWEST);
+        addEntries(inMemory);
+        List<String> expected = sorted(inMemory);
+
+        EntrySorter onDisk = new EntrySorter(2, dir, NEWEST);
+        addEntries(onDisk);
+        assertEquals(expected, sorted(onDisk));
+        assertTrue(onDisk.getRuns() > 64);
+        // Run files are deleted
+        assertEquals(0, dir.list().length);
+    }
+
+}
@@ -0,0 +1,263 @@
+/* Copyright (C) 2006-2014 National and University Library of Iceland (NULI)
+ *
+ * This file is part of the DeDuplicator (Heritrix add-on module).
+ *
+ *  NULI licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package is.landsbokasafn.deduplicator.indexer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.TestCase;
+
+public class GzipMemberLocatorTest extends TestCase {
+
+    /**
+     * A gzip member, that does not contain a WARC record, to put inside the payload of a record
+     */
+    private static final byte[] FALSE_MEMBER;
+    static {
+        try {
+            FALSE_MEMBER = TestWarcFiles.gzip("Not a WARC record".getBytes(StandardCharsets.US_ASCII));
+        } catch (IOException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private File dir;
+    private File warc;
+    /**
+     * Offsets of the members of the WARC
+     */
+    private List<Long> members;
+    /**
+     * Offsets of the false members in the WARC
+     */
+    private List<Long> falseMembers;
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = Files.createTempDirectory("gzipmembers").toFile();
+        warc = new File(dir, "test.warc.gz");
+        members = new ArrayList<Long>();
+        falseMembers = new ArrayList<Long>();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestWarcFiles.delete(dir);
+    }
+
+    private static byte[] response(int n, byte[] payload) throws IOException {
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        block.write(("HTTP/1.1 200 OK\r\nContent-Type: application/octet-stream\r\nETag: \"" + n + "\"\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII));
+        block.write(payload);
+        return TestWarcFiles.record(new String[] {
+                "WARC-Type: response",
+                "WARC-Target-URI: http://example.com/" + n,
+                "WARC-Date: 2014-03-01T12:00:00Z",
+                "WARC-Payload-Digest: sha1:" + n,
+                "WARC-Record-ID: <urn:uuid:00000000-0000-0000-0000-" + String.format("%012d", n) + ">",
+                "Content-Type: application/http; msgtype=response"}, block.toByteArray());
+    }
+
+    private static byte[] payload(Random random, int size) {
+        byte[] payload = new byte[size];
+        random.nextBytes(payload);
+        return payload;
+    }
+
+    /**
+     * A payload of random bytes, with a false member in the middle
+     */
+    private static byte[] payloadWithFalseMember(Random random, int size) {
+        byte[] payload = payload(random, size);
+        System.arraycopy(FALSE_MEMBER, 0, payload, size / 2, FALSE_MEMBER.length);
+        return payload;
+    }
+
+    /**
+     * A gzip member with the bytes stored, rather than compressed, so the false members in payloads are kept as is
+     */
+    private static byte[] storedGzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GZIPOutputStream gz = new GZIPOutputStream(out) {
+            {
+                def.setLevel(Deflater.NO_COMPRESSION);
+            }
+        };
+        gz.write(bytes);
+        gz.close();
+        return out.toByteArray();
+    }
+
+    private static int indexOf(byte[] bytes, byte[] part) {
+        for (int i = 0; i + part.length <= bytes.length; i++) {
+            int j = 0;
+            while (j < part.length && bytes[i + j] == part[j]) {
+                j++;
+            }
+            if (j == part.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Add a member to the WARC, recording its offset and that of any false member in it
+     */
+    private void write(OutputStream out, byte[] member) throws IOException {
+        long offset = warc.length();
+        members.add(offset);
+        int falseMember = indexOf(member, FALSE_MEMBER);
+        if (falseMember >= 0) {
+            falseMembers.add(offset + falseMember);
+        }
+        out.write(member);
+        out.flush();
+    }
+
+    public void testFalseMember() throws Exception {
+        Random random = new Random(1);
+        OutputStream out = new FileOutputStream(warc);
+        try {
+            write(out, storedGzip(response(0, payloadWithFalseMember(random, 1000))));
+            write(out, TestWarcFiles.gzip(response(1, new byte[0])));
+        } finally {
+            out.close();
+        }
+        assertEquals(1, falseMembers.size());
+        FileChannel channel = FileChannel.open(warc.toPath(), StandardOpenOption.READ);
+        try {
+            GzipMemberLocator locator = new GzipMemberLocator(warc, channel);
+            assertEquals(0, locator.nextMember(0));
+            assertEquals(members.get(1).longValue(), locator.nextMember(1));
+            assertEquals(members.get(1).longValue(), locator.nextMember(falseMembers.get(0)));
+            assertEquals(-1, locator.nextMember(members.get(1) + 1));
+        } finally {
+            channel.close();
+        }
+    }
+
+    public void testMemberOnBufferEdge() throws Exception {
+        Random random = new Random(2);
+        OutputStream out = new FileOutputStream(warc);
+        try {
+            // Larger than the locator's 64 KB scan buffer
+            write(out, storedGzip(response(0, payloadWithFalseMember(random, 100 * 1024))));
+            write(out, TestWarcFiles.gzip(response(1, new byte[0])));
+        } finally {
+            out.close();
+        }
+        long member = members.get(1);
+        FileChannel channel = FileChannel.open(warc.toPath(), StandardOpenOption.READ);
+        try {
+            GzipMemberLocator locator = new GzipMemberLocator(warc, channel);
+            // Scan from where the member starts at, or its header straddles, the end of the first buffer read
+            for (int distance = 64 * 1024 - 4; distance <= 64 * 1024 + 1; distance++) {
+                assertEquals("Member " + distance + " bytes from scan start",
+                        member, locator.nextMember(member - distance));
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static List<String> items(CrawlDataIterator iterator) throws IOException {
+        List<String> items = new ArrayList<String>();
+        try {
+            while (iterator.hasNext()) {
+                items.add(iterator.next().toString());
+            }
+        } finally {
+            iterator.close();
+        }
+        return items;
+    }
+
+    public void testReadRangesConcurrently() throws Exception {
+        Random random = new Random(3);
+        OutputStream out = new FileOutputStream(warc);
+        try {
+            for (int i = 0; i < 200; i++) {
+                if (i % 20 == 0) {
+                    // Large records, with a false member, spanning several ranges
+                    int size = 20 * 1024 + random.nextInt(80 * 1024);
+                    write(out, storedGzip(response(i, payloadWithFalseMember(random, size))));
+                } else {
+                    write(out, TestWarcFiles.gzip(response(i, payload(random, random.nextInt(2000)))));
+                }
+            }
+        } finally {
+            out.close();
+        }
+        assertEquals(10, falseMembers.size());
+
+        List<String> expected = items(new WarcRecordScanner(warc.getPath()));
+        assertEquals(200, expected.size());
+
+        final List<Long> starts;
+        FileChannel channel = FileChannel.open(warc.toPath(), StandardOpenOption.READ);
+        try {
+            starts = new GzipMemberLocator(warc, channel).split(16 * 1024);
+        } finally {
+            channel.close();
+        }
+        assertTrue(starts.size() > 10);
+        for (long start : starts) {
+            assertTrue("Range starts at " + start + ", which is not a member", members.contains(start));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<List<String>>> ranges = new ArrayList<Future<List<String>>>();
+            for (int i = 0; i < starts.size(); i++) {
+                final long start = starts.get(i);
+                final long end = i + 1 < starts.size() ? starts.get(i + 1) : warc.length();
+                ranges.add(executor.submit(new Callable<List<String>>() {
+                    @Override
+                    public List<String> call() throws Exception {
+                        return items(new WarcRecordScanner(warc, start, end));
+                    }
+                }));
+            }
+            List<String> scanned = new ArrayList<String>();
+            for (Future<List<String>> range : ranges) {
+                scanned.addAll(range.get());
+            }
+            assertEquals(expected, scanned);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+}
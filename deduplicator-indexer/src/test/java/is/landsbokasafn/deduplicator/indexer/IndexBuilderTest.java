@@ -0,0 +1,138 @@
+/* Copyright (C) 2006-2014 National and University Library of Iceland (NULI)
+ * 
+ * This file is part of the DeDuplicator (Heritrix add-on module).
+ * 
+ *  NULI licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package is.landsbokasafn.deduplicator.indexer;
+
+import static is.landsbokasafn.deduplicator.indexer.TestCrawlData.item;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+
+import is.landsbokasafn.deduplicator.IndexPartitioning;
+import is.landsbokasafn.deduplicator.IndexPartitions;
+
+public class IndexBuilderTest extends TestCase {
+
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = Files.createTempDirectory("indexbuilder").toFile();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    private void build(IndexPartitioning partitioning, boolean add, CrawlDataItem... items) throws Exception {
+        IndexBuilder builder = new IndexBuilder(dir.getPath(), true, false, false, add, false, partitioning,
+                KeyPostingsFormat.DEFAULT);
+        try {
+            builder.writeToIndex(TestCrawlData.iterator(items), ".*", false, false);
+        } finally {
+            builder.close();
+        }
+    }
+
+    private int numDocs() throws Exception {
+        IndexReader reader = IndexPartitions.open(dir);
+        try {
+            return reader.numDocs();
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testCreateDeletesPartitions() throws Exception {
+        build(IndexPartitioning.YEAR, false,
+                item("http://example.com/a", "AAAA", "2013-05-01T12:00:00Z"),
+                item("http://example.com/b", "BBBB", "2014-05-01T12:00:00Z"));
+        assertEquals(2, IndexPartitions.listPartitions(dir).size());
+
+        build(IndexPartitioning.YEAR, false,
+                item("http://example.com/c", "CCCC", "2014-06-01T12:00:00Z"));
+        assertEquals(1, IndexPartitions.listPartitions(dir).size());
+        assertFalse(new File(dir, "2013").exists());
+        assertEquals(1, numDocs());
+    }
+
+    public void testCreatePartitionsOverSingleIndex() throws Exception {
+        build(IndexPartitioning.NONE, false,
+                item("http://example.com/a", "AAAA", "2013-05-01T12:00:00Z"),
+                item("http://example.com/b", "BBBB", "2014-05-01T12:00:00Z"));
+        assertTrue(IndexPartitions.isSingleIndex(dir));
+
+        build(IndexPartitioning.YEAR, false,
+                item("http://example.com/c", "CCCC", "2014-06-01T12:00:00Z"));
+        assertFalse(IndexPartitions.isSingleIndex(dir));
+        assertEquals(1, numDocs());
+    }
+
+    public void testCreateSingleIndexOverPartitions() throws Exception {
+        build(IndexPartitioning.YEAR, false,
+                item("http://example.com/a", "AAAA", "2013-05-01T12:00:00Z"));
+
+        build(IndexPartitioning.NONE, false,
+                item("http://example.com/b", "BBBB", "2014-05-01T12:00:00Z"),
+                item("http://example.com/c", "CCCC", "2014-06-01T12:00:00Z"));
+        assertTrue(IndexPartitions.listPartitions(dir).isEmpty());
+        assertEquals(2, numDocs());
+    }
+
+    public void testAddWithOtherPartitioning() throws Exception {
+        build(IndexPartitioning.NONE, false,
+                item("http://example.com/a", "AAAA", "2013-05-01T12:00:00Z"));
+        try {
+            build(IndexPartitioning.YEAR, true,
+                    item("http://example.com/b", "BBBB", "2014-05-01T12:00:00Z"));
+            fail("Added partitions to a single index");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        build(IndexPartitioning.NONE, true,
+                item("http://example.com/b", "BBBB", "2014-05-01T12:00:00Z"));
+        assertEquals(2, numDocs());
+    }
+
+    public void testAbortReleasesLock() throws Exception {
+        IndexBuilder builder = new IndexBuilder(dir.getPath(), true, false, false, false, false,
+                IndexPartitioning.YEAR, KeyPostingsFormat.DEFAULT);
+        builder.writeToIndex(TestCrawlData.iterator(
+                item("http://example.com/a", "AAAA", "2013-05-01T12:00:00Z"),
+                item("http://example.com/b", "BBBB", "2014-05-01T12:00:00Z")), ".*", false, false);
+        builder.abort();
+        for (String partition : new String[] {"2013", "2014"}) {
+            Directory directory = FSDirectory.open(new File(dir, partition));
+            try {
+                assertFalse(IndexWriter.isLocked(directory));
+            } finally {
+                directory.close();
+            }
+        }
+        // Nothing was committed
+        assertTrue(IndexPartitions.listPartitions(dir).isEmpty());
+    }
+
+}
@@ -0,0 +1,142 @@
+/* Copyright (C) 2006-2014 National and University Library of Iceland (NULI)
+ * 
+ * This file is part of the DeDuplicator (Heritrix add-on module).
+ * 
+ *  NULI licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package is.landsbokasafn.deduplicator.indexer;
+
+import static is.landsbokasafn.deduplicator.IndexFields.DATE;
+import static is.landsbokasafn.deduplicator.IndexFields.DIGEST;
+import static is.landsbokasafn.deduplicator.IndexFields.URL;
+import static is.landsbokasafn.deduplicator.indexer.TestCrawlData.item;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
+
+import is.landsbokasafn.deduplicator.IndexPartitioning;
+import is.landsbokasafn.deduplicator.IndexPartitions;
+import is.landsbokasafn.deduplicator.indexer.IndexBuilder.Entry;
+import is.landsbokasafn.deduplicator.indexer.IndexCompactor.Retention;
+
+public class IndexCompactorTest extends TestCase {
+
+    private File dir;
+    private File single;
+    private File partitioned;
+    private File target;
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = Files.createTempDirectory("indexcompactor").toFile();
+        single = new File(dir, "single");
+        partitioned = new File(dir, "partitioned");
+        target = new File(dir, "target");
+
+        build(single, IndexPartitioning.NONE, false,
+                item("http://example.com/a", "AAAA", "2013-05-01T12:00:00Z"),
+                item("http://example.com/b", "BBBB", "2013-05-01T12:00:00Z"));
+        // Replaces the first capture of a, leaving a deleted document behind
+        build(single, IndexPartitioning.NONE, true,
+                item("http://example.com/a", "AAAA", "2013-06-01T12:00:00Z"));
+        build(partitioned, IndexPartitioning.YEAR, false,
+                item("http://example.com/a", "AAAA", "2014-01-01T12:00:00Z"),
+                item("http://example.com/a", "CCCC", "2012-01-01T12:00:00Z"));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    private static void build(File location, IndexPartitioning partitioning, boolean add, CrawlDataItem... items)
+            throws Exception {
+        IndexBuilder builder = new IndexBuilder(location.getPath(), true, false, false, add, false, partitioning,
+                KeyPostingsFormat.DEFAULT);
+        try {
+            builder.writeToIndex(TestCrawlData.iterator(items), ".*", false, false);
+        } finally {
+            builder.close();
+        }
+    }
+
+    /**
+     * @return The dates of the documents in the target, by URL and digest
+     */
+    private Map<String, String> compact(Retention retention, IndexPartitioning partitioning) throws Exception {
+        IndexCompactor.compact(target, Arrays.asList(single, partitioned), retention, partitioning,
+                KeyPostingsFormat.DEFAULT, 1, 2);
+        IndexReader reader = IndexPartitions.open(target);
+        try {
+            assertEquals(0, reader.numDeletedDocs());
+            Map<String, String> dates = new HashMap<String, String>();
+            for (int i = 0; i < reader.maxDoc(); i++) {
+                Document doc = reader.document(i);
+                String key = IndexBuilder.keyOf(doc.get(URL.name()), doc.get(DIGEST.name()), true);
+                assertNull("Duplicate key " + key, dates.put(key, doc.get(DATE.name())));
+            }
+            return dates;
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testKeepNewest() throws Exception {
+        Map<String, String> dates = compact(Retention.NEWEST, IndexPartitioning.NONE);
+        assertEquals(3, dates.size());
+        assertEquals("2014-01-01T12:00:00Z", dates.get("http://example.com/a AAAA"));
+        assertEquals("2013-05-01T12:00:00Z", dates.get("http://example.com/b BBBB"));
+        assertEquals("2012-01-01T12:00:00Z", dates.get("http://example.com/a CCCC"));
+        assertTrue(IndexPartitions.isSingleIndex(target));
+    }
+
+    public void testKeepOldest() throws Exception {
+        Map<String, String> dates = compact(Retention.OLDEST, IndexPartitioning.YEAR);
+        assertEquals(3, dates.size());
+        // The capture from 2013-05-01 was deleted from the source
+        assertEquals("2013-06-01T12:00:00Z", dates.get("http://example.com/a AAAA"));
+        assertEquals(Arrays.asList(new File(target, "2013"), new File(target, "2012")),
+                IndexPartitions.listPartitions(target));
+    }
+
+    public void testPrecedence() {
+        Entry older = new Entry("http://example.com/a", null, "AAAA", "20130501120000", null, null, "key");
+        Entry newer = new Entry("http://example.com/a", null, "AAAA", "2013-06-01T12:00:00Z", null, null, "key");
+        assertTrue(Retention.NEWEST.precedence().compare(newer, older) > 0);
+        assertTrue(Retention.OLDEST.precedence().compare(older, newer) > 0);
+        assertEquals(0, Retention.NEWEST.precedence().compare(older, older));
+    }
+
+    public void testFailureRemovesTarget() throws Exception {
+        assertTrue(target.mkdir());
+        try {
+            IndexCompactor.compact(target, Arrays.asList(single, new File(dir, "missing")), Retention.NEWEST,
+                    IndexPartitioning.NONE, KeyPostingsFormat.DEFAULT, 1, 2);
+            fail("Compacted a missing index");
+        } catch (IOException e) {
+            // Expected
+        }
+        assertFalse(target.exists());
+    }
+
+}
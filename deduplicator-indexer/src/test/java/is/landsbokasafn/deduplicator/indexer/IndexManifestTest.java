@@ -0,0 +1,293 @@
+/* Copyright (C) 2006-2014 National and University Library of Iceland (NULI)
+ * 
+ * This file is part of the DeDuplicator (Heritrix add-on module).
+ * 
+ *  NULI licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package is.landsbokasafn.deduplicator.indexer;
+
+import static is.landsbokasafn.deduplicator.indexer.TestCrawlData.item;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.index.IndexReader;
+
+import is.landsbokasafn.deduplicator.IndexPartitioning;
+import is.landsbokasafn.deduplicator.IndexPartitions;
+
+public class IndexManifestTest extends TestCase {
+
+    private File dir;
+    private File index;
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = Files.createTempDirectory("indexmanifest").toFile();
+        index = new File(dir, "index");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    private File source(String name, String content) throws IOException {
+        File file = new File(dir, name);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+    public void testRoundTrip() throws Exception {
+        File a = new File(dir, "a.warc.gz");
+        File b = new File(dir, "with\ttab.warc.gz");
+        IndexManifest manifest = new IndexManifest(index);
+        manifest.put(a, 100, 1000, 10);
+        manifest.put(b, 200, 2000, 20);
+        manifest.put(a, 300, 3000, 30);
+        assertEquals(2, manifest.size());
+        manifest.save();
+
+        IndexManifest loaded = IndexManifest.load(index);
+        assertEquals(2, loaded.size());
+        IndexManifest.Source source = loaded.get(a);
+        assertEquals(a.getAbsolutePath(), source.getPath());
+        assertEquals(300, source.getSize());
+        assertEquals(3000, source.getLastModified());
+        assertEquals(30, source.getRecords());
+        source = loaded.get(b);
+        assertEquals(b.getAbsolutePath(), source.getPath());
+        assertEquals(20, source.getRecords());
+        assertNull(loaded.get(new File(dir, "other.warc.gz")));
+
+        // Saving what was loaded gives the same file, with the last indexed file last
+        String saved = read(new File(index, IndexManifest.FILE_NAME));
+        assertTrue(saved.indexOf(b.getAbsolutePath()) < saved.indexOf(a.getAbsolutePath()));
+        loaded.save();
+        assertEquals(saved, read(new File(index, IndexManifest.FILE_NAME)));
+    }
+
+    public void testLoadMissing() throws Exception {
+        IndexManifest manifest = IndexManifest.load(index);
+        assertEquals(0, manifest.size());
+        assertFalse(new File(index, IndexManifest.FILE_NAME).exists());
+    }
+
+    public void testLoadMalformed() throws Exception {
+        assertTrue(index.mkdir());
+        Files.write(new File(index, IndexManifest.FILE_NAME).toPath(),
+                Arrays.asList("# comment", "/a.warc.gz\t100\tnot a number\t10"), StandardCharsets.UTF_8);
+        try {
+            IndexManifest.load(index);
+            fail("Loaded a malformed manifest");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    public void testIsIndexed() throws Exception {
+        File a = source("a.warc.gz", "content");
+        IndexManifest manifest = new IndexManifest(index);
+        assertFalse(manifest.isIndexed(a));
+        manifest.put(a, a.length(), a.lastModified(), 1);
+        assertTrue(manifest.isIndexed(a));
+
+        assertTrue(a.setLastModified(a.lastModified() - 10000));
+        assertFalse(manifest.isIndexed(a));
+        manifest.put(a, a.length(), a.lastModified(), 1);
+        long lastModified = a.lastModified();
+        Files.write(a.toPath(), "more content".getBytes(StandardCharsets.UTF_8));
+        assertTrue(a.setLastModified(lastModified));
+        assertFalse(manifest.isIndexed(a));
+    }
+
+    public void testSaveReplaces() throws Exception {
+        File file = new File(index, IndexManifest.FILE_NAME);
+        File temp = new File(index, IndexManifest.FILE_NAME + ".tmp");
+        IndexManifest manifest = new IndexManifest(index);
+        manifest.put(new File(dir, "a.warc.gz"), 100, 1000, 10);
+        manifest.save();
+        String first = read(file);
+        assertFalse(temp.exists());
+
+        // Left behind by a crash while saving
+        Files.write(temp.toPath(), "partial".getBytes(StandardCharsets.UTF_8));
+        assertEquals(1, IndexManifest.load(index).size());
+
+        manifest.put(new File(dir, "b.warc.gz"), 200, 2000, 20);
+        manifest.save();
+        assertFalse(temp.exists());
+        assertEquals(2, IndexManifest.load(index).size());
+        assertTrue(read(file).startsWith(first));
+    }
+
+    public void testFailedSaveKeepsPrevious() throws Exception {
+        File file = new File(index, IndexManifest.FILE_NAME);
+        IndexManifest manifest = new IndexManifest(index);
+        manifest.put(new File(dir, "a.warc.gz"), 100, 1000, 10);
+        manifest.save();
+        String saved = read(file);
+
+        // The temporary file can not be written
+        assertTrue(new File(index, IndexManifest.FILE_NAME + ".tmp").mkdir());
+        manifest.put(new File(dir, "b.warc.gz"), 200, 2000, 20);
+        try {
+            manifest.save();
+            fail("Saved without a temporary file");
+        } catch (IOException e) {
+            // Expected
+        }
+        assertEquals(saved, read(file));
+    }
+
+    /**
+     * Source files, each split into two parts of three items. Fails in the second part of one file, if given.
+     */
+    private static class Sources implements SplittableCrawlDataIterator {
+        final List<File> files;
+        final File failIn;
+        final List<String> opened = new ArrayList<String>();
+
+        Sources(File failIn, File... files) {
+            this.files = Arrays.asList(files);
+            this.failIn = failIn;
+        }
+
+        static List<CrawlDataItem> items(File file, int part) {
+            List<CrawlDataItem> items = new ArrayList<CrawlDataItem>();
+            for (int i = 0; i < 3; i++) {
+                items.add(item("http://example.com/" + file.getName() + "/" + part + "/" + i, "AAAA",
+                        "2014-03-01T12:00:00Z"));
+            }
+            return items;
+        }
+
+        @Override
+        public List<CrawlDataPart> split() {
+            List<CrawlDataPart> parts = new ArrayList<CrawlDataPart>();
+            for (final File file : files) {
+                for (int i = 0; i < 2; i++) {
+                    final int part = i;
+                    parts.add(new CrawlDataPart() {
+                        @Override
+                        public String getName() {
+                            return file.getName() + " part " + part;
+                        }
+                        @Override
+                        public long getSize() {
+                            return -1;
+                        }
+                        @Override
+                        public File getFile() {
+                            return file;
+                        }
+                        @Override
+                        public CrawlDataIterator open() throws IOException {
+                            synchronized (opened) {
+                                opened.add(getName());
+                            }
+                            if (file.equals(failIn) && part == 1) {
+                                throw new IOException("Interrupted");
+                            }
+                            return TestCrawlData.iterator(items(file, part));
+                        }
+                    });
+                }
+            }
+            return parts;
+        }
+
+        @Override
+        public void initialize(String source) {
+        }
+        @Override
+        public boolean hasNext() {
+            throw new UnsupportedOperationException();
+        }
+        @Override
+        public CrawlDataItem next() {
+            throw new UnsupportedOperationException();
+        }
+        @Override
+        public void close() {
+        }
+        @Override
+        public String getSourceType() {
+            return "Test parts";
+        }
+    }
+
+    private long index(boolean add, Sources sources) throws Exception {
+        IndexBuilder builder = new IndexBuilder(index.getPath(), true, false, false, add, false,
+                IndexPartitioning.NONE, KeyPostingsFormat.DEFAULT);
+        try {
+            builder.setManifest(add ? IndexManifest.load(index) : new IndexManifest(index), 0);
+            return builder.writeToIndex(sources, ".*", false, false, 1);
+        } finally {
+            builder.close();
+        }
+    }
+
+    public void testResume() throws Exception {
+        File a = source("a.warc.gz", "a");
+        File b = source("b.warc.gz", "b");
+        File c = source("c.warc.gz", "c");
+        try {
+            index(false, new Sources(b, a, b, c));
+            fail("Interrupted run completed");
+        } catch (IOException e) {
+            // Expected
+        }
+        // Only what was completely written is in the manifest. The first part of b was written to the index.
+        IndexManifest manifest = IndexManifest.load(index);
+        assertEquals(1, manifest.size());
+        assertTrue(manifest.isIndexed(a));
+        assertEquals(6, manifest.get(a).getRecords());
+        assertNull(manifest.get(b));
+
+        Sources sources = new Sources(null, a, b, c);
+        assertEquals(12, index(true, sources));
+        // The file that was partly processed is read again, from the start
+        assertEquals(Arrays.asList("b.warc.gz part 0", "b.warc.gz part 1", "c.warc.gz part 0", "c.warc.gz part 1"),
+                sources.opened);
+        manifest = IndexManifest.load(index);
+        assertEquals(3, manifest.size());
+        assertEquals(6, manifest.get(b).getRecords());
+        assertTrue(manifest.isIndexed(c));
+
+        IndexReader reader = IndexPartitions.open(index);
+        try {
+            assertEquals(18, reader.numDocs());
+        } finally {
+            reader.close();
+        }
+
+        // Nothing left to do
+        sources = new Sources(null, a, b, c);
+        assertEquals(0, index(true, sources));
+        assertTrue(sources.opened.isEmpty());
+    }
+
+}
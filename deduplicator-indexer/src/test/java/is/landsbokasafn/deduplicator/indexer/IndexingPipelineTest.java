@@ -0,0 +1,260 @@
+/* Copyright (C) 2006-2014 National and University Library of Iceland (NULI)
+ * 
+ * This file is part of the DeDuplicator (Heritrix add-on module).
+ * 
+ *  NULI licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package is.landsbokasafn.deduplicator.indexer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+public class IndexingPipelineTest extends TestCase {
+
+    /**
+     * Numbered items, optionally failing at one of them. Counts the items read.
+     */
+    private static class Items implements CrawlDataIterator {
+        final int count;
+        final int failAt;
+        final AtomicInteger read = new AtomicInteger();
+
+        Items(int count, int failAt) {
+            this.count = count;
+            this.failAt = failAt;
+        }
+
+        @Override
+        public void initialize(String source) {
+        }
+        @Override
+        public boolean hasNext() {
+            return read.get() < count;
+        }
+        @Override
+        public CrawlDataItem next() {
+            int i = read.getAndIncrement();
+            if (i == failAt) {
+                throw new IllegalStateException("Source failed");
+            }
+            return TestCrawlData.item("http://example.com/" + i, "AAAA", "2014-03-01T12:00:00Z");
+        }
+        @Override
+        public void close() {
+        }
+        @Override
+        public String getSourceType() {
+            return "Numbered items";
+        }
+    }
+
+    /**
+     * Results are the item numbers, every third item is left out. Batches are held up for a random while, so that
+     * they are transformed out of order.
+     */
+    private static class Numbers implements IndexingPipeline.Transformer<Integer> {
+        final Random random = new Random(42);
+        final int failAt;
+
+        Numbers(int failAt) {
+            this.failAt = failAt;
+        }
+
+        @Override
+        public void transform(List<CrawlDataItem> items, List<Integer> results) throws IOException {
+            int delay;
+            synchronized (random) {
+                delay = random.nextInt(5);
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            for (CrawlDataItem item : items) {
+                int number = Integer.parseInt(item.getURL().substring("http://example.com/".length()));
+                if (number == failAt) {
+                    throw new IOException("Transform failed");
+                }
+                if (number % 3 != 0) {
+                    results.add(number);
+                }
+            }
+        }
+    }
+
+    private static class Collector implements IndexingPipeline.Sink<Integer> {
+        final List<Integer> results = Collections.synchronizedList(new ArrayList<Integer>());
+
+        @Override
+        public void write(Integer result) throws IOException {
+            results.add(result);
+        }
+    }
+
+    private static int pipelineThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && thread.getName().startsWith("Pipeline ")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void assertStopped() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (pipelineThreads() > 0) {
+            assertTrue("Pipeline threads still running", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    public void testOrder() throws Exception {
+        IndexingPipeline<Integer> pipeline = new IndexingPipeline<Integer>(4, 2);
+        int count = 20 * IndexingPipeline.BATCH_SIZE + 17;
+        Collector sink = new Collector();
+        pipeline.run(new Items(count, -1), new Numbers(-1), sink);
+
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 0; i < count; i++) {
+            if (i % 3 != 0) {
+                expected.add(i);
+            }
+        }
+        assertEquals(expected, sink.results);
+        assertStopped();
+
+        // The pipeline can be run again
+        sink = new Collector();
+        pipeline.run(new Items(10, -1), new Numbers(-1), sink);
+        assertEquals(expected.subList(0, 6), sink.results);
+    }
+
+    public void testEmptySource() throws Exception {
+        Collector sink = new Collector();
+        new IndexingPipeline<Integer>(2, 1).run(new Items(0, -1), new Numbers(-1), sink);
+        assertTrue(sink.results.isEmpty());
+    }
+
+    /**
+     * A writer that can not keep up holds up the source, rather than letting it read ahead without bounds.
+     */
+    public void testBackpressure() throws Exception {
+        final int workers = 2;
+        final int queueCapacity = 1;
+        final IndexingPipeline<Integer> pipeline = new IndexingPipeline<Integer>(workers, queueCapacity);
+        final Items items = new Items(100 * IndexingPipeline.BATCH_SIZE, -1);
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Collector sink = new Collector() {
+            @Override
+            public void write(Integer result) throws IOException {
+                writing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                super.write(result);
+            }
+        };
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread runner = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    pipeline.run(items, new Numbers(-1), sink);
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        };
+        runner.start();
+        try {
+            assertTrue(writing.await(10, TimeUnit.SECONDS));
+            // Give the source time to run ahead, if it could
+            Thread.sleep(500);
+            // Batches read but not written are bounded, plus the one the source is holding
+            int maxBatches = 2 * queueCapacity + workers + 1;
+            int read = items.read.get();
+            assertTrue(read + " items read", read <= maxBatches * IndexingPipeline.BATCH_SIZE);
+            assertTrue(pipeline.getSourceQueueDepth() <= queueCapacity);
+            assertTrue(pipeline.getResultQueueDepth() <= queueCapacity);
+        } finally {
+            release.countDown();
+        }
+        runner.join(30000);
+        assertFalse(runner.isAlive());
+        assertNull(failure.get());
+        assertEquals(items.count - (items.count + 2) / 3, sink.results.size());
+    }
+
+    public void testTransformFailure() throws Exception {
+        Items items = new Items(1000 * IndexingPipeline.BATCH_SIZE, -1);
+        Collector sink = new Collector();
+        try {
+            new IndexingPipeline<Integer>(4, 2).run(items, new Numbers(3 * IndexingPipeline.BATCH_SIZE), sink);
+            fail("Transform failure not propagated");
+        } catch (IOException e) {
+            assertEquals("Transform failed", e.getMessage());
+        }
+        assertStopped();
+        // The source was stopped, and nothing after the failed batch was written
+        assertTrue(items.read.get() < items.count);
+        assertTrue(sink.results.size() < 3 * IndexingPipeline.BATCH_SIZE);
+    }
+
+    public void testSourceFailure() throws Exception {
+        Collector sink = new Collector();
+        try {
+            new IndexingPipeline<Integer>(4, 2).run(new Items(10 * IndexingPipeline.BATCH_SIZE, 1000),
+                    new Numbers(-1), sink);
+            fail("Source failure not propagated");
+        } catch (IllegalStateException e) {
+            assertEquals("Source failed", e.getMessage());
+        }
+        assertStopped();
+        assertTrue(sink.results.size() < 1000);
+    }
+
+    public void testSinkFailure() throws Exception {
+        Items items = new Items(1000 * IndexingPipeline.BATCH_SIZE, -1);
+        final AtomicInteger written = new AtomicInteger();
+        try {
+            new IndexingPipeline<Integer>(4, 2).run(items, new Numbers(-1), new IndexingPipeline.Sink<Integer>() {
+                @Override
+                public void write(Integer result) throws IOException {
+                    if (written.incrementAndGet() == 500) {
+                        throw new IOException("Sink failed");
+                    }
+                }
+            });
+            fail("Sink failure not propagated");
+        } catch (IOException e) {
+            assertEquals("Sink failed", e.getMessage());
+        }
+        assertStopped();
+        assertTrue(items.read.get() < items.count);
+    }
+
+}
@@ -0,0 +1,101 @@
+/* Copyright (C) 2006-2014 National and University Library of Iceland (NULI)
+ * 
+ * This file is part of the DeDuplicator (Heritrix add-on module).
+ * 
+ *  NULI licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package is.landsbokasafn.deduplicator.indexer;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import junit.framework.TestCase;
+
+public class SeenKeySetTest extends TestCase {
+
+    private File spillDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        spillDirectory = Files.createTempDirectory("seenkeys").toFile();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File f : spillDirectory.listFiles()) {
+            f.delete();
+        }
+        spillDirectory.delete();
+    }
+
+    private static long key(int i) {
+        return SeenKeySet.hash(0, "http://www.example.com/" + i);
+    }
+
+    private static long content(int i, int version) {
+        return SeenKeySet.hash(1, "sha1:" + i, Integer.toString(version));
+    }
+
+    public void testInMemory() throws Exception {
+        SeenKeySet seen = new SeenKeySet(100, spillDirectory);
+        try {
+            assertTrue(seen.add(key(1), content(1, 0)));
+            assertFalse(seen.add(key(1), content(1, 0)));
+            assertTrue(seen.add(key(1), content(1, 1)));
+            assertFalse(seen.add(key(1), content(1, 1)));
+            // Zero is used to mark free slots internally
+            assertTrue(seen.add(0, 0));
+            assertFalse(seen.add(0, 0));
+            assertEquals(0, seen.getSpills());
+        } finally {
+            seen.close();
+        }
+    }
+
+    public void testSpillAndMerge() throws Exception {
+        final int keys = 5000;
+        // Runs of 300 keys span more than one block, and more than 8 runs get merged
+        SeenKeySet seen = new SeenKeySet(300, spillDirectory);
+        try {
+            for (int i = 0; i < keys; i++) {
+                assertTrue(seen.add(key(i), content(i, 0)));
+            }
+            assertTrue("Expected keys to be spilled", seen.getSpills() > 8);
+            assertTrue(seen.getSpilled() >= keys - 300);
+
+            // Keys are found whether in memory, in a run or in a merged run
+            for (int i = 0; i < keys; i++) {
+                assertFalse("Key " + i + " not found", seen.add(key(i), content(i, 0)));
+            }
+
+            // Replace the content of every other key, and spill and merge again. The newest content wins.
+            for (int i = 0; i < keys; i += 2) {
+                assertTrue(seen.add(key(i), content(i, 1)));
+            }
+            for (int i = keys; i < 2 * keys; i++) {
+                assertTrue(seen.add(key(i), content(i, 0)));
+            }
+            for (int i = 0; i < keys; i++) {
+                int version = i % 2 == 0 ? 1 : 0;
+                assertFalse("Key " + i + " has the wrong content", seen.add(key(i), content(i, version)));
+            }
+            for (int i = 1; i < keys; i += 2) {
+                assertTrue(seen.add(key(i), content(i, 1)));
+            }
+        } finally {
+            seen.close();
+        }
+        assertEquals("Runs not deleted", 0, spillDirectory.listFiles().length);
+    }
+
+}
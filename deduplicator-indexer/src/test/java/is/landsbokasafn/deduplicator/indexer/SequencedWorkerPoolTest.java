@@ -0,0 +1,132 @@
+/* Copyright (C) 2006-2014 National and University Library of Iceland (NULI)
+ * 
+ * This file is part of the DeDuplicator (Heritrix add-on module).
+ * 
+ *  NULI licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package is.landsbokasafn.deduplicator.indexer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class SequencedWorkerPoolTest extends TestCase {
+
+    private static List<Integer> tasks(int count) {
+        List<Integer> tasks = new ArrayList<Integer>();
+        for (int i = 0; i < count; i++) {
+            tasks.add(i);
+        }
+        return tasks;
+    }
+
+    public void testOrder() throws Exception {
+        final List<Integer> written = Collections.synchronizedList(new ArrayList<Integer>());
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        new SequencedWorkerPool<Integer>(4, "Test").run(tasks(40), new SequencedWorkerPool.Worker<Integer>() {
+            @Override
+            public void process(Integer task, SequencedWorkerPool.Turn turn) throws Exception {
+                int now = running.incrementAndGet();
+                synchronized (maxRunning) {
+                    maxRunning.set(Math.max(maxRunning.get(), now));
+                }
+                // Later tasks tend to finish their work first
+                Thread.sleep(task % 4 == 0 ? 20 : 1);
+                running.decrementAndGet();
+                turn.await();
+                assertTrue(turn.isCurrent());
+                assertEquals(task.intValue(), turn.getPosition());
+                written.add(task);
+            }
+        });
+        assertEquals(tasks(40), written);
+        assertTrue("Tasks did not run concurrently", maxRunning.get() > 1);
+    }
+
+    public void testAwaitedAfterReturn() throws Exception {
+        final List<Integer> completed = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch firstMayReturn = new CountDownLatch(1);
+        new SequencedWorkerPool<Integer>(2, "Test").run(tasks(2), new SequencedWorkerPool.Worker<Integer>() {
+            @Override
+            public void process(Integer task, SequencedWorkerPool.Turn turn) throws Exception {
+                if (task == 0) {
+                    assertTrue(firstMayReturn.await(10, TimeUnit.SECONDS));
+                    completed.add(task);
+                } else {
+                    // Returns without waiting, but is not complete until the first task is
+                    assertFalse(turn.isCurrent());
+                    firstMayReturn.countDown();
+                }
+            }
+        });
+        assertEquals(Collections.singletonList(0), completed);
+    }
+
+    public void testFailure() throws Exception {
+        final AtomicInteger started = new AtomicInteger();
+        final List<Integer> aborted = Collections.synchronizedList(new ArrayList<Integer>());
+        final IOException failure = new IOException("Task 1 failed");
+        final CountDownLatch othersWaiting = new CountDownLatch(1);
+        try {
+            new SequencedWorkerPool<Integer>(2, "Test").run(tasks(100), new SequencedWorkerPool.Worker<Integer>() {
+                @Override
+                public void process(Integer task, SequencedWorkerPool.Turn turn) throws Exception {
+                    started.incrementAndGet();
+                    if (task == 0) {
+                        // Fail once task 1 is waiting for its turn
+                        assertTrue(othersWaiting.await(10, TimeUnit.SECONDS));
+                        Thread.sleep(50);
+                        throw failure;
+                    }
+                    othersWaiting.countDown();
+                    try {
+                        turn.await();
+                    } catch (IOException e) {
+                        aborted.add(task);
+                        throw e;
+                    }
+                }
+            });
+            fail("Failure not propagated");
+        } catch (IOException e) {
+            assertSame(failure, e);
+        }
+        assertEquals(Collections.singletonList(1), aborted);
+        assertTrue("Tasks started after the failure", started.get() < 100);
+    }
+
+    public void testRuntimeFailure() throws Exception {
+        final IllegalStateException failure = new IllegalStateException("Task failed");
+        try {
+            new SequencedWorkerPool<Integer>(3, "Test").run(tasks(10), new SequencedWorkerPool.Worker<Integer>() {
+                @Override
+                public void process(Integer task, SequencedWorkerPool.Turn turn) throws Exception {
+                    if (task == 5) {
+                        throw failure;
+                    }
+                }
+            });
+            fail("Failure not propagated");
+        } catch (IllegalStateException e) {
+            assertSame(failure, e);
+        }
+    }
+
+}
@@ -0,0 +1,72 @@
+/* Copyright (C) 2006-2014 National and University Library of Iceland (NULI)
+ * 
+ * This file is part of the DeDuplicator (Heritrix add-on module).
+ * 
+ *  NULI licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package is.landsbokasafn.deduplicator.indexer;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Crawl data for tests.
+ */
+class TestCrawlData {
+
+    /**
+     * @return A successfully crawled capture
+     */
+    static CrawlDataItem item(String url, String digest, String timestamp) {
+        CrawlDataItem item = new CrawlDataItem();
+        item.setURL(url);
+        item.setContentDigest("sha1:" + digest);
+        item.setTimestamp(timestamp);
+        item.setStatusCode(200);
+        item.setMimeType("text/html");
+        return item;
+    }
+
+    static CrawlDataIterator iterator(CrawlDataItem... items) {
+        return iterator(Arrays.asList(items));
+    }
+
+    /**
+     * @return An iterator over the items
+     */
+    static CrawlDataIterator iterator(List<CrawlDataItem> items) {
+        final Iterator<CrawlDataItem> it = items.iterator();
+        return new CrawlDataIterator() {
+            @Override
+            public void initialize(String source) {
+            }
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+            @Override
+            public CrawlDataItem next() throws IOException {
+                return it.next();
+            }
+            @Override
+            public void close() {
+            }
+            @Override
+            public String getSourceType() {
+                return "Test items";
+            }
+        };
+    }
+}
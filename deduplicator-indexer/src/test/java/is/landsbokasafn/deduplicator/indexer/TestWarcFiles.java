@@ -0,0 +1,94 @@
+/* Copyright (C) 2006-2014 National and University Library of Iceland (NULI)
+ *
+ * This file is part of the DeDuplicator (Heritrix add-on module).
+ *
+ *  NULI licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package is.landsbokasafn.deduplicator.indexer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes WARC files for tests.
+ */
+class TestWarcFiles {
+
+    /**
+     * @param headers WARC header lines, other than the version and Content-Length
+     * @param block The content block
+     * @return A WARC record
+     */
+    static byte[] record(String[] headers, byte[] block) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StringBuilder sb = new StringBuilder("WARC/1.0\r\n");
+        for (String header : headers) {
+            sb.append(header).append("\r\n");
+        }
+        sb.append("Content-Length: ").append(block.length).append("\r\n\r\n");
+        out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+        out.write(block);
+        out.write("\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        return out.toByteArray();
+    }
+
+    static byte[] record(String[] headers, String block) throws IOException {
+        return record(headers, block.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Write records to a WARC. If the file name ends in .gz, each record is written as a gzip member, as Heritrix
+     * does.
+     */
+    static void write(File warc, List<byte[]> records) throws IOException {
+        OutputStream out = new FileOutputStream(warc);
+        try {
+            for (byte[] record : records) {
+                if (warc.getName().endsWith(".gz")) {
+                    out.write(gzip(record));
+                } else {
+                    out.write(record);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GZIPOutputStream gz = new GZIPOutputStream(out);
+        gz.write(bytes);
+        gz.close();
+        return out.toByteArray();
+    }
+
+    /**
+     * Delete a directory and the files in it.
+     */
+    static void delete(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+}
@@ -0,0 +1,147 @@
+/* Copyright (C) 2006-2014 National and University Library of Iceland (NULI)
+ *
+ * This file is part of the DeDuplicator (Heritrix add-on module).
+ *
+ *  NULI licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package is.landsbokasafn.deduplicator.indexer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class WarcRecordScannerTest extends TestCase {
+
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = Files.createTempDirectory("warcscanner").toFile();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestWarcFiles.delete(dir);
+    }
+
+    private static String[] headers(String type, String uri, String id, String... more) {
+        List<String> headers = new ArrayList<String>();
+        headers.add("WARC-Type: " + type);
+        if (uri != null) {
+            headers.add("WARC-Target-URI: " + uri);
+        }
+        headers.add("WARC-Date: 2014-03-01T12:00:00Z");
+        headers.add("WARC-Record-ID: <urn:uuid:" + id + ">");
+        for (String header : more) {
+            headers.add(header);
+        }
+        return headers.toArray(new String[headers.size()]);
+    }
+
+    static List<byte[]> records() throws IOException {
+        List<byte[]> records = new ArrayList<byte[]>();
+        records.add(TestWarcFiles.record(headers("warcinfo", null, "00000000-0000-0000-0000-000000000000",
+                "Content-Type: application/warc-fields"), "software: test\r\n"));
+        records.add(TestWarcFiles.record(headers("request", "http://example.com/a",
+                "00000000-0000-0000-0000-000000000001", "Content-Type: application/http; msgtype=request"),
+                "GET /a HTTP/1.1\r\nHost: example.com\r\n\r\n"));
+        records.add(TestWarcFiles.record(headers("response", "http://example.com/a",
+                "00000000-0000-0000-0000-000000000002", "WARC-Payload-Digest: sha1:AAAA",
+                "Content-Type: application/http; msgtype=response"),
+                "HTTP/1.1 200 OK\r\nContent-Type: text/html\r\nETag: \"a1\"\r\nContent-Length: 5\r\n\r\nhello"));
+        // Folded header and header names in other case
+        records.add(TestWarcFiles.record(headers("response", "http://example.com/b",
+                "00000000-0000-0000-0000-000000000003", "WARC-Payload-Digest: sha1:BBBB",
+                "Content-Type: application/http; msgtype=response"),
+                "HTTP/1.0 404 Not Found\r\ncontent-type: text/html;\r\n\tcharset=utf-8\r\netag: \"b1\"\r\n" +
+                "X-Long: one\r\n two\r\n\r\nnot found"));
+        records.add(TestWarcFiles.record(headers("metadata", "http://example.com/a",
+                "00000000-0000-0000-0000-000000000004", "Content-Type: application/warc-fields"),
+                "outlink: http://example.com/b L a/@href\r\n"));
+        records.add(TestWarcFiles.record(headers("response", "dns:example.com",
+                "00000000-0000-0000-0000-000000000005", "WARC-Payload-Digest: sha1:CCCC",
+                "Content-Type: text/dns"), "20140301120000\r\nexample.com. 300 IN A 192.0.2.1\r\n"));
+        records.add(TestWarcFiles.record(headers("revisit", "http://example.com/a",
+                "00000000-0000-0000-0000-000000000006", "WARC-Payload-Digest: sha1:AAAA",
+                "WARC-Profile: http://netpreserve.org/warc/1.0/revisit/identical-payload-digest",
+                "WARC-Refers-To-Target-URI: http://example.com/a", "WARC-Refers-To-Date: 2014-02-01T12:00:00Z",
+                "Content-Type: application/http; msgtype=response"),
+                "HTTP/1.1 200 OK\r\nContent-Type: text/html\r\nETag: \"a1\"\r\n\r\n"));
+        records.add(TestWarcFiles.record(headers("revisit", "http://example.com/c",
+                "00000000-0000-0000-0000-000000000007",
+                "WARC-Profile: http://netpreserve.org/warc/1.0/revisit/server-not-modified",
+                "WARC-Refers-To-Target-URI: http://example.com/c", "WARC-Refers-To-Date: 2014-02-01T12:00:00Z",
+                "Content-Type: application/http; msgtype=response"),
+                "HTTP/1.1 304 Not Modified\r\nETag: \"c1\"\r\n\r\n"));
+        records.add(TestWarcFiles.record(headers("resource", "http://example.com/d",
+                "00000000-0000-0000-0000-000000000008", "WARC-Payload-Digest: sha1:DDDD",
+                "Content-Type: text/plain"), "resource"));
+        // Response without an HTTP header block
+        records.add(TestWarcFiles.record(headers("response", "http://example.com/e",
+                "00000000-0000-0000-0000-000000000009", "WARC-Payload-Digest: sha1:EEEE",
+                "Content-Type: application/octet-stream"), "\r\n"));
+        return records;
+    }
+
+    private static List<String> items(CrawlDataIterator iterator) throws IOException {
+        List<String> items = new ArrayList<String>();
+        try {
+            while (iterator.hasNext()) {
+                items.add(iterator.next().toString());
+            }
+        } finally {
+            iterator.close();
+        }
+        return items;
+    }
+
+    private void assertSameItems(String name) throws IOException {
+        File warc = new File(dir, name);
+        TestWarcFiles.write(warc, records());
+        List<String> expected = items(new WarcFileIterator(warc.getPath()));
+        List<String> scanned = items(new WarcRecordScanner(warc.getPath()));
+        // Three responses and two revisits to http URLs
+        assertEquals(5, expected.size());
+        assertEquals(expected, scanned);
+    }
+
+    public void testSameAsWarcFileIterator() throws Exception {
+        assertSameItems("test.warc");
+    }
+
+    public void testSameAsWarcFileIteratorCompressed() throws Exception {
+        assertSameItems("test.warc.gz");
+    }
+
+    public void testFoldedHeader() throws Exception {
+        File warc = new File(dir, "test.warc.gz");
+        TestWarcFiles.write(warc, records());
+        WarcRecordScanner scanner = new WarcRecordScanner(warc.getPath());
+        try {
+            CrawlDataItem item = scanner.next();
+            assertEquals("http://example.com/a", item.getURL());
+            item = scanner.next();
+            assertEquals("http://example.com/b", item.getURL());
+            assertEquals(404, item.getStatusCode());
+            assertEquals("text/html; charset=utf-8", item.getMimeType());
+            assertEquals("\"b1\"", item.getEtag());
+        } finally {
+            scanner.close();
+        }
+    }
+
+}